@@ -0,0 +1,117 @@
+package com.turn.ttorrent.common;
+
+import org.slf4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte buffers grouped by size classes.
+ * <p>
+ * Capacity of buffers of every class is a power of two (starting from {@link #MIN_CLASS_SIZE})
+ * plus small headroom for protocol headers, so for example a piece message with 16 KiB block
+ * and a whole piece of usual size are placed in buffers of the corresponding classes without waste.
+ * Requests of buffers larger than max class size are served by plain allocation.
+ * <p>
+ * Buffers must be returned to the pool by {@link #release(ByteBuffer)} when they are no longer used.
+ * The pool keeps at most configured count of bytes, other released buffers are left to GC.
+ */
+public class ByteBufferPool {
+
+  private static final Logger logger = TorrentLoggerFactory.getLogger(ByteBufferPool.class);
+
+  public static final int MIN_CLASS_SIZE = 16 * 1024;
+  public static final int HEADROOM = 64;
+
+  public static final int DEFAULT_MAX_CLASS_SIZE = 16 * 1024 * 1024;
+  public static final long DEFAULT_MAX_POOLED_BYTES = 64 * 1024 * 1024;
+
+  private final List<Queue<ByteBuffer>> mySizeClasses;
+  private final long myMaxPooledBytes;
+  private final boolean myDirect;
+  private final AtomicLong myPooledBytes;
+
+  public ByteBufferPool() {
+    this(DEFAULT_MAX_CLASS_SIZE, DEFAULT_MAX_POOLED_BYTES, true);
+  }
+
+  /**
+   * @param maxClassSize   max size of pooled buffers without headroom. Must be a power of two
+   * @param maxPooledBytes max count of bytes in buffers which are kept in the pool
+   * @param direct         true if the pool must allocate direct buffers
+   */
+  public ByteBufferPool(int maxClassSize, long maxPooledBytes, boolean direct) {
+    if (maxClassSize < MIN_CLASS_SIZE || Integer.bitCount(maxClassSize) != 1) {
+      throw new IllegalArgumentException("Max class size must be a power of two not less than " + MIN_CLASS_SIZE);
+    }
+    int classesCount = Integer.numberOfTrailingZeros(maxClassSize) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE) + 1;
+    mySizeClasses = new ArrayList<Queue<ByteBuffer>>(classesCount);
+    for (int i = 0; i < classesCount; i++) {
+      mySizeClasses.add(new ConcurrentLinkedQueue<ByteBuffer>());
+    }
+    myMaxPooledBytes = maxPooledBytes;
+    myDirect = direct;
+    myPooledBytes = new AtomicLong();
+  }
+
+  /**
+   * @return cleared buffer with limit equal to the specified size. Capacity of the buffer can be greater
+   */
+  public ByteBuffer acquire(int size) {
+    int sizeClass = sizeClassFor(size);
+    if (sizeClass < 0) {
+      return allocate(size);
+    }
+    ByteBuffer buffer = mySizeClasses.get(sizeClass).poll();
+    if (buffer == null) {
+      buffer = allocate(capacityOf(sizeClass));
+    } else {
+      myPooledBytes.addAndGet(-buffer.capacity());
+    }
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * returns buffer to the pool. Buffer must not be used by the caller after invocation of the method.
+   * Buffers which were not acquired from the pool are ignored
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.isDirect() != myDirect || buffer.isReadOnly()) return;
+    int sizeClass = sizeClassFor(buffer.capacity() - HEADROOM);
+    if (sizeClass < 0 || capacityOf(sizeClass) != buffer.capacity()) return;
+
+    if (myPooledBytes.addAndGet(buffer.capacity()) > myMaxPooledBytes) {
+      myPooledBytes.addAndGet(-buffer.capacity());
+      logger.trace("pool is full, buffer with capacity {} is dropped", buffer.capacity());
+      return;
+    }
+    mySizeClasses.get(sizeClass).offer(buffer);
+  }
+
+  /**
+   * @return count of bytes in buffers which are kept in the pool now
+   */
+  public long getPooledBytes() {
+    return myPooledBytes.get();
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return myDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  private int capacityOf(int sizeClass) {
+    return (MIN_CLASS_SIZE << sizeClass) + HEADROOM;
+  }
+
+  private int sizeClassFor(int size) {
+    int payload = Math.max(size - HEADROOM, MIN_CLASS_SIZE);
+    int sizeClass = 32 - Integer.numberOfLeadingZeros(payload - 1) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    return sizeClass < mySizeClasses.size() ? sizeClass : -1;
+  }
+}
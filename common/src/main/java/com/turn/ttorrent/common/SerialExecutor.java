@@ -0,0 +1,114 @@
+package com.turn.ttorrent.common;
+
+import org.slf4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executor which runs tasks one by one in order of submitting on top of a shared executor.
+ *
+ * <p>
+ * Submitted tasks are put into the mailbox and at most one drain of the mailbox is scheduled
+ * in the delegate at any time. The drain runs up to batch size tasks in one thread and then
+ * reschedules itself if the mailbox isn't empty, so a busy mailbox doesn't occupy the thread
+ * of the shared executor for a long time. Tasks of one mailbox never run concurrently and
+ * all memory effects of a task are visible to the next one.
+ * </p>
+ */
+public class SerialExecutor implements Executor {
+
+  private static final Logger logger = TorrentLoggerFactory.getLogger(SerialExecutor.class);
+
+  public static final int DEFAULT_BATCH_SIZE = 64;
+
+  private final Executor myDelegate;
+  private final String myName;
+  private final int myBatchSize;
+  private final Queue<Runnable> myMailbox;
+  private final AtomicBoolean myScheduled;
+
+  private final Runnable myDrainTask = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  public SerialExecutor(Executor delegate, String name) {
+    this(delegate, name, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @param delegate  executor which runs drains of the mailbox
+   * @param name      suffix of name of the thread while it drains the mailbox
+   * @param batchSize max count of tasks which are run in one drain
+   */
+  public SerialExecutor(Executor delegate, String name, int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+    }
+    myDelegate = delegate;
+    myName = name;
+    myBatchSize = batchSize;
+    myMailbox = new ConcurrentLinkedQueue<Runnable>();
+    myScheduled = new AtomicBoolean(false);
+  }
+
+  /**
+   * @throws RejectedExecutionException if the delegate rejected the drain of the mailbox,
+   *                                    in this case the task is not run
+   */
+  @Override
+  public void execute(Runnable task) {
+    myMailbox.add(task);
+    if (!myScheduled.compareAndSet(false, true)) return;
+    try {
+      myDelegate.execute(myDrainTask);
+    } catch (RejectedExecutionException e) {
+      myMailbox.remove(task);
+      myScheduled.set(false);
+      throw e;
+    }
+  }
+
+  /**
+   * @return count of tasks which wait in the mailbox
+   */
+  public int getQueueSize() {
+    return myMailbox.size();
+  }
+
+  private void drain() {
+    final Thread currentThread = Thread.currentThread();
+    final String oldName = currentThread.getName();
+    currentThread.setName(oldName + " " + myName);
+    try {
+      for (int i = 0; i < myBatchSize; i++) {
+        Runnable task = myMailbox.poll();
+        if (task == null) break;
+        try {
+          task.run();
+        } catch (Throwable e) {
+          LoggerUtils.warnAndDebugDetails(logger, "unhandled exception in task of {}", myName, e);
+        }
+      }
+    } finally {
+      currentThread.setName(oldName);
+      myScheduled.set(false);
+    }
+    // the task could be added after the last poll but before the flag was reset
+    if (!myMailbox.isEmpty() && myScheduled.compareAndSet(false, true)) {
+      try {
+        myDelegate.execute(myDrainTask);
+      } catch (RejectedExecutionException e) {
+        myScheduled.set(false);
+        logger.debug("unable to continue draining of {}, {} tasks are dropped", myName, myMailbox.size());
+        myMailbox.clear();
+      }
+    }
+  }
+}
@@ -2,6 +2,9 @@ package com.turn.ttorrent.common;
 
 import org.apache.commons.codec.digest.DigestUtils;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -17,6 +20,27 @@ public final class TorrentUtils {
     return DigestUtils.sha(data);
   }
 
+  /**
+   * @param data for hashing. Remaining bytes of the buffer are hashed, position of the buffer isn't changed
+   * @return sha 1 hash of specified data
+   */
+  public static byte[] calculateSha1Hash(ByteBuffer data) {
+    MessageDigest digest = createSha1Digest();
+    digest.update(data.duplicate());
+    return digest.digest();
+  }
+
+  /**
+   * @return new instance of sha 1 message digest
+   */
+  public static MessageDigest createSha1Digest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 algorithm is not supported", e);
+    }
+  }
+
   /**
    * Convert a byte string to a string containing an hexadecimal
    * representation of the original data.
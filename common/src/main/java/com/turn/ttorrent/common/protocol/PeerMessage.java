@@ -61,7 +61,13 @@ public abstract class PeerMessage {
     BITFIELD(5),
     REQUEST(6),
     PIECE(7),
-    CANCEL(8);
+    CANCEL(8),
+    // fast extension (BEP 6)
+    SUGGEST_PIECE(0x0D),
+    HAVE_ALL(0x0E),
+    HAVE_NONE(0x0F),
+    REJECT_REQUEST(0x10),
+    ALLOWED_FAST(0x11);
 
     private byte id;
 
@@ -182,6 +188,16 @@ public abstract class PeerMessage {
         return PieceMessage.parse(buffer.slice(), torrent);
       case CANCEL:
         return CancelMessage.parse(buffer.slice(), torrent);
+      case SUGGEST_PIECE:
+        return SuggestPieceMessage.parse(buffer.slice(), torrent);
+      case HAVE_ALL:
+        return HaveAllMessage.parse(buffer.slice(), torrent);
+      case HAVE_NONE:
+        return HaveNoneMessage.parse(buffer.slice(), torrent);
+      case REJECT_REQUEST:
+        return RejectRequestMessage.parse(buffer.slice(), torrent);
+      case ALLOWED_FAST:
+        return AllowedFastMessage.parse(buffer.slice(), torrent);
       default:
         throw new IllegalStateException("Message type should have " +
                 "been properly defined by now.");
@@ -420,12 +436,7 @@ public abstract class PeerMessage {
 
     public static BitfieldMessage parse(ByteBuffer buffer,
                                         TorrentInfo torrent) throws MessageValidationException {
-      BitSet bitfield = new BitSet(buffer.remaining() * 8);
-      for (int i = 0; i < buffer.remaining() * 8; i++) {
-        if ((buffer.get(i / 8) & (1 << (7 - (i % 8)))) > 0) {
-          bitfield.set(i);
-        }
-      }
+      BitSet bitfield = PeerMessageView.toBitSet(PeerMessageView.toBitfieldWords(buffer, 0, buffer.remaining()));
 
       return new BitfieldMessage(buffer, bitfield)
               .validate(torrent);
@@ -503,7 +514,14 @@ public abstract class PeerMessage {
     }
 
     public void renew() {
-      mySendTime = System.currentTimeMillis();
+      renew(System.currentTimeMillis());
+    }
+
+    /**
+     * @param sendTime time of sending by the clock which is used for checking of the request timeout
+     */
+    public void renew(long sendTime) {
+      mySendTime = sendTime;
     }
 
     @Override
@@ -573,6 +591,11 @@ public abstract class PeerMessage {
       return this.offset;
     }
 
+    /**
+     * @return block data. For received messages it can be a view of a pooled
+     * buffer which is valid only while the message is handled, so block data
+     * must be copied if it's required later.
+     */
     public ByteBuffer getBlock() {
       return this.block;
     }
@@ -613,6 +636,19 @@ public abstract class PeerMessage {
       return result;
     }
 
+    /**
+     * creates buffer with header of piece message only. Block data must be sent right after the header
+     */
+    public static ByteBuffer createHeaderForMessage(int piece, int offset, int blockSize) {
+      ByteBuffer result = ByteBuffer.allocate(MESSAGE_LENGTH_FIELD_SIZE + PieceMessage.BASE_SIZE);
+      result.putInt(PieceMessage.BASE_SIZE + blockSize);
+      result.put(PeerMessage.Type.PIECE.getTypeByte());
+      result.putInt(piece);
+      result.putInt(offset);
+      result.flip();
+      return result;
+    }
+
     public String toString() {
       return super.toString() + " #" + this.getPiece() +
               " (" + this.getBlock().capacity() + "@" + this.getOffset() + ")";
@@ -689,4 +725,231 @@ public abstract class PeerMessage {
               " (" + this.getLength() + "@" + this.getOffset() + ")";
     }
   }
+
+  /**
+   * Suggest piece message of the fast extension.
+   *
+   * <len=0005><id=0x0D><piece index>
+   */
+  public static class SuggestPieceMessage extends PeerMessage {
+
+    private static final int BASE_SIZE = 5;
+
+    private int piece;
+
+    private SuggestPieceMessage(ByteBuffer buffer, int piece) {
+      super(Type.SUGGEST_PIECE, buffer);
+      this.piece = piece;
+    }
+
+    public int getPieceIndex() {
+      return this.piece;
+    }
+
+    @Override
+    public SuggestPieceMessage validate(TorrentInfo torrent)
+            throws MessageValidationException {
+      if (this.piece >= 0 && this.piece < torrent.getPieceCount()) {
+        return this;
+      }
+
+      throw new MessageValidationException(this);
+    }
+
+    public static SuggestPieceMessage parse(ByteBuffer buffer,
+                                            TorrentInfo torrent) throws MessageValidationException {
+      return new SuggestPieceMessage(buffer, buffer.getInt())
+              .validate(torrent);
+    }
+
+    public static SuggestPieceMessage craft(int piece) {
+      ByteBuffer buffer = ByteBuffer.allocate(
+              MESSAGE_LENGTH_FIELD_SIZE + SuggestPieceMessage.BASE_SIZE);
+      buffer.putInt(SuggestPieceMessage.BASE_SIZE);
+      buffer.put(PeerMessage.Type.SUGGEST_PIECE.getTypeByte());
+      buffer.putInt(piece);
+      return new SuggestPieceMessage(buffer, piece);
+    }
+
+    public String toString() {
+      return super.toString() + " #" + this.getPieceIndex();
+    }
+  }
+
+  /**
+   * Have all message of the fast extension, it replaces bitfield of a seeder.
+   *
+   * <len=0001><id=0x0E>
+   */
+  public static class HaveAllMessage extends PeerMessage {
+
+    private static final int BASE_SIZE = 1;
+
+    private HaveAllMessage(ByteBuffer buffer) {
+      super(Type.HAVE_ALL, buffer);
+    }
+
+    public static HaveAllMessage parse(ByteBuffer buffer,
+                                       TorrentInfo torrent) throws MessageValidationException {
+      return (HaveAllMessage) new HaveAllMessage(buffer)
+              .validate(torrent);
+    }
+
+    public static HaveAllMessage craft() {
+      ByteBuffer buffer = ByteBuffer.allocate(
+              MESSAGE_LENGTH_FIELD_SIZE + HaveAllMessage.BASE_SIZE);
+      buffer.putInt(HaveAllMessage.BASE_SIZE);
+      buffer.put(PeerMessage.Type.HAVE_ALL.getTypeByte());
+      return new HaveAllMessage(buffer);
+    }
+  }
+
+  /**
+   * Have none message of the fast extension, it replaces empty bitfield.
+   *
+   * <len=0001><id=0x0F>
+   */
+  public static class HaveNoneMessage extends PeerMessage {
+
+    private static final int BASE_SIZE = 1;
+
+    private HaveNoneMessage(ByteBuffer buffer) {
+      super(Type.HAVE_NONE, buffer);
+    }
+
+    public static HaveNoneMessage parse(ByteBuffer buffer,
+                                        TorrentInfo torrent) throws MessageValidationException {
+      return (HaveNoneMessage) new HaveNoneMessage(buffer)
+              .validate(torrent);
+    }
+
+    public static HaveNoneMessage craft() {
+      ByteBuffer buffer = ByteBuffer.allocate(
+              MESSAGE_LENGTH_FIELD_SIZE + HaveNoneMessage.BASE_SIZE);
+      buffer.putInt(HaveNoneMessage.BASE_SIZE);
+      buffer.put(PeerMessage.Type.HAVE_NONE.getTypeByte());
+      return new HaveNoneMessage(buffer);
+    }
+  }
+
+  /**
+   * Reject request message of the fast extension.
+   *
+   * <len=00013><id=0x10><piece index><block offset><block length>
+   */
+  public static class RejectRequestMessage extends PeerMessage {
+
+    private static final int BASE_SIZE = 13;
+
+    private int piece;
+    private int offset;
+    private int length;
+
+    private RejectRequestMessage(ByteBuffer buffer, int piece,
+                                 int offset, int length) {
+      super(Type.REJECT_REQUEST, buffer);
+      this.piece = piece;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public int getPiece() {
+      return this.piece;
+    }
+
+    public int getOffset() {
+      return this.offset;
+    }
+
+    public int getLength() {
+      return this.length;
+    }
+
+    @Override
+    public RejectRequestMessage validate(TorrentInfo torrent)
+            throws MessageValidationException {
+      if (this.piece >= 0 && this.piece < torrent.getPieceCount() &&
+              this.offset + this.length <=
+                      torrent.getPieceSize(this.piece)) {
+        return this;
+      }
+
+      throw new MessageValidationException(this);
+    }
+
+    public static RejectRequestMessage parse(ByteBuffer buffer,
+                                             TorrentInfo torrent) throws MessageValidationException {
+      int piece = buffer.getInt();
+      int offset = buffer.getInt();
+      int length = buffer.getInt();
+      return new RejectRequestMessage(buffer, piece,
+              offset, length).validate(torrent);
+    }
+
+    public static RejectRequestMessage craft(int piece, int offset, int length) {
+      ByteBuffer buffer = ByteBuffer.allocate(
+              MESSAGE_LENGTH_FIELD_SIZE + RejectRequestMessage.BASE_SIZE);
+      buffer.putInt(RejectRequestMessage.BASE_SIZE);
+      buffer.put(PeerMessage.Type.REJECT_REQUEST.getTypeByte());
+      buffer.putInt(piece);
+      buffer.putInt(offset);
+      buffer.putInt(length);
+      return new RejectRequestMessage(buffer, piece, offset, length);
+    }
+
+    public String toString() {
+      return super.toString() + " #" + this.getPiece() +
+              " (" + this.getLength() + "@" + this.getOffset() + ")";
+    }
+  }
+
+  /**
+   * Allowed fast message of the fast extension: the piece can be requested while we are choked.
+   *
+   * <len=0005><id=0x11><piece index>
+   */
+  public static class AllowedFastMessage extends PeerMessage {
+
+    private static final int BASE_SIZE = 5;
+
+    private int piece;
+
+    private AllowedFastMessage(ByteBuffer buffer, int piece) {
+      super(Type.ALLOWED_FAST, buffer);
+      this.piece = piece;
+    }
+
+    public int getPieceIndex() {
+      return this.piece;
+    }
+
+    @Override
+    public AllowedFastMessage validate(TorrentInfo torrent)
+            throws MessageValidationException {
+      if (this.piece >= 0 && this.piece < torrent.getPieceCount()) {
+        return this;
+      }
+
+      throw new MessageValidationException(this);
+    }
+
+    public static AllowedFastMessage parse(ByteBuffer buffer,
+                                           TorrentInfo torrent) throws MessageValidationException {
+      return new AllowedFastMessage(buffer, buffer.getInt())
+              .validate(torrent);
+    }
+
+    public static AllowedFastMessage craft(int piece) {
+      ByteBuffer buffer = ByteBuffer.allocate(
+              MESSAGE_LENGTH_FIELD_SIZE + AllowedFastMessage.BASE_SIZE);
+      buffer.putInt(AllowedFastMessage.BASE_SIZE);
+      buffer.put(PeerMessage.Type.ALLOWED_FAST.getTypeByte());
+      buffer.putInt(piece);
+      return new AllowedFastMessage(buffer, piece);
+    }
+
+    public String toString() {
+      return super.toString() + " #" + this.getPieceIndex();
+    }
+  }
 }
@@ -0,0 +1,57 @@
+package com.turn.ttorrent.common.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callbacks for messages decoded by {@link PeerMessageView#dispatch(PeerMessageHandler)}.
+ *
+ * <p>
+ * Fields of messages are passed as primitives, so control messages are handled without
+ * allocation of message objects. Buffers and views passed to callbacks are valid only
+ * during the call.
+ * </p>
+ */
+public interface PeerMessageHandler {
+
+  void onKeepAlive();
+
+  void onChoke();
+
+  void onUnchoke();
+
+  void onInterested();
+
+  void onNotInterested();
+
+  void onHave(int piece);
+
+  /**
+   * @param bitfield view of the bitfield message, bits can be got by {@link PeerMessageView#getBitfieldWords()}
+   */
+  void onBitfield(PeerMessageView bitfield);
+
+  void onRequest(int piece, int offset, int length);
+
+  /**
+   * @param block buffer with data of the block, it shares content with the frame
+   */
+  void onPiece(int piece, int offset, ByteBuffer block);
+
+  void onCancel(int piece, int offset, int length);
+
+  void onSuggestPiece(int piece);
+
+  /**
+   * Fast extension replacement of bitfield with all pieces
+   */
+  void onHaveAll();
+
+  /**
+   * Fast extension replacement of empty bitfield
+   */
+  void onHaveNone();
+
+  void onRejectRequest(int piece, int offset, int length);
+
+  void onAllowedFast(int piece);
+}
@@ -0,0 +1,272 @@
+package com.turn.ttorrent.common.protocol;
+
+import com.turn.ttorrent.common.TorrentInfo;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.BitSet;
+
+/**
+ * Flyweight view of a peer protocol message.
+ *
+ * <p>
+ * Unlike {@link PeerMessage#parse(ByteBuffer, TorrentInfo)} the view doesn't create objects
+ * for messages: it is wrapped around a frame, validates it and reads fields directly from the
+ * frame buffer by absolute positions. The same view can be wrapped around any count of frames
+ * one by one, fields of the previous frame are not available after that. Position and limit
+ * of wrapped buffers are never changed.
+ * </p>
+ *
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ */
+public class PeerMessageView {
+
+  private static final int TYPE_OFFSET = PeerMessage.MESSAGE_LENGTH_FIELD_SIZE;
+  private static final int PAYLOAD_OFFSET = TYPE_OFFSET + 1;
+  private static final int INDEX_MESSAGE_SIZE = 5;
+  private static final int BLOCK_MESSAGE_SIZE = 13;
+  private static final int PIECE_HEADER_SIZE = 9;
+
+  private static final PeerMessage.Type[] TYPES_BY_ID;
+
+  static {
+    TYPES_BY_ID = new PeerMessage.Type[PeerMessage.Type.ALLOWED_FAST.getTypeByte() + 1];
+    for (PeerMessage.Type type : PeerMessage.Type.values()) {
+      if (type.getTypeByte() >= 0) {
+        TYPES_BY_ID[type.getTypeByte()] = type;
+      }
+    }
+  }
+
+  private ByteBuffer myBuffer;
+  private int myStart;
+  // length of the message without length field
+  private int myLength;
+  private PeerMessage.Type myType;
+
+  /**
+   * Wraps the view around the frame and validates the message
+   *
+   * @param frame   buffer which contains the whole message with the length field
+   *                between its position and limit
+   * @param torrent the torrent this message is about
+   * @return this view
+   * @throws ParseException if the message is invalid or it doesn't match the torrent
+   */
+  public PeerMessageView wrap(ByteBuffer frame, TorrentInfo torrent) throws ParseException {
+    myBuffer = null;
+    myType = null;
+    int start = frame.position();
+    if (frame.remaining() < PeerMessage.MESSAGE_LENGTH_FIELD_SIZE) {
+      throw new ParseException("Message is shorter than its length field", 0);
+    }
+    int length = frame.getInt(start);
+    if (length != frame.remaining() - PeerMessage.MESSAGE_LENGTH_FIELD_SIZE) {
+      throw new ParseException("Message size did not match announced size!", 0);
+    }
+    PeerMessage.Type type;
+    if (length == 0) {
+      type = PeerMessage.Type.KEEP_ALIVE;
+    } else {
+      byte id = frame.get(start + TYPE_OFFSET);
+      type = id >= 0 && id < TYPES_BY_ID.length ? TYPES_BY_ID[id] : null;
+      if (type == null) {
+        throw new ParseException("Unknown message ID!", TYPE_OFFSET);
+      }
+    }
+    myBuffer = frame;
+    myStart = start;
+    myLength = length;
+    myType = type;
+    if (!isValid(torrent)) {
+      myBuffer = null;
+      myType = null;
+      throw new ParseException("Message " + type + " is not valid!", 0);
+    }
+    return this;
+  }
+
+  public PeerMessage.Type getType() {
+    return myType;
+  }
+
+  /**
+   * @return index of the piece of HAVE, REQUEST, PIECE, CANCEL, SUGGEST_PIECE,
+   * REJECT_REQUEST and ALLOWED_FAST messages
+   */
+  public int getPiece() {
+    return myBuffer.getInt(myStart + PAYLOAD_OFFSET);
+  }
+
+  /**
+   * @return offset of the block of REQUEST, PIECE, CANCEL and REJECT_REQUEST messages
+   */
+  public int getOffset() {
+    return myBuffer.getInt(myStart + PAYLOAD_OFFSET + 4);
+  }
+
+  /**
+   * @return length of the block of REQUEST, CANCEL, REJECT_REQUEST and PIECE messages
+   */
+  public int getLength() {
+    if (myType == PeerMessage.Type.PIECE) {
+      return myLength - PIECE_HEADER_SIZE;
+    }
+    return myBuffer.getInt(myStart + PAYLOAD_OFFSET + 8);
+  }
+
+  /**
+   * @return buffer with data of the block of PIECE message, it shares content with the frame
+   */
+  public ByteBuffer getBlock() {
+    ByteBuffer block = myBuffer.duplicate();
+    int blockStart = myStart + PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + PIECE_HEADER_SIZE;
+    block.limit(myStart + PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + myLength);
+    block.position(blockStart);
+    return block.slice();
+  }
+
+  /**
+   * @return bits of BITFIELD message as words, piece i is bit i % 64 of word i / 64,
+   * they can be converted by {@link #toBitSet(long[])}
+   */
+  public long[] getBitfieldWords() {
+    return toBitfieldWords(myBuffer, myStart + PAYLOAD_OFFSET, myLength - 1);
+  }
+
+  /**
+   * Calls the handler method which corresponds to type of the message
+   */
+  public void dispatch(PeerMessageHandler handler) {
+    switch (myType) {
+      case KEEP_ALIVE:
+        handler.onKeepAlive();
+        break;
+      case CHOKE:
+        handler.onChoke();
+        break;
+      case UNCHOKE:
+        handler.onUnchoke();
+        break;
+      case INTERESTED:
+        handler.onInterested();
+        break;
+      case NOT_INTERESTED:
+        handler.onNotInterested();
+        break;
+      case HAVE:
+        handler.onHave(getPiece());
+        break;
+      case BITFIELD:
+        handler.onBitfield(this);
+        break;
+      case REQUEST:
+        handler.onRequest(getPiece(), getOffset(), getLength());
+        break;
+      case PIECE:
+        handler.onPiece(getPiece(), getOffset(), getBlock());
+        break;
+      case CANCEL:
+        handler.onCancel(getPiece(), getOffset(), getLength());
+        break;
+      case SUGGEST_PIECE:
+        handler.onSuggestPiece(getPiece());
+        break;
+      case HAVE_ALL:
+        handler.onHaveAll();
+        break;
+      case HAVE_NONE:
+        handler.onHaveNone();
+        break;
+      case REJECT_REQUEST:
+        handler.onRejectRequest(getPiece(), getOffset(), getLength());
+        break;
+      case ALLOWED_FAST:
+        handler.onAllowedFast(getPiece());
+        break;
+      default:
+        throw new IllegalStateException("View is not wrapped around a message");
+    }
+  }
+
+  public String toString() {
+    return myType == null ? "EMPTY" : myType.name();
+  }
+
+  /**
+   * Converts bitfield of the peer protocol (the first piece is the high bit of the first byte)
+   * to words where piece i is bit i % 64 of word i / 64. Every byte is reversed and placed
+   * to its word at once instead of setting bits one by one.
+   *
+   * @param buffer buffer with the bitfield
+   * @param offset absolute position of the bitfield in the buffer
+   * @param length length of the bitfield in bytes
+   */
+  public static long[] toBitfieldWords(ByteBuffer buffer, int offset, int length) {
+    long[] words = new long[(length + 7) / 8];
+    for (int i = 0; i < length; i++) {
+      int b = buffer.get(offset + i) & 0xFF;
+      if (b == 0) continue;
+      words[i >>> 3] |= (long) (Integer.reverse(b) >>> 24) << ((i & 7) << 3);
+    }
+    return words;
+  }
+
+  /**
+   * Builds bit set from words of {@link #toBitfieldWords}, only set bits are visited
+   */
+  public static BitSet toBitSet(long[] words) {
+    BitSet result = new BitSet(words.length * 64);
+    for (int i = 0; i < words.length; i++) {
+      long word = words[i];
+      while (word != 0) {
+        result.set((i << 6) + Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return result;
+  }
+
+  private boolean isValid(TorrentInfo torrent) {
+    switch (myType) {
+      case HAVE:
+      case SUGGEST_PIECE:
+      case ALLOWED_FAST:
+        return myLength == INDEX_MESSAGE_SIZE && isValidPiece(getPiece(), torrent);
+      case BITFIELD:
+        return hasNoBitsAfter(torrent.getPieceCount());
+      case REQUEST:
+      case CANCEL:
+      case REJECT_REQUEST:
+        return myLength == BLOCK_MESSAGE_SIZE && isValidBlock(getPiece(), getOffset(), getLength(), torrent);
+      case PIECE:
+        return myLength >= PIECE_HEADER_SIZE && isValidBlock(getPiece(), getOffset(), getLength(), torrent);
+      default:
+        return true;
+    }
+  }
+
+  private boolean hasNoBitsAfter(int pieceCount) {
+    int bitfieldStart = myStart + PAYLOAD_OFFSET;
+    int bitfieldLength = myLength - 1;
+    int firstByte = pieceCount / 8;
+    if (firstByte >= bitfieldLength) return true;
+    int bitsInFirstByte = pieceCount % 8;
+    if ((myBuffer.get(bitfieldStart + firstByte) & (0xFF >>> bitsInFirstByte)) != 0) return false;
+    for (int i = firstByte + 1; i < bitfieldLength; i++) {
+      if (myBuffer.get(bitfieldStart + i) != 0) return false;
+    }
+    return true;
+  }
+
+  private static boolean isValidPiece(int piece, TorrentInfo torrent) {
+    return piece >= 0 && piece < torrent.getPieceCount();
+  }
+
+  private static boolean isValidBlock(int piece, int offset, int length, TorrentInfo torrent) {
+    return isValidPiece(piece, torrent) && offset >= 0 && length >= 0 &&
+            (long) offset + length <= torrent.getPieceSize(piece);
+  }
+}
@@ -0,0 +1,56 @@
+package com.turn.ttorrent.common;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ByteBufferPoolTest {
+
+  public void testBlockMessageFitsInSmallestClass() {
+    ByteBufferPool pool = new ByteBufferPool(1024 * 1024, 1024 * 1024, false);
+    ByteBuffer buffer = pool.acquire(16 * 1024 + 13);
+    assertEquals(buffer.limit(), 16 * 1024 + 13);
+    assertEquals(buffer.capacity(), ByteBufferPool.MIN_CLASS_SIZE + ByteBufferPool.HEADROOM);
+  }
+
+  public void testReleasedBufferIsReused() {
+    ByteBufferPool pool = new ByteBufferPool(1024 * 1024, 1024 * 1024, false);
+    ByteBuffer buffer = pool.acquire(256 * 1024);
+    buffer.position(100);
+    pool.release(buffer);
+    assertEquals(pool.getPooledBytes(), (long) buffer.capacity());
+
+    ByteBuffer reused = pool.acquire(200 * 1024);
+    assertSame(reused, buffer);
+    assertEquals(reused.position(), 0);
+    assertEquals(reused.limit(), 200 * 1024);
+    assertEquals(pool.getPooledBytes(), 0L);
+  }
+
+  public void testLargeBuffersAreNotPooled() {
+    ByteBufferPool pool = new ByteBufferPool(1024 * 1024, 16 * 1024 * 1024, false);
+    ByteBuffer buffer = pool.acquire(4 * 1024 * 1024);
+    assertEquals(buffer.capacity(), 4 * 1024 * 1024);
+    pool.release(buffer);
+    assertEquals(pool.getPooledBytes(), 0L);
+  }
+
+  public void testPoolSizeIsLimited() {
+    ByteBufferPool pool = new ByteBufferPool(1024 * 1024, 20 * 1024, false);
+    ByteBuffer first = pool.acquire(1024);
+    ByteBuffer second = pool.acquire(1024);
+    pool.release(first);
+    pool.release(second);
+    assertEquals(pool.getPooledBytes(), (long) first.capacity());
+  }
+
+  public void testForeignBuffersAreIgnored() {
+    ByteBufferPool pool = new ByteBufferPool(1024 * 1024, 1024 * 1024, true);
+    pool.release(ByteBuffer.allocate(ByteBufferPool.MIN_CLASS_SIZE + ByteBufferPool.HEADROOM));
+    pool.release(ByteBuffer.allocateDirect(1000));
+    assertEquals(pool.getPooledBytes(), 0L);
+  }
+}
@@ -0,0 +1,110 @@
+package com.turn.ttorrent.common;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+@Test
+public class SerialExecutorTest {
+
+  public void testTasksAreRunInOrderInBatches() {
+    final Queue<Runnable> delegateTasks = new LinkedList<Runnable>();
+    Executor delegate = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        delegateTasks.add(command);
+      }
+    };
+    SerialExecutor executor = new SerialExecutor(delegate, "test", 2);
+    final List<Integer> result = new ArrayList<Integer>();
+    for (int i = 0; i < 5; i++) {
+      final int value = i;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          result.add(value);
+        }
+      });
+    }
+    assertEquals(delegateTasks.size(), 1);
+    assertEquals(executor.getQueueSize(), 5);
+
+    delegateTasks.poll().run();
+    assertEquals(result, Arrays.asList(0, 1));
+    assertEquals(delegateTasks.size(), 1);
+
+    delegateTasks.poll().run();
+    delegateTasks.poll().run();
+    assertEquals(result, Arrays.asList(0, 1, 2, 3, 4));
+    assertTrue(delegateTasks.isEmpty());
+    assertEquals(executor.getQueueSize(), 0);
+  }
+
+  public void testRejectedTaskIsNotKept() {
+    Executor delegate = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    };
+    SerialExecutor executor = new SerialExecutor(delegate, "test");
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+      fail("task must be rejected");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    assertEquals(executor.getQueueSize(), 0);
+  }
+
+  public void testTasksDontRunConcurrently() throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      SerialExecutor executor = new SerialExecutor(pool, "test", 3);
+      final int tasksCount = 10000;
+      final AtomicInteger running = new AtomicInteger();
+      final List<Integer> result = Collections.synchronizedList(new ArrayList<Integer>());
+      final CountDownLatch done = new CountDownLatch(tasksCount);
+      final boolean[] overlapped = new boolean[1];
+      for (int i = 0; i < tasksCount; i++) {
+        final int value = i;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (running.incrementAndGet() != 1) {
+              overlapped[0] = true;
+            }
+            result.add(value);
+            running.decrementAndGet();
+            done.countDown();
+          }
+        });
+      }
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      assertFalse(overlapped[0]);
+      for (int i = 0; i < tasksCount; i++) {
+        assertEquals(result.get(i).intValue(), i);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}
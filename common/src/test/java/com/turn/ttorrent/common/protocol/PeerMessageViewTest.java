@@ -0,0 +1,247 @@
+package com.turn.ttorrent.common.protocol;
+
+import com.turn.ttorrent.common.TorrentInfo;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.BitSet;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PeerMessageViewTest {
+
+  private static final int PIECE_COUNT = 20;
+  private static final int PIECE_SIZE = 64 * 1024;
+
+  private final TorrentInfo myTorrent = new TorrentInfo() {
+    @Override
+    public long getUploaded() {
+      return 0;
+    }
+
+    @Override
+    public long getDownloaded() {
+      return 0;
+    }
+
+    @Override
+    public long getLeft() {
+      return 0;
+    }
+
+    @Override
+    public int getPieceCount() {
+      return PIECE_COUNT;
+    }
+
+    @Override
+    public long getPieceSize(int pieceIdx) {
+      return PIECE_SIZE;
+    }
+
+    @Override
+    public byte[] getInfoHash() {
+      return new byte[20];
+    }
+
+    @Override
+    public String getHexInfoHash() {
+      return "";
+    }
+  };
+
+  public void testControlMessages() throws ParseException {
+    PeerMessageView view = new PeerMessageView();
+    assertEquals(view.wrap(PeerMessage.KeepAliveMessage.craft().getData(), myTorrent).getType(), PeerMessage.Type.KEEP_ALIVE);
+    assertEquals(view.wrap(PeerMessage.UnchokeMessage.craft().getData(), myTorrent).getType(), PeerMessage.Type.UNCHOKE);
+
+    view.wrap(PeerMessage.HaveMessage.craft(7).getData(), myTorrent);
+    assertEquals(view.getType(), PeerMessage.Type.HAVE);
+    assertEquals(view.getPiece(), 7);
+
+    view.wrap(PeerMessage.RequestMessage.craft(3, 16384, 16384).getData(), myTorrent);
+    assertEquals(view.getType(), PeerMessage.Type.REQUEST);
+    assertEquals(view.getPiece(), 3);
+    assertEquals(view.getOffset(), 16384);
+    assertEquals(view.getLength(), 16384);
+  }
+
+  public void testFrameInTheMiddleOfBuffer() throws ParseException {
+    ByteBuffer have = PeerMessage.HaveMessage.craft(5).getData();
+    ByteBuffer buffer = ByteBuffer.allocate(3 + have.remaining() + 2);
+    buffer.position(3);
+    buffer.put(have);
+    buffer.position(3);
+    buffer.limit(buffer.limit() - 2);
+
+    PeerMessageView view = new PeerMessageView().wrap(buffer, myTorrent);
+    assertEquals(view.getPiece(), 5);
+    assertEquals(buffer.position(), 3);
+  }
+
+  public void testPieceBlock() throws ParseException {
+    ByteBuffer piece = PeerMessage.PieceMessage.createBufferWithHeaderForMessage(2, 1024, 4);
+    piece.put(new byte[]{1, 2, 3, 4});
+    piece.flip();
+
+    PeerMessageView view = new PeerMessageView().wrap(piece, myTorrent);
+    assertEquals(view.getPiece(), 2);
+    assertEquals(view.getOffset(), 1024);
+    assertEquals(view.getLength(), 4);
+    ByteBuffer block = view.getBlock();
+    assertEquals(block.remaining(), 4);
+    assertEquals(block.get(0), 1);
+    assertEquals(block.get(3), 4);
+  }
+
+  public void testBitfieldWords() throws ParseException {
+    BitSet pieces = new BitSet();
+    pieces.set(0);
+    pieces.set(9);
+    pieces.set(19);
+
+    PeerMessageView view = new PeerMessageView().wrap(PeerMessage.BitfieldMessage.craft(pieces).getData(), myTorrent);
+    assertEquals(view.getType(), PeerMessage.Type.BITFIELD);
+    assertEquals(PeerMessageView.toBitSet(view.getBitfieldWords()), pieces);
+  }
+
+  public void testInvalidMessagesAreRejected() {
+    assertInvalid(PeerMessage.HaveMessage.craft(PIECE_COUNT).getData());
+    assertInvalid(PeerMessage.RequestMessage.craft(0, PIECE_SIZE - 10, 16384).getData());
+
+    BitSet pieces = new BitSet();
+    pieces.set(PIECE_COUNT + 1);
+    assertInvalid(PeerMessage.BitfieldMessage.craft(pieces).getData());
+
+    ByteBuffer unknown = ByteBuffer.allocate(5);
+    unknown.putInt(1);
+    unknown.put((byte) 42);
+    unknown.flip();
+    assertInvalid(unknown);
+
+    ByteBuffer truncated = ByteBuffer.allocate(7);
+    truncated.putInt(5);
+    truncated.put(PeerMessage.Type.HAVE.getTypeByte());
+    truncated.flip();
+    assertInvalid(truncated);
+  }
+
+  public void testDispatch() throws ParseException {
+    final StringBuilder calls = new StringBuilder();
+    PeerMessageHandler handler = new PeerMessageHandler() {
+      @Override
+      public void onKeepAlive() {
+        calls.append("keepAlive;");
+      }
+
+      @Override
+      public void onChoke() {
+        calls.append("choke;");
+      }
+
+      @Override
+      public void onUnchoke() {
+        calls.append("unchoke;");
+      }
+
+      @Override
+      public void onInterested() {
+        calls.append("interested;");
+      }
+
+      @Override
+      public void onNotInterested() {
+        calls.append("notInterested;");
+      }
+
+      @Override
+      public void onHave(int piece) {
+        calls.append("have ").append(piece).append(";");
+      }
+
+      @Override
+      public void onBitfield(PeerMessageView bitfield) {
+        calls.append("bitfield;");
+      }
+
+      @Override
+      public void onRequest(int piece, int offset, int length) {
+        calls.append("request ").append(piece).append(" ").append(offset).append(" ").append(length).append(";");
+      }
+
+      @Override
+      public void onPiece(int piece, int offset, ByteBuffer block) {
+        calls.append("piece;");
+      }
+
+      @Override
+      public void onCancel(int piece, int offset, int length) {
+        calls.append("cancel ").append(piece).append(" ").append(offset).append(" ").append(length).append(";");
+      }
+
+      @Override
+      public void onSuggestPiece(int piece) {
+        calls.append("suggest ").append(piece).append(";");
+      }
+
+      @Override
+      public void onHaveAll() {
+        calls.append("haveAll;");
+      }
+
+      @Override
+      public void onHaveNone() {
+        calls.append("haveNone;");
+      }
+
+      @Override
+      public void onRejectRequest(int piece, int offset, int length) {
+        calls.append("reject ").append(piece).append(" ").append(offset).append(" ").append(length).append(";");
+      }
+
+      @Override
+      public void onAllowedFast(int piece) {
+        calls.append("allowedFast ").append(piece).append(";");
+      }
+    };
+    PeerMessageView view = new PeerMessageView();
+    view.wrap(PeerMessage.ChokeMessage.craft().getData(), myTorrent).dispatch(handler);
+    view.wrap(PeerMessage.HaveMessage.craft(1).getData(), myTorrent).dispatch(handler);
+    view.wrap(PeerMessage.CancelMessage.craft(1, 0, 100).getData(), myTorrent).dispatch(handler);
+    assertEquals(calls.toString(), "choke;have 1;cancel 1 0 100;");
+
+    calls.setLength(0);
+    view.wrap(PeerMessage.HaveAllMessage.craft().getData(), myTorrent).dispatch(handler);
+    view.wrap(PeerMessage.HaveNoneMessage.craft().getData(), myTorrent).dispatch(handler);
+    view.wrap(PeerMessage.SuggestPieceMessage.craft(3).getData(), myTorrent).dispatch(handler);
+    view.wrap(PeerMessage.RejectRequestMessage.craft(2, 16384, 100).getData(), myTorrent).dispatch(handler);
+    view.wrap(PeerMessage.AllowedFastMessage.craft(19).getData(), myTorrent).dispatch(handler);
+    assertEquals(calls.toString(), "haveAll;haveNone;suggest 3;reject 2 16384 100;allowedFast 19;");
+  }
+
+  public void testFastExtensionMessages() throws ParseException {
+    PeerMessage reject = PeerMessage.parse(PeerMessage.RejectRequestMessage.craft(4, 0, 16384).getData(), myTorrent);
+    assertEquals(reject.getType(), PeerMessage.Type.REJECT_REQUEST);
+    assertEquals(((PeerMessage.RejectRequestMessage) reject).getPiece(), 4);
+    assertEquals(((PeerMessage.RejectRequestMessage) reject).getLength(), 16384);
+
+    PeerMessage allowedFast = PeerMessage.parse(PeerMessage.AllowedFastMessage.craft(5).getData(), myTorrent);
+    assertEquals(((PeerMessage.AllowedFastMessage) allowedFast).getPieceIndex(), 5);
+    assertEquals(PeerMessage.parse(PeerMessage.HaveAllMessage.craft().getData(), myTorrent).getType(), PeerMessage.Type.HAVE_ALL);
+
+    assertInvalid(PeerMessage.AllowedFastMessage.craft(PIECE_COUNT).getData());
+    assertInvalid(PeerMessage.SuggestPieceMessage.craft(-1).getData());
+    assertInvalid(PeerMessage.RejectRequestMessage.craft(1, PIECE_SIZE, 1).getData());
+  }
+
+  private void assertInvalid(ByteBuffer frame) {
+    try {
+      new PeerMessageView().wrap(frame, myTorrent);
+      fail("message must be rejected");
+    } catch (ParseException e) {
+      // expected
+    }
+  }
+}
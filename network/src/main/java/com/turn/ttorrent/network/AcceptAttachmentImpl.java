@@ -21,6 +21,11 @@ public class AcceptAttachmentImpl implements AcceptAttachment, TimeoutAttachment
     return false;//accept attachment doesn't closed by timeout
   }
 
+  @Override
+  public long getTimeoutTime() {
+    return Long.MAX_VALUE;
+  }
+
   @Override
   public void communicatedNow(long currentTimeMillis) {
   }
@@ -47,6 +47,11 @@ public class ConnectTask implements TimeoutAttachment, ReadAttachment {
     return minTimeForKeepAlive > lastCommunicationTime;
   }
 
+  @Override
+  public long getTimeoutTime() {
+    return lastCommunicationTime + myTimeoutMillis;
+  }
+
   @Override
   public void communicatedNow(long currentTimeMillis) {
     lastCommunicationTime = currentTimeMillis;
@@ -1,25 +1,25 @@
 package com.turn.ttorrent.network;
 
 import java.io.IOException;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ByteChannel;
 
 public interface ConnectionListener {
 
   /**
-   * invoked when specified socket channel contains any data
+   * invoked when specified channel contains any data
    *
-   * @param socketChannel specified socket channel with data
+   * @param socketChannel specified channel with data
    * @throws IOException if an I/O error occurs
    */
-  void onNewDataAvailable(SocketChannel socketChannel) throws IOException;
+  void onNewDataAvailable(ByteChannel socketChannel) throws IOException;
 
   /**
    * invoked when get new connection
    *
-   * @param socketChannel specified socket channel
+   * @param socketChannel specified channel
    * @throws IOException if an I/O error occurs
    */
-  void onConnectionEstablished(SocketChannel socketChannel) throws IOException;
+  void onConnectionEstablished(ByteChannel socketChannel) throws IOException;
 
   /**
    * invoked when an error occurs
@@ -28,5 +28,5 @@ public interface ConnectionListener {
    * @param ex            specified exception
    * @throws IOException if an I/O error occurs
    */
-  void onError(SocketChannel socketChannel, Throwable ex) throws IOException;
+  void onError(ByteChannel socketChannel, Throwable ex) throws IOException;
 }
@@ -4,15 +4,21 @@ import com.turn.ttorrent.common.LoggerUtils;
 import com.turn.ttorrent.common.TimeService;
 import com.turn.ttorrent.common.TorrentLoggerFactory;
 import com.turn.ttorrent.network.keyProcessors.*;
+import com.turn.ttorrent.network.utp.UtpConnection;
+import com.turn.ttorrent.network.utp.UtpSocket;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 
 import java.io.IOException;
-import java.nio.channels.Channel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -24,19 +30,26 @@ public class ConnectionManager {
 
   private static final Logger logger = TorrentLoggerFactory.getLogger(ConnectionManager.class);
 
-  private final Selector selector;
+  // peers which don't support uTP don't answer, so TCP is tried soon
+  static final long UTP_CONNECT_TIMEOUT_MILLIS = 3000;
+
+  private final SelectorFactory mySelectorFactory;
   private final TimeService myTimeService;
-  private volatile ConnectionWorker myConnectionWorker;
+  private final int myWorkersCount;
+  private volatile ConnectionWorker[] myConnectionWorkers;
   private int myBindPort;
   private final ConnectionManagerContext myContext;
   private volatile ServerSocketChannel myServerSocketChannel;
   private volatile Future<?> myWorkerFuture;
+  private volatile ExecutorService myAdditionalWorkersExecutor;
   private final NewConnectionAllower myIncomingConnectionAllower;
   private final NewConnectionAllower myOutgoingConnectionAllower;
   private final TimeoutStorage socketTimeoutStorage = new TimeoutStorageImpl();
   private final AtomicBoolean alreadyInit = new AtomicBoolean(false);
   private final AtomicInteger mySendBufferSize;
   private final AtomicInteger myReceiveBufferSize;
+  private volatile long myMaxQueuedWriteBytes = ConnectionWorker.DEFAULT_MAX_QUEUED_BYTES;
+  private volatile UtpSocket myUtpSocket;
 
   public ConnectionManager(ConnectionManagerContext context,
                            TimeService timeService,
@@ -45,10 +58,30 @@ public class ConnectionManager {
                            SelectorFactory selectorFactory,
                            AtomicInteger mySendBufferSize,
                            AtomicInteger myReceiveBufferSize) throws IOException {
+    this(context, timeService, newIncomingConnectionAllower, newOutgoingConnectionAllower, selectorFactory,
+            mySendBufferSize, myReceiveBufferSize, 1);
+  }
+
+  /**
+   * @param workersCount count of selector threads. Every thread serves own part of channels, the first one
+   *                     accepts new connections and hands them off to the least loaded thread
+   */
+  public ConnectionManager(ConnectionManagerContext context,
+                           TimeService timeService,
+                           NewConnectionAllower newIncomingConnectionAllower,
+                           NewConnectionAllower newOutgoingConnectionAllower,
+                           SelectorFactory selectorFactory,
+                           AtomicInteger mySendBufferSize,
+                           AtomicInteger myReceiveBufferSize,
+                           int workersCount) throws IOException {
+    if (workersCount <= 0) {
+      throw new IllegalArgumentException("Invalid count of connection workers: " + workersCount);
+    }
     this.mySendBufferSize = mySendBufferSize;
     this.myReceiveBufferSize = myReceiveBufferSize;
-    this.selector = selectorFactory.newSelector();
+    this.mySelectorFactory = selectorFactory;
     this.myTimeService = timeService;
+    this.myWorkersCount = workersCount;
     myContext = context;
     this.myIncomingConnectionAllower = newIncomingConnectionAllower;
     this.myOutgoingConnectionAllower = newOutgoingConnectionAllower;
@@ -62,48 +95,254 @@ public class ConnectionManager {
       throw new IllegalStateException("connection manager was already initialized");
     }
 
-    myServerSocketChannel = serverChannelRegister.channelFor(selector);
-    myServerSocketChannel.register(selector, SelectionKey.OP_ACCEPT, new AcceptAttachmentImpl(myContext));
+    Selector[] selectors = new Selector[myWorkersCount];
+    for (int i = 0; i < selectors.length; i++) {
+      selectors[i] = mySelectorFactory.newSelector();
+    }
+    myServerSocketChannel = serverChannelRegister.channelFor(selectors[0]);
+    myServerSocketChannel.register(selectors[0], SelectionKey.OP_ACCEPT, new AcceptAttachmentImpl(myContext));
     myBindPort = myServerSocketChannel.socket().getLocalPort();
     String serverName = myServerSocketChannel.socket().toString();
-    myConnectionWorker = new ConnectionWorker(selector, Arrays.asList(
-            new InvalidKeyProcessor(),
-            new AcceptableKeyProcessor(selector, serverName, myTimeService, myIncomingConnectionAllower, socketTimeoutStorage,
-                    mySendBufferSize, myReceiveBufferSize),
-            new ConnectableKeyProcessor(selector, myTimeService, socketTimeoutStorage,
-                    mySendBufferSize, myReceiveBufferSize),
-            new ReadableKeyProcessor(serverName),
-            new WritableKeyProcessor()), DEFAULT_SELECTOR_SELECT_TIMEOUT_MILLIS, DEFAULT_CLEANUP_RUN_TIMEOUT_MILLIS,
-            myTimeService,
-            new CleanupKeyProcessor(myTimeService),
-            myOutgoingConnectionAllower);
-    myWorkerFuture = myContext.getExecutor().submit(myConnectionWorker);
+    ConnectionWorker[] workers = new ConnectionWorker[myWorkersCount];
+    for (int i = 0; i < workers.length; i++) {
+      List<KeyProcessor> keyProcessors = new ArrayList<KeyProcessor>();
+      keyProcessors.add(new InvalidKeyProcessor());
+      if (i == 0) {
+        keyProcessors.add(new AcceptableKeyProcessor(new NewChannelRegister() {
+          @Override
+          public void register(SocketChannel socketChannel, ReadWriteAttachment attachment) {
+            getLeastLoadedWorker().offerChannel(socketChannel, attachment);
+          }
+        }, serverName, myTimeService, myIncomingConnectionAllower, socketTimeoutStorage,
+                mySendBufferSize, myReceiveBufferSize));
+      }
+      keyProcessors.add(new ConnectableKeyProcessor(selectors[i], myTimeService, socketTimeoutStorage,
+              mySendBufferSize, myReceiveBufferSize));
+      ThrottledKeys throttledKeys = new ThrottledKeys(myTimeService);
+      keyProcessors.add(new ReadableKeyProcessor(serverName, throttledKeys));
+      keyProcessors.add(new WritableKeyProcessor(WritableKeyProcessor.DEFAULT_MAX_BYTES_PER_EVENT, throttledKeys));
+      workers[i] = new ConnectionWorker(selectors[i], keyProcessors, DEFAULT_SELECTOR_SELECT_TIMEOUT_MILLIS,
+              DEFAULT_CLEANUP_RUN_TIMEOUT_MILLIS,
+              myTimeService,
+              new CleanupKeyProcessor(myTimeService),
+              myOutgoingConnectionAllower,
+              throttledKeys);
+      workers[i].setMaxQueuedBytes(myMaxQueuedWriteBytes);
+      workers[i].setWorkerIndex(i);
+    }
+    myConnectionWorkers = workers;
+    myWorkerFuture = myContext.getExecutor().submit(workers[0]);
+    if (workers.length > 1) {
+      // selector threads never finish while the manager works, so they can't share the context executor
+      final AtomicInteger threadIndex = new AtomicInteger(1);
+      myAdditionalWorkersExecutor = Executors.newFixedThreadPool(workers.length - 1, new ThreadFactory() {
+        @Override
+        public Thread newThread(@NotNull Runnable r) {
+          Thread thread = new Thread(r, "ttorrent selector worker " + threadIndex.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      for (int i = 1; i < workers.length; i++) {
+        myAdditionalWorkersExecutor.submit(workers[i]);
+      }
+    }
+  }
+
+  /**
+   * Opens uTP socket on the UDP port with the same number as the server channel. The socket is served
+   * by its own thread, incoming uTP connections get listeners from the context like TCP connections.
+   * Must be invoked after {@link #initAndRunWorker(ServerChannelRegister)}
+   *
+   * @return true if the socket is opened
+   */
+  public boolean initUtp() {
+    checkThatWorkerIsInit(myConnectionWorkers);
+    if (myUtpSocket != null) return true;
+    try {
+      UtpSocket utpSocket = new UtpSocket(UtpSocket.openChannel(myBindPort), myContext, myIncomingConnectionAllower,
+              socketTimeoutStorage, myTimeService);
+      Thread thread = new Thread(utpSocket, "ttorrent uTP socket " + myBindPort);
+      thread.setDaemon(true);
+      thread.start();
+      myUtpSocket = utpSocket;
+      return true;
+    } catch (IOException e) {
+      LoggerUtils.warnAndDebugDetails(logger, "unable to open uTP socket on port {}", myBindPort, e);
+      return false;
+    }
+  }
+
+  public boolean isUtpEnabled() {
+    return myUtpSocket != null;
   }
 
   public void setSelectorSelectTimeout(int timeout) {
-    ConnectionWorker workerLocal = myConnectionWorker;
-    checkThatWorkerIsInit(workerLocal);
-    workerLocal.setSelectorSelectTimeout(timeout);
+    ConnectionWorker[] workersLocal = myConnectionWorkers;
+    checkThatWorkerIsInit(workersLocal);
+    for (ConnectionWorker worker : workersLocal) {
+      worker.setSelectorSelectTimeout(timeout);
+    }
   }
 
-  private void checkThatWorkerIsInit(ConnectionWorker worker) {
-    if (worker == null) throw new IllegalStateException("Connection manager is not initialized!");
+  private void checkThatWorkerIsInit(ConnectionWorker[] workers) {
+    if (workers == null) throw new IllegalStateException("Connection manager is not initialized!");
   }
 
   public boolean offerConnect(ConnectTask connectTask, int timeout, TimeUnit timeUnit) {
-    if (myConnectionWorker == null) {
+    if (myConnectionWorkers == null) {
       return false;
     }
-    return myConnectionWorker.offerConnect(connectTask, timeout, timeUnit);
+    return getLeastLoadedWorker().offerConnect(connectTask, timeout, timeUnit);
+  }
+
+  /**
+   * Connects to the peer over uTP. If the uTP connection can not be established,
+   * the task is offered to TCP workers like in {@link #offerConnect(ConnectTask, int, TimeUnit)}
+   */
+  public boolean offerUtpConnect(ConnectTask connectTask, int timeout, TimeUnit timeUnit) {
+    UtpSocket utpSocket = myUtpSocket;
+    if (utpSocket == null) {
+      return offerConnect(connectTask, timeout, timeUnit);
+    }
+    InetSocketAddress address = new InetSocketAddress(connectTask.getHost(), connectTask.getPort());
+    if (address.isUnresolved() || !myOutgoingConnectionAllower.isNewConnectionAllowed()) {
+      return offerConnect(connectTask, timeout, timeUnit);
+    }
+    utpSocket.connect(address, new UtpConnectListener(connectTask), UTP_CONNECT_TIMEOUT_MILLIS);
+    return true;
   }
 
   public boolean offerWrite(WriteTask writeTask, int timeout, TimeUnit timeUnit) {
-    if (myConnectionWorker == null) {
+    ConnectionWorker[] workersLocal = myConnectionWorkers;
+    if (workersLocal == null) {
       return false;
     }
-    return myConnectionWorker.offerWrite(writeTask, timeout, timeUnit);
+    Channel channel = writeTask.getSocketChannel();
+    if (channel instanceof UtpConnection) {
+      return ((UtpConnection) channel).offerWrite(writeTask, myMaxQueuedWriteBytes);
+    }
+    ConnectionWorker owner = workersLocal[0];
+    if (workersLocal.length > 1 && channel instanceof SelectableChannel) {
+      for (ConnectionWorker worker : workersLocal) {
+        if (worker.isOwnerOf((SelectableChannel) channel)) {
+          owner = worker;
+          break;
+        }
+      }
+    }
+    return owner.offerWrite(writeTask, timeout, timeUnit);
+  }
+
+  /**
+   * @return count of bytes which are queued for writing to the channel and not written yet
+   */
+  public long getQueuedWriteBytes(ByteChannel channel) {
+    if (channel instanceof UtpConnection) {
+      return ((UtpConnection) channel).getQueuedWriteBytes();
+    }
+    ConnectionWorker[] workersLocal = myConnectionWorkers;
+    if (workersLocal == null || !(channel instanceof SocketChannel)) {
+      return 0;
+    }
+    for (ConnectionWorker worker : workersLocal) {
+      WriteQueue writeQueue = worker.getWriteQueue((SocketChannel) channel);
+      if (writeQueue != null) {
+        return writeQueue.getQueuedBytes();
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Set max count of bytes which can be queued for writing to one channel. New write tasks
+   * for the channel are rejected while its queue is larger
+   */
+  public void setMaxQueuedWriteBytes(long maxQueuedWriteBytes) {
+    myMaxQueuedWriteBytes = maxQueuedWriteBytes;
+    ConnectionWorker[] workersLocal = myConnectionWorkers;
+    if (workersLocal == null) return;
+    for (ConnectionWorker worker : workersLocal) {
+      worker.setMaxQueuedBytes(maxQueuedWriteBytes);
+    }
+  }
+
+  /**
+   * @return time service which is used by the manager and its timer wheel
+   */
+  public TimeService getTimeService() {
+    return myTimeService;
+  }
+
+  /**
+   * @return timer wheel for scheduling of short tasks or null if the manager isn't initialized.
+   * Tasks are run by the selector thread, so long work must be passed to other threads
+   */
+  @Nullable
+  public TimerWheel getTimerWheel() {
+    ConnectionWorker[] workersLocal = myConnectionWorkers;
+    if (workersLocal == null) {
+      return null;
+    }
+    return workersLocal[0].getTimerWheel();
+  }
+
+  /**
+   * @return bucket which limits rate of reading from the channel or null if the channel isn't served by the manager
+   */
+  @Nullable
+  public TokenBucket getReadBucket(ByteChannel channel) {
+    ThrottledAttachment attachment = getThrottledAttachment(channel);
+    return attachment == null ? null : attachment.getReadBucket();
+  }
+
+  /**
+   * @return bucket which limits rate of writing to the channel or null if the channel isn't served by the manager
+   */
+  @Nullable
+  public TokenBucket getWriteBucket(ByteChannel channel) {
+    ThrottledAttachment attachment = getThrottledAttachment(channel);
+    return attachment == null ? null : attachment.getWriteBucket();
+  }
+
+  @Nullable
+  private ThrottledAttachment getThrottledAttachment(ByteChannel channel) {
+    if (channel instanceof UtpConnection) {
+      return (UtpConnection) channel;
+    }
+    ConnectionWorker[] workersLocal = myConnectionWorkers;
+    if (workersLocal == null || !(channel instanceof SocketChannel)) {
+      return null;
+    }
+    for (ConnectionWorker worker : workersLocal) {
+      Object attachment = worker.getAttachment((SocketChannel) channel);
+      if (attachment instanceof ThrottledAttachment) {
+        return (ThrottledAttachment) attachment;
+      }
+    }
+    return null;
   }
 
+  private ConnectionWorker getLeastLoadedWorker() {
+    ConnectionWorker[] workersLocal = myConnectionWorkers;
+    ConnectionWorker result = workersLocal[0];
+    int minLoad = Integer.MAX_VALUE;
+    for (ConnectionWorker worker : workersLocal) {
+      int load = worker.getLoad();
+      if (load < minLoad) {
+        minLoad = load;
+        result = worker;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return count of selector threads
+   */
+  public int getWorkersCount() {
+    return myWorkersCount;
+  }
 
   public int getBindPort() {
     return myBindPort;
@@ -112,17 +351,35 @@ public class ConnectionManager {
   public void close(int timeout, TimeUnit timeUnit) {
     logger.debug("try close connection manager...");
     boolean successfullyClosed = true;
-    if (myConnectionWorker != null) {
+    ConnectionWorker[] workersLocal = myConnectionWorkers;
+    if (workersLocal != null) {
       myWorkerFuture.cancel(true);
+      if (myAdditionalWorkersExecutor != null) {
+        myAdditionalWorkersExecutor.shutdownNow();
+      }
+      for (ConnectionWorker worker : workersLocal) {
+        try {
+          boolean shutdownCorrectly = worker.stop(timeout, timeUnit);
+          if (!shutdownCorrectly) {
+            successfullyClosed = false;
+            logger.warn("unable to terminate worker in {} {}", timeout, timeUnit);
+          }
+        } catch (InterruptedException e) {
+          successfullyClosed = false;
+          LoggerUtils.warnAndDebugDetails(logger, "unable to await termination worker, thread was interrupted", e);
+        }
+      }
+    }
+    UtpSocket utpSocket = myUtpSocket;
+    if (utpSocket != null) {
       try {
-        boolean shutdownCorrectly = myConnectionWorker.stop(timeout, timeUnit);
-        if (!shutdownCorrectly) {
+        if (!utpSocket.stop(timeout, timeUnit)) {
           successfullyClosed = false;
-          logger.warn("unable to terminate worker in {} {}", timeout, timeUnit);
+          logger.warn("unable to terminate uTP socket in {} {}", timeout, timeUnit);
         }
       } catch (InterruptedException e) {
         successfullyClosed = false;
-        LoggerUtils.warnAndDebugDetails(logger, "unable to await termination worker, thread was interrupted", e);
+        LoggerUtils.warnAndDebugDetails(logger, "unable to await termination of uTP socket, thread was interrupted", e);
       }
     }
     try {
@@ -131,28 +388,43 @@ public class ConnectionManager {
       LoggerUtils.errorAndDebugDetails(logger, "unable to close server socket channel", e);
       successfullyClosed = false;
     }
-    for (SelectionKey key : this.selector.keys()) {
+    if (workersLocal != null) {
+      for (ConnectionWorker worker : workersLocal) {
+        successfullyClosed &= closeChannelsAndSelector(worker);
+      }
+    }
+    if (successfullyClosed) {
+      logger.debug("connection manager is successfully closed");
+    } else {
+      logger.error("connection manager wasn't closed successfully");
+    }
+  }
+
+  private boolean closeChannelsAndSelector(ConnectionWorker worker) {
+    boolean successfullyClosed = true;
+    Selector selector = worker.getSelector();
+    List<Channel> channels = new ArrayList<Channel>(worker.getNotRegisteredChannels());
+    for (SelectionKey key : selector.keys()) {
+      if (key.isValid()) {
+        channels.add(key.channel());
+      }
+    }
+    for (Channel channel : channels) {
       try {
-        if (key.isValid()) {
-          key.channel().close();
-        }
+        channel.close();
       } catch (Throwable e) {
-        logger.error("unable to close socket channel {}", key.channel());
+        logger.error("unable to close socket channel {}", channel);
         successfullyClosed = false;
         logger.debug("", e);
       }
     }
     try {
-      this.selector.close();
+      selector.close();
     } catch (Throwable e) {
       LoggerUtils.errorAndDebugDetails(logger, "unable to close selector channel", e);
       successfullyClosed = false;
     }
-    if (successfullyClosed) {
-      logger.debug("connection manager is successfully closed");
-    } else {
-      logger.error("connection manager wasn't closed successfully");
-    }
+    return successfullyClosed;
   }
 
   public void close() {
@@ -160,9 +432,11 @@ public class ConnectionManager {
   }
 
   public void setCleanupTimeout(long timeoutMillis) {
-    ConnectionWorker workerLocal = myConnectionWorker;
-    checkThatWorkerIsInit(workerLocal);
-    workerLocal.setCleanupTimeout(timeoutMillis);
+    ConnectionWorker[] workersLocal = myConnectionWorkers;
+    checkThatWorkerIsInit(workersLocal);
+    for (ConnectionWorker worker : workersLocal) {
+      worker.setCleanupTimeout(timeoutMillis);
+    }
   }
 
   public void setSocketConnectionTimeout(long timeoutMillis) {
@@ -172,4 +446,42 @@ public class ConnectionManager {
   public void closeChannel(Channel channel) throws IOException {
     channel.close();
   }
+
+  /**
+   * Passes events of uTP connection to the listener of the connect task. If the connection
+   * can not be established, the task is offered to TCP workers
+   */
+  private class UtpConnectListener implements ConnectionListener {
+
+    private final ConnectTask myConnectTask;
+    private volatile boolean myEstablished = false;
+
+    UtpConnectListener(ConnectTask connectTask) {
+      myConnectTask = connectTask;
+    }
+
+    @Override
+    public void onNewDataAvailable(ByteChannel socketChannel) throws IOException {
+      myConnectTask.getConnectionListener().onNewDataAvailable(socketChannel);
+    }
+
+    @Override
+    public void onConnectionEstablished(ByteChannel socketChannel) throws IOException {
+      myEstablished = true;
+      myConnectTask.getConnectionListener().onConnectionEstablished(socketChannel);
+    }
+
+    @Override
+    public void onError(ByteChannel socketChannel, Throwable ex) throws IOException {
+      if (myEstablished) {
+        myConnectTask.getConnectionListener().onError(socketChannel, ex);
+        return;
+      }
+      logger.debug("unable to connect to {}:{} over uTP, trying TCP", myConnectTask.getHost(), myConnectTask.getPort());
+      myConnectTask.communicatedNow(myTimeService.now());
+      if (!offerConnect(myConnectTask, 1, TimeUnit.SECONDS)) {
+        myConnectTask.getConnectionListener().onError(socketChannel, ex);
+      }
+    }
+  }
 }
@@ -5,35 +5,37 @@ import com.turn.ttorrent.common.TimeService;
 import com.turn.ttorrent.common.TorrentLoggerFactory;
 import com.turn.ttorrent.network.keyProcessors.CleanupProcessor;
 import com.turn.ttorrent.network.keyProcessors.KeyProcessor;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class ConnectionWorker implements Runnable {
 
   private static final Logger logger = TorrentLoggerFactory.getLogger(ConnectionWorker.class);
   private static final String SELECTOR_THREAD_NAME = "Torrent channels manager thread";
+  public static final long DEFAULT_MAX_QUEUED_BYTES = 64 * 1024 * 1024;
   private volatile boolean stop = false;
   private final Selector selector;
   private final BlockingQueue<ConnectTask> myConnectQueue;
-  private final BlockingQueue<WriteTask> myWriteQueue;
+  private final Queue<DirtyChannel> myDirtyChannels;
+  private volatile long myMaxQueuedBytes;
   private final Semaphore mySemaphore;
   private final List<KeyProcessor> myKeyProcessors;
   private final TimeService myTimeService;
-  private long lastCleanupTime;
   private volatile int mySelectorTimeoutMillis;
   private volatile long myCleanupTimeoutMillis;
   private final CleanupProcessor myCleanupProcessor;
   private final NewConnectionAllower myNewConnectionAllower;
+  private final ConcurrentMap<SocketChannel, Object> myNewChannels;
+  private volatile int myChannelsCount;
+  private final ThrottledKeys myThrottledKeys;
+  private final TimerWheel myTimerWheel;
+  private volatile String myThreadName = SELECTOR_THREAD_NAME;
 
   ConnectionWorker(Selector selector,
                    List<KeyProcessor> keyProcessors,
@@ -42,9 +44,23 @@ public class ConnectionWorker implements Runnable {
                    TimeService timeService,
                    CleanupProcessor cleanupProcessor,
                    NewConnectionAllower myNewConnectionAllower) {
+    this(selector, keyProcessors, selectorTimeoutMillis, cleanupTimeoutMillis, timeService, cleanupProcessor,
+            myNewConnectionAllower, new ThrottledKeys(timeService));
+  }
+
+  /**
+   * @param throttledKeys keys with suspended operations, it must be shared with key processors of this worker
+   */
+  ConnectionWorker(Selector selector,
+                   List<KeyProcessor> keyProcessors,
+                   int selectorTimeoutMillis,
+                   int cleanupTimeoutMillis,
+                   TimeService timeService,
+                   CleanupProcessor cleanupProcessor,
+                   NewConnectionAllower myNewConnectionAllower,
+                   ThrottledKeys throttledKeys) {
     this.selector = selector;
     this.myTimeService = timeService;
-    this.lastCleanupTime = timeService.now();
     this.mySelectorTimeoutMillis = selectorTimeoutMillis;
     this.myCleanupTimeoutMillis = cleanupTimeoutMillis;
     this.myCleanupProcessor = cleanupProcessor;
@@ -52,7 +68,11 @@ public class ConnectionWorker implements Runnable {
     this.mySemaphore = new Semaphore(1);
     this.myConnectQueue = new LinkedBlockingQueue<ConnectTask>(100);
     this.myKeyProcessors = keyProcessors;
-    this.myWriteQueue = new LinkedBlockingQueue<WriteTask>(5000);
+    this.myDirtyChannels = new ConcurrentLinkedQueue<DirtyChannel>();
+    this.myMaxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    this.myNewChannels = new ConcurrentHashMap<SocketChannel, Object>();
+    this.myThrottledKeys = throttledKeys;
+    this.myTimerWheel = new TimerWheel(timeService);
   }
 
   @Override
@@ -68,26 +88,27 @@ public class ConnectionWorker implements Runnable {
 
     try {
 
-      Thread.currentThread().setName(SELECTOR_THREAD_NAME);
+      Thread.currentThread().setName(myThreadName);
 
       while (!stop && (!Thread.currentThread().isInterrupted())) {
         try {
           logger.trace("try select keys from selector");
           int selected;
           try {
-            selected = selector.select(mySelectorTimeoutMillis);
+            selected = selector.select(getSelectTimeout());
           } catch (ClosedSelectorException e) {
             break;
           }
+          myThrottledKeys.resumeExpired();
+          myTimerWheel.advance();
+          registerNewChannels();
           connectToPeersFromQueue();
-          processWriteTasks();
+          processDirtyChannels();
+          myChannelsCount = selector.keys().size();
           logger.trace("select keys from selector. Keys count is " + selected);
           if (selected != 0) {
             processSelectedKeys();
           }
-          if (needRunCleanup()) {
-            cleanup();
-          }
         } catch (Throwable e) {
           LoggerUtils.warnAndDebugDetails(logger, "unable to select channel keys. Error message {}", e.getMessage(), e);
         }
@@ -100,63 +121,129 @@ public class ConnectionWorker implements Runnable {
     }
   }
 
-  private void cleanup() {
-    lastCleanupTime = myTimeService.now();
-    for (SelectionKey key : selector.keys()) {
-      if (!key.isValid()) continue;
-      myCleanupProcessor.processCleanup(key);
+  private long getSelectTimeout() {
+    long timeout = mySelectorTimeoutMillis;
+    long nextTimeout = myTimerWheel.getMillisToNextTimeout();
+    if (nextTimeout > 0) {
+      timeout = Math.min(timeout, nextTimeout);
     }
+    return myThrottledKeys.getSelectTimeout(timeout);
   }
 
-  private boolean needRunCleanup() {
-    return (myTimeService.now() - lastCleanupTime) > myCleanupTimeoutMillis;
+  /**
+   * Schedules check of the timeout of the key. Checks aren't cancelled when the key is closed,
+   * they are dropped when they expire. Timeouts of active channels are rescheduled on expiration,
+   * so communication doesn't touch the timer wheel and idle channels are never scanned
+   */
+  private void scheduleTimeoutCheck(final SelectionKey key, long delayMillis) {
+    myTimerWheel.schedule(new Runnable() {
+      @Override
+      public void run() {
+        checkTimeout(key);
+      }
+    }, delayMillis);
   }
 
-  private void processWriteTasks() {
+  private void checkTimeout(SelectionKey key) {
+    if (!key.isValid()) return;
+    Object attachment = key.attachment();
+    long now = myTimeService.now();
+    if (attachment instanceof TimeoutAttachment && !((TimeoutAttachment) attachment).isTimeoutElapsed(now)) {
+      // the channel was active, the check is repeated not more often than once per cleanup timeout
+      long delay = ((TimeoutAttachment) attachment).getTimeoutTime() - now + 1;
+      scheduleTimeoutCheck(key, Math.max(delay, myCleanupTimeoutMillis));
+      return;
+    }
+    myCleanupProcessor.processCleanup(key);
+  }
 
-    final Iterator<WriteTask> iterator = myWriteQueue.iterator();
-    while (iterator.hasNext()) {
-      WriteTask writeTask = iterator.next();
-      if (stop || Thread.currentThread().isInterrupted()) {
-        return;
-      }
-      logger.trace("try register channel for write. Write task is {}", writeTask);
-      SocketChannel socketChannel = (SocketChannel) writeTask.getSocketChannel();
-      if (!socketChannel.isOpen()) {
-        iterator.remove();
-        writeTask.getListener().onWriteFailed(getDefaultWriteErrorMessageWithSuffix(socketChannel, "Channel is not open"), new ConnectionClosedException());
+  private void scheduleTimeoutCheck(SelectionKey key) {
+    Object attachment = key.attachment();
+    if (!(attachment instanceof TimeoutAttachment)) return;
+    scheduleTimeoutCheck(key, ((TimeoutAttachment) attachment).getTimeoutTime() - myTimeService.now() + 1);
+  }
+
+  /**
+   * @return timer wheel which is advanced by this worker
+   */
+  TimerWheel getTimerWheel() {
+    return myTimerWheel;
+  }
+
+  /**
+   * Enables write interest for channels which got new write tasks
+   */
+  private void processDirtyChannels() {
+    List<DirtyChannel> notRegisteredChannels = null;
+    DirtyChannel dirtyChannel;
+    while ((dirtyChannel = myDirtyChannels.poll()) != null) {
+      SocketChannel socketChannel = dirtyChannel.myChannel;
+      if (myNewChannels.containsKey(socketChannel)) {
+        // the channel was added after registration of new channels, it will be processed on the next iteration
+        if (notRegisteredChannels == null) {
+          notRegisteredChannels = new ArrayList<DirtyChannel>();
+        }
+        notRegisteredChannels.add(dirtyChannel);
         continue;
       }
+      logger.trace("try register channel {} for write", socketChannel);
+      WriteQueue writeTasks = dirtyChannel.myWriteTasks;
+      writeTasks.clearScheduled();
       SelectionKey key = socketChannel.keyFor(selector);
-      if (key == null) {
-        logger.warn("unable to find key for channel {}", socketChannel);
-        iterator.remove();
-        writeTask.getListener().onWriteFailed(getDefaultWriteErrorMessageWithSuffix(socketChannel, "Can not find key for the channel"), new ConnectionClosedException());
+      Object attachment = key == null ? null : key.attachment();
+      if (!(attachment instanceof WriteAttachment) || ((WriteAttachment) attachment).getWriteTasks() != writeTasks) {
+        // the channel was closed and deregistered after the tasks were added
+        failWriteTasks(writeTasks, socketChannel, "Channel is not registered", null);
         continue;
       }
-      Object attachment = key.attachment();
-      if (!(attachment instanceof WriteAttachment)) {
-        logger.error("incorrect attachment {} for channel {}", attachment, socketChannel);
-        iterator.remove();
-        writeTask.getListener().onWriteFailed(getDefaultWriteErrorMessageWithSuffix(socketChannel, "Incorrect attachment instance for the key"), new ConnectionClosedException());
+      if (myThrottledKeys.isSuspended(key, SelectionKey.OP_WRITE)) {
+        // write interest will be restored when the bandwidth is available
         continue;
       }
-      WriteAttachment keyAttachment = (WriteAttachment) attachment;
-      if (keyAttachment.getWriteTasks().offer(writeTask)) {
-        iterator.remove();
-        try {
-          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-        } catch (CancelledKeyException e) {
-          writeTask.getListener().onWriteFailed(getDefaultWriteErrorMessageWithSuffix(socketChannel, "Key is cancelled"), new ConnectionClosedException(e));
-        }
+      try {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      } catch (CancelledKeyException e) {
+        failWriteTasks(writeTasks, socketChannel, "Key is cancelled", e);
       }
     }
+    if (notRegisteredChannels != null) {
+      myDirtyChannels.addAll(notRegisteredChannels);
+      selector.wakeup();
+    }
+  }
+
+  private void failWriteTasks(WriteQueue writeTasks, SocketChannel socketChannel, String reason, @Nullable Throwable cause) {
+    WriteTask writeTask;
+    while ((writeTask = writeTasks.poll()) != null) {
+      writeTask.getListener().onWriteFailed(getDefaultWriteErrorMessageWithSuffix(socketChannel, reason), new ConnectionClosedException(cause));
+    }
   }
 
   private String getDefaultWriteErrorMessageWithSuffix(SocketChannel socketChannel, String suffix) {
     return "unable write data to channel " + socketChannel + ". " + suffix;
   }
 
+  private void registerNewChannels() {
+    Iterator<Map.Entry<SocketChannel, Object>> iterator = myNewChannels.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<SocketChannel, Object> entry = iterator.next();
+      SocketChannel socketChannel = entry.getKey();
+      logger.trace("try register new channel {}", socketChannel);
+      try {
+        scheduleTimeoutCheck(socketChannel.register(selector, SelectionKey.OP_READ, entry.getValue()));
+      } catch (IOException e) {
+        LoggerUtils.warnAndDebugDetails(logger, "unable register channel {}", socketChannel, e);
+        try {
+          socketChannel.close();
+        } catch (IOException ioe) {
+          LoggerUtils.errorAndDebugDetails(logger, "unable close bad channel", ioe);
+        }
+      }
+      // the channel must be removed only after registration, see isOwnerOf
+      iterator.remove();
+    }
+  }
+
   private void connectToPeersFromQueue() {
     ConnectTask connectTask;
     while ((connectTask = myConnectQueue.poll()) != null) {
@@ -167,7 +254,7 @@ public class ConnectionWorker implements Runnable {
       try {
         SocketChannel socketChannel = SocketChannel.open();
         socketChannel.configureBlocking(false);
-        socketChannel.register(selector, SelectionKey.OP_CONNECT, connectTask);
+        scheduleTimeoutCheck(socketChannel.register(selector, SelectionKey.OP_CONNECT, connectTask));
         socketChannel.connect(new InetSocketAddress(connectTask.getHost(), connectTask.getPort()));
       } catch (IOException e) {
         LoggerUtils.warnAndDebugDetails(logger, "unable connect. Connect task is {}", connectTask, e);
@@ -226,12 +313,96 @@ public class ConnectionWorker implements Runnable {
     return addTaskToQueue(connectTask, timeout, timeUnit, myConnectQueue);
   }
 
+  /**
+   * Hands off connected channel to this worker. The channel will be registered for reading
+   * in the selector of the worker with specified attachment
+   */
+  public void offerChannel(SocketChannel socketChannel, Object attachment) {
+    myNewChannels.put(socketChannel, attachment);
+    selector.wakeup();
+  }
+
+  /**
+   * @return true if the channel is registered or will be registered in the selector of this worker
+   */
+  boolean isOwnerOf(SelectableChannel channel) {
+    return myNewChannels.containsKey(channel) || channel.keyFor(selector) != null;
+  }
+
+  /**
+   * @return approximate count of channels which are served by this worker
+   */
+  int getLoad() {
+    return myChannelsCount + myNewChannels.size() + myConnectQueue.size();
+  }
+
+  Collection<SocketChannel> getNotRegisteredChannels() {
+    return new ArrayList<SocketChannel>(myNewChannels.keySet());
+  }
+
+  Selector getSelector() {
+    return selector;
+  }
+
+  /**
+   * Adds the task to the outbound queue of its channel. This method never blocks and doesn't
+   * touch queues of other channels, the channel is passed to the selector thread only when its
+   * queue becomes non-empty.
+   *
+   * @param timeout  is ignored, the task is rejected immediately if the queue of the channel is overloaded
+   * @param timeUnit is ignored
+   */
   public boolean offerWrite(WriteTask writeTask, int timeout, TimeUnit timeUnit) {
-    boolean done = addTaskToQueue(writeTask, timeout, timeUnit, myWriteQueue);
-    if (!done) {
+    SocketChannel socketChannel = (SocketChannel) writeTask.getSocketChannel();
+    if (!socketChannel.isOpen()) {
+      writeTask.getListener().onWriteFailed(getDefaultWriteErrorMessageWithSuffix(socketChannel, "Channel is not open"), new ConnectionClosedException());
+      return false;
+    }
+    WriteQueue writeTasks = getWriteQueue(socketChannel);
+    if (writeTasks == null) {
+      logger.warn("unable to find write queue for channel {}", socketChannel);
+      writeTask.getListener().onWriteFailed(getDefaultWriteErrorMessageWithSuffix(socketChannel, "Can not find key for the channel"), new ConnectionClosedException());
+      return false;
+    }
+    if (writeTasks.getQueuedBytes() + writeTask.getSize() > myMaxQueuedBytes && !writeTasks.isEmpty()) {
       writeTask.getListener().onWriteFailed("unable add task " + writeTask + " to the queue. Maybe queue is overload", null);
+      return false;
+    }
+    writeTasks.offer(writeTask);
+    if (writeTasks.markScheduled()) {
+      myDirtyChannels.offer(new DirtyChannel(socketChannel, writeTasks));
+      selector.wakeup();
+    }
+    return true;
+  }
+
+  /**
+   * @return outbound queue of the channel or null if the channel isn't served by this worker
+   */
+  @Nullable
+  WriteQueue getWriteQueue(SocketChannel socketChannel) {
+    Object attachment = getAttachment(socketChannel);
+    if (!(attachment instanceof WriteAttachment)) {
+      return null;
+    }
+    return ((WriteAttachment) attachment).getWriteTasks();
+  }
+
+  /**
+   * @return attachment of the channel or null if the channel isn't served by this worker
+   */
+  @Nullable
+  Object getAttachment(SocketChannel socketChannel) {
+    Object attachment = myNewChannels.get(socketChannel);
+    if (attachment == null) {
+      SelectionKey key = socketChannel.keyFor(selector);
+      attachment = key == null ? null : key.attachment();
     }
-    return done;
+    return attachment;
+  }
+
+  void setMaxQueuedBytes(long maxQueuedBytes) {
+    myMaxQueuedBytes = maxQueuedBytes;
   }
 
   private <T> boolean addTaskToQueue(T task, int timeout, TimeUnit timeUnit, BlockingQueue<T> queue) {
@@ -256,4 +427,26 @@ public class ConnectionWorker implements Runnable {
     mySelectorTimeoutMillis = timeout;
   }
 
+  /**
+   * @param index index of the worker in the manager, it's added to the name of the selector thread
+   */
+  void setWorkerIndex(int index) {
+    myThreadName = index == 0 ? SELECTOR_THREAD_NAME : SELECTOR_THREAD_NAME + " " + index;
+  }
+
+  /**
+   * Channel which got new write tasks with its queue. The queue is kept here, because
+   * the key of the channel (and the queue in its attachment) can be gone when the channel is processed
+   */
+  private static final class DirtyChannel {
+
+    private final SocketChannel myChannel;
+    private final WriteQueue myWriteTasks;
+
+    private DirtyChannel(SocketChannel channel, WriteQueue writeTasks) {
+      myChannel = channel;
+      myWriteTasks = writeTasks;
+    }
+  }
+
 }
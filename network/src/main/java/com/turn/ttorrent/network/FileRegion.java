@@ -0,0 +1,30 @@
+package com.turn.ttorrent.network;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * region of stored data which can be sent to channel directly from storage,
+ * e.g. with {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)},
+ * without copying it through heap buffers
+ */
+public interface FileRegion {
+
+  /**
+   * @return count of bytes in the region
+   */
+  long size();
+
+  /**
+   * transfers bytes of the region to the target channel. Method can transfer less bytes than requested
+   * if target channel is in non-blocking mode and its send buffer is full
+   *
+   * @param target   channel for writing
+   * @param position position relative to start of the region
+   * @param count    max count of bytes for transfer
+   * @return count of actually transferred bytes
+   * @throws IOException if any I/O error occurs
+   */
+  long transferTo(WritableByteChannel target, long position, long count) throws IOException;
+
+}
@@ -0,0 +1,15 @@
+package com.turn.ttorrent.network;
+
+import java.nio.channels.SocketChannel;
+
+public interface NewChannelRegister {
+
+  /**
+   * Registers connected channel for reading in one of selectors of connection manager
+   *
+   * @param socketChannel connected non-blocking channel
+   * @param attachment    attachment for the selection key of the channel
+   */
+  void register(SocketChannel socketChannel, ReadWriteAttachment attachment);
+
+}
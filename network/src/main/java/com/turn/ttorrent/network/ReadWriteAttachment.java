@@ -3,21 +3,21 @@ package com.turn.ttorrent.network;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
-public class ReadWriteAttachment implements ReadAttachment, WriteAttachment, TimeoutAttachment {
-
-  private final static int WRITE_TASK_QUEUE_SIZE = 150;
+public class ReadWriteAttachment implements ReadAttachment, WriteAttachment, TimeoutAttachment, ThrottledAttachment {
 
   private long lastCommunicationTime;
   private final ConnectionListener connectionListener;
   private final long myTimeoutMillis;
-  private final BlockingQueue<WriteTask> writeTasks;
+  private final WriteQueue writeTasks;
+  private final TokenBucket myReadBucket;
+  private final TokenBucket myWriteBucket;
 
   public ReadWriteAttachment(ConnectionListener connectionListener, long lastCommunicationTime, long timeoutMillis) {
     this.connectionListener = connectionListener;
-    this.writeTasks = new LinkedBlockingQueue<WriteTask>(WRITE_TASK_QUEUE_SIZE);
+    this.writeTasks = new WriteQueue();
+    this.myReadBucket = new TokenBucket();
+    this.myWriteBucket = new TokenBucket();
     this.lastCommunicationTime = lastCommunicationTime;
     this.myTimeoutMillis = timeoutMillis;
   }
@@ -28,16 +28,31 @@ public class ReadWriteAttachment implements ReadAttachment, WriteAttachment, Tim
   }
 
   @Override
-  public BlockingQueue<WriteTask> getWriteTasks() {
+  public WriteQueue getWriteTasks() {
     return writeTasks;
   }
 
+  @Override
+  public TokenBucket getReadBucket() {
+    return myReadBucket;
+  }
+
+  @Override
+  public TokenBucket getWriteBucket() {
+    return myWriteBucket;
+  }
+
   @Override
   public boolean isTimeoutElapsed(long currentTimeMillis) {
     long minTimeForKeepAlive = currentTimeMillis - myTimeoutMillis;
     return minTimeForKeepAlive > lastCommunicationTime;
   }
 
+  @Override
+  public long getTimeoutTime() {
+    return lastCommunicationTime + myTimeoutMillis;
+  }
+
   @Override
   public void communicatedNow(long currentTimeMillis) {
     lastCommunicationTime = currentTimeMillis;
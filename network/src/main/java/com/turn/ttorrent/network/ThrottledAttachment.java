@@ -0,0 +1,15 @@
+package com.turn.ttorrent.network;
+
+public interface ThrottledAttachment {
+
+  /**
+   * @return bucket which limits rate of reading from the channel
+   */
+  TokenBucket getReadBucket();
+
+  /**
+   * @return bucket which limits rate of writing to the channel
+   */
+  TokenBucket getWriteBucket();
+
+}
@@ -0,0 +1,144 @@
+package com.turn.ttorrent.network;
+
+import com.turn.ttorrent.common.TimeService;
+import com.turn.ttorrent.common.TorrentLoggerFactory;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Interest operations of keys which are disabled because bandwidth of the channel is exhausted.
+ *
+ * <p>
+ * When a bucket of the channel has no tokens, the operation is removed from interest set of
+ * the key, so the selector doesn't wake up for the channel, and it is restored when the bucket
+ * is refilled. The worker uses time of the nearest restoring as a timeout of selection.
+ * Instances are used only by the selector thread of one worker.
+ * </p>
+ */
+public class ThrottledKeys {
+
+  private static final Logger logger = TorrentLoggerFactory.getLogger(ThrottledKeys.class);
+
+  private final TimeService myTimeService;
+  private final PriorityQueue<SuspendedOperation> mySuspendedOperations;
+  private final Map<SelectionKey, Integer> mySuspendedOps;
+
+  public ThrottledKeys(TimeService timeService) {
+    myTimeService = timeService;
+    mySuspendedOperations = new PriorityQueue<SuspendedOperation>(11, new Comparator<SuspendedOperation>() {
+      @Override
+      public int compare(SuspendedOperation a, SuspendedOperation b) {
+        return a.resumeTime < b.resumeTime ? -1 : (a.resumeTime == b.resumeTime ? 0 : 1);
+      }
+    });
+    mySuspendedOps = new HashMap<SelectionKey, Integer>();
+  }
+
+  /**
+   * Removes the operation from interest set of the key if the bucket has no tokens now
+   *
+   * @return true if the operation is suspended
+   */
+  public boolean suspendIfExhausted(SelectionKey key, @Nullable TokenBucket bucket, int operation) {
+    if (bucket == null) return false;
+    long now = myTimeService.now();
+    long delay = bucket.getDelayMillis(now);
+    if (delay <= 0) return false;
+
+    key.interestOps(key.interestOps() & ~operation);
+    int suspendedOps = getSuspendedOps(key);
+    if ((suspendedOps & operation) == 0) {
+      mySuspendedOps.put(key, suspendedOps | operation);
+      mySuspendedOperations.add(new SuspendedOperation(key, operation, now + delay));
+      logger.trace("operation {} of channel {} is suspended for {} ms", new Object[]{operation, key.channel(), delay});
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the operation of the key is suspended and it mustn't be added to interest set
+   */
+  public boolean isSuspended(SelectionKey key, int operation) {
+    return (getSuspendedOps(key) & operation) != 0;
+  }
+
+  /**
+   * @return true if the bucket or one of its parents has no tokens now
+   */
+  public boolean isExhausted(@Nullable TokenBucket bucket) {
+    return bucket != null && bucket.getDelayMillis(myTimeService.now()) > 0;
+  }
+
+  /**
+   * Takes transferred bytes from the bucket
+   */
+  public void consume(@Nullable TokenBucket bucket, long bytes) {
+    if (bucket == null) return;
+    bucket.consume(bytes, myTimeService.now());
+  }
+
+  /**
+   * Restores operations which were suspended till current time
+   */
+  void resumeExpired() {
+    long now = myTimeService.now();
+    SuspendedOperation head;
+    while ((head = mySuspendedOperations.peek()) != null && head.resumeTime <= now) {
+      mySuspendedOperations.poll();
+      SelectionKey key = head.key;
+      int suspendedOps = getSuspendedOps(key) & ~head.operation;
+      if (suspendedOps == 0) {
+        mySuspendedOps.remove(key);
+      } else {
+        mySuspendedOps.put(key, suspendedOps);
+      }
+      if (!key.isValid()) continue;
+      if (head.operation == SelectionKey.OP_WRITE && !hasWriteTasks(key)) continue;
+      try {
+        key.interestOps(key.interestOps() | head.operation);
+      } catch (CancelledKeyException e) {
+        logger.debug("key of channel {} is cancelled", key.channel());
+      }
+    }
+  }
+
+  /**
+   * @param maxDelay max timeout of selection
+   * @return timeout of selection till the nearest restoring of suspended operation
+   */
+  long getSelectTimeout(long maxDelay) {
+    SuspendedOperation head = mySuspendedOperations.peek();
+    if (head == null) return maxDelay;
+    return Math.max(1, Math.min(maxDelay, head.resumeTime - myTimeService.now()));
+  }
+
+  private boolean hasWriteTasks(SelectionKey key) {
+    Object attachment = key.attachment();
+    return attachment instanceof WriteAttachment && !((WriteAttachment) attachment).getWriteTasks().isEmpty();
+  }
+
+  private int getSuspendedOps(SelectionKey key) {
+    Integer ops = mySuspendedOps.get(key);
+    return ops == null ? 0 : ops;
+  }
+
+  private static class SuspendedOperation {
+
+    private final SelectionKey key;
+    private final int operation;
+    private final long resumeTime;
+
+    private SuspendedOperation(SelectionKey key, int operation, long resumeTime) {
+      this.key = key;
+      this.operation = operation;
+      this.resumeTime = resumeTime;
+    }
+  }
+}
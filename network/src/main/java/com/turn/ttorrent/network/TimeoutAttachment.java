@@ -11,6 +11,11 @@ public interface TimeoutAttachment {
    */
   boolean isTimeoutElapsed(long currentTimeMillis);
 
+  /**
+   * @return time in milliseconds after which the timeout is elapsed if there is no communication till it
+   */
+  long getTimeoutTime();
+
   /**
    * set last communication time to current time
    *
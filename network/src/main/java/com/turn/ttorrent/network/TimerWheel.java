@@ -0,0 +1,220 @@
+package com.turn.ttorrent.network;
+
+import com.turn.ttorrent.common.LoggerUtils;
+import com.turn.ttorrent.common.TimeService;
+import com.turn.ttorrent.common.TorrentLoggerFactory;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Hashed timing wheel.
+ *
+ * <p>
+ * Time is divided into ticks and every timeout is put into the bucket of its deadline tick,
+ * buckets are reused every rotation of the wheel. Scheduling and cancelling take constant time,
+ * advancing of the wheel visits only buckets of passed ticks, so idle timeouts cost nothing until
+ * they expire. Timeouts are checked with precision of one tick.
+ * </p>
+ *
+ * <p>
+ * The wheel doesn't have own thread, the owner must call {@link #advance()} periodically,
+ * tasks of expired timeouts are run in the calling thread. Timeouts can be scheduled and
+ * cancelled from any thread.
+ * </p>
+ */
+public class TimerWheel {
+
+  private static final Logger logger = TorrentLoggerFactory.getLogger(TimerWheel.class);
+
+  public static final long DEFAULT_TICK_MILLIS = 100;
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private static final long UNKNOWN_TICK = -1;
+
+  private static final Comparator<Timeout> DEADLINE_COMPARATOR = new Comparator<Timeout>() {
+    @Override
+    public int compare(Timeout a, Timeout b) {
+      return a.deadlineTick < b.deadlineTick ? -1 : (a.deadlineTick == b.deadlineTick ? 0 : 1);
+    }
+  };
+
+  private final TimeService myTimeService;
+  private final long myTickMillis;
+  private final Timeout[] myBuckets;
+  private final int myMask;
+  // last processed tick
+  private long myCurrentTick;
+  private int mySize;
+  // the earliest deadline tick of scheduled timeouts, it's found lazily when it's unknown
+  private long myNextDeadlineTick = UNKNOWN_TICK;
+
+  public TimerWheel(TimeService timeService) {
+    this(timeService, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+  }
+
+  /**
+   * @param tickMillis duration of one tick in milliseconds
+   * @param wheelSize  count of buckets, it must be a power of two
+   */
+  public TimerWheel(TimeService timeService, long tickMillis, int wheelSize) {
+    if (tickMillis <= 0 || wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0) {
+      throw new IllegalArgumentException("Invalid wheel parameters: tick " + tickMillis + ", size " + wheelSize);
+    }
+    myTimeService = timeService;
+    myTickMillis = tickMillis;
+    myBuckets = new Timeout[wheelSize];
+    myMask = wheelSize - 1;
+    myCurrentTick = timeService.now() / tickMillis;
+  }
+
+  /**
+   * Schedules the task
+   *
+   * @param task        task which is run by the thread which advances the wheel, it must be short
+   * @param delayMillis delay in milliseconds
+   * @return timeout which can be used for cancelling of the task
+   */
+  public synchronized Timeout schedule(Runnable task, long delayMillis) {
+    long deadline = myTimeService.now() + Math.max(0, delayMillis);
+    long deadlineTick = Math.max(myCurrentTick + 1, (deadline + myTickMillis - 1) / myTickMillis);
+    Timeout timeout = new Timeout(this, task, deadlineTick);
+    int index = (int) (deadlineTick & myMask);
+    timeout.next = myBuckets[index];
+    if (timeout.next != null) {
+      timeout.next.prev = timeout;
+    }
+    myBuckets[index] = timeout;
+    timeout.scheduled = true;
+    if (mySize == 0) {
+      myNextDeadlineTick = deadlineTick;
+    } else if (myNextDeadlineTick != UNKNOWN_TICK) {
+      myNextDeadlineTick = Math.min(myNextDeadlineTick, deadlineTick);
+    }
+    mySize++;
+    return timeout;
+  }
+
+  /**
+   * Moves the wheel to current time and runs tasks of expired timeouts
+   */
+  public void advance() {
+    List<Timeout> expired = null;
+    synchronized (this) {
+      long nowTick = myTimeService.now() / myTickMillis;
+      if (nowTick <= myCurrentTick) return;
+      // every bucket is visited at most once, expired timeouts can't be in other buckets
+      long lastTick = Math.min(nowTick, myCurrentTick + myBuckets.length);
+      for (long tick = myCurrentTick + 1; tick <= lastTick && mySize > 0; tick++) {
+        Timeout timeout = myBuckets[(int) (tick & myMask)];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          if (timeout.deadlineTick <= nowTick) {
+            unlink(timeout);
+            if (expired == null) {
+              expired = new ArrayList<Timeout>();
+            }
+            expired.add(timeout);
+          }
+          timeout = next;
+        }
+      }
+      myCurrentTick = nowTick;
+    }
+    if (expired == null) return;
+    if (expired.size() > 1) {
+      // buckets are visited from current position, so after a long pause deadlines can be out of order
+      Collections.sort(expired, DEADLINE_COMPARATOR);
+    }
+    for (Timeout timeout : expired) {
+      try {
+        timeout.task.run();
+      } catch (Throwable e) {
+        LoggerUtils.warnAndDebugDetails(logger, "unhandled exception in timeout task {}", timeout.task, e);
+      }
+    }
+  }
+
+  /**
+   * @return count of scheduled timeouts
+   */
+  public synchronized int size() {
+    return mySize;
+  }
+
+  /**
+   * @return time in milliseconds until the earliest timeout expires or -1 if there are no timeouts
+   */
+  synchronized long getMillisToNextTimeout() {
+    if (mySize == 0) return -1;
+    if (myNextDeadlineTick == UNKNOWN_TICK) {
+      myNextDeadlineTick = findNextDeadlineTick();
+    }
+    return Math.max(1, myNextDeadlineTick * myTickMillis - myTimeService.now());
+  }
+
+  private long findNextDeadlineTick() {
+    // all deadlines are after the current tick, so a timeout lying in the bucket of its own
+    // deadline tick is the earliest one, timeouts of later rotations are found by full rotation
+    long result = Long.MAX_VALUE;
+    for (long tick = myCurrentTick + 1; tick <= myCurrentTick + myBuckets.length; tick++) {
+      Timeout timeout = myBuckets[(int) (tick & myMask)];
+      while (timeout != null) {
+        if (timeout.deadlineTick == tick) return tick;
+        result = Math.min(result, timeout.deadlineTick);
+        timeout = timeout.next;
+      }
+    }
+    return result;
+  }
+
+  private synchronized boolean cancel(Timeout timeout) {
+    if (!timeout.scheduled) return false;
+    unlink(timeout);
+    return true;
+  }
+
+  private void unlink(Timeout timeout) {
+    if (timeout.prev != null) {
+      timeout.prev.next = timeout.next;
+    } else {
+      myBuckets[(int) (timeout.deadlineTick & myMask)] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.scheduled = false;
+    mySize--;
+    if (timeout.deadlineTick == myNextDeadlineTick) {
+      myNextDeadlineTick = UNKNOWN_TICK;
+    }
+  }
+
+  public static class Timeout {
+
+    private final TimerWheel myWheel;
+    private final Runnable task;
+    private final long deadlineTick;
+    private Timeout prev;
+    private Timeout next;
+    private boolean scheduled;
+
+    private Timeout(TimerWheel wheel, Runnable task, long deadlineTick) {
+      this.myWheel = wheel;
+      this.task = task;
+      this.deadlineTick = deadlineTick;
+    }
+
+    /**
+     * @return true if the task was scheduled and it won't be run
+     */
+    public boolean cancel() {
+      return myWheel.cancel(this);
+    }
+  }
+}
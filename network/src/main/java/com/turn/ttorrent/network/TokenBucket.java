@@ -0,0 +1,109 @@
+package com.turn.ttorrent.network;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Token bucket which limits rate of data transfer.
+ *
+ * <p>
+ * The bucket is refilled with rate tokens per second and it can accumulate tokens for one second
+ * of transfer. Bytes are consumed after they are transferred, so the bucket can go into debt
+ * by one read or write, and the transfer is allowed again when the debt is repaid.
+ * Buckets form a hierarchy: bytes are consumed from the bucket and all its parents and the
+ * transfer is allowed only when all of them have tokens. Rate 0 means that the bucket doesn't
+ * limit the transfer.
+ * </p>
+ */
+public class TokenBucket {
+
+  public static final long UNLIMITED = 0;
+
+  @Nullable
+  private volatile TokenBucket myParent;
+  private long myRate;
+  private double myTokens;
+  private long myLastRefillTime = -1;
+
+  public TokenBucket() {
+    this(null);
+  }
+
+  public TokenBucket(@Nullable TokenBucket parent) {
+    myParent = parent;
+    myRate = UNLIMITED;
+  }
+
+  /**
+   * @param bytesPerSecond new rate of the bucket or {@link #UNLIMITED}
+   */
+  public synchronized void setRate(long bytesPerSecond) {
+    if (bytesPerSecond < 0) {
+      throw new IllegalArgumentException("Invalid rate: " + bytesPerSecond);
+    }
+    myRate = bytesPerSecond;
+    myTokens = Math.min(myTokens, bytesPerSecond);
+  }
+
+  public synchronized long getRate() {
+    return myRate;
+  }
+
+  public void setParent(@Nullable TokenBucket parent) {
+    myParent = parent;
+  }
+
+  @Nullable
+  public TokenBucket getParent() {
+    return myParent;
+  }
+
+  /**
+   * Takes transferred bytes from the bucket and all its parents
+   *
+   * @param bytes count of transferred bytes
+   * @param now   current time in milliseconds
+   */
+  public void consume(long bytes, long now) {
+    if (bytes <= 0) return;
+    for (TokenBucket bucket = this; bucket != null; bucket = bucket.myParent) {
+      bucket.consumeOwn(bytes, now);
+    }
+  }
+
+  /**
+   * @param now current time in milliseconds
+   * @return 0 if the transfer is allowed now, otherwise time in milliseconds
+   * until all buckets in the hierarchy have tokens again
+   */
+  public long getDelayMillis(long now) {
+    long delay = 0;
+    for (TokenBucket bucket = this; bucket != null; bucket = bucket.myParent) {
+      delay = Math.max(delay, bucket.getOwnDelayMillis(now));
+    }
+    return delay;
+  }
+
+  private synchronized void consumeOwn(long bytes, long now) {
+    if (myRate == UNLIMITED) return;
+    refill(now);
+    myTokens -= bytes;
+  }
+
+  private synchronized long getOwnDelayMillis(long now) {
+    if (myRate == UNLIMITED) return 0;
+    refill(now);
+    if (myTokens > 0) return 0;
+    return (long) (-myTokens * 1000 / myRate) + 1;
+  }
+
+  private void refill(long now) {
+    if (myLastRefillTime < 0) {
+      myTokens = myRate;
+    } else if (now > myLastRefillTime) {
+      myTokens = Math.min(myRate, myTokens + (double) (now - myLastRefillTime) * myRate / 1000);
+    } else {
+      return;
+    }
+    myLastRefillTime = now;
+  }
+}
@@ -0,0 +1,94 @@
+package com.turn.ttorrent.network;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound queue of one connection.
+ *
+ * <p>
+ * Tasks can be added from any thread without locking, but they are taken only by the selector
+ * thread which serves the connection. The queue tracks count of queued bytes, so producers can
+ * observe how much data is waiting for the socket, and a flag which shows that the channel is
+ * already scheduled for enabling of write interest, so the channel is passed to the selector
+ * thread only once for any count of added tasks.
+ * </p>
+ */
+public class WriteQueue extends AbstractQueue<WriteTask> {
+
+  private final ConcurrentLinkedQueue<WriteTask> myTasks = new ConcurrentLinkedQueue<WriteTask>();
+  private final AtomicInteger mySize = new AtomicInteger();
+  private final AtomicLong myBytes = new AtomicLong();
+  private final AtomicBoolean myScheduled = new AtomicBoolean();
+
+  @Override
+  public boolean offer(WriteTask writeTask) {
+    myTasks.offer(writeTask);
+    mySize.incrementAndGet();
+    myBytes.addAndGet(writeTask.getSize());
+    return true;
+  }
+
+  @Override
+  public WriteTask poll() {
+    WriteTask task = myTasks.poll();
+    if (task != null) {
+      mySize.decrementAndGet();
+      myBytes.addAndGet(-task.getSize());
+    }
+    return task;
+  }
+
+  @Override
+  public WriteTask peek() {
+    return myTasks.peek();
+  }
+
+  @Override
+  public Iterator<WriteTask> iterator() {
+    final Iterator<WriteTask> iterator = myTasks.iterator();
+    return new Iterator<WriteTask>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public WriteTask next() {
+        return iterator.next();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("tasks can be removed only from the head of the queue");
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return Math.max(0, mySize.get());
+  }
+
+  /**
+   * @return count of bytes of queued tasks. Partially written head task is counted fully
+   */
+  public long getQueuedBytes() {
+    return Math.max(0, myBytes.get());
+  }
+
+  /**
+   * @return true if the channel wasn't scheduled yet and it must be passed to the selector thread now
+   */
+  boolean markScheduled() {
+    return myScheduled.compareAndSet(false, true);
+  }
+
+  void clearScheduled() {
+    myScheduled.set(false);
+  }
+}
@@ -1,18 +1,37 @@
 package com.turn.ttorrent.network;
 
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class WriteTask {
 
   private final ByteChannel socketChannel;
   private final ByteBuffer byteBuffer;
+  @Nullable
+  private final FileRegion fileRegion;
   private final WriteListener listener;
+  private final long mySize;
+  private long myTransferredRegionBytes;
 
   public WriteTask(ByteChannel socketChannel, ByteBuffer byteBuffer, WriteListener listener) {
+    this(socketChannel, byteBuffer, null, listener);
+  }
+
+  /**
+   * @param byteBuffer data which must be written before the file region, e.g. message header
+   * @param fileRegion data which is transferred directly from storage after the buffer
+   */
+  public WriteTask(ByteChannel socketChannel, ByteBuffer byteBuffer, @Nullable FileRegion fileRegion, WriteListener listener) {
     this.socketChannel = socketChannel;
     this.byteBuffer = byteBuffer;
+    this.fileRegion = fileRegion;
     this.listener = listener;
+    this.mySize = byteBuffer.remaining() + (fileRegion == null ? 0 : fileRegion.size());
+    this.myTransferredRegionBytes = 0;
   }
 
   public ByteChannel getSocketChannel() {
@@ -23,15 +42,50 @@ public class WriteTask {
     return byteBuffer;
   }
 
+  @Nullable
+  public FileRegion getFileRegion() {
+    return fileRegion;
+  }
+
   public WriteListener getListener() {
     return listener;
   }
 
+  /**
+   * @return count of bytes which must be written for this task, it isn't changed while the task is written
+   */
+  public long getSize() {
+    return mySize;
+  }
+
+  /**
+   * transfers next part of the file region to the channel. Must be invoked only after buffer is written fully
+   *
+   * @return count of transferred bytes
+   */
+  public long transferRegion(WritableByteChannel channel) throws IOException {
+    if (fileRegion == null) return 0;
+    long remaining = fileRegion.size() - myTransferredRegionBytes;
+    if (remaining <= 0) return 0;
+    long transferred = fileRegion.transferTo(channel, myTransferredRegionBytes, remaining);
+    myTransferredRegionBytes += transferred;
+    return transferred;
+  }
+
+  /**
+   * @return true if buffer and file region (if exist) are written fully
+   */
+  public boolean isWritten() {
+    if (byteBuffer.hasRemaining()) return false;
+    return fileRegion == null || myTransferredRegionBytes >= fileRegion.size();
+  }
+
   @Override
   public String toString() {
     return "WriteTask{" +
             "socketChannel=" + socketChannel +
             ", byteBuffer=" + byteBuffer +
+            ", fileRegion=" + fileRegion +
             ", listener=" + listener +
             '}';
   }
@@ -13,7 +13,7 @@ public class AcceptableKeyProcessor implements KeyProcessor {
 
   private static final Logger logger = TorrentLoggerFactory.getLogger(AcceptableKeyProcessor.class);
 
-  private final Selector mySelector;
+  private final NewChannelRegister myChannelRegister;
   private final String myServerSocketLocalAddress;
   private final TimeService myTimeService;
   private final NewConnectionAllower myNewConnectionAllower;
@@ -21,14 +21,14 @@ public class AcceptableKeyProcessor implements KeyProcessor {
   private final AtomicInteger mySendBufferSize;
   private final AtomicInteger myReceiveBufferSize;
 
-  public AcceptableKeyProcessor(Selector selector,
+  public AcceptableKeyProcessor(NewChannelRegister channelRegister,
                                 String serverSocketLocalAddress,
                                 TimeService timeService,
                                 NewConnectionAllower newConnectionAllower,
                                 TimeoutStorage timeoutStorage,
                                 AtomicInteger sendBufferSize,
                                 AtomicInteger receiveBufferSize) {
-    this.mySelector = selector;
+    this.myChannelRegister = channelRegister;
     this.myServerSocketLocalAddress = serverSocketLocalAddress;
     this.myTimeService = timeService;
     this.myNewConnectionAllower = newConnectionAllower;
@@ -67,7 +67,7 @@ public class AcceptableKeyProcessor implements KeyProcessor {
     socketChannel.configureBlocking(false);
     KeyProcessorUtil.setBuffersSizeIfNecessary(socketChannel, mySendBufferSize.get(), myReceiveBufferSize.get());
     ReadWriteAttachment keyAttachment = new ReadWriteAttachment(stateConnectionListener, myTimeService.now(), myTimeoutStorage.getTimeoutMillis());
-    socketChannel.register(mySelector, SelectionKey.OP_READ, keyAttachment);
+    myChannelRegister.register(socketChannel, keyAttachment);
   }
 
   @Override
@@ -3,6 +3,9 @@ package com.turn.ttorrent.network.keyProcessors;
 import com.turn.ttorrent.common.TorrentLoggerFactory;
 import com.turn.ttorrent.network.ConnectionListener;
 import com.turn.ttorrent.network.ReadAttachment;
+import com.turn.ttorrent.network.ThrottledAttachment;
+import com.turn.ttorrent.network.ThrottledKeys;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 
 import java.io.IOException;
@@ -15,9 +18,20 @@ public class ReadableKeyProcessor implements KeyProcessor {
   private static final Logger logger = TorrentLoggerFactory.getLogger(ReadableKeyProcessor.class);
 
   private final String myServerSocketLocalAddress;
+  @Nullable
+  private final ThrottledKeys myThrottledKeys;
 
   public ReadableKeyProcessor(String serverSocketLocalAddress) {
+    this(serverSocketLocalAddress, null);
+  }
+
+  /**
+   * @param throttledKeys keys with suspended operations of the worker or null if reading isn't throttled.
+   *                      Read bytes are counted by the connection listener
+   */
+  public ReadableKeyProcessor(String serverSocketLocalAddress, @Nullable ThrottledKeys throttledKeys) {
     this.myServerSocketLocalAddress = serverSocketLocalAddress;
+    this.myThrottledKeys = throttledKeys;
   }
 
   @Override
@@ -38,6 +52,11 @@ public class ReadableKeyProcessor implements KeyProcessor {
       socketChannel.close();
       return;
     }
+    if (myThrottledKeys != null && attachment instanceof ThrottledAttachment &&
+            myThrottledKeys.suspendIfExhausted(key, ((ThrottledAttachment) attachment).getReadBucket(), SelectionKey.OP_READ)) {
+      logger.trace("download bandwidth of {} is exhausted, reading is suspended", socketChannel);
+      return;
+    }
     ConnectionListener connectionListener = ((ReadAttachment) attachment).getConnectionListener();
     connectionListener.onNewDataAvailable(socketChannel);
   }
@@ -1,21 +1,57 @@
 package com.turn.ttorrent.network.keyProcessors;
 
+import com.turn.ttorrent.common.LoggerUtils;
 import com.turn.ttorrent.common.TorrentLoggerFactory;
 import com.turn.ttorrent.network.ConnectionClosedException;
+import com.turn.ttorrent.network.ThrottledAttachment;
+import com.turn.ttorrent.network.ThrottledKeys;
+import com.turn.ttorrent.network.TokenBucket;
 import com.turn.ttorrent.network.WriteAttachment;
 import com.turn.ttorrent.network.WriteTask;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 
 public class WritableKeyProcessor implements KeyProcessor {
 
   private static final Logger logger = TorrentLoggerFactory.getLogger(WritableKeyProcessor.class);
 
+  public static final int DEFAULT_MAX_BYTES_PER_EVENT = 512 * 1024;
+  private static final int MAX_BUFFERS_PER_WRITE = 64;
+
+  private final int myMaxBytesPerEvent;
+  @Nullable
+  private final ThrottledKeys myThrottledKeys;
+
+  public WritableKeyProcessor() {
+    this(DEFAULT_MAX_BYTES_PER_EVENT);
+  }
+
+  /**
+   * @param maxBytesPerEvent max count of bytes which are written to one channel on one selection.
+   *                         It doesn't allow one connection with long queue to delay other connections
+   */
+  public WritableKeyProcessor(int maxBytesPerEvent) {
+    this(maxBytesPerEvent, null);
+  }
+
+  /**
+   * @param throttledKeys keys with suspended operations of the worker or null if writing isn't throttled
+   */
+  public WritableKeyProcessor(int maxBytesPerEvent, @Nullable ThrottledKeys throttledKeys) {
+    this.myMaxBytesPerEvent = maxBytesPerEvent;
+    this.myThrottledKeys = throttledKeys;
+  }
+
   @Override
   public void process(SelectionKey key) throws IOException {
     SelectableChannel channel = key.channel();
@@ -37,7 +73,18 @@ public class WritableKeyProcessor implements KeyProcessor {
     WriteAttachment keyAttachment = (WriteAttachment) attachment;
 
     if (keyAttachment.getWriteTasks().isEmpty()) {
-      key.interestOps(SelectionKey.OP_READ);
+      disableWriteInterest(key);
+      return;
+    }
+
+    TokenBucket bucket = attachment instanceof ThrottledAttachment ? ((ThrottledAttachment) attachment).getWriteBucket() : null;
+    if (myThrottledKeys != null && myThrottledKeys.suspendIfExhausted(key, bucket, SelectionKey.OP_WRITE)) {
+      logger.trace("upload bandwidth of {} is exhausted, writing is suspended", socketChannel);
+      return;
+    }
+
+    if (keyAttachment.getWriteTasks().size() > 1) {
+      writeBatches(key, socketChannel, keyAttachment.getWriteTasks(), bucket);
       return;
     }
 
@@ -50,16 +97,128 @@ public class WritableKeyProcessor implements KeyProcessor {
         throw new EOFException("Reached end of stream while writing");
       }
 
+      long writtenBytes = writeCount;
       if (!processedTask.getByteBuffer().hasRemaining()) {
+        // header is sent, so the region (if exists) can be transferred directly from storage
+        writtenBytes += processedTask.transferRegion(socketChannel);
+      }
+      consume(bucket, writtenBytes);
+
+      if (processedTask.isWritten()) {
         processedTask.getListener().onWriteDone();
         keyAttachment.getWriteTasks().remove();
       }
 
     } catch (IOException e) {
-      processedTask.getListener().onWriteFailed("I/O error occurs on write to channel " + socketChannel, new ConnectionClosedException(e));
-      keyAttachment.getWriteTasks().clear();
-      key.cancel();
+      failTasks(key, keyAttachment.getWriteTasks(), processedTask, "I/O error occurs on write to channel " + socketChannel, e);
+    } catch (RuntimeException e) {
+      // the region can't be read from storage (e.g. the piece was truncated or invalidated)
+      LoggerUtils.warnAndDebugDetails(logger, "unable to transfer data to channel {}", socketChannel, e);
+      failTasks(key, keyAttachment.getWriteTasks(), processedTask, "unable to transfer data to channel " + socketChannel, e);
+    }
+  }
+
+  /**
+   * Writes buffers of several queued tasks by one gathering write, so small messages
+   * (e.g. HAVE) are coalesced into one system call with other messages. Writing is continued
+   * until the queue is empty, the socket buffer is full or the byte budget is exhausted
+   */
+  private void writeBatches(SelectionKey key, SocketChannel socketChannel, Queue<WriteTask> tasks,
+                            @Nullable TokenBucket bucket) throws IOException {
+    long writtenBytes = 0;
+    List<WriteTask> batch = new ArrayList<WriteTask>();
+    while (writtenBytes < myMaxBytesPerEvent && !tasks.isEmpty()) {
+      batch.clear();
+      ByteBuffer[] buffers = collectBatch(tasks, batch, myMaxBytesPerEvent - writtenBytes);
+      WriteTask lastTask = batch.get(batch.size() - 1);
+      try {
+        long writeCount = socketChannel.write(buffers, 0, buffers.length);
+        if (writeCount < 0) {
+          throw new EOFException("Reached end of stream while writing");
+        }
+        if (lastTask.getFileRegion() != null && !lastTask.getByteBuffer().hasRemaining()) {
+          writeCount += lastTask.transferRegion(socketChannel);
+        }
+        writtenBytes += writeCount;
+        consume(bucket, writeCount);
+      } catch (IOException e) {
+        failTasks(key, tasks, getFirstNotWritten(batch), "I/O error occurs on write to channel " + socketChannel, e);
+        return;
+      } catch (RuntimeException e) {
+        LoggerUtils.warnAndDebugDetails(logger, "unable to transfer data to channel {}", socketChannel, e);
+        failTasks(key, tasks, getFirstNotWritten(batch), "unable to transfer data to channel " + socketChannel, e);
+        return;
+      }
+
+      for (WriteTask task : batch) {
+        if (!task.isWritten()) {
+          // socket send buffer is full, wait for next selection
+          return;
+        }
+        task.getListener().onWriteDone();
+        tasks.remove();
+      }
+      if (myThrottledKeys != null && myThrottledKeys.isExhausted(bucket)) {
+        // the rest is written when the bucket is refilled
+        break;
+      }
+    }
+    if (tasks.isEmpty()) {
+      disableWriteInterest(key);
+    }
+  }
+
+  /**
+   * Notifies the failed task and all other queued tasks about the error and cancels the key,
+   * so the connection is closed and nothing is written after the broken task
+   */
+  private void failTasks(SelectionKey key, Queue<WriteTask> tasks, WriteTask failedTask, String message, Throwable cause) {
+    failedTask.getListener().onWriteFailed(message, new ConnectionClosedException(cause));
+    WriteTask task;
+    while ((task = tasks.poll()) != null) {
+      if (task != failedTask) {
+        task.getListener().onWriteFailed(message, new ConnectionClosedException(cause));
+      }
+    }
+    key.cancel();
+  }
+
+  private void disableWriteInterest(SelectionKey key) {
+    if (myThrottledKeys != null && myThrottledKeys.isSuspended(key, SelectionKey.OP_READ)) {
+      // reading will be resumed when the download bandwidth is available
+      key.interestOps(0);
+      return;
+    }
+    key.interestOps(SelectionKey.OP_READ);
+  }
+
+  private void consume(@Nullable TokenBucket bucket, long bytes) {
+    if (myThrottledKeys != null) {
+      myThrottledKeys.consume(bucket, bytes);
+    }
+  }
+
+  private ByteBuffer[] collectBatch(Queue<WriteTask> tasks, List<WriteTask> batch, long budget) {
+    List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    long bytes = 0;
+    for (WriteTask task : tasks) {
+      if (!batch.isEmpty() && (bytes >= budget || buffers.size() >= MAX_BUFFERS_PER_WRITE)) break;
+      batch.add(task);
+      buffers.add(task.getByteBuffer());
+      bytes += task.getByteBuffer().remaining();
+      if (task.getFileRegion() != null) {
+        // the region is transferred separately, following tasks must wait for it
+        break;
+      }
+    }
+    return buffers.toArray(new ByteBuffer[0]);
+  }
+
+  private WriteTask getFirstNotWritten(List<WriteTask> batch) {
+    for (WriteTask task : batch) {
+      if (!task.isWritten()) return task;
     }
+    return batch.get(0);
   }
 
   @Override
@@ -0,0 +1,183 @@
+package com.turn.ttorrent.network.utp;
+
+/**
+ * Delay based congestion control of uTP connection (LEDBAT, RFC 6817 and BEP 29).
+ *
+ * <p>
+ * One way delay samples are taken from timestamp differences echoed by the peer. The lowest
+ * delay of the last minutes is the base delay, i.e. delay of the path without queues, and
+ * the difference between the current delay and the base delay is the queuing delay which is
+ * caused by our own traffic and by other flows. The congestion window grows while the queuing
+ * delay is below the target and shrinks proportionally when it's above, so uTP yields to TCP and
+ * interactive traffic sharing the same bottleneck. The window is halved on packet loss and drops
+ * to one packet on timeout. Round trip time and retransmission timeout are estimated as in TCP.
+ * </p>
+ *
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ */
+public class LedbatController {
+
+  public static final long TARGET_DELAY_MICROS = 100000;
+  static final int MAX_WINDOW_INCREASE_PER_RTT = 3000;
+  static final long MAX_WINDOW = 1024 * 1024;
+  static final long INITIAL_TIMEOUT_MILLIS = 1000;
+  static final long MIN_TIMEOUT_MILLIS = 500;
+  static final long MAX_TIMEOUT_MILLIS = 60000;
+
+  private static final int BASE_DELAY_HISTORY_SIZE = 10;
+  private static final long BASE_DELAY_INTERVAL_MILLIS = 60 * 1000;
+  private static final int CURRENT_DELAY_SAMPLES = 3;
+  private static final long NO_DELAY = -1;
+
+  private final int myPacketSize;
+  private long myWindow;
+
+  // minimal delays of the last minutes, the current minute is at myBaseDelayIndex
+  private final long[] myBaseDelays = new long[BASE_DELAY_HISTORY_SIZE];
+  private int myBaseDelayIndex = 0;
+  private long myBaseDelayIntervalStart = -1;
+  private final long[] myCurrentDelays = new long[CURRENT_DELAY_SAMPLES];
+  private int myCurrentDelayIndex = 0;
+
+  private long myRtt = -1;
+  private long myRttVariance = 0;
+  private long myTimeout = INITIAL_TIMEOUT_MILLIS;
+
+  /**
+   * @param packetSize max size of payload of one packet in bytes
+   */
+  public LedbatController(int packetSize) {
+    myPacketSize = packetSize;
+    myWindow = 3L * packetSize;
+    for (int i = 0; i < BASE_DELAY_HISTORY_SIZE; i++) {
+      myBaseDelays[i] = NO_DELAY;
+    }
+    for (int i = 0; i < CURRENT_DELAY_SAMPLES; i++) {
+      myCurrentDelays[i] = NO_DELAY;
+    }
+  }
+
+  /**
+   * @param delayMicros one way delay measured by the peer, it is an unsigned 32 bits value
+   *                    which includes unknown offset between clocks of hosts
+   * @param now         current time in milliseconds
+   */
+  public void onDelaySample(long delayMicros, long now) {
+    if (myBaseDelayIntervalStart < 0) {
+      myBaseDelayIntervalStart = now;
+    } else if (now - myBaseDelayIntervalStart >= BASE_DELAY_INTERVAL_MILLIS) {
+      myBaseDelayIntervalStart = now;
+      myBaseDelayIndex = (myBaseDelayIndex + 1) % BASE_DELAY_HISTORY_SIZE;
+      myBaseDelays[myBaseDelayIndex] = NO_DELAY;
+    }
+    long baseDelay = myBaseDelays[myBaseDelayIndex];
+    if (baseDelay == NO_DELAY || isLess(delayMicros, baseDelay)) {
+      myBaseDelays[myBaseDelayIndex] = delayMicros;
+    }
+    myCurrentDelays[myCurrentDelayIndex] = delayMicros;
+    myCurrentDelayIndex = (myCurrentDelayIndex + 1) % CURRENT_DELAY_SAMPLES;
+  }
+
+  /**
+   * @return estimated queuing delay in microseconds or 0 if there are no samples yet
+   */
+  public long getQueuingDelayMicros() {
+    long baseDelay = min(myBaseDelays);
+    long currentDelay = min(myCurrentDelays);
+    if (baseDelay == NO_DELAY || currentDelay == NO_DELAY) return 0;
+    long queuingDelay = (currentDelay - baseDelay) & 0xFFFFFFFFL;
+    // the base delay isn't above the current one, so huge values are possible only after clock skew
+    return queuingDelay > Integer.MAX_VALUE ? 0 : queuingDelay;
+  }
+
+  /**
+   * Updates congestion window after bytes are acknowledged by the peer
+   *
+   * @param ackedBytes    count of acknowledged bytes
+   * @param bytesInFlight count of bytes which were sent and not acknowledged before the ack
+   */
+  public void onAck(long ackedBytes, long bytesInFlight) {
+    if (ackedBytes <= 0) return;
+    double offTarget = (double) (TARGET_DELAY_MICROS - getQueuingDelayMicros()) / TARGET_DELAY_MICROS;
+    double windowFactor = (double) ackedBytes / Math.max(myWindow, ackedBytes);
+    double gain = MAX_WINDOW_INCREASE_PER_RTT * offTarget * windowFactor;
+    if (gain > 0 && bytesInFlight < myWindow / 2) {
+      // the window isn't used, so the delay doesn't tell anything about its size
+      return;
+    }
+    myWindow = clampWindow(myWindow + (long) gain);
+  }
+
+  /**
+   * @param rttMillis round trip time of the packet which was transmitted only once
+   */
+  public void onRttSample(long rttMillis) {
+    if (myRtt < 0) {
+      myRtt = rttMillis;
+      myRttVariance = rttMillis / 2;
+    } else {
+      long delta = myRtt - rttMillis;
+      myRttVariance += (Math.abs(delta) - myRttVariance) / 4;
+      myRtt += (rttMillis - myRtt) / 8;
+    }
+    myTimeout = Math.min(MAX_TIMEOUT_MILLIS, Math.max(myRtt + 4 * myRttVariance, MIN_TIMEOUT_MILLIS));
+  }
+
+  /**
+   * Invoked when a packet is lost, but other packets are still delivered
+   */
+  public void onLoss() {
+    myWindow = clampWindow(myWindow / 2);
+  }
+
+  /**
+   * Invoked when nothing is acknowledged during retransmission timeout
+   */
+  public void onTimeout() {
+    myWindow = myPacketSize;
+    myTimeout = Math.min(MAX_TIMEOUT_MILLIS, myTimeout * 2);
+  }
+
+  /**
+   * @return max count of bytes which can be sent and not acknowledged
+   */
+  public long getWindow() {
+    return myWindow;
+  }
+
+  /**
+   * @return retransmission timeout in milliseconds
+   */
+  public long getTimeoutMillis() {
+    return myTimeout;
+  }
+
+  /**
+   * @return smoothed round trip time in milliseconds or -1 if it isn't measured yet
+   */
+  public long getRttMillis() {
+    return myRtt;
+  }
+
+  private long clampWindow(long window) {
+    return Math.max(myPacketSize, Math.min(MAX_WINDOW, window));
+  }
+
+  private static long min(long[] delays) {
+    long result = NO_DELAY;
+    for (long delay : delays) {
+      if (delay == NO_DELAY) continue;
+      if (result == NO_DELAY || isLess(delay, result)) {
+        result = delay;
+      }
+    }
+    return result;
+  }
+
+  // timestamps are compared modulo 2^32 because clocks of hosts can wrap
+  private static boolean isLess(long delay, long otherDelay) {
+    return (int) (delay - otherDelay) < 0;
+  }
+}
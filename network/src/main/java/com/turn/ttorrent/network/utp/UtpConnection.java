@@ -0,0 +1,778 @@
+package com.turn.ttorrent.network.utp;
+
+import com.turn.ttorrent.common.LoggerUtils;
+import com.turn.ttorrent.common.TorrentLoggerFactory;
+import com.turn.ttorrent.network.ConnectionClosedException;
+import com.turn.ttorrent.network.ConnectionListener;
+import com.turn.ttorrent.network.ThrottledAttachment;
+import com.turn.ttorrent.network.TokenBucket;
+import com.turn.ttorrent.network.WriteQueue;
+import com.turn.ttorrent.network.WriteTask;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection of uTorrent transport protocol (BEP 29) over {@link UtpSocket}.
+ *
+ * <p>
+ * The connection is a non-blocking byte channel, so it is served by the same connection listeners
+ * and data processors as TCP connections. Written bytes are buffered and split into packets
+ * by the socket thread. Count of bytes in flight is limited by the congestion window of
+ * {@link LedbatController} and by the receive window advertised by the peer. Lost packets are
+ * detected by three duplicate acks, by selective acks and by retransmission timeout.
+ * Received packets are reordered and acknowledged once per batch of datagrams
+ * with a selective ack of packets received out of order.
+ * </p>
+ *
+ * <p>
+ * Packets are sent and received only by the socket thread, other threads can read, write and
+ * close the connection. Callbacks of listeners are invoked by the socket thread without the lock
+ * of the connection.
+ * </p>
+ */
+public class UtpConnection implements ByteChannel, ThrottledAttachment {
+
+  private static final Logger logger = TorrentLoggerFactory.getLogger(UtpConnection.class);
+
+  public static final int MAX_PAYLOAD_SIZE = UtpSocket.MAX_PACKET_SIZE - UtpPacket.HEADER_SIZE;
+  static final int SEND_BUFFER_SIZE = 256 * 1024;
+  static final int RECEIVE_WINDOW = 1024 * 1024;
+  static final int MAX_TIMEOUTS = 6;
+  private static final int DUPLICATE_ACKS_BEFORE_RESEND = 3;
+  private static final int MAX_SELECTIVE_ACK_SIZE = 32;
+  private static final int MAX_OUT_OF_ORDER_PACKETS = MAX_SELECTIVE_ACK_SIZE * 8;
+
+  private enum State {
+    SYN_SENT, CONNECTED, CLOSED
+  }
+
+  private final UtpSocket mySocket;
+  private final InetSocketAddress myRemoteAddress;
+  private final int myReceiveId;
+  private final int mySendId;
+  private final ConnectionListener myListener;
+  private final long myConnectTimeout;
+  private final LedbatController myCongestionControl = new LedbatController(MAX_PAYLOAD_SIZE);
+  private final TokenBucket myReadBucket = new TokenBucket();
+  private final TokenBucket myWriteBucket = new TokenBucket();
+  private final WriteQueue myWriteQueue = new WriteQueue();
+  private final AtomicBoolean myDirty = new AtomicBoolean();
+
+  private State myState;
+  private final long myCreationTime;
+  private long myLastReceiveTime;
+  @Nullable
+  private IOException myError;
+  private boolean myCloseRequested = false;
+  private List<Runnable> myCallbacks = new ArrayList<Runnable>();
+
+  // send side
+  private int mySeqNr;
+  private final ArrayDeque<OutgoingPacket> myInFlight = new ArrayDeque<OutgoingPacket>();
+  private long myBytesInFlight = 0;
+  private final ArrayDeque<ByteBuffer> mySendBuffer = new ArrayDeque<ByteBuffer>();
+  private int mySendBufferBytes = 0;
+  private long myPeerWindow = MAX_PAYLOAD_SIZE;
+  private int myLastAckReceived;
+  private int myDuplicateAcks = 0;
+  private boolean myInRecovery = false;
+  private int myRecoverySeqNr;
+  private long myRetransmitTime = 0;
+  private int myTimeouts = 0;
+  private boolean myFinSent = false;
+  private int myFinSeqNr;
+  private boolean myFinAcked = false;
+
+  // receive side
+  private int myAckNr;
+  private long myReplyMicros = 0;
+  private boolean myAckNeeded = false;
+  private long myAdvertisedWindow = RECEIVE_WINDOW;
+  private final ArrayDeque<ByteBuffer> myReceived = new ArrayDeque<ByteBuffer>();
+  private int myReceivedBytes = 0;
+  private final Map<Integer, UtpPacket> myOutOfOrder = new HashMap<Integer, UtpPacket>();
+  private int myOutOfOrderBytes = 0;
+  private boolean myFinReceived = false;
+  private boolean myReadable = false;
+
+  /**
+   * Creates outgoing connection, SYN packet is sent by the socket thread
+   */
+  UtpConnection(UtpSocket socket,
+                InetSocketAddress remoteAddress,
+                int receiveId,
+                ConnectionListener listener,
+                long connectTimeout,
+                long now) {
+    this(socket, remoteAddress, receiveId, (receiveId + 1) & 0xFFFF, listener, connectTimeout, now, State.SYN_SENT);
+    mySeqNr = 1;
+    myLastAckReceived = 0;
+    addToFlight(new OutgoingPacket(UtpPacket.ST_SYN, nextSeqNr(), null));
+  }
+
+  /**
+   * Creates incoming connection for the received SYN packet, the connection is established immediately
+   */
+  UtpConnection(UtpSocket socket,
+                InetSocketAddress remoteAddress,
+                UtpPacket syn,
+                int initialSeqNr,
+                ConnectionListener listener,
+                long now,
+                long nowMicros) {
+    this(socket, remoteAddress, (syn.getConnectionId() + 1) & 0xFFFF, syn.getConnectionId(), listener, 0, now, State.CONNECTED);
+    mySeqNr = initialSeqNr & 0xFFFF;
+    myLastAckReceived = (mySeqNr - 1) & 0xFFFF;
+    myAckNr = syn.getSeqNr();
+    myPeerWindow = syn.getWindowSize();
+    myReplyMicros = nowMicros - syn.getTimestamp();
+    myAckNeeded = true;
+  }
+
+  private UtpConnection(UtpSocket socket,
+                        InetSocketAddress remoteAddress,
+                        int receiveId,
+                        int sendId,
+                        ConnectionListener listener,
+                        long connectTimeout,
+                        long now,
+                        State state) {
+    mySocket = socket;
+    myRemoteAddress = remoteAddress;
+    myReceiveId = receiveId;
+    mySendId = sendId;
+    myListener = listener;
+    myConnectTimeout = connectTimeout;
+    myCreationTime = now;
+    myLastReceiveTime = now;
+    myState = state;
+  }
+
+  public InetSocketAddress getRemoteAddress() {
+    return myRemoteAddress;
+  }
+
+  int getReceiveId() {
+    return myReceiveId;
+  }
+
+  ConnectionListener getListener() {
+    return myListener;
+  }
+
+  @Override
+  public TokenBucket getReadBucket() {
+    return myReadBucket;
+  }
+
+  @Override
+  public TokenBucket getWriteBucket() {
+    return myWriteBucket;
+  }
+
+  /**
+   * @return congestion window of the connection in bytes
+   */
+  public synchronized long getCongestionWindow() {
+    return myCongestionControl.getWindow();
+  }
+
+  /**
+   * Adds the task to the outbound queue of the connection
+   *
+   * @param maxQueuedBytes max count of bytes in the queue, the task is rejected if the queue is larger
+   * @return true if the task is added
+   */
+  public boolean offerWrite(WriteTask writeTask, long maxQueuedBytes) {
+    if (!isOpen()) {
+      writeTask.getListener().onWriteFailed("Channel " + this + " is not open", new ConnectionClosedException());
+      return false;
+    }
+    if (myWriteQueue.getQueuedBytes() + writeTask.getSize() > maxQueuedBytes && !myWriteQueue.isEmpty()) {
+      writeTask.getListener().onWriteFailed("unable add task " + writeTask + " to the queue. Maybe queue is overload", null);
+      return false;
+    }
+    myWriteQueue.offer(writeTask);
+    mySocket.markDirty(this);
+    return true;
+  }
+
+  /**
+   * @return count of bytes which are queued for writing and not sent yet
+   */
+  public long getQueuedWriteBytes() {
+    long buffered;
+    synchronized (this) {
+      buffered = mySendBufferBytes;
+    }
+    return myWriteQueue.getQueuedBytes() + buffered;
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    checkNotClosed();
+    if (myReceived.isEmpty()) {
+      return myFinReceived ? -1 : 0;
+    }
+    int count = 0;
+    while (dst.hasRemaining() && !myReceived.isEmpty()) {
+      ByteBuffer head = myReceived.peek();
+      int part = Math.min(head.remaining(), dst.remaining());
+      ByteBuffer slice = head.duplicate();
+      slice.limit(slice.position() + part);
+      dst.put(slice);
+      head.position(head.position() + part);
+      if (!head.hasRemaining()) {
+        myReceived.poll();
+      }
+      count += part;
+    }
+    myReceivedBytes -= count;
+    if (myAdvertisedWindow < RECEIVE_WINDOW / 4 && getAdvertisedWindow() >= RECEIVE_WINDOW / 4) {
+      // the peer may wait for the window, it must know that the window is open again
+      myAckNeeded = true;
+      mySocket.markDirty(this);
+    }
+    return count;
+  }
+
+  @Override
+  public synchronized int write(ByteBuffer src) throws IOException {
+    checkNotClosed();
+    int count = Math.min(src.remaining(), SEND_BUFFER_SIZE - mySendBufferBytes);
+    if (count <= 0) return 0;
+    byte[] bytes = new byte[count];
+    src.get(bytes);
+    mySendBuffer.add(ByteBuffer.wrap(bytes));
+    mySendBufferBytes += count;
+    mySocket.markDirty(this);
+    return count;
+  }
+
+  @Override
+  public synchronized boolean isOpen() {
+    return !myCloseRequested && myState != State.CLOSED;
+  }
+
+  /**
+   * Closes the connection. Buffered data and FIN packet are sent by the socket thread
+   * if the connection is established, so the peer gets all written bytes
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (myCloseRequested) return;
+      myCloseRequested = true;
+      if (myState == State.SYN_SENT) {
+        myState = State.CLOSED;
+      }
+      failWriteTasks(new ConnectionClosedException());
+    }
+    mySocket.markDirty(this);
+  }
+
+  @Override
+  public String toString() {
+    return "UtpConnection{" + myRemoteAddress + ", id=" + myReceiveId + '}';
+  }
+
+  boolean markDirty() {
+    return myDirty.compareAndSet(false, true);
+  }
+
+  void clearDirty() {
+    myDirty.set(false);
+  }
+
+  synchronized boolean isFinished() {
+    return myState == State.CLOSED;
+  }
+
+  /**
+   * Handles packet received from the peer
+   */
+  void onPacket(UtpPacket packet, long now, long nowMicros) {
+    synchronized (this) {
+      handlePacket(packet, now, nowMicros);
+    }
+    runCallbacks();
+  }
+
+  /**
+   * Moves data of queued write tasks to the send buffer and sends packets which are allowed by windows
+   */
+  void flush(long now, long nowMicros) {
+    synchronized (this) {
+      if (myState != State.CLOSED) {
+        try {
+          if (!myCloseRequested) {
+            fillSendBuffer(now);
+          }
+          sendPackets(now, nowMicros);
+        } catch (IOException e) {
+          LoggerUtils.warnAndDebugDetails(logger, "unable to send packets of {}", this, e);
+          fail(e);
+        }
+      }
+    }
+    runCallbacks();
+  }
+
+  /**
+   * Checks retransmission, connection and idle timeouts
+   *
+   * @param idleTimeout max time without packets from the peer in milliseconds
+   */
+  void checkTimeouts(long now, long idleTimeout) {
+    synchronized (this) {
+      if (myState == State.SYN_SENT && now - myCreationTime >= myConnectTimeout) {
+        fail(new SocketTimeoutException("uTP connection to " + myRemoteAddress + " is timed out"));
+      } else if (myState != State.CLOSED && myRetransmitTime > 0 && now >= myRetransmitTime) {
+        onRetransmitTimeout(now);
+      } else if (myState == State.CONNECTED && idleTimeout > 0 && now - myLastReceiveTime >= idleTimeout) {
+        fail(new SocketTimeoutException("No packets from " + myRemoteAddress + " for " + idleTimeout + " ms"));
+      }
+    }
+    runCallbacks();
+  }
+
+  /**
+   * Notifies the listener if new data or end of stream can be read and the read bucket allows reading
+   *
+   * @return true if the listener has read some data, but more data is available
+   */
+  boolean notifyIfReadable(long now) {
+    int availableBefore;
+    boolean eofBefore;
+    synchronized (this) {
+      if (!myReadable || !isOpen()) return false;
+      if (myReadBucket.getDelayMillis(now) > 0) return false;
+      availableBefore = myReceivedBytes;
+      eofBefore = isEndOfStream();
+    }
+    try {
+      myListener.onNewDataAvailable(this);
+    } catch (IOException e) {
+      LoggerUtils.warnAndDebugDetails(logger, "unable to process data of {}", this, e);
+      close();
+      return false;
+    }
+    synchronized (this) {
+      myReadable = (myReceivedBytes > 0 && myReceivedBytes < availableBefore) || (isEndOfStream() && !eofBefore);
+      return myReadable;
+    }
+  }
+
+  /**
+   * @return true if data or end of stream wait for the listener
+   */
+  synchronized boolean isReadable() {
+    return myReadable && isOpen();
+  }
+
+  /**
+   * Closes the connection by the socket without notification of the listener
+   */
+  void terminate() {
+    synchronized (this) {
+      myState = State.CLOSED;
+      myCloseRequested = true;
+      failWriteTasks(new ConnectionClosedException());
+    }
+    runCallbacks();
+  }
+
+  private void handlePacket(UtpPacket packet, long now, long nowMicros) {
+    if (myState == State.CLOSED) return;
+    myLastReceiveTime = now;
+    if (packet.getType() == UtpPacket.ST_RESET) {
+      fail(new ConnectionClosedException(new IOException("Connection is reset by " + myRemoteAddress)));
+      return;
+    }
+    if (packet.getType() == UtpPacket.ST_SYN) {
+      // our answer to SYN is lost
+      myAckNeeded = true;
+      return;
+    }
+    myPeerWindow = packet.getWindowSize();
+    myReplyMicros = nowMicros - packet.getTimestamp();
+    if (packet.getTimestampDifference() != 0) {
+      myCongestionControl.onDelaySample(packet.getTimestampDifference(), now);
+    }
+    if (myState == State.SYN_SENT) {
+      if (packet.getType() != UtpPacket.ST_STATE) return;
+      myState = State.CONNECTED;
+      myAckNr = (packet.getSeqNr() - 1) & 0xFFFF;
+      myCallbacks.add(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            myListener.onConnectionEstablished(UtpConnection.this);
+          } catch (IOException e) {
+            LoggerUtils.warnAndDebugDetails(logger, "unable to handle established connection {}", UtpConnection.this, e);
+            close();
+          }
+        }
+      });
+    }
+    processAck(packet, now);
+    if (packet.getType() == UtpPacket.ST_DATA || packet.getType() == UtpPacket.ST_FIN) {
+      processData(packet);
+    }
+    if (myCloseRequested && myFinAcked) {
+      myState = State.CLOSED;
+    }
+  }
+
+  private void processAck(UtpPacket packet, long now) {
+    int ackNr = packet.getAckNr();
+    if (UtpPacket.isBefore((mySeqNr - 1) & 0xFFFF, ackNr)) {
+      // acknowledges packets which weren't sent
+      return;
+    }
+    long bytesInFlightBefore = myBytesInFlight;
+    long ackedBytes = 0;
+    boolean progress = false;
+    while (!myInFlight.isEmpty() && !UtpPacket.isBefore(ackNr, myInFlight.peek().mySeqNr)) {
+      OutgoingPacket acked = myInFlight.poll();
+      if (!acked.myAcked) {
+        ackedBytes += onAcked(acked, now);
+      }
+      progress = true;
+    }
+    int selectivelyAcked = 0;
+    if (packet.getSelectiveAck() != null) {
+      for (OutgoingPacket inFlight : myInFlight) {
+        if (!packet.isSelectivelyAcked(inFlight.mySeqNr)) continue;
+        selectivelyAcked++;
+        if (!inFlight.myAcked) {
+          ackedBytes += onAcked(inFlight, now);
+          progress = true;
+        }
+      }
+    }
+    if (progress) {
+      myTimeouts = 0;
+      myRetransmitTime = myInFlight.isEmpty() ? 0 : now + myCongestionControl.getTimeoutMillis();
+    }
+    if (ackNr != myLastAckReceived) {
+      myLastAckReceived = ackNr;
+      myDuplicateAcks = 0;
+    } else if (packet.getType() == UtpPacket.ST_STATE && !myInFlight.isEmpty()) {
+      myDuplicateAcks++;
+    }
+    if (!myInFlight.isEmpty() && (myDuplicateAcks >= DUPLICATE_ACKS_BEFORE_RESEND || selectivelyAcked >= DUPLICATE_ACKS_BEFORE_RESEND)) {
+      onLoss(myInFlight.peek());
+    }
+    if (myInRecovery && !UtpPacket.isBefore(ackNr, myRecoverySeqNr)) {
+      myInRecovery = false;
+    }
+    if (myFinSent && !UtpPacket.isBefore(ackNr, myFinSeqNr)) {
+      myFinAcked = true;
+    }
+    myCongestionControl.onAck(ackedBytes, bytesInFlightBefore);
+  }
+
+  private int onAcked(OutgoingPacket packet, long now) {
+    packet.myAcked = true;
+    packet.myNeedsResend = false;
+    myBytesInFlight -= packet.getPayloadSize();
+    if (packet.myTransmissions == 1) {
+      myCongestionControl.onRttSample(now - packet.mySentTime);
+    }
+    return packet.getPayloadSize();
+  }
+
+  private void onLoss(OutgoingPacket lost) {
+    if (lost.myAcked || lost.myNeedsResend || lost.myTransmissions > 1) return;
+    lost.myNeedsResend = true;
+    if (!myInRecovery) {
+      myCongestionControl.onLoss();
+      myInRecovery = true;
+      myRecoverySeqNr = (mySeqNr - 1) & 0xFFFF;
+    }
+  }
+
+  private void onRetransmitTimeout(long now) {
+    if (++myTimeouts > MAX_TIMEOUTS) {
+      fail(new SocketTimeoutException("Packets to " + myRemoteAddress + " are not acknowledged"));
+      return;
+    }
+    myCongestionControl.onTimeout();
+    myInRecovery = false;
+    for (OutgoingPacket packet : myInFlight) {
+      if (!packet.myAcked) {
+        packet.myNeedsResend = true;
+        break;
+      }
+    }
+    myRetransmitTime = now + myCongestionControl.getTimeoutMillis();
+    mySocket.markDirty(this);
+  }
+
+  private void processData(UtpPacket packet) {
+    myAckNeeded = true;
+    int seqNr = packet.getSeqNr();
+    if (myFinReceived) return;
+    int expected = (myAckNr + 1) & 0xFFFF;
+    if (seqNr == expected) {
+      acceptInOrder(packet);
+      UtpPacket next;
+      while ((next = myOutOfOrder.remove((myAckNr + 1) & 0xFFFF)) != null) {
+        myOutOfOrderBytes -= next.getPayload().length;
+        acceptInOrder(next);
+        if (myFinReceived) break;
+      }
+    } else if (UtpPacket.isBefore(expected, seqNr) && ((seqNr - expected) & 0xFFFF) < MAX_OUT_OF_ORDER_PACKETS) {
+      if (!myOutOfOrder.containsKey(seqNr)) {
+        myOutOfOrder.put(seqNr, packet);
+        myOutOfOrderBytes += packet.getPayload().length;
+      }
+    }
+  }
+
+  private void acceptInOrder(UtpPacket packet) {
+    myAckNr = packet.getSeqNr();
+    if (packet.getType() == UtpPacket.ST_FIN) {
+      myFinReceived = true;
+      myOutOfOrder.clear();
+      myOutOfOrderBytes = 0;
+      myReadable = true;
+      return;
+    }
+    byte[] payload = packet.getPayload();
+    if (payload.length == 0) return;
+    myReceived.add(ByteBuffer.wrap(payload));
+    myReceivedBytes += payload.length;
+    myReadable = true;
+  }
+
+  private void fillSendBuffer(long now) throws IOException {
+    WriteTask task;
+    while ((task = myWriteQueue.peek()) != null &&
+            mySendBufferBytes < SEND_BUFFER_SIZE &&
+            myWriteBucket.getDelayMillis(now) == 0) {
+      int bufferedBefore = mySendBufferBytes;
+      try {
+        ByteBuffer buffer = task.getByteBuffer();
+        if (buffer.hasRemaining()) {
+          write(buffer);
+        }
+        if (!buffer.hasRemaining()) {
+          task.transferRegion(this);
+        }
+      } catch (IOException e) {
+        myWriteQueue.poll();
+        final WriteTask failed = task;
+        final IOException error = e;
+        myCallbacks.add(new Runnable() {
+          @Override
+          public void run() {
+            failed.getListener().onWriteFailed("unable to write data to " + UtpConnection.this, error);
+          }
+        });
+        continue;
+      }
+      myWriteBucket.consume(mySendBufferBytes - bufferedBefore, now);
+      if (!task.isWritten()) break;
+      myWriteQueue.poll();
+      final WriteTask written = task;
+      myCallbacks.add(new Runnable() {
+        @Override
+        public void run() {
+          written.getListener().onWriteDone();
+        }
+      });
+    }
+  }
+
+  private void sendPackets(long now, long nowMicros) throws IOException {
+    for (OutgoingPacket packet : myInFlight) {
+      if (packet.myNeedsResend) {
+        transmit(packet, now, nowMicros);
+      }
+    }
+    if (myState == State.CONNECTED) {
+      while (mySendBufferBytes > 0) {
+        int size = Math.min(mySendBufferBytes, MAX_PAYLOAD_SIZE);
+        long window = Math.min(myCongestionControl.getWindow(), myPeerWindow);
+        // one packet is sent even if windows are too small, it probes the window of the peer
+        if (!myInFlight.isEmpty() && myBytesInFlight + size > window) break;
+        OutgoingPacket packet = new OutgoingPacket(UtpPacket.ST_DATA, nextSeqNr(), takeFromSendBuffer(size));
+        addToFlight(packet);
+        transmit(packet, now, nowMicros);
+      }
+      if (myCloseRequested && !myFinSent && mySendBufferBytes == 0) {
+        OutgoingPacket fin = new OutgoingPacket(UtpPacket.ST_FIN, nextSeqNr(), null);
+        myFinSent = true;
+        myFinSeqNr = fin.mySeqNr;
+        addToFlight(fin);
+        transmit(fin, now, nowMicros);
+      }
+    } else if (myState == State.SYN_SENT && myInFlight.peek().myTransmissions == 0) {
+      transmit(myInFlight.peek(), now, nowMicros);
+    }
+    if (myAckNeeded) {
+      myAdvertisedWindow = getAdvertisedWindow();
+      mySocket.send(myRemoteAddress, new UtpPacket(UtpPacket.ST_STATE, mySendId, nowMicros, myReplyMicros,
+              myAdvertisedWindow, mySeqNr, myAckNr, getSelectiveAck(), null));
+      myAckNeeded = false;
+    }
+  }
+
+  private void transmit(OutgoingPacket packet, long now, long nowMicros) throws IOException {
+    int connectionId = packet.myType == UtpPacket.ST_SYN ? myReceiveId : mySendId;
+    myAdvertisedWindow = getAdvertisedWindow();
+    mySocket.send(myRemoteAddress, new UtpPacket(packet.myType, connectionId, nowMicros, myReplyMicros,
+            myAdvertisedWindow, packet.mySeqNr, myAckNr, null, packet.myPayload));
+    packet.myTransmissions++;
+    packet.mySentTime = now;
+    packet.myNeedsResend = false;
+    // every packet carries the ack
+    myAckNeeded = false;
+    if (myRetransmitTime == 0) {
+      myRetransmitTime = now + myCongestionControl.getTimeoutMillis();
+    }
+  }
+
+  private byte[] takeFromSendBuffer(int size) {
+    byte[] result = new byte[size];
+    int offset = 0;
+    while (offset < size) {
+      ByteBuffer head = mySendBuffer.peek();
+      int part = Math.min(head.remaining(), size - offset);
+      head.get(result, offset, part);
+      if (!head.hasRemaining()) {
+        mySendBuffer.poll();
+      }
+      offset += part;
+    }
+    mySendBufferBytes -= size;
+    return result;
+  }
+
+  private void addToFlight(OutgoingPacket packet) {
+    myInFlight.add(packet);
+    myBytesInFlight += packet.getPayloadSize();
+  }
+
+  private int nextSeqNr() {
+    int result = mySeqNr;
+    mySeqNr = (mySeqNr + 1) & 0xFFFF;
+    return result;
+  }
+
+  private long getAdvertisedWindow() {
+    return Math.max(0, RECEIVE_WINDOW - myReceivedBytes - myOutOfOrderBytes);
+  }
+
+  @Nullable
+  private byte[] getSelectiveAck() {
+    if (myOutOfOrder.isEmpty()) return null;
+    int maxBit = 0;
+    for (Integer seqNr : myOutOfOrder.keySet()) {
+      maxBit = Math.max(maxBit, (seqNr - myAckNr - 2) & 0xFFFF);
+    }
+    int size = Math.min(MAX_SELECTIVE_ACK_SIZE, (maxBit / 32 + 1) * 4);
+    byte[] mask = new byte[size];
+    for (Integer seqNr : myOutOfOrder.keySet()) {
+      int bit = (seqNr - myAckNr - 2) & 0xFFFF;
+      if (bit < size * 8) {
+        mask[bit >>> 3] |= 1 << (bit & 7);
+      }
+    }
+    return mask;
+  }
+
+  private boolean isEndOfStream() {
+    return myFinReceived && myReceived.isEmpty();
+  }
+
+  private void checkNotClosed() throws IOException {
+    if (myError != null) throw myError;
+    if (!isOpen()) throw new ClosedChannelException();
+  }
+
+  private void fail(final IOException error) {
+    if (myState == State.CLOSED) return;
+    boolean notify = !myCloseRequested;
+    myState = State.CLOSED;
+    myError = error;
+    failWriteTasks(error);
+    if (!notify) return;
+    myCallbacks.add(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          myListener.onError(UtpConnection.this, error);
+        } catch (IOException e) {
+          LoggerUtils.warnAndDebugDetails(logger, "unable to handle error of {}", UtpConnection.this, e);
+        }
+      }
+    });
+  }
+
+  private void failWriteTasks(final IOException error) {
+    WriteTask task;
+    while ((task = myWriteQueue.poll()) != null) {
+      final WriteTask failed = task;
+      myCallbacks.add(new Runnable() {
+        @Override
+        public void run() {
+          failed.getListener().onWriteFailed("connection " + UtpConnection.this + " is closed", error);
+        }
+      });
+    }
+  }
+
+  private void runCallbacks() {
+    List<Runnable> callbacks;
+    synchronized (this) {
+      if (myCallbacks.isEmpty()) return;
+      callbacks = myCallbacks;
+      myCallbacks = new ArrayList<Runnable>();
+    }
+    for (Runnable callback : callbacks) {
+      try {
+        callback.run();
+      } catch (Throwable e) {
+        LoggerUtils.warnAndDebugDetails(logger, "unhandled exception in callback of {}", this, e);
+      }
+    }
+  }
+
+  private static class OutgoingPacket {
+
+    private final int myType;
+    private final int mySeqNr;
+    @Nullable
+    private final byte[] myPayload;
+    private int myTransmissions = 0;
+    private long mySentTime;
+    private boolean myNeedsResend = false;
+    private boolean myAcked = false;
+
+    OutgoingPacket(int type, int seqNr, @Nullable byte[] payload) {
+      myType = type;
+      mySeqNr = seqNr;
+      myPayload = payload;
+    }
+
+    int getPayloadSize() {
+      return myPayload == null ? 0 : myPayload.length;
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package com.turn.ttorrent.network.utp;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * Packet of uTorrent transport protocol (BEP 29).
+ *
+ * <p>
+ * Every packet has 20 bytes header: type and version, type of the first extension, connection id,
+ * timestamp in microseconds, difference between timestamps of the last received packet,
+ * advertised receive window, sequence number and acknowledgement number. The only supported
+ * extension is selective ack, other extensions are skipped. Fields of 16 and 32 bits are
+ * unsigned and they are stored in int and long values.
+ * </p>
+ */
+public class UtpPacket {
+
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 20;
+
+  public static final int ST_DATA = 0;
+  public static final int ST_FIN = 1;
+  public static final int ST_STATE = 2;
+  public static final int ST_RESET = 3;
+  public static final int ST_SYN = 4;
+
+  static final int EXTENSION_NONE = 0;
+  static final int EXTENSION_SELECTIVE_ACK = 1;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final int myType;
+  private final int myConnectionId;
+  private final long myTimestamp;
+  private final long myTimestampDifference;
+  private final long myWindowSize;
+  private final int mySeqNr;
+  private final int myAckNr;
+  @Nullable
+  private final byte[] mySelectiveAck;
+  private final byte[] myPayload;
+
+  /**
+   * @param selectiveAck bitmask of received packets starting from ackNr + 2, every byte
+   *                     is filled from the least significant bit. Its length must be a multiple of 4
+   */
+  public UtpPacket(int type,
+                   int connectionId,
+                   long timestamp,
+                   long timestampDifference,
+                   long windowSize,
+                   int seqNr,
+                   int ackNr,
+                   @Nullable byte[] selectiveAck,
+                   @Nullable byte[] payload) {
+    if (selectiveAck != null && (selectiveAck.length == 0 || selectiveAck.length % 4 != 0)) {
+      throw new IllegalArgumentException("Invalid length of selective ack: " + selectiveAck.length);
+    }
+    myType = type;
+    myConnectionId = connectionId & 0xFFFF;
+    myTimestamp = timestamp & 0xFFFFFFFFL;
+    myTimestampDifference = timestampDifference & 0xFFFFFFFFL;
+    myWindowSize = Math.max(0, Math.min(windowSize, 0xFFFFFFFFL));
+    mySeqNr = seqNr & 0xFFFF;
+    myAckNr = ackNr & 0xFFFF;
+    mySelectiveAck = selectiveAck;
+    myPayload = payload == null ? EMPTY : payload;
+  }
+
+  /**
+   * Parses packet from the datagram between its position and limit. Position of the datagram is moved to its limit
+   *
+   * @throws ParseException if the datagram isn't a valid packet
+   */
+  public static UtpPacket parse(ByteBuffer datagram) throws ParseException {
+    if (datagram.remaining() < HEADER_SIZE) {
+      throw new ParseException("Datagram is shorter than uTP header", 0);
+    }
+    int typeAndVersion = datagram.get() & 0xFF;
+    int type = typeAndVersion >>> 4;
+    if ((typeAndVersion & 0x0F) != VERSION || type > ST_SYN) {
+      throw new ParseException("Unsupported type or version of packet: " + typeAndVersion, 0);
+    }
+    int extension = datagram.get() & 0xFF;
+    int connectionId = datagram.getShort() & 0xFFFF;
+    long timestamp = datagram.getInt() & 0xFFFFFFFFL;
+    long timestampDifference = datagram.getInt() & 0xFFFFFFFFL;
+    long windowSize = datagram.getInt() & 0xFFFFFFFFL;
+    int seqNr = datagram.getShort() & 0xFFFF;
+    int ackNr = datagram.getShort() & 0xFFFF;
+    byte[] selectiveAck = null;
+    while (extension != EXTENSION_NONE) {
+      if (datagram.remaining() < 2) {
+        throw new ParseException("Truncated extension header", datagram.position());
+      }
+      int nextExtension = datagram.get() & 0xFF;
+      int length = datagram.get() & 0xFF;
+      if (datagram.remaining() < length) {
+        throw new ParseException("Truncated extension", datagram.position());
+      }
+      if (extension == EXTENSION_SELECTIVE_ACK && length > 0 && length % 4 == 0) {
+        selectiveAck = new byte[length];
+        datagram.get(selectiveAck);
+      } else {
+        datagram.position(datagram.position() + length);
+      }
+      extension = nextExtension;
+    }
+    byte[] payload = EMPTY;
+    if (datagram.hasRemaining()) {
+      payload = new byte[datagram.remaining()];
+      datagram.get(payload);
+    }
+    return new UtpPacket(type, connectionId, timestamp, timestampDifference, windowSize, seqNr, ackNr, selectiveAck, payload);
+  }
+
+  /**
+   * Writes the packet to the buffer from its position
+   */
+  public void writeTo(ByteBuffer buffer) {
+    buffer.put((byte) ((myType << 4) | VERSION));
+    buffer.put((byte) (mySelectiveAck == null ? EXTENSION_NONE : EXTENSION_SELECTIVE_ACK));
+    buffer.putShort((short) myConnectionId);
+    buffer.putInt((int) myTimestamp);
+    buffer.putInt((int) myTimestampDifference);
+    buffer.putInt((int) myWindowSize);
+    buffer.putShort((short) mySeqNr);
+    buffer.putShort((short) myAckNr);
+    if (mySelectiveAck != null) {
+      buffer.put((byte) EXTENSION_NONE);
+      buffer.put((byte) mySelectiveAck.length);
+      buffer.put(mySelectiveAck);
+    }
+    buffer.put(myPayload);
+  }
+
+  /**
+   * @return size of the packet in bytes
+   */
+  public int getSize() {
+    return HEADER_SIZE + (mySelectiveAck == null ? 0 : 2 + mySelectiveAck.length) + myPayload.length;
+  }
+
+  public int getType() {
+    return myType;
+  }
+
+  public int getConnectionId() {
+    return myConnectionId;
+  }
+
+  public long getTimestamp() {
+    return myTimestamp;
+  }
+
+  public long getTimestampDifference() {
+    return myTimestampDifference;
+  }
+
+  public long getWindowSize() {
+    return myWindowSize;
+  }
+
+  public int getSeqNr() {
+    return mySeqNr;
+  }
+
+  public int getAckNr() {
+    return myAckNr;
+  }
+
+  @Nullable
+  public byte[] getSelectiveAck() {
+    return mySelectiveAck;
+  }
+
+  public byte[] getPayload() {
+    return myPayload;
+  }
+
+  /**
+   * @return true if the sequence number is acknowledged by selective ack of the packet
+   */
+  public boolean isSelectivelyAcked(int seqNr) {
+    if (mySelectiveAck == null) return false;
+    int bit = (seqNr - myAckNr - 2) & 0xFFFF;
+    if (bit >= mySelectiveAck.length * 8) return false;
+    return (mySelectiveAck[bit >>> 3] & (1 << (bit & 7))) != 0;
+  }
+
+  /**
+   * @return true if the first sequence number precedes the second one modulo 2^16
+   */
+  static boolean isBefore(int seqNr, int otherSeqNr) {
+    return (short) (seqNr - otherSeqNr) < 0;
+  }
+
+  @Override
+  public String toString() {
+    return "UtpPacket{" +
+            "type=" + myType +
+            ", connectionId=" + myConnectionId +
+            ", seqNr=" + mySeqNr +
+            ", ackNr=" + myAckNr +
+            ", window=" + myWindowSize +
+            ", payload=" + myPayload.length +
+            '}';
+  }
+}
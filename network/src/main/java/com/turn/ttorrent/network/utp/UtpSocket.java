@@ -0,0 +1,341 @@
+package com.turn.ttorrent.network.utp;
+
+import com.turn.ttorrent.common.LoggerUtils;
+import com.turn.ttorrent.common.TimeService;
+import com.turn.ttorrent.common.TorrentLoggerFactory;
+import com.turn.ttorrent.network.ChannelListenerFactory;
+import com.turn.ttorrent.network.ConnectionListener;
+import com.turn.ttorrent.network.NewConnectionAllower;
+import com.turn.ttorrent.network.TimeoutStorage;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Socket of uTorrent transport protocol (BEP 29) which multiplexes all uTP connections over one
+ * UDP channel.
+ *
+ * <p>
+ * The socket is served by its own thread: it receives datagrams, passes packets to connections
+ * by address of the peer and connection id, accepts incoming connections, sends packets of
+ * connections which were changed by other threads and checks timeouts of connections.
+ * Every connection sends one ack for a batch of received datagrams. Incoming connections get
+ * listeners from {@link ChannelListenerFactory} like accepted TCP connections.
+ * </p>
+ */
+public class UtpSocket implements Runnable {
+
+  private static final Logger logger = TorrentLoggerFactory.getLogger(UtpSocket.class);
+
+  // fits into a datagram without fragmentation on most paths
+  public static final int MAX_PACKET_SIZE = 1400;
+  static final long TIMER_INTERVAL_MILLIS = 50;
+  private static final int MAX_DATAGRAMS_PER_SELECT = 512;
+  private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+  private final DatagramChannel myChannel;
+  private final Selector mySelector;
+  private final ChannelListenerFactory myChannelListenerFactory;
+  private final NewConnectionAllower myIncomingConnectionAllower;
+  private final TimeoutStorage myTimeoutStorage;
+  private final TimeService myTimeService;
+  private final ConcurrentMap<ConnectionKey, UtpConnection> myConnections = new ConcurrentHashMap<ConnectionKey, UtpConnection>();
+  private final ConcurrentLinkedQueue<UtpConnection> myDirtyConnections = new ConcurrentLinkedQueue<UtpConnection>();
+  private final ByteBuffer myReceiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+  private final ByteBuffer mySendBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE + 64);
+  private final Random myRandom = new Random();
+  private final CountDownLatch myStopLatch = new CountDownLatch(1);
+  private volatile boolean myStopped = false;
+  private long myLastTimerRun = 0;
+
+  public UtpSocket(DatagramChannel channel,
+                   ChannelListenerFactory channelListenerFactory,
+                   NewConnectionAllower incomingConnectionAllower,
+                   TimeoutStorage timeoutStorage,
+                   TimeService timeService) throws IOException {
+    myChannel = channel;
+    myChannelListenerFactory = channelListenerFactory;
+    myIncomingConnectionAllower = incomingConnectionAllower;
+    myTimeoutStorage = timeoutStorage;
+    myTimeService = timeService;
+    mySelector = Selector.open();
+    myChannel.configureBlocking(false);
+    myChannel.register(mySelector, SelectionKey.OP_READ);
+  }
+
+  /**
+   * Opens UDP channel bound to the port
+   */
+  public static DatagramChannel openChannel(int port) throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    try {
+      channel.socket().bind(new InetSocketAddress(port));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  public int getLocalPort() {
+    return myChannel.socket().getLocalPort();
+  }
+
+  /**
+   * @return count of open and closing connections
+   */
+  public int getConnectionsCount() {
+    return myConnections.size();
+  }
+
+  /**
+   * Starts connecting to the peer. The listener is notified by the socket thread
+   * when the connection is established or when connecting is failed
+   *
+   * @param connectTimeout max time of waiting for answer of the peer in milliseconds
+   */
+  public UtpConnection connect(InetSocketAddress address, ConnectionListener listener, long connectTimeout) {
+    while (true) {
+      int receiveId = myRandom.nextInt(0x10000);
+      ConnectionKey key = new ConnectionKey(address, receiveId);
+      if (myConnections.containsKey(key) || myConnections.containsKey(new ConnectionKey(address, (receiveId + 1) & 0xFFFF))) {
+        continue;
+      }
+      UtpConnection connection = new UtpConnection(this, address, receiveId, listener, connectTimeout, myTimeService.now());
+      if (myConnections.putIfAbsent(key, connection) != null) continue;
+      markDirty(connection);
+      return connection;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!myStopped && !Thread.currentThread().isInterrupted()) {
+        boolean hasReadableConnections = processReadableConnections();
+        int selected = hasReadableConnections ? mySelector.selectNow() : mySelector.select(TIMER_INTERVAL_MILLIS);
+        if (selected > 0) {
+          mySelector.selectedKeys().clear();
+          receivePackets();
+        }
+        flushDirtyConnections();
+        long now = myTimeService.now();
+        if (now - myLastTimerRun >= TIMER_INTERVAL_MILLIS) {
+          myLastTimerRun = now;
+          checkTimeouts(now);
+        }
+      }
+    } catch (Throwable e) {
+      LoggerUtils.errorAndDebugDetails(logger, "uTP socket is stopped because of unhandled exception", e);
+    } finally {
+      closeChannels();
+      myStopLatch.countDown();
+    }
+  }
+
+  /**
+   * Stops the socket thread and closes all connections without notification of their listeners
+   *
+   * @return true if the socket thread is stopped in the timeout
+   */
+  public boolean stop(int timeout, TimeUnit timeUnit) throws InterruptedException {
+    myStopped = true;
+    mySelector.wakeup();
+    return myStopLatch.await(timeout, timeUnit);
+  }
+
+  void markDirty(UtpConnection connection) {
+    if (connection.markDirty()) {
+      myDirtyConnections.offer(connection);
+      mySelector.wakeup();
+    }
+  }
+
+  /**
+   * Sends the packet, it must be invoked only by the socket thread
+   */
+  void send(InetSocketAddress address, UtpPacket packet) throws IOException {
+    mySendBuffer.clear();
+    packet.writeTo(mySendBuffer);
+    mySendBuffer.flip();
+    if (myChannel.send(mySendBuffer, address) == 0) {
+      // send buffer of the system is full, the packet is lost like on the network
+      logger.trace("packet {} to {} is dropped", packet, address);
+    }
+  }
+
+  private void receivePackets() throws IOException {
+    long now = myTimeService.now();
+    long nowMicros = nowMicros();
+    Set<UtpConnection> updated = new LinkedHashSet<UtpConnection>();
+    for (int i = 0; i < MAX_DATAGRAMS_PER_SELECT; i++) {
+      myReceiveBuffer.clear();
+      SocketAddress address = myChannel.receive(myReceiveBuffer);
+      if (address == null) break;
+      myReceiveBuffer.flip();
+      UtpPacket packet;
+      try {
+        packet = UtpPacket.parse(myReceiveBuffer);
+      } catch (ParseException e) {
+        logger.trace("invalid datagram from {}: {}", address, e.getMessage());
+        continue;
+      }
+      UtpConnection connection = dispatch((InetSocketAddress) address, packet, now, nowMicros);
+      if (connection != null) {
+        updated.add(connection);
+      }
+    }
+    // packets of all received datagrams are acknowledged at once
+    for (UtpConnection connection : updated) {
+      connection.flush(now, nowMicros);
+    }
+  }
+
+  private UtpConnection dispatch(InetSocketAddress address, UtpPacket packet, long now, long nowMicros) {
+    if (packet.getType() == UtpPacket.ST_SYN) {
+      UtpConnection existing = myConnections.get(new ConnectionKey(address, (packet.getConnectionId() + 1) & 0xFFFF));
+      if (existing != null) {
+        existing.onPacket(packet, now, nowMicros);
+        return existing;
+      }
+      return accept(address, packet, now, nowMicros);
+    }
+    UtpConnection connection = myConnections.get(new ConnectionKey(address, packet.getConnectionId()));
+    if (connection == null) {
+      if (packet.getType() != UtpPacket.ST_RESET) {
+        sendReset(address, packet, nowMicros);
+      }
+      return null;
+    }
+    connection.onPacket(packet, now, nowMicros);
+    return connection;
+  }
+
+  private UtpConnection accept(InetSocketAddress address, UtpPacket syn, long now, long nowMicros) {
+    if (!myIncomingConnectionAllower.isNewConnectionAllowed()) {
+      logger.info("new connection is not allowed. uTP connection from {} is reset", address);
+      sendReset(address, syn, nowMicros);
+      return null;
+    }
+    ConnectionListener listener = myChannelListenerFactory.newChannelListener();
+    UtpConnection connection = new UtpConnection(this, address, syn, myRandom.nextInt(0x10000), listener, now, nowMicros);
+    myConnections.put(new ConnectionKey(address, connection.getReceiveId()), connection);
+    logger.trace("accepted uTP connection {}", connection);
+    try {
+      listener.onConnectionEstablished(connection);
+    } catch (IOException e) {
+      LoggerUtils.warnAndDebugDetails(logger, "unable to handle new connection {}", connection, e);
+      connection.close();
+    }
+    return connection;
+  }
+
+  private void sendReset(InetSocketAddress address, UtpPacket packet, long nowMicros) {
+    try {
+      send(address, new UtpPacket(UtpPacket.ST_RESET, packet.getConnectionId(), nowMicros, 0, 0,
+              myRandom.nextInt(0x10000), packet.getSeqNr(), null, null));
+    } catch (IOException e) {
+      LoggerUtils.warnAndDebugDetails(logger, "unable to send reset to {}", address, e);
+    }
+  }
+
+  private boolean processReadableConnections() {
+    long now = myTimeService.now();
+    boolean hasMoreData = false;
+    for (UtpConnection connection : myConnections.values()) {
+      if (connection.isReadable()) {
+        hasMoreData |= connection.notifyIfReadable(now);
+      }
+    }
+    return hasMoreData;
+  }
+
+  private void flushDirtyConnections() {
+    long now = myTimeService.now();
+    long nowMicros = nowMicros();
+    UtpConnection connection;
+    while ((connection = myDirtyConnections.poll()) != null) {
+      connection.clearDirty();
+      connection.flush(now, nowMicros);
+    }
+  }
+
+  private void checkTimeouts(long now) {
+    long idleTimeout = myTimeoutStorage.getTimeoutMillis();
+    long nowMicros = nowMicros();
+    Iterator<UtpConnection> iterator = myConnections.values().iterator();
+    while (iterator.hasNext()) {
+      UtpConnection connection = iterator.next();
+      connection.checkTimeouts(now, idleTimeout);
+      connection.flush(now, nowMicros);
+      if (connection.isFinished()) {
+        iterator.remove();
+        logger.trace("uTP connection {} is removed", connection);
+      }
+    }
+  }
+
+  private void closeChannels() {
+    List<UtpConnection> connections = new ArrayList<UtpConnection>(myConnections.values());
+    myConnections.clear();
+    for (UtpConnection connection : connections) {
+      connection.terminate();
+    }
+    try {
+      myChannel.close();
+    } catch (IOException e) {
+      LoggerUtils.warnAndDebugDetails(logger, "unable to close uTP channel", e);
+    }
+    try {
+      mySelector.close();
+    } catch (IOException e) {
+      LoggerUtils.warnAndDebugDetails(logger, "unable to close selector of uTP channel", e);
+    }
+  }
+
+  private static long nowMicros() {
+    return System.nanoTime() / 1000;
+  }
+
+  private static class ConnectionKey {
+
+    private final InetSocketAddress myAddress;
+    private final int myConnectionId;
+
+    ConnectionKey(InetSocketAddress address, int connectionId) {
+      myAddress = address;
+      myConnectionId = connectionId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ConnectionKey)) return false;
+      ConnectionKey that = (ConnectionKey) o;
+      return myConnectionId == that.myConnectionId && myAddress.equals(that.myAddress);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myAddress.hashCode() + myConnectionId;
+    }
+  }
+}
@@ -11,8 +11,10 @@ import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
@@ -83,7 +85,7 @@ public class ConnectionManagerTest {
 
     this.connectionListener = new ConnectionListener() {
       @Override
-      public void onNewDataAvailable(SocketChannel socketChannel) throws IOException {
+      public void onNewDataAvailable(ByteChannel socketChannel) throws IOException {
         readCount.incrementAndGet();
         lastReadBytesCount.set(socketChannel.read(byteBuffer));
         if (lastReadBytesCount.get() == -1) {
@@ -93,13 +95,13 @@ public class ConnectionManagerTest {
       }
 
       @Override
-      public void onConnectionEstablished(SocketChannel socketChannel) throws IOException {
+      public void onConnectionEstablished(ByteChannel socketChannel) throws IOException {
         acceptCount.incrementAndGet();
         semaphore.release();
       }
 
       @Override
-      public void onError(SocketChannel socketChannel, Throwable ex) {
+      public void onError(ByteChannel socketChannel, Throwable ex) {
 
       }
     };
@@ -154,18 +156,18 @@ public class ConnectionManagerTest {
     assertEquals(connectCount.get(), 0);
     myConnectionManager.offerConnect(new ConnectTask("127.0.0.1", otherPeerPort, new ConnectionListener() {
       @Override
-      public void onNewDataAvailable(SocketChannel socketChannel) throws IOException {
+      public void onNewDataAvailable(ByteChannel socketChannel) throws IOException {
 
       }
 
       @Override
-      public void onConnectionEstablished(SocketChannel socketChannel) throws IOException {
+      public void onConnectionEstablished(ByteChannel socketChannel) throws IOException {
         connectCount.incrementAndGet();
         semaphore.release();
       }
 
       @Override
-      public void onError(SocketChannel socketChannel, Throwable ex) {
+      public void onError(ByteChannel socketChannel, Throwable ex) {
 
       }
     }, 0, 100), 1, TimeUnit.SECONDS);
@@ -174,6 +176,78 @@ public class ConnectionManagerTest {
     assertEquals(connectCount.get(), 1);
   }
 
+  @Test
+  public void canServeConnectionsInFewWorkers() throws Exception {
+    NewConnectionAllower newConnectionAllower = mock(NewConnectionAllower.class);
+    when(newConnectionAllower.isNewConnectionAllowed()).thenReturn(true);
+    myConnectionManager = new ConnectionManager(
+            myContext,
+            new MockTimeService(),
+            newConnectionAllower,
+            newConnectionAllower,
+            new SelectorFactory() {
+              @Override
+              public Selector newSelector() throws IOException {
+                return Selector.open();
+              }
+            },
+            new AtomicInteger(),
+            new AtomicInteger(),
+            3);
+
+    final Semaphore semaphore = new Semaphore(0);
+    final Map<ByteChannel, String> threadsOfChannels = new ConcurrentHashMap<ByteChannel, String>();
+    this.connectionListener = new ConnectionListener() {
+      @Override
+      public void onNewDataAvailable(ByteChannel socketChannel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        if (socketChannel.read(buffer) == -1) {
+          socketChannel.close();
+          return;
+        }
+        buffer.flip();
+        threadsOfChannels.put(socketChannel, Thread.currentThread().getName() + "@" + Thread.currentThread().getId());
+        // echo received data back through the connection manager
+        myConnectionManager.offerWrite(new WriteTask(socketChannel, buffer, new WriteListener() {
+          @Override
+          public void onWriteFailed(String message, Throwable e) {
+          }
+
+          @Override
+          public void onWriteDone() {
+            semaphore.release();
+          }
+        }), 1, TimeUnit.SECONDS);
+      }
+
+      @Override
+      public void onConnectionEstablished(ByteChannel socketChannel) throws IOException {
+      }
+
+      @Override
+      public void onError(ByteChannel socketChannel, Throwable ex) {
+      }
+    };
+    when(myContext.newChannelListener()).thenReturn(connectionListener);
+
+    myConnectionManager.initAndRunWorker(new FirstAvailableChannel(6881, 6889));
+    assertEquals(myConnectionManager.getWorkersCount(), 3);
+
+    List<Socket> sockets = new ArrayList<Socket>();
+    for (int i = 0; i < 6; i++) {
+      Socket socket = new Socket("127.0.0.1", myConnectionManager.getBindPort());
+      sockets.add(socket);
+      socket.getOutputStream().write(new byte[]{(byte) i});
+      tryAcquireOrFail(semaphore);
+      assertEquals(socket.getInputStream().read(), i);
+    }
+    assertEquals(threadsOfChannels.size(), 6);
+    assertEquals(new HashSet<String>(threadsOfChannels.values()).size(), 3);
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+  }
+
   @AfterMethod
   public void tearDown() throws Exception {
     this.myConnectionManager.close();
@@ -0,0 +1,124 @@
+package com.turn.ttorrent.network;
+
+import com.turn.ttorrent.MockTimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+@Test
+public class TimerWheelTest {
+
+  private MockTimeService myTimeService;
+  private TimerWheel myWheel;
+  private List<String> myFired;
+
+  @BeforeMethod
+  public void setUp() {
+    myTimeService = new MockTimeService();
+    myTimeService.setTime(1000);
+    myWheel = new TimerWheel(myTimeService, 10, 8);
+    myFired = new ArrayList<String>();
+  }
+
+  public void testTimeoutsExpireInOrderOfDeadlines() {
+    myWheel.schedule(task("second"), 50);
+    myWheel.schedule(task("first"), 15);
+    myWheel.schedule(task("third"), 75);
+
+    advanceTo(1019);
+    assertTrue(myFired.isEmpty());
+    advanceTo(1020);
+    assertEquals(myFired, Arrays.asList("first"));
+    advanceTo(1060);
+    assertEquals(myFired, Arrays.asList("first", "second"));
+    advanceTo(1080);
+    assertEquals(myFired, Arrays.asList("first", "second", "third"));
+    assertEquals(myWheel.size(), 0);
+  }
+
+  public void testTimeoutLongerThanRotationWaitsForItsRound() {
+    // wheel rotation is 80 ms
+    myWheel.schedule(task("long"), 200);
+
+    for (long time = 1010; time < 1200; time += 10) {
+      advanceTo(time);
+    }
+    assertTrue(myFired.isEmpty());
+    advanceTo(1200);
+    assertEquals(myFired, Arrays.asList("long"));
+  }
+
+  public void testAdvanceAfterLongPause() {
+    myWheel.schedule(task("first"), 30);
+    myWheel.schedule(task("second"), 500);
+    myWheel.schedule(task("third"), 5000);
+
+    advanceTo(2000);
+    assertEquals(myFired, Arrays.asList("first", "second"));
+    assertEquals(myWheel.size(), 1);
+  }
+
+  public void testCancelledTimeoutIsNotRun() {
+    TimerWheel.Timeout cancelled = myWheel.schedule(task("cancelled"), 20);
+    myWheel.schedule(task("kept"), 20);
+
+    assertTrue(cancelled.cancel());
+    assertFalse(cancelled.cancel());
+    advanceTo(1100);
+    assertEquals(myFired, Arrays.asList("kept"));
+  }
+
+  public void testTaskCanScheduleNewTimeout() {
+    myWheel.schedule(new Runnable() {
+      @Override
+      public void run() {
+        myFired.add("first");
+        myWheel.schedule(task("second"), 10);
+      }
+    }, 10);
+
+    advanceTo(1010);
+    assertEquals(myFired, Arrays.asList("first"));
+    advanceTo(1020);
+    assertEquals(myFired, Arrays.asList("first", "second"));
+  }
+
+  public void testWakeupIsDelayedUntilEarliestTimeout() {
+    assertEquals(myWheel.getMillisToNextTimeout(), -1);
+    TimerWheel.Timeout first = myWheel.schedule(task("first"), 35);
+    myWheel.schedule(task("second"), 200);
+
+    assertEquals(myWheel.getMillisToNextTimeout(), 40);
+    advanceTo(1015);
+    assertEquals(myWheel.getMillisToNextTimeout(), 25);
+
+    // the second timeout is in a later rotation of the wheel
+    assertTrue(first.cancel());
+    assertEquals(myWheel.getMillisToNextTimeout(), 185);
+    myWheel.schedule(task("third"), 60);
+    assertEquals(myWheel.getMillisToNextTimeout(), 65);
+
+    advanceTo(1080);
+    assertEquals(myFired, Arrays.asList("third"));
+    assertEquals(myWheel.getMillisToNextTimeout(), 120);
+  }
+
+  private void advanceTo(long time) {
+    myTimeService.setTime(time);
+    myWheel.advance();
+  }
+
+  private Runnable task(final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        myFired.add(name);
+      }
+    };
+  }
+}
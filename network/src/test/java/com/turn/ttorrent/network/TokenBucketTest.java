@@ -0,0 +1,54 @@
+package com.turn.ttorrent.network;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class TokenBucketTest {
+
+  public void testUnlimitedBucketNeverDelays() {
+    TokenBucket bucket = new TokenBucket();
+    bucket.consume(100 * 1024 * 1024, 0);
+    assertEquals(bucket.getDelayMillis(0), 0);
+  }
+
+  public void testTransferIsDelayedUntilDebtIsRepaid() {
+    TokenBucket bucket = new TokenBucket();
+    bucket.setRate(1000);
+    assertEquals(bucket.getDelayMillis(0), 0);
+
+    bucket.consume(3000, 0);
+    long delay = bucket.getDelayMillis(0);
+    assertTrue(delay > 1900 && delay <= 2001, "delay " + delay);
+
+    assertTrue(bucket.getDelayMillis(1000) > 0);
+    assertEquals(bucket.getDelayMillis(2001), 0);
+  }
+
+  public void testTokensAreAccumulatedForOneSecond() {
+    TokenBucket bucket = new TokenBucket();
+    bucket.setRate(1000);
+    bucket.consume(1000, 0);
+    assertTrue(bucket.getDelayMillis(0) > 0);
+
+    // long pause doesn't allow burst larger than one second of transfer
+    assertEquals(bucket.getDelayMillis(60000), 0);
+    bucket.consume(1000, 60000);
+    assertTrue(bucket.getDelayMillis(60000) > 0);
+  }
+
+  public void testParentLimitsChildren() {
+    TokenBucket parent = new TokenBucket();
+    parent.setRate(1000);
+    TokenBucket first = new TokenBucket(parent);
+    TokenBucket second = new TokenBucket(parent);
+    second.setRate(1000000);
+
+    first.consume(2000, 0);
+    assertTrue(first.getDelayMillis(0) > 0);
+    assertTrue(second.getDelayMillis(0) > 0, "parent bucket is exhausted by sibling");
+    assertEquals(second.getDelayMillis(1001), 0);
+  }
+}
@@ -0,0 +1,40 @@
+package com.turn.ttorrent.network;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.*;
+
+@Test
+public class WriteQueueTest {
+
+  public void testQueuedBytesAreTracked() {
+    WriteQueue queue = new WriteQueue();
+    ByteChannel channel = mock(ByteChannel.class);
+    WriteListener listener = mock(WriteListener.class);
+
+    queue.offer(new WriteTask(channel, ByteBuffer.allocate(10), listener));
+    queue.offer(new WriteTask(channel, ByteBuffer.allocate(20), listener));
+    assertEquals(queue.size(), 2);
+    assertEquals(queue.getQueuedBytes(), 30);
+
+    queue.remove();
+    assertEquals(queue.size(), 1);
+    assertEquals(queue.getQueuedBytes(), 20);
+
+    queue.clear();
+    assertTrue(queue.isEmpty());
+    assertEquals(queue.getQueuedBytes(), 0);
+  }
+
+  public void testChannelIsScheduledOnce() {
+    WriteQueue queue = new WriteQueue();
+    assertTrue(queue.markScheduled());
+    assertFalse(queue.markScheduled());
+    queue.clearScheduled();
+    assertTrue(queue.markScheduled());
+  }
+}
@@ -1,7 +1,13 @@
 package com.turn.ttorrent.network.keyProcessors;
 
+import com.turn.ttorrent.common.TimeService;
+import com.turn.ttorrent.network.ConnectionListener;
+import com.turn.ttorrent.network.FileRegion;
+import com.turn.ttorrent.network.ReadWriteAttachment;
+import com.turn.ttorrent.network.ThrottledKeys;
 import com.turn.ttorrent.network.WriteAttachment;
 import com.turn.ttorrent.network.WriteListener;
+import com.turn.ttorrent.network.WriteQueue;
 import com.turn.ttorrent.network.WriteTask;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -12,9 +18,11 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.BlockingQueue;
+import java.nio.channels.WritableByteChannel;
 
 import static org.mockito.Mockito.*;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 @Test
 public class WritableKeyProcessorTest {
@@ -23,7 +31,7 @@ public class WritableKeyProcessorTest {
   private SocketChannel myChannel;
   private WritableKeyProcessor myWritableKeyProcessor;
   private WriteAttachment myWriteAttachment;
-  private BlockingQueue<WriteTask> myQueue;
+  private WriteQueue myQueue;
 
 
   @SuppressWarnings("unchecked")
@@ -35,7 +43,7 @@ public class WritableKeyProcessorTest {
     when(myKey.channel()).thenReturn(myChannel);
     when(myKey.interestOps()).thenReturn(SelectionKey.OP_WRITE);
     myWriteAttachment = mock(WriteAttachment.class);
-    myQueue = mock(BlockingQueue.class);
+    myQueue = mock(WriteQueue.class);
   }
 
   public void testThatOnWriteDoneInvoked() throws Exception {
@@ -99,4 +107,166 @@ public class WritableKeyProcessorTest {
 
     verify(listener, never()).onWriteDone();
   }
+
+  public void testThatFileRegionIsTransferredAfterBuffer() throws Exception {
+    final ByteBuffer header = ByteBuffer.allocate(5);
+
+    when(myChannel.write(eq(header))).then(new Answer<Integer>() {
+      @Override
+      public Integer answer(InvocationOnMock invocationOnMock) throws Throwable {
+        header.position(header.capacity());
+        return header.capacity();
+      }
+    });
+
+    FileRegion region = mock(FileRegion.class);
+    when(region.size()).thenReturn(10L);
+    when(region.transferTo(any(WritableByteChannel.class), eq(0L), eq(10L))).thenReturn(4L);
+    when(region.transferTo(any(WritableByteChannel.class), eq(4L), eq(6L))).thenReturn(6L);
+
+    WriteListener listener = mock(WriteListener.class);
+
+    when(myQueue.peek()).thenReturn(new WriteTask(myChannel, header, region, listener));
+    when(myWriteAttachment.getWriteTasks()).thenReturn(myQueue);
+
+    myKey.attach(myWriteAttachment);
+
+    myWritableKeyProcessor.process(myKey);
+
+    verify(listener, never()).onWriteDone();
+
+    myWritableKeyProcessor.process(myKey);
+
+    verify(listener).onWriteDone();
+    verify(myQueue).remove();
+  }
+
+  public void testThatQueuedTasksAreWrittenByOneGatheringWrite() throws Exception {
+    WriteQueue queue = new WriteQueue();
+    WriteListener first = mock(WriteListener.class);
+    WriteListener second = mock(WriteListener.class);
+    WriteListener third = mock(WriteListener.class);
+    queue.add(new WriteTask(myChannel, ByteBuffer.allocate(5), first));
+    queue.add(new WriteTask(myChannel, ByteBuffer.allocate(9), second));
+    queue.add(new WriteTask(myChannel, ByteBuffer.allocate(17), third));
+    when(myChannel.write(any(ByteBuffer[].class), anyInt(), anyInt())).then(writeBytes(Long.MAX_VALUE));
+    when(myWriteAttachment.getWriteTasks()).thenReturn(queue);
+    myKey.attach(myWriteAttachment);
+
+    myWritableKeyProcessor.process(myKey);
+
+    verify(myChannel).write(any(ByteBuffer[].class), anyInt(), anyInt());
+    verify(myChannel, never()).write(any(ByteBuffer.class));
+    verify(first).onWriteDone();
+    verify(second).onWriteDone();
+    verify(third).onWriteDone();
+    verify(myKey).interestOps(SelectionKey.OP_READ);
+  }
+
+  public void testThatPartiallyWrittenTaskIsKeptInQueue() throws Exception {
+    WriteQueue queue = new WriteQueue();
+    WriteListener first = mock(WriteListener.class);
+    WriteListener second = mock(WriteListener.class);
+    queue.add(new WriteTask(myChannel, ByteBuffer.allocate(5), first));
+    WriteTask secondTask = new WriteTask(myChannel, ByteBuffer.allocate(10), second);
+    queue.add(secondTask);
+    when(myChannel.write(any(ByteBuffer[].class), anyInt(), anyInt())).then(writeBytes(8)).then(writeBytes(0));
+    when(myWriteAttachment.getWriteTasks()).thenReturn(queue);
+    myKey.attach(myWriteAttachment);
+
+    myWritableKeyProcessor.process(myKey);
+
+    verify(first).onWriteDone();
+    verify(second, never()).onWriteDone();
+    assertEquals(queue.size(), 1);
+    assertEquals(queue.peek(), secondTask);
+    assertEquals(secondTask.getByteBuffer().remaining(), 7);
+  }
+
+  public void testThatBytesPerEventAreLimited() throws Exception {
+    myWritableKeyProcessor = new WritableKeyProcessor(10);
+    WriteQueue queue = new WriteQueue();
+    WriteListener[] listeners = new WriteListener[4];
+    for (int i = 0; i < listeners.length; i++) {
+      listeners[i] = mock(WriteListener.class);
+      queue.add(new WriteTask(myChannel, ByteBuffer.allocate(6), listeners[i]));
+    }
+    when(myChannel.write(any(ByteBuffer[].class), anyInt(), anyInt())).then(writeBytes(Long.MAX_VALUE));
+    when(myWriteAttachment.getWriteTasks()).thenReturn(queue);
+    myKey.attach(myWriteAttachment);
+
+    myWritableKeyProcessor.process(myKey);
+
+    verify(listeners[0]).onWriteDone();
+    verify(listeners[1]).onWriteDone();
+    verify(listeners[2], never()).onWriteDone();
+    assertEquals(queue.size(), 2);
+    verify(myKey, never()).interestOps(SelectionKey.OP_READ);
+  }
+
+  public void testThatWritingIsSuspendedWhenBandwidthIsExhausted() throws Exception {
+    TimeService timeService = mock(TimeService.class);
+    when(timeService.now()).thenReturn(0L);
+    ThrottledKeys throttledKeys = new ThrottledKeys(timeService);
+    myWritableKeyProcessor = new WritableKeyProcessor(WritableKeyProcessor.DEFAULT_MAX_BYTES_PER_EVENT, throttledKeys);
+    ReadWriteAttachment attachment = new ReadWriteAttachment(mock(ConnectionListener.class), 0, 1000);
+    attachment.getWriteBucket().setRate(10);
+    WriteListener first = mock(WriteListener.class);
+    WriteListener second = mock(WriteListener.class);
+    attachment.getWriteTasks().add(new WriteTask(myChannel, ByteBuffer.allocate(8), first));
+    attachment.getWriteTasks().add(new WriteTask(myChannel, ByteBuffer.allocate(8), second));
+    when(myChannel.write(any(ByteBuffer[].class), anyInt(), anyInt())).then(writeBytes(12));
+    myKey.attach(attachment);
+
+    myWritableKeyProcessor.process(myKey);
+
+    verify(first).onWriteDone();
+    assertEquals(attachment.getWriteTasks().size(), 1);
+
+    myWritableKeyProcessor.process(myKey);
+
+    verify(myChannel, times(1)).write(any(ByteBuffer[].class), anyInt(), anyInt());
+    verify(myKey).interestOps(0);
+    assertTrue(throttledKeys.isSuspended(myKey, SelectionKey.OP_WRITE));
+  }
+
+  public void testThatQueueIsFailedIfRegionCanNotBeTransferred() throws Exception {
+    WriteQueue queue = new WriteQueue();
+    FileRegion region = mock(FileRegion.class);
+    when(region.size()).thenReturn(10L);
+    when(region.transferTo(any(WritableByteChannel.class), anyLong(), anyLong())).thenThrow(new IllegalArgumentException());
+    WriteListener first = mock(WriteListener.class);
+    WriteListener second = mock(WriteListener.class);
+    queue.add(new WriteTask(myChannel, ByteBuffer.allocate(5), region, first));
+    queue.add(new WriteTask(myChannel, ByteBuffer.allocate(5), second));
+    when(myChannel.write(any(ByteBuffer[].class), anyInt(), anyInt())).then(writeBytes(Long.MAX_VALUE));
+    when(myWriteAttachment.getWriteTasks()).thenReturn(queue);
+    myKey.attach(myWriteAttachment);
+
+    myWritableKeyProcessor.process(myKey);
+
+    verify(first).onWriteFailed(anyString(), any(Throwable.class));
+    verify(second).onWriteFailed(anyString(), any(Throwable.class));
+    verify(first, never()).onWriteDone();
+    verify(myKey).cancel();
+    assertTrue(queue.isEmpty());
+  }
+
+  private Answer<Long> writeBytes(final long maxBytes) {
+    return new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocationOnMock) throws Throwable {
+        ByteBuffer[] buffers = (ByteBuffer[]) invocationOnMock.getArguments()[0];
+        int offset = (Integer) invocationOnMock.getArguments()[1];
+        int length = (Integer) invocationOnMock.getArguments()[2];
+        long written = 0;
+        for (int i = offset; i < offset + length && written < maxBytes; i++) {
+          int count = (int) Math.min(buffers[i].remaining(), maxBytes - written);
+          buffers[i].position(buffers[i].position() + count);
+          written += count;
+        }
+        return written;
+      }
+    };
+  }
 }
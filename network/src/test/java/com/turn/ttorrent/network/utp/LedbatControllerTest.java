@@ -0,0 +1,80 @@
+package com.turn.ttorrent.network.utp;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class LedbatControllerTest {
+
+  private static final int PACKET_SIZE = 1000;
+
+  public void testWindowGrowsWhileQueuingDelayIsBelowTarget() {
+    LedbatController controller = new LedbatController(PACKET_SIZE);
+    long window = controller.getWindow();
+    for (int i = 0; i < 100; i++) {
+      controller.onDelaySample(50000 + i % 3 * 1000, 0);
+      controller.onAck(PACKET_SIZE, controller.getWindow());
+    }
+    assertTrue(controller.getWindow() > window);
+    assertTrue(controller.getQueuingDelayMicros() < LedbatController.TARGET_DELAY_MICROS);
+  }
+
+  public void testWindowShrinksWhenQueuingDelayIsAboveTarget() {
+    LedbatController controller = new LedbatController(PACKET_SIZE);
+    controller.onDelaySample(50000, 0);
+    for (int i = 0; i < 100; i++) {
+      controller.onAck(PACKET_SIZE, controller.getWindow());
+    }
+    long window = controller.getWindow();
+    for (int i = 0; i < 10; i++) {
+      controller.onDelaySample(50000 + 2 * LedbatController.TARGET_DELAY_MICROS, 0);
+    }
+    assertEquals(controller.getQueuingDelayMicros(), 2 * LedbatController.TARGET_DELAY_MICROS);
+    controller.onAck(PACKET_SIZE, controller.getWindow());
+    assertTrue(controller.getWindow() < window);
+  }
+
+  public void testBaseDelayIsForgottenAfterHistory() {
+    LedbatController controller = new LedbatController(PACKET_SIZE);
+    controller.onDelaySample(10000, 0);
+    long minute = 60 * 1000;
+    for (int i = 1; i <= 10; i++) {
+      controller.onDelaySample(90000, i * minute);
+    }
+    assertEquals(controller.getQueuingDelayMicros(), 0);
+  }
+
+  public void testDelaysAreComparedModulo32Bits() {
+    LedbatController controller = new LedbatController(PACKET_SIZE);
+    controller.onDelaySample(0xFFFFFF00L, 0);
+    controller.onDelaySample(0x100, 0);
+    controller.onDelaySample(0x100, 0);
+    controller.onDelaySample(0x100, 0);
+    assertEquals(controller.getQueuingDelayMicros(), 0x200);
+  }
+
+  public void testLossAndTimeout() {
+    LedbatController controller = new LedbatController(PACKET_SIZE);
+    long window = controller.getWindow();
+    controller.onLoss();
+    assertEquals(controller.getWindow(), window / 2);
+    long timeout = controller.getTimeoutMillis();
+    controller.onTimeout();
+    assertEquals(controller.getWindow(), PACKET_SIZE);
+    assertEquals(controller.getTimeoutMillis(), timeout * 2);
+  }
+
+  public void testTimeoutIsEstimatedFromRtt() {
+    LedbatController controller = new LedbatController(PACKET_SIZE);
+    assertEquals(controller.getTimeoutMillis(), LedbatController.INITIAL_TIMEOUT_MILLIS);
+    for (int i = 0; i < 50; i++) {
+      controller.onRttSample(800);
+    }
+    assertTrue(Math.abs(controller.getRttMillis() - 800) < 10);
+    assertTrue(controller.getTimeoutMillis() >= 800 && controller.getTimeoutMillis() < 900, "timeout " + controller.getTimeoutMillis());
+
+    controller.onRttSample(10);
+    assertTrue(controller.getTimeoutMillis() >= LedbatController.MIN_TIMEOUT_MILLIS);
+  }
+}
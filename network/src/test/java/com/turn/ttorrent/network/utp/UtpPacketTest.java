@@ -0,0 +1,95 @@
+package com.turn.ttorrent.network.utp;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+import static org.testng.Assert.*;
+
+@Test
+public class UtpPacketTest {
+
+  public void testHeaderFieldsAreWrittenAndParsed() throws ParseException {
+    UtpPacket packet = new UtpPacket(UtpPacket.ST_DATA, 0xFFFE, 0xFFFFFFF0L, 12345, 1024 * 1024,
+            65535, 7, null, new byte[]{1, 2, 3});
+    ByteBuffer buffer = ByteBuffer.allocate(packet.getSize());
+    packet.writeTo(buffer);
+    assertFalse(buffer.hasRemaining());
+    assertEquals(buffer.get(0), (byte) 0x01);
+    buffer.flip();
+
+    UtpPacket parsed = UtpPacket.parse(buffer);
+    assertEquals(parsed.getType(), UtpPacket.ST_DATA);
+    assertEquals(parsed.getConnectionId(), 0xFFFE);
+    assertEquals(parsed.getTimestamp(), 0xFFFFFFF0L);
+    assertEquals(parsed.getTimestampDifference(), 12345);
+    assertEquals(parsed.getWindowSize(), 1024 * 1024);
+    assertEquals(parsed.getSeqNr(), 65535);
+    assertEquals(parsed.getAckNr(), 7);
+    assertNull(parsed.getSelectiveAck());
+    assertEquals(parsed.getPayload(), new byte[]{1, 2, 3});
+  }
+
+  public void testSelectiveAck() throws ParseException {
+    // packets ackNr + 2 and ackNr + 11 are received
+    byte[] mask = new byte[]{0x01, 0x02, 0, 0};
+    UtpPacket packet = new UtpPacket(UtpPacket.ST_STATE, 1, 0, 0, 0, 10, 65534, mask, null);
+    ByteBuffer buffer = ByteBuffer.allocate(packet.getSize());
+    packet.writeTo(buffer);
+    buffer.flip();
+
+    UtpPacket parsed = UtpPacket.parse(buffer);
+    assertEquals(parsed.getSelectiveAck(), mask);
+    assertFalse(parsed.isSelectivelyAcked(65535));
+    assertTrue(parsed.isSelectivelyAcked(0));
+    assertFalse(parsed.isSelectivelyAcked(1));
+    assertTrue(parsed.isSelectivelyAcked(9));
+    assertFalse(parsed.isSelectivelyAcked(100));
+  }
+
+  public void testSequenceNumbersWrap() {
+    assertTrue(UtpPacket.isBefore(65535, 0));
+    assertTrue(UtpPacket.isBefore(1, 2));
+    assertFalse(UtpPacket.isBefore(0, 65535));
+    assertFalse(UtpPacket.isBefore(5, 5));
+  }
+
+  public void testUnknownExtensionIsSkipped() throws ParseException {
+    ByteBuffer buffer = ByteBuffer.allocate(UtpPacket.HEADER_SIZE + 5 + 1);
+    buffer.put((byte) ((UtpPacket.ST_DATA << 4) | UtpPacket.VERSION));
+    buffer.put((byte) 2);
+    buffer.put(new byte[UtpPacket.HEADER_SIZE - 2]);
+    buffer.put((byte) 0);
+    buffer.put((byte) 3);
+    buffer.put(new byte[]{9, 9, 9});
+    buffer.put((byte) 42);
+    buffer.flip();
+
+    UtpPacket parsed = UtpPacket.parse(buffer);
+    assertEquals(parsed.getPayload(), new byte[]{42});
+  }
+
+  public void testInvalidDatagramsAreRejected() {
+    assertInvalid(ByteBuffer.allocate(UtpPacket.HEADER_SIZE - 1));
+
+    ByteBuffer wrongVersion = ByteBuffer.allocate(UtpPacket.HEADER_SIZE);
+    wrongVersion.put(0, (byte) 0x02);
+    assertInvalid(wrongVersion);
+
+    ByteBuffer truncatedExtension = ByteBuffer.allocate(UtpPacket.HEADER_SIZE + 2);
+    truncatedExtension.put(0, (byte) ((UtpPacket.ST_STATE << 4) | UtpPacket.VERSION));
+    truncatedExtension.put(1, (byte) 1);
+    truncatedExtension.put(UtpPacket.HEADER_SIZE + 1, (byte) 4);
+    assertInvalid(truncatedExtension);
+  }
+
+  private void assertInvalid(ByteBuffer datagram) {
+    try {
+      UtpPacket.parse(datagram);
+      fail("datagram must be rejected");
+    } catch (ParseException e) {
+      // expected
+    }
+  }
+}
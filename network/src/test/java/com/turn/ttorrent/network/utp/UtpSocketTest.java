@@ -0,0 +1,177 @@
+package com.turn.ttorrent.network.utp;
+
+import com.turn.ttorrent.common.SystemTimeService;
+import com.turn.ttorrent.network.ChannelListenerFactory;
+import com.turn.ttorrent.network.ConnectionListener;
+import com.turn.ttorrent.network.NewConnectionAllower;
+import com.turn.ttorrent.network.TimeoutStorageImpl;
+import com.turn.ttorrent.network.WriteListener;
+import com.turn.ttorrent.network.WriteTask;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.*;
+
+@Test
+public class UtpSocketTest {
+
+  private UtpSocket myServer;
+  private UtpSocket myClient;
+  private ReceivingListener myServerListener;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myServerListener = new ReceivingListener();
+    myServer = startSocket(new ChannelListenerFactory() {
+      @Override
+      public ConnectionListener newChannelListener() {
+        return myServerListener;
+      }
+    });
+    myClient = startSocket(new ChannelListenerFactory() {
+      @Override
+      public ConnectionListener newChannelListener() {
+        throw new IllegalStateException("client must not accept connections");
+      }
+    });
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    assertTrue(myClient.stop(10, TimeUnit.SECONDS));
+    assertTrue(myServer.stop(10, TimeUnit.SECONDS));
+  }
+
+  public void testDataIsTransferredAndConnectionIsClosed() throws Exception {
+    byte[] data = new byte[2 * 1024 * 1024];
+    new Random(42).nextBytes(data);
+    ReceivingListener clientListener = new ReceivingListener();
+    UtpConnection connection = myClient.connect(serverAddress(), clientListener, 5000);
+    assertTrue(clientListener.myEstablished.await(10, TimeUnit.SECONDS));
+    assertTrue(myServerListener.myEstablished.await(10, TimeUnit.SECONDS));
+
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    long deadline = System.currentTimeMillis() + 30000;
+    while (buffer.hasRemaining() && System.currentTimeMillis() < deadline) {
+      if (connection.write(buffer) == 0) {
+        Thread.sleep(1);
+      }
+    }
+    assertFalse(buffer.hasRemaining());
+    connection.close();
+
+    assertTrue(myServerListener.myEndOfStream.await(30, TimeUnit.SECONDS));
+    assertEquals(myServerListener.getReceived(), data);
+    assertNull(myServerListener.myError.get());
+  }
+
+  public void testWriteTasksAreSent() throws Exception {
+    ReceivingListener clientListener = new ReceivingListener();
+    final UtpConnection connection = myClient.connect(serverAddress(), clientListener, 5000);
+    assertTrue(clientListener.myEstablished.await(10, TimeUnit.SECONDS));
+
+    final CountDownLatch written = new CountDownLatch(10);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 10; i++) {
+      byte[] message = new byte[10000 + i];
+      new Random(i).nextBytes(message);
+      expected.write(message);
+      assertTrue(connection.offerWrite(new WriteTask(connection, ByteBuffer.wrap(message), new WriteListener() {
+        @Override
+        public void onWriteFailed(String message, Throwable e) {
+          fail(message, e);
+        }
+
+        @Override
+        public void onWriteDone() {
+          written.countDown();
+        }
+      }), Long.MAX_VALUE));
+    }
+    assertTrue(written.await(10, TimeUnit.SECONDS));
+    connection.close();
+    assertTrue(myServerListener.myEndOfStream.await(10, TimeUnit.SECONDS));
+    assertEquals(myServerListener.getReceived(), expected.toByteArray());
+  }
+
+  public void testErrorIsReportedIfPeerDoesNotAnswer() throws Exception {
+    int port = myServer.getLocalPort();
+    assertTrue(myServer.stop(10, TimeUnit.SECONDS));
+    ReceivingListener clientListener = new ReceivingListener();
+    myClient.connect(new InetSocketAddress("127.0.0.1", port), clientListener, 500);
+
+    assertTrue(clientListener.myErrorReported.await(10, TimeUnit.SECONDS));
+    assertNotNull(clientListener.myError.get());
+    assertEquals(clientListener.myEstablished.getCount(), 1);
+  }
+
+  private InetSocketAddress serverAddress() {
+    return new InetSocketAddress("127.0.0.1", myServer.getLocalPort());
+  }
+
+  private static UtpSocket startSocket(ChannelListenerFactory factory) throws IOException {
+    UtpSocket socket = new UtpSocket(UtpSocket.openChannel(0), factory, new NewConnectionAllower() {
+      @Override
+      public boolean isNewConnectionAllowed() {
+        return true;
+      }
+    }, new TimeoutStorageImpl(), new SystemTimeService());
+    Thread thread = new Thread(socket, "uTP test socket");
+    thread.setDaemon(true);
+    thread.start();
+    return socket;
+  }
+
+  private static class ReceivingListener implements ConnectionListener {
+
+    private final ByteArrayOutputStream myReceived = new ByteArrayOutputStream();
+    private final CountDownLatch myEstablished = new CountDownLatch(1);
+    private final CountDownLatch myEndOfStream = new CountDownLatch(1);
+    private final CountDownLatch myErrorReported = new CountDownLatch(1);
+    private final AtomicReference<Throwable> myError = new AtomicReference<Throwable>();
+
+    @Override
+    public void onNewDataAvailable(ByteChannel socketChannel) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+      int read;
+      while ((read = socketChannel.read(buffer)) > 0) {
+        synchronized (myReceived) {
+          myReceived.write(buffer.array(), 0, read);
+        }
+        buffer.clear();
+      }
+      if (read == -1) {
+        socketChannel.close();
+        myEndOfStream.countDown();
+      }
+    }
+
+    @Override
+    public void onConnectionEstablished(ByteChannel socketChannel) {
+      myEstablished.countDown();
+    }
+
+    @Override
+    public void onError(ByteChannel socketChannel, Throwable ex) {
+      myError.set(ex);
+      myErrorReported.countDown();
+    }
+
+    byte[] getReceived() {
+      synchronized (myReceived) {
+        return myReceived.toByteArray();
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.network.TokenBucket;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hierarchy of download and upload rate limits.
+ *
+ * <p>
+ * Every connection with a peer is limited by own buckets, their parents are buckets of the torrent
+ * and buckets of torrents are limited by global buckets of the client. All limits can be changed
+ * at runtime and they are applied to established connections immediately. Rates are specified
+ * in bytes per second, {@link TokenBucket#UNLIMITED} disables the limit.
+ * </p>
+ */
+public class BandwidthLimits {
+
+  private final TokenBucket myDownloadBucket;
+  private final TokenBucket myUploadBucket;
+  private final ConcurrentMap<String, TokenBucket> myTorrentDownloadBuckets;
+  private final ConcurrentMap<String, TokenBucket> myTorrentUploadBuckets;
+  private volatile long myPeerDownloadRate;
+  private volatile long myPeerUploadRate;
+
+  public BandwidthLimits() {
+    myDownloadBucket = new TokenBucket();
+    myUploadBucket = new TokenBucket();
+    myTorrentDownloadBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    myTorrentUploadBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    myPeerDownloadRate = TokenBucket.UNLIMITED;
+    myPeerUploadRate = TokenBucket.UNLIMITED;
+  }
+
+  public void setGlobalRates(long downloadRate, long uploadRate) {
+    checkRates(downloadRate, uploadRate);
+    myDownloadBucket.setRate(downloadRate);
+    myUploadBucket.setRate(uploadRate);
+  }
+
+  public void setTorrentRates(String hexInfoHash, long downloadRate, long uploadRate) {
+    checkRates(downloadRate, uploadRate);
+    getTorrentBucket(myTorrentDownloadBuckets, hexInfoHash, myDownloadBucket).setRate(downloadRate);
+    getTorrentBucket(myTorrentUploadBuckets, hexInfoHash, myUploadBucket).setRate(uploadRate);
+  }
+
+  /**
+   * Sets limits of new connections. Limits of established connections must be changed
+   * by {@link #bindPeer(String, TokenBucket, TokenBucket)} again
+   */
+  public void setPeerRates(long downloadRate, long uploadRate) {
+    checkRates(downloadRate, uploadRate);
+    myPeerDownloadRate = downloadRate;
+    myPeerUploadRate = uploadRate;
+  }
+
+  /**
+   * Links buckets of the connection with buckets of its torrent and applies limits of peers to them
+   *
+   * @param hexInfoHash    hash of torrent of the connection
+   * @param downloadBucket bucket which limits reading from the connection
+   * @param uploadBucket   bucket which limits writing to the connection
+   */
+  public void bindPeer(String hexInfoHash, @Nullable TokenBucket downloadBucket, @Nullable TokenBucket uploadBucket) {
+    if (downloadBucket != null) {
+      downloadBucket.setRate(myPeerDownloadRate);
+      downloadBucket.setParent(getTorrentBucket(myTorrentDownloadBuckets, hexInfoHash, myDownloadBucket));
+    }
+    if (uploadBucket != null) {
+      uploadBucket.setRate(myPeerUploadRate);
+      uploadBucket.setParent(getTorrentBucket(myTorrentUploadBuckets, hexInfoHash, myUploadBucket));
+    }
+  }
+
+  /**
+   * Forgets limits of the torrent
+   */
+  public void removeTorrent(String hexInfoHash) {
+    myTorrentDownloadBuckets.remove(hexInfoHash);
+    myTorrentUploadBuckets.remove(hexInfoHash);
+  }
+
+  private TokenBucket getTorrentBucket(ConcurrentMap<String, TokenBucket> buckets, String hexInfoHash, TokenBucket parent) {
+    TokenBucket bucket = buckets.get(hexInfoHash);
+    if (bucket != null) return bucket;
+    TokenBucket newBucket = new TokenBucket(parent);
+    bucket = buckets.putIfAbsent(hexInfoHash, newBucket);
+    return bucket == null ? newBucket : bucket;
+  }
+
+  private void checkRates(long downloadRate, long uploadRate) {
+    if (downloadRate < 0 || uploadRate < 0) {
+      throw new IllegalArgumentException("Invalid rates: " + downloadRate + ", " + uploadRate);
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.common.LoggerUtils;
+import com.turn.ttorrent.common.TorrentLoggerFactory;
+import org.slf4j.Logger;
+
+import java.util.*;
+
+/**
+ * Periodic tit-for-tat choker.
+ *
+ * <p>
+ * Every round the choker ranks interested peers of each torrent and unchokes the best of them.
+ * While a torrent is downloading its peers are ranked by the rate they send data to us, when
+ * the torrent is complete peers are ranked by the rate we upload to them. Count of unchoked
+ * peers is limited per torrent and globally, global slots are distributed between torrents
+ * by turns so every torrent gets at least one slot while there are enough slots.
+ * </p>
+ *
+ * <p>
+ * In addition one randomly chosen choked interested peer is unchoked optimistically and it is
+ * rotated every few rounds. It allows to discover peers which are better than currently
+ * unchoked ones and gives new peers a chance to get first pieces.
+ * </p>
+ */
+public class Choker implements Runnable {
+
+  private static final Logger logger =
+          TorrentLoggerFactory.getLogger(Choker.class);
+
+  public static final long DEFAULT_ROUND_INTERVAL_MS = 10 * 1000;
+  public static final long DEFAULT_OPTIMISTIC_UNCHOKE_INTERVAL_MS = 30 * 1000;
+  public static final int DEFAULT_UPLOAD_SLOTS_PER_TORRENT = 4;
+  public static final int DEFAULT_GLOBAL_UPLOAD_SLOTS = 50;
+
+  private final PeersStorage myPeersStorage;
+  private final long myRoundIntervalMs;
+  private final long myOptimisticUnchokeIntervalMs;
+  private final Random myRandom;
+
+  private int myUploadSlotsPerTorrent;
+  private int myGlobalUploadSlots;
+
+  private SharingPeer myOptimisticPeer;
+  private long myOptimisticUnchokeTime;
+
+  private Thread myThread;
+  private volatile boolean myStop;
+
+  public Choker(PeersStorage peersStorage) {
+    this(peersStorage, DEFAULT_ROUND_INTERVAL_MS, DEFAULT_OPTIMISTIC_UNCHOKE_INTERVAL_MS, new Random());
+  }
+
+  Choker(PeersStorage peersStorage, long roundIntervalMs, long optimisticUnchokeIntervalMs, Random random) {
+    myPeersStorage = peersStorage;
+    myRoundIntervalMs = roundIntervalMs;
+    myOptimisticUnchokeIntervalMs = optimisticUnchokeIntervalMs;
+    myRandom = random;
+    myUploadSlotsPerTorrent = DEFAULT_UPLOAD_SLOTS_PER_TORRENT;
+    myGlobalUploadSlots = DEFAULT_GLOBAL_UPLOAD_SLOTS;
+  }
+
+  /**
+   * @param perTorrent max count of peers of one torrent which are unchoked by rank
+   * @param global     max count of peers of all torrents which are unchoked by rank
+   */
+  public synchronized void setUploadSlots(int perTorrent, int global) {
+    if (perTorrent <= 0 || global <= 0) {
+      throw new IllegalArgumentException("Invalid upload slots count: " + perTorrent + ", " + global);
+    }
+    myUploadSlotsPerTorrent = perTorrent;
+    myGlobalUploadSlots = global;
+  }
+
+  /**
+   * Start the choker thread.
+   */
+  public synchronized void start() {
+    myStop = false;
+    if (myThread == null || !myThread.isAlive()) {
+      myThread = new Thread(this);
+      myThread.setName("torrent choker thread");
+      myThread.setDaemon(true);
+      myThread.start();
+    }
+  }
+
+  /**
+   * Stop the choker thread.
+   */
+  public void stop() {
+    Thread thread;
+    synchronized (this) {
+      myStop = true;
+      thread = myThread;
+      myThread = null;
+    }
+    if (thread != null && thread.isAlive()) {
+      thread.interrupt();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        // Ignore
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    logger.debug("Starting choker loop...");
+    while (!myStop && !Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(myRoundIntervalMs);
+      } catch (InterruptedException e) {
+        break;
+      }
+      try {
+        runRound(System.currentTimeMillis());
+      } catch (Exception e) {
+        LoggerUtils.warnAndDebugDetails(logger, "error in choking round", e);
+      }
+    }
+    logger.debug("Exited choker loop.");
+  }
+
+  /**
+   * Peer interested handler. The peer is unchoked immediately if its torrent
+   * and the client have free upload slots, otherwise it waits for the next round.
+   */
+  public synchronized void peerInterested(SharingPeer peer) {
+    if (!peer.isChoking()) return;
+    int torrentUnchoked = 0;
+    int globalUnchoked = 0;
+    for (SharingPeer other : myPeersStorage.getSharingPeers()) {
+      if (other == myOptimisticPeer || other.isChoking() || !other.isInterested()) continue;
+      globalUnchoked++;
+      if (other.getTorrent() == peer.getTorrent()) {
+        torrentUnchoked++;
+      }
+    }
+    if (torrentUnchoked < myUploadSlotsPerTorrent && globalUnchoked < myGlobalUploadSlots) {
+      peer.unchoke();
+    }
+  }
+
+  /**
+   * @return peers which are unchoked in this round
+   */
+  synchronized Set<SharingPeer> runRound(long now) {
+    Map<SharedTorrent, List<SharingPeer>> interestedPeers = new HashMap<SharedTorrent, List<SharingPeer>>();
+    List<SharingPeer> connectedPeers = new ArrayList<SharingPeer>();
+    for (SharingPeer peer : myPeersStorage.getSharingPeers()) {
+      if (!peer.isConnected()) continue;
+      connectedPeers.add(peer);
+      if (!peer.isInterested()) continue;
+      List<SharingPeer> torrentPeers = interestedPeers.get(peer.getTorrent());
+      if (torrentPeers == null) {
+        torrentPeers = new ArrayList<SharingPeer>();
+        interestedPeers.put(peer.getTorrent(), torrentPeers);
+      }
+      torrentPeers.add(peer);
+    }
+
+    List<List<SharingPeer>> rankedPeers = new ArrayList<List<SharingPeer>>();
+    for (Map.Entry<SharedTorrent, List<SharingPeer>> entry : interestedPeers.entrySet()) {
+      List<SharingPeer> torrentPeers = entry.getValue();
+      final boolean seeding = entry.getKey().isFinished();
+      final Map<SharingPeer, Float> rates = new HashMap<SharingPeer, Float>();
+      for (SharingPeer peer : torrentPeers) {
+        rates.put(peer, seeding ? peer.getULRate().get() : peer.getDLRate().get());
+      }
+      Collections.shuffle(torrentPeers, myRandom);
+      Collections.sort(torrentPeers, new Comparator<SharingPeer>() {
+        @Override
+        public int compare(SharingPeer a, SharingPeer b) {
+          return Float.compare(rates.get(b), rates.get(a));
+        }
+      });
+      rankedPeers.add(torrentPeers.subList(0, Math.min(torrentPeers.size(), myUploadSlotsPerTorrent)));
+    }
+
+    Set<SharingPeer> unchoked = new HashSet<SharingPeer>();
+    int globalSlots = myGlobalUploadSlots;
+    for (int rank = 0; unchoked.size() < globalSlots; rank++) {
+      boolean hasMore = false;
+      for (List<SharingPeer> torrentPeers : rankedPeers) {
+        if (rank >= torrentPeers.size() || unchoked.size() >= globalSlots) continue;
+        unchoked.add(torrentPeers.get(rank));
+        hasMore = true;
+      }
+      if (!hasMore) break;
+    }
+
+    updateOptimisticPeer(connectedPeers, unchoked, now);
+    if (myOptimisticPeer != null) {
+      unchoked.add(myOptimisticPeer);
+    }
+
+    for (SharingPeer peer : connectedPeers) {
+      if (unchoked.contains(peer)) {
+        if (peer.isChoking()) {
+          peer.unchoke();
+        }
+      } else {
+        peer.choke();
+      }
+      peer.resetRates();
+    }
+    logger.trace("Choking round is finished, {} of {} peers are unchoked", unchoked.size(), connectedPeers.size());
+    return unchoked;
+  }
+
+  private void updateOptimisticPeer(List<SharingPeer> connectedPeers, Set<SharingPeer> unchoked, long now) {
+    boolean canBeKept = myOptimisticPeer != null &&
+            myOptimisticPeer.isConnected() &&
+            myOptimisticPeer.isInterested() &&
+            !unchoked.contains(myOptimisticPeer);
+    if (canBeKept && now - myOptimisticUnchokeTime < myOptimisticUnchokeIntervalMs) return;
+
+    List<SharingPeer> candidates = new ArrayList<SharingPeer>();
+    for (SharingPeer peer : connectedPeers) {
+      if (peer.isInterested() && !unchoked.contains(peer) && peer != myOptimisticPeer) {
+        candidates.add(peer);
+      }
+    }
+    if (candidates.isEmpty()) {
+      if (!canBeKept) {
+        myOptimisticPeer = null;
+      }
+      return;
+    }
+    myOptimisticPeer = candidates.get(myRandom.nextInt(candidates.size()));
+    myOptimisticUnchokeTime = now;
+    logger.trace("Peer {} is unchoked optimistically", myOptimisticPeer);
+  }
+}
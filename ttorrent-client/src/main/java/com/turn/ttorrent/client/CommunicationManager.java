@@ -21,15 +21,25 @@ import com.turn.ttorrent.client.network.CountLimitConnectionAllower;
 import com.turn.ttorrent.client.network.OutgoingConnectionListener;
 import com.turn.ttorrent.client.network.StateChannelListener;
 import com.turn.ttorrent.client.peer.PeerActivityListener;
+import com.turn.ttorrent.client.peer.PeerInterestListener;
+import com.turn.ttorrent.client.peer.RequestPipeline;
 import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.client.storage.CachingPieceStorage;
+import com.turn.ttorrent.client.storage.DiskWriter;
+import com.turn.ttorrent.client.storage.DurabilityMode;
 import com.turn.ttorrent.client.storage.FairPieceStorageFactory;
 import com.turn.ttorrent.client.storage.FileCollectionStorage;
+import com.turn.ttorrent.client.storage.PieceCache;
 import com.turn.ttorrent.client.storage.PieceStorage;
 import com.turn.ttorrent.client.storage.PieceStorageFactory;
+import com.turn.ttorrent.client.storage.ValidatingPieceStorageFactory;
+import com.turn.ttorrent.client.storage.WriteBackPieceStorage;
 import com.turn.ttorrent.common.*;
 import com.turn.ttorrent.common.protocol.AnnounceRequestMessage;
 import com.turn.ttorrent.common.protocol.PeerMessage;
 import com.turn.ttorrent.network.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 
 import java.io.File;
@@ -42,8 +52,10 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -70,11 +82,12 @@ import static com.turn.ttorrent.common.protocol.AnnounceRequestMessage.RequestEv
  *
  * @author mpetazzoni
  */
-public class CommunicationManager implements AnnounceResponseListener, PeerActivityListener, Context, ConnectionManagerContext {
+public class CommunicationManager implements AnnounceResponseListener, PeerActivityListener, PeerInterestListener, Context, ConnectionManagerContext {
 
   protected static final Logger logger = TorrentLoggerFactory.getLogger(CommunicationManager.class);
 
   public static final String BITTORRENT_ID_PREFIX = "-TO0042-";
+  public static final int DEFAULT_DISK_READ_THREADS_COUNT = 4;
 
   private AtomicBoolean stop = new AtomicBoolean(false);
 
@@ -91,6 +104,22 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
   private volatile ConnectionManager myConnectionManager;
   private final ExecutorService myExecutorService;
   private final ExecutorService myPieceValidatorExecutor;
+  private volatile boolean myZeroCopyUpload;
+  private volatile boolean myUploadReadAhead;
+  private volatile boolean myMemoryMappedFiles;
+  @Nullable
+  private volatile ExecutorService myDiskReadExecutor;
+  // true if the disk read executor is created by the client and must be shut down on stop
+  private volatile boolean myOwnDiskReadExecutor;
+  private final PieceCache myPieceCache;
+  private final DiskWriter myDiskWriter;
+  private volatile boolean myUtpEnabled;
+  private volatile int mySelectorWorkersCount = Runtime.getRuntime().availableProcessors();
+  // min and max depth, replaced as a whole
+  private volatile int[] myRequestPipelineDepth = {RequestPipeline.DEFAULT_MIN_DEPTH, RequestPipeline.DEFAULT_MAX_DEPTH};
+  private final ByteBufferPool myBufferPool;
+  private final Choker myChoker;
+  private final BandwidthLimits myBandwidthLimits;
 
   /**
    * @param workingExecutor        executor service for run connection worker and process incoming data. Must have a pool size at least 2
@@ -110,12 +139,17 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
     this.torrentsStorage = new TorrentsStorage();
     this.peersStorage = new PeersStorage();
     this.mySendBufferSize = new AtomicInteger();
+    this.myBufferPool = new ByteBufferPool();
     this.myTorrentLoader = new TorrentLoaderImpl(this.torrentsStorage);
     this.myReceiveBufferSize = new AtomicInteger();
     this.myInConnectionAllower = new CountLimitConnectionAllower(peersStorage);
     this.myOutConnectionAllower = new CountLimitConnectionAllower(peersStorage);
+    this.myChoker = new Choker(peersStorage);
+    this.myBandwidthLimits = new BandwidthLimits();
     this.myExecutorService = workingExecutor;
     myPieceValidatorExecutor = pieceValidatorExecutor;
+    this.myPieceCache = new PieceCache(0);
+    this.myDiskWriter = new DiskWriter(0);
   }
 
   /**
@@ -175,8 +209,19 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
                                    List<TorrentListener> listeners) throws IOException {
     FileMetadataProvider metadataProvider = new FileMetadataProvider(dotTorrentFilePath);
     TorrentMetadata metadata = metadataProvider.getTorrentMetadata();
-    FileCollectionStorage fileCollectionStorage = FileCollectionStorage.create(metadata, new File(downloadDirPath));
-    PieceStorage pieceStorage = pieceStorageFactory.createStorage(metadata, fileCollectionStorage);
+    FileCollectionStorage fileCollectionStorage = FileCollectionStorage.create(metadata, new File(downloadDirPath), myMemoryMappedFiles);
+    fileCollectionStorage.setSyncOnClose(myDiskWriter.getDurabilityMode() != DurabilityMode.NONE);
+    PieceStorage pieceStorage;
+    if (pieceStorageFactory instanceof ValidatingPieceStorageFactory) {
+      EventDispatcher validationDispatcher = new EventDispatcher();
+      for (TorrentListener listener : listeners) {
+        validationDispatcher.addListener(listener);
+      }
+      pieceStorage = ((ValidatingPieceStorageFactory) pieceStorageFactory).createStorage(metadata, fileCollectionStorage,
+              validationDispatcher.progressMulticaster());
+    } else {
+      pieceStorage = pieceStorageFactory.createStorage(metadata, fileCollectionStorage);
+    }
     return addTorrent(metadataProvider, pieceStorage, listeners);
   }
 
@@ -205,6 +250,10 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
                                    PieceStorage pieceStorage,
                                    List<TorrentListener> listeners) throws IOException {
     TorrentMetadata torrentMetadata = metadataProvider.getTorrentMetadata();
+    pieceStorage = new CachingPieceStorage(
+            new WriteBackPieceStorage(pieceStorage, myDiskWriter, torrentMetadata),
+            myPieceCache,
+            torrentMetadata);
     EventDispatcher eventDispatcher = new EventDispatcher();
     for (TorrentListener listener : listeners) {
       eventDispatcher.addListener(listener);
@@ -276,6 +325,7 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
     for (SharingPeer peer : peers) {
       peer.unbind(true);
     }
+    myBandwidthLimits.removeTorrent(torrentHash);
     sendStopEvent(torrents.second(), torrentHash);
   }
 
@@ -339,6 +389,172 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
     mySendBufferSize.set(newSize);
   }
 
+  /**
+   * enables or disables sending of requested blocks directly from torrent files to sockets
+   * without copying them through heap buffers. It will be applied to all new connections
+   *
+   * @param zeroCopyUpload true for enable
+   */
+  public void setZeroCopyUpload(boolean zeroCopyUpload) {
+    myZeroCopyUpload = zeroCopyUpload;
+  }
+
+  /**
+   * enables or disables reading of the whole piece on the first request of it by a peer.
+   * Other blocks of the piece are sent to the peer from memory. It will be applied to all new connections
+   *
+   * @param uploadReadAhead true for enable
+   */
+  public void setUploadReadAhead(boolean uploadReadAhead) {
+    myUploadReadAhead = uploadReadAhead;
+  }
+
+  /**
+   * enables or disables reading of completed files through memory mapped windows
+   * (see {@link com.turn.ttorrent.client.storage.MappedFileStorage}). It reduces the cost of reads
+   * for seeded torrents. It will be applied to torrents which are added by path after this call
+   *
+   * @param memoryMappedFiles true for enable
+   */
+  public void setMemoryMappedFiles(boolean memoryMappedFiles) {
+    myMemoryMappedFiles = memoryMappedFiles;
+  }
+
+  /**
+   * sets executor service for reading of blocks requested by peers from torrent files. If it isn't set,
+   * the client creates a pool of {@link #DEFAULT_DISK_READ_THREADS_COUNT} threads on start.
+   * Must be invoked before start of the client
+   *
+   * @param diskReadExecutor executor service for disk reads, it isn't shut down by the client
+   */
+  public void setDiskReadExecutor(ExecutorService diskReadExecutor) {
+    myDiskReadExecutor = diskReadExecutor;
+    myOwnDiskReadExecutor = false;
+  }
+
+  /**
+   * sets max size of memory outside of the heap for caching of pieces which are uploaded to several peers.
+   * The cache is shared by all torrents, 0 disables it. It is applied immediately
+   *
+   * @param maxSize max size of cached pieces in bytes
+   */
+  public void setPieceCacheSize(long maxSize) {
+    myPieceCache.setMaxSize(maxSize);
+  }
+
+  /**
+   * @return cache of uploaded pieces with its hit, miss and eviction counters
+   */
+  public PieceCache getPieceCache() {
+    return myPieceCache;
+  }
+
+  /**
+   * sets max size of memory for downloaded pieces which wait for writing to the disk.
+   * Validated pieces are written in background by one dedicated thread, consecutive pieces
+   * are written together. 0 disables it and every block is written right after receiving.
+   * It is applied immediately
+   *
+   * @param maxSize max size of pieces in memory in bytes
+   */
+  public void setWriteBackCacheSize(long maxSize) {
+    myDiskWriter.setMaxBufferedBytes(maxSize);
+  }
+
+  /**
+   * sets when downloaded data is forced to the disk. Sync on close of files is applied to torrents
+   * which are added by path after this call, periodic sync is applied immediately
+   *
+   * @param durabilityMode durability mode, {@link DurabilityMode#ON_COMPLETION} by default
+   */
+  public void setDurabilityMode(DurabilityMode durabilityMode) {
+    myDiskWriter.setDurabilityMode(durabilityMode);
+  }
+
+  /**
+   * enables or disables uTP transport. If it's enabled, the client accepts uTP connections on the UDP port
+   * with the same number as the TCP port and tries uTP first for outgoing connections, TCP is used
+   * if the peer doesn't answer. It will be applied on next start of the client
+   *
+   * @param utpEnabled true for enable
+   */
+  public void setUtpEnabled(boolean utpEnabled) {
+    myUtpEnabled = utpEnabled;
+  }
+
+  /**
+   * sets bounds of count of block requests which are sent to a peer without waiting for answers.
+   * Actual count is adapted to download rate and round-trip time of every peer.
+   * It will be applied to all new connections
+   *
+   * @param minDepth min count of outstanding requests
+   * @param maxDepth max count of outstanding requests
+   */
+  public void setRequestPipelineDepth(int minDepth, int maxDepth) {
+    if (minDepth <= 0 || maxDepth < minDepth) {
+      throw new IllegalArgumentException("Invalid pipeline depth limits: " + minDepth + ".." + maxDepth);
+    }
+    myRequestPipelineDepth = new int[]{minDepth, maxDepth};
+  }
+
+  /**
+   * sets count of upload slots. Peers for the slots are chosen by the choker every round
+   * by the rate of data exchange with them. One more peer is unchoked optimistically
+   *
+   * @param perTorrent max count of unchoked peers of one torrent
+   * @param global     max count of unchoked peers of all torrents
+   */
+  public void setUploadSlots(int perTorrent, int global) {
+    myChoker.setUploadSlots(perTorrent, global);
+  }
+
+  /**
+   * sets count of threads which serve network connections. Every thread has own selector
+   * and connections are distributed between threads. It will be applied on next start of the client
+   *
+   * @param workersCount count of threads, by default it's equal to count of available processors
+   */
+  public void setSelectorWorkersCount(int workersCount) {
+    if (workersCount <= 0) {
+      throw new IllegalArgumentException("Invalid count of selector workers: " + workersCount);
+    }
+    mySelectorWorkersCount = workersCount;
+  }
+
+  /**
+   * sets limits of total download and upload rates of the client. It will be applied to all connections immediately
+   *
+   * @param downloadRate max download rate in bytes per second or 0 for unlimited rate
+   * @param uploadRate   max upload rate in bytes per second or 0 for unlimited rate
+   */
+  public void setMaxRates(long downloadRate, long uploadRate) {
+    myBandwidthLimits.setGlobalRates(downloadRate, uploadRate);
+  }
+
+  /**
+   * sets limits of download and upload rates of the torrent. It will be applied to all connections immediately
+   *
+   * @param hexInfoHash  hash of the torrent
+   * @param downloadRate max download rate in bytes per second or 0 for unlimited rate
+   * @param uploadRate   max upload rate in bytes per second or 0 for unlimited rate
+   */
+  public void setTorrentMaxRates(String hexInfoHash, long downloadRate, long uploadRate) {
+    myBandwidthLimits.setTorrentRates(hexInfoHash, downloadRate, uploadRate);
+  }
+
+  /**
+   * sets limits of download and upload rates of every peer. It will be applied to all connections immediately
+   *
+   * @param downloadRate max download rate in bytes per second or 0 for unlimited rate
+   * @param uploadRate   max upload rate in bytes per second or 0 for unlimited rate
+   */
+  public void setPeerMaxRates(long downloadRate, long uploadRate) {
+    myBandwidthLimits.setPeerRates(downloadRate, uploadRate);
+    for (SharingPeer peer : peersStorage.getSharingPeers()) {
+      myBandwidthLimits.bindPeer(peer.getHexInfoHash(), peer.getDownloadBucket(), peer.getUploadBucket());
+    }
+  }
+
   public void setMaxOutConnectionsCount(int maxConnectionsCount) {
     this.myOutConnectionAllower.setMyMaxConnectionCount(maxConnectionsCount);
   }
@@ -423,15 +639,31 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
             myOutConnectionAllower,
             selectorFactory,
             mySendBufferSize,
-            myReceiveBufferSize);
+            myReceiveBufferSize,
+            mySelectorWorkersCount);
     this.setSocketConnectionTimeout(DEFAULT_SOCKET_CONNECTION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    if (myDiskReadExecutor == null) {
+      myDiskReadExecutor = Executors.newFixedThreadPool(DEFAULT_DISK_READ_THREADS_COUNT, new ThreadFactory() {
+        @Override
+        public Thread newThread(@NotNull Runnable r) {
+          Thread thread = new Thread(r, "ttorrent disk read");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      myOwnDiskReadExecutor = true;
+    }
     try {
       this.myConnectionManager.initAndRunWorker(serverChannelRegister);
+      if (myUtpEnabled) {
+        this.myConnectionManager.initUtp();
+      }
     } catch (IOException e) {
       LoggerUtils.errorAndDebugDetails(logger, "error in initialization server channel", e);
       this.stop();
       return;
     }
+    myDiskWriter.start();
     final String id = CommunicationManager.BITTORRENT_ID_PREFIX + UUID.randomUUID().toString().split("-")[4];
     byte[] idBytes = id.getBytes(Constants.BYTE_ENCODING);
     Peer self = new Peer(new InetSocketAddress(myConnectionManager.getBindPort()), ByteBuffer.wrap(idBytes));
@@ -445,6 +677,7 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
             });
 
     announce.start(defaultTrackerURI, this, getSelfPeers(bindAddresses), announceIntervalSec);
+    myChoker.start();
     this.stop.set(false);
 
     myStarted = true;
@@ -472,6 +705,15 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
 
     logger.trace("announce thread is stopped");
 
+    myChoker.stop();
+
+    ExecutorService diskReadExecutor = myDiskReadExecutor;
+    if (myOwnDiskReadExecutor && diskReadExecutor != null) {
+      diskReadExecutor.shutdown();
+      myDiskReadExecutor = null;
+      myOwnDiskReadExecutor = false;
+    }
+
     for (SharedTorrent torrent : this.torrentsStorage.activeTorrents()) {
       logger.trace("try close torrent {}", torrent);
       torrent.closeFully();
@@ -481,6 +723,7 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
         torrent.setClientState(ClientState.ERROR);
       }
     }
+    myDiskWriter.stop();
 
     logger.debug("Closing all remaining peer connections...");
     for (SharingPeer peer : this.peersStorage.getSharingPeers()) {
@@ -583,7 +826,15 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
                                        ByteChannel channel,
                                        String clientIdentifier,
                                        int clientVersion) {
-    return new SharingPeer(host, port, peerId, torrent, getConnectionManager(), this, channel, clientIdentifier, clientVersion);
+    SharingPeer sharingPeer = new SharingPeer(host, port, peerId, torrent, getConnectionManager(), this, channel, clientIdentifier, clientVersion);
+    sharingPeer.setZeroCopyUpload(myZeroCopyUpload);
+    sharingPeer.setUploadReadAhead(myUploadReadAhead);
+    sharingPeer.setDiskReadExecutor(myDiskReadExecutor);
+    int[] requestPipelineDepth = myRequestPipelineDepth;
+    sharingPeer.setRequestPipelineLimits(requestPipelineDepth[0], requestPipelineDepth[1]);
+    sharingPeer.setExecutor(myExecutorService);
+    myBandwidthLimits.bindPeer(torrent.getHexInfoHash(), sharingPeer.getDownloadBucket(), sharingPeer.getUploadBucket());
+    return sharingPeer;
   }
 
   @Override
@@ -591,6 +842,11 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
     return myTorrentLoader;
   }
 
+  @Override
+  public ByteBufferPool getBufferPool() {
+    return myBufferPool;
+  }
+
 
   /** AnnounceResponseListener handler(s). **********************************/
 
@@ -663,12 +919,14 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
 
       logger.debug("trying to connect to the peer {}", peer);
 
-      boolean connectTaskAdded = this.myConnectionManager.offerConnect(
-              new ConnectTask(peer.getIp(),
-                      peer.getPort(),
-                      connectionListener,
-                      new SystemTimeService().now(),
-                      Constants.DEFAULT_CONNECTION_TIMEOUT_MILLIS), 1, TimeUnit.SECONDS);
+      ConnectTask connectTask = new ConnectTask(peer.getIp(),
+              peer.getPort(),
+              connectionListener,
+              new SystemTimeService().now(),
+              Constants.DEFAULT_CONNECTION_TIMEOUT_MILLIS);
+      boolean connectTaskAdded = myUtpEnabled ?
+              this.myConnectionManager.offerUtpConnect(connectTask, 1, TimeUnit.SECONDS) :
+              this.myConnectionManager.offerConnect(connectTask, 1, TimeUnit.SECONDS);
       if (!connectTaskAdded) {
         logger.info("can not connect to peer {}. Unable to add connect task to connection manager", peer);
       }
@@ -685,6 +943,11 @@ public class CommunicationManager implements AnnounceResponseListener, PeerActiv
   @Override
   public void handlePeerReady(SharingPeer peer) { /* Do nothing */ }
 
+  @Override
+  public void handlePeerInterested(SharingPeer peer) {
+    myChoker.peerInterested(peer);
+  }
+
   @Override
   public void handlePieceAvailability(SharingPeer peer,
                                       Piece piece) { /* Do nothing */ }
@@ -1,5 +1,6 @@
 package com.turn.ttorrent.client;
 
+import com.turn.ttorrent.common.ByteBufferPool;
 import com.turn.ttorrent.network.ChannelListenerFactory;
 
 import java.util.concurrent.ExecutorService;
@@ -26,4 +27,9 @@ public interface Context extends SharingPeerFactory, ChannelListenerFactory {
    */
   TorrentLoader getTorrentLoader();
 
+  /**
+   * @return pool of buffers for incoming messages and downloaded pieces
+   */
+  ByteBufferPool getBufferPool();
+
 }
@@ -7,10 +7,12 @@ public class EventDispatcher {
 
   private final List<TorrentListener> listeners;
   private final TorrentListener notifyer;
+  private final ValidationProgressListener progressNotifyer;
 
   public EventDispatcher() {
     this.listeners = new CopyOnWriteArrayList<TorrentListener>();
     this.notifyer = createNotifyer();
+    this.progressNotifyer = createProgressNotifyer();
   }
 
   private TorrentListener createNotifyer() {
@@ -63,6 +65,20 @@ public class EventDispatcher {
           listener.validationComplete(validpieces, totalpieces);
         }
       }
+
+    };
+  }
+
+  private ValidationProgressListener createProgressNotifyer() {
+    return new ValidationProgressListener() {
+      @Override
+      public void validationProgress(int checkedpieces, int validpieces, int totalpieces) {
+        for (TorrentListener listener : listeners) {
+          if (listener instanceof ValidationProgressListener) {
+            ((ValidationProgressListener) listener).validationProgress(checkedpieces, validpieces, totalpieces);
+          }
+        }
+      }
     };
   }
 
@@ -70,6 +86,10 @@ public class EventDispatcher {
     return notifyer;
   }
 
+  ValidationProgressListener progressMulticaster() {
+    return progressNotifyer;
+  }
+
   public boolean removeListener(TorrentListener listener) {
     return listeners.remove(listener);
   }
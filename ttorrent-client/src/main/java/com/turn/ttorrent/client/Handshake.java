@@ -34,21 +34,27 @@ public class Handshake implements TorrentHash {
   public static final String BITTORRENT_PROTOCOL_IDENTIFIER = "BitTorrent protocol";
   public static final int BASE_HANDSHAKE_LENGTH = 49;
 
+  // fast extension (BEP 6) is advertised by the third least significant bit of the last reserved byte
+  private static final int FAST_EXTENSION_BYTE = 7;
+  private static final byte FAST_EXTENSION_BIT = 0x04;
+
   private ByteBuffer data;
   private ByteBuffer infoHash;
   private ByteBuffer peerId;
+  private byte[] reserved;
 
   private String torrentIdentifier;
 
   private int myPstrlen;
 
   private Handshake(ByteBuffer data, ByteBuffer infoHash,
-                    ByteBuffer peerId) {
+                    ByteBuffer peerId, byte[] reserved) {
     this.data = data;
     this.data.rewind();
 
     this.infoHash = infoHash;
     this.peerId = peerId;
+    this.reserved = reserved;
   }
 
   public ByteBuffer getData() {
@@ -67,6 +73,13 @@ public class Handshake implements TorrentHash {
     return this.peerId.array();
   }
 
+  /**
+   * @return true if the peer supports the fast extension (BEP 6)
+   */
+  public boolean isFastExtensionSupported() {
+    return (this.reserved[FAST_EXTENSION_BYTE] & FAST_EXTENSION_BIT) != 0;
+  }
+
   public static Handshake parse(ByteBuffer buffer)
           throws ParseException, UnsupportedEncodingException {
     int pstrlen = Byte.valueOf(buffer.get()).intValue();
@@ -85,7 +98,7 @@ public class Handshake implements TorrentHash {
       throw new ParseException("Invalid protocol identifier!", 1);
     }
 
-    // Ignore reserved bytes
+    // Only the fast extension bit of reserved bytes is supported
     byte[] reserved = new byte[8];
     buffer.get(reserved);
 
@@ -94,7 +107,7 @@ public class Handshake implements TorrentHash {
     byte[] peerId = new byte[20];
     buffer.get(peerId);
     return new Handshake(buffer, ByteBuffer.wrap(infoHash),
-            ByteBuffer.wrap(peerId));
+            ByteBuffer.wrap(peerId), reserved);
   }
 
   public static Handshake parse(ByteBuffer buffer, String torrentIdentifier) throws UnsupportedEncodingException, ParseException {
@@ -116,6 +129,7 @@ public class Handshake implements TorrentHash {
                       Handshake.BITTORRENT_PROTOCOL_IDENTIFIER.length());
 
       byte[] reserved = new byte[8];
+      reserved[FAST_EXTENSION_BYTE] |= FAST_EXTENSION_BIT;
       ByteBuffer infoHash = ByteBuffer.wrap(torrentInfoHash);
       ByteBuffer peerId = ByteBuffer.wrap(clientPeerId);
 
@@ -127,7 +141,7 @@ public class Handshake implements TorrentHash {
       buffer.put(infoHash);
       buffer.put(peerId);
 
-      return new Handshake(buffer, infoHash, peerId);
+      return new Handshake(buffer, infoHash, peerId, reserved);
     } catch (UnsupportedEncodingException uee) {
       return null;
     }
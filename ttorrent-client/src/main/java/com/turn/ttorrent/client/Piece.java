@@ -16,14 +16,20 @@
 package com.turn.ttorrent.client;
 
 import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.client.storage.DirectPieceStorage;
 import com.turn.ttorrent.client.storage.PieceStorage;
 import com.turn.ttorrent.common.TorrentLoggerFactory;
 import com.turn.ttorrent.common.TorrentUtils;
+import com.turn.ttorrent.common.protocol.PeerMessage;
+import com.turn.ttorrent.network.FileRegion;
 import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.BitSet;
 
 
 /**
@@ -49,6 +55,11 @@ public class Piece implements Comparable<Piece>, PieceInformation {
   private static final Logger logger =
           TorrentLoggerFactory.getLogger(Piece.class);
 
+  /**
+   * Size of blocks which pieces are requested by.
+   */
+  public static final int BLOCK_SIZE = PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE;
+
   private final PieceStorage pieceStorage;
   private final int index;
   private final long length;
@@ -56,6 +67,18 @@ public class Piece implements Comparable<Piece>, PieceInformation {
 
   private volatile boolean valid;
   private int seen;
+
+  // digest of the recorded prefix of the piece, guarded by the piece monitor
+  private MessageDigest digest;
+  private int digestedBytes;
+
+  // blocks of the default request size which are recorded since the last
+  // failed validation. It's guarded by itself, so it can be checked without
+  // the piece monitor
+  private final BitSet receivedBlocks;
+
+  // recorded blocks if the storage can't save blocks of not validated pieces,
+  // guarded by the piece monitor
   private ByteBuffer data;
 
   /**
@@ -78,7 +101,57 @@ public class Piece implements Comparable<Piece>, PieceInformation {
     // Piece start unseen
     this.seen = 0;
 
-    this.data = null;
+    this.receivedBlocks = new BitSet(getBlockCount());
+  }
+
+  /**
+   * Returns count of blocks of the default request size in this piece, the
+   * last block can be shorter.
+   */
+  public int getBlockCount() {
+    return (int) ((this.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+  }
+
+  /**
+   * Tells whether the block at the given offset is recorded, so it must not
+   * be requested again.
+   */
+  public boolean isBlockReceived(int offset) {
+    if (offset % BLOCK_SIZE != 0) return false;
+    synchronized (this.receivedBlocks) {
+      return this.receivedBlocks.get(offset / BLOCK_SIZE);
+    }
+  }
+
+  /**
+   * Tells whether all blocks of this piece are recorded and it can be validated.
+   */
+  public boolean isAllBlocksReceived() {
+    synchronized (this.receivedBlocks) {
+      return this.receivedBlocks.cardinality() == getBlockCount();
+    }
+  }
+
+  /**
+   * Returns indexes of blocks which are not recorded yet. The block with
+   * index <em>i</em> starts at offset <em>i * BLOCK_SIZE</em>.
+   */
+  public BitSet getMissingBlocks() {
+    BitSet missing = new BitSet(getBlockCount());
+    missing.set(0, getBlockCount());
+    synchronized (this.receivedBlocks) {
+      missing.andNot(this.receivedBlocks);
+    }
+    return missing;
+  }
+
+  /**
+   * Forgets recorded blocks, so the whole piece is downloaded again.
+   */
+  public void resetReceivedBlocks() {
+    synchronized (this.receivedBlocks) {
+      this.receivedBlocks.clear();
+    }
   }
 
   @Override
@@ -143,6 +216,12 @@ public class Piece implements Comparable<Piece>, PieceInformation {
   /**
    * Validates this piece.
    *
+   * <p>
+   * Blocks recorded in order are already hashed on arrival, so only the
+   * rest of the piece (if any block came out of order) is read back from
+   * the underlying byte storage and hashed chunk by chunk.
+   * </p>
+   *
    * @return Returns true if this piece, as stored in the underlying byte
    * storage, is valid, i.e. its SHA1 sum matches the one from the torrent
    * meta-info.
@@ -151,11 +230,19 @@ public class Piece implements Comparable<Piece>, PieceInformation {
 
     logger.trace("Validating {}...", this);
 
-    // TODO: remove cast to int when large ByteBuffer support is
-    // implemented in Java.
-    byte[] pieceBytes = data.array();
-    final byte[] calculatedHash = TorrentUtils.calculateSha1Hash(pieceBytes);
+    MessageDigest digest = this.digest == null ? TorrentUtils.createSha1Digest() : this.digest;
+    int digestedBytes = this.digest == null ? 0 : this.digestedBytes;
+    resetDigest();
+    if (digestedBytes < this.length) {
+      logger.trace("{} was received out of order, hashing last {} bytes from storage",
+              this, this.length - digestedBytes);
+      digestRecorded(digestedBytes, (int) this.length - digestedBytes, digest);
+    }
+    final byte[] calculatedHash = digest.digest();
     this.valid = Arrays.equals(calculatedHash, this.hash);
+    if (!this.valid) {
+      resetReceivedBlocks();
+    }
     logger.trace("validating result of piece {} is {}", this.index, this.valid);
 
     return this.isValid();
@@ -225,28 +312,145 @@ public class Piece implements Comparable<Piece>, PieceInformation {
     return this._read(offset, length, block);
   }
 
+  /**
+   * Create a region of this piece's data which can be transferred to a
+   * channel directly from the underlying storage.
+   *
+   * <p>
+   * Like {@link #read(long, int, ByteBuffer)}, this only succeeds if the
+   * piece is valid. The data itself is not read until the region is
+   * transferred.
+   * </p>
+   *
+   * @param offset Offset inside this piece where the region starts.
+   * @param length Number of bytes in the region.
+   * @throws IllegalArgumentException If <em>offset + length</em> goes over
+   *                                  the piece boundary.
+   * @throws IllegalStateException    If the piece is not valid.
+   */
+  public FileRegion createRegion(final int offset, final int length)
+          throws IllegalArgumentException, IllegalStateException {
+    if (!this.valid) {
+      throw new IllegalStateException("Attempting to send an " +
+              "known-to-be invalid piece!");
+    }
+    if (offset + (long) length > this.length) {
+      throw new IllegalArgumentException("Piece#" + this.index +
+              " overrun (" + offset + " + " + length + " > " +
+              this.length + ") !");
+    }
+
+    return new FileRegion() {
+      @Override
+      public long size() {
+        return length;
+      }
+
+      @Override
+      public long transferTo(WritableByteChannel target, long position, long count) throws IOException {
+        int count0 = (int) Math.min(count, length - position);
+        if (pieceStorage instanceof DirectPieceStorage) {
+          return ((DirectPieceStorage) pieceStorage).transferPiecePart(index, (int) (offset + position), count0, target);
+        }
+        return target.write(ByteBuffer.wrap(pieceStorage.readPiecePart(index, (int) (offset + position), count0)));
+      }
+
+      @Override
+      public String toString() {
+        return "region of " + Piece.this + " (" + length + "@" + offset + ")";
+      }
+    };
+  }
+
   /**
    * Record the given block at the given offset in this piece.
    *
+   * <p>
+   * The block is written to the underlying storage right away, unless the
+   * storage isn't a {@link DirectPieceStorage}. In that case the piece is
+   * assembled in memory and saved by {@link #finish()}. The block becomes
+   * readable for other peers only after the piece is validated and
+   * {@link #finish()}ed. If the block continues the already recorded part
+   * of the piece, it is also added to the running digest of the piece.
+   * A block which overwrites already hashed bytes discards the digest.
+   * </p>
+   *
+   * <p>
+   * Must be invoked under the piece monitor, like {@link #validate}.
+   * </p>
+   *
    * @param block  The ByteBuffer containing the block data.
    * @param offset The block offset in this piece.
    */
-  public void record(ByteBuffer block, int offset) {
-    if (this.data == null) {
-      // TODO: remove cast to int when large ByteBuffer support is
-      // implemented in Java.
-      this.data = ByteBuffer.allocate((int) this.length);
+  public void record(ByteBuffer block, int offset) throws IOException {
+    if (offset + (long) block.remaining() > this.length) {
+      throw new IllegalArgumentException("Piece#" + this.index +
+              " overrun (" + offset + " + " + block.remaining() + " > " +
+              this.length + ") !");
     }
 
     int pos = block.position();
-    this.data.position(offset);
-    this.data.put(block);
-    block.position(pos);
+    try {
+      if (this.pieceStorage instanceof DirectPieceStorage) {
+        ((DirectPieceStorage) this.pieceStorage).saveBlock(this.index, offset, block);
+      } else {
+        if (this.data == null) {
+          this.data = ByteBuffer.allocate((int) this.length);
+        }
+        this.data.position(offset);
+        this.data.put(block);
+      }
+    } finally {
+      block.position(pos);
+    }
+
+    if (offset == 0) {
+      if (this.digest == null) {
+        this.digest = TorrentUtils.createSha1Digest();
+      } else {
+        this.digest.reset();
+      }
+      this.digestedBytes = 0;
+    } else if (offset < this.digestedBytes) {
+      // already hashed bytes are overwritten, the whole piece is hashed from storage on validation
+      resetDigest();
+    }
+    // blocks after a gap or repeated ones are left for validation
+    if (this.digest != null && offset == this.digestedBytes) {
+      this.digestedBytes += block.remaining();
+      this.digest.update(block.duplicate());
+    }
+
+    if (offset % BLOCK_SIZE == 0 &&
+            block.remaining() == Math.min(BLOCK_SIZE, this.length - offset)) {
+      synchronized (this.receivedBlocks) {
+        this.receivedBlocks.set(offset / BLOCK_SIZE);
+      }
+    }
+  }
+
+  private void digestRecorded(int offset, int length, MessageDigest digest) throws IOException {
+    if (this.pieceStorage instanceof DirectPieceStorage) {
+      ((DirectPieceStorage) this.pieceStorage).digestPiecePart(this.index, offset, length, digest);
+    } else if (this.data != null) {
+      ByteBuffer part = this.data.duplicate();
+      part.limit(offset + length);
+      part.position(offset);
+      digest.update(part);
+    }
+  }
+
+  private void resetDigest() {
+    this.digest = null;
+    this.digestedBytes = 0;
   }
 
   public void finish() throws IOException {
-    this.data.rewind();
     logger.trace("Recording {}...", this);
+    if (pieceStorage instanceof DirectPieceStorage) {
+      ((DirectPieceStorage) pieceStorage).markPieceAvailable(index);
+      return;
+    }
     try {
       pieceStorage.savePiece(index, this.data.array());
     } finally {
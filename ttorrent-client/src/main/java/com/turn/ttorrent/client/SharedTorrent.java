@@ -17,12 +17,14 @@ package com.turn.ttorrent.client;
 
 import com.turn.ttorrent.Constants;
 import com.turn.ttorrent.client.peer.PeerActivityListener;
+import com.turn.ttorrent.client.peer.PieceRejectionListener;
 import com.turn.ttorrent.client.peer.SharingPeer;
 import com.turn.ttorrent.client.storage.PieceStorage;
 import com.turn.ttorrent.client.storage.TorrentByteStorage;
 import com.turn.ttorrent.client.strategy.*;
 import com.turn.ttorrent.common.Optional;
 import com.turn.ttorrent.common.*;
+import com.turn.ttorrent.common.protocol.PeerMessage;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -51,13 +53,27 @@ import java.util.concurrent.Future;
  *
  * @author mpetazzoni
  */
-public class SharedTorrent implements PeerActivityListener, TorrentMetadata, TorrentInfo {
+public class SharedTorrent implements PeerActivityListener, PieceRejectionListener, TorrentMetadata, TorrentInfo {
 
   private static final Logger logger =
           TorrentLoggerFactory.getLogger(SharedTorrent.class);
 
   private final static RequestStrategy DEFAULT_REQUEST_STRATEGY = new RequestStrategyImplAnyInteresting();
 
+  private final static PieceAvailabilityListener NO_AVAILABILITY_LISTENER = new PieceAvailabilityListener() {
+    @Override
+    public void pieceSeen(int pieceIndex) {
+    }
+
+    @Override
+    public void pieceLost(int pieceIndex) {
+    }
+
+    @Override
+    public void pieceCompleted(int pieceIndex, boolean completed) {
+    }
+  };
+
   /**
    * End-game trigger ratio.
    *
@@ -91,15 +107,19 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
   private final BitSet completedPieces;
   private final BitSet requestedPieces;
   private final RequestStrategy myRequestStrategy;
+  private final PieceAvailabilityListener myAvailabilityListener;
   private final EventDispatcher eventDispatcher;
 
   private final List<SharingPeer> myDownloaders = new CopyOnWriteArrayList<SharingPeer>();
   private final EndGameStrategy endGameStrategy = new EndGameStrategyImpl(2);
   private volatile long endGameEnabledOn = -1;
+  // blocks can be requested from several peers only in end-game mode, so only then they are cancelled
+  private volatile boolean isEndGame = false;
 
   private volatile ClientState clientState = ClientState.WAITING;
   private static final int MAX_VALIDATION_TASK_COUNT = 200;
   private static final int MAX_REQUESTED_PIECES_PER_TORRENT = 100;
+  private static final int MAX_REQUESTED_PIECES_PER_PEER = 50;
 
   /**
    * Create a new shared torrent from meta-info
@@ -120,6 +140,8 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
     }
     myTorrentTotalSize = totalSize;
     this.myRequestStrategy = requestStrategy;
+    this.myAvailabilityListener = requestStrategy instanceof PieceAvailabilityListener ?
+            (PieceAvailabilityListener) requestStrategy : NO_AVAILABILITY_LISTENER;
 
     this.pieceLength = myTorrentMetadata.getPieceLength();
     this.piecesHashes = ByteBuffer.wrap(myTorrentMetadata.getPiecesHashes());
@@ -263,6 +285,7 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
 
       if (piece.isValid()) {
         this.completedPieces.set(piece.getIndex());
+        myAvailabilityListener.pieceCompleted(piece.getIndex(), true);
       }
     }
   }
@@ -401,6 +424,7 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
     // this torrent.
     myTorrentStatistic.addLeft(-piece.size());
     this.completedPieces.set(piece.getIndex());
+    myAvailabilityListener.pieceCompleted(piece.getIndex(), true);
     if (completedPieces.cardinality() == getPiecesCount()) {
       logger.info("all pieces are received for torrent {}. Validating...", this);
     }
@@ -412,8 +436,11 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
     }
 
     removeValidationFuture(piece);
+    // the piece isn't valid or it wasn't validated, so all its blocks are downloaded again
+    piece.resetReceivedBlocks();
     myTorrentStatistic.addLeft(piece.size());
     this.completedPieces.clear(piece.getIndex());
+    myAvailabilityListener.pieceCompleted(piece.getIndex(), false);
   }
 
   public synchronized void removeValidationFuture(Piece piece) {
@@ -474,6 +501,86 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
     requestsCollection.sendAllRequests();
   }
 
+  /**
+   * Block receiving handler.
+   * <p/>
+   * <p>
+   * In end-game mode missing blocks are requested from several peers, so
+   * when one of them sends the block, requests of the others are cancelled.
+   * </p>
+   *
+   * @param peer   The peer we got the block from.
+   * @param piece  The piece of the block.
+   * @param offset The block offset in the piece.
+   */
+  public void handleBlockReceived(SharingPeer peer, Piece piece, int offset) {
+    if (!isEndGame) return;
+    for (SharingPeer other : myDownloaders) {
+      if (other != peer) {
+        other.cancelBlockRequest(piece, offset);
+      }
+    }
+  }
+
+  /**
+   * Tells whether the block is requested from a peer other than the given one.
+   * Only in end-game mode blocks are requested from several peers, so such a
+   * block can be accepted from any of them.
+   *
+   * @param peer   The peer we got the block from.
+   * @param piece  The piece of the block.
+   * @param offset The block offset in the piece.
+   * @param length The block length.
+   */
+  public boolean isBlockRequestedInEndGame(SharingPeer peer, Piece piece, int offset, int length) {
+    if (!isEndGame) return false;
+    for (SharingPeer other : myDownloaders) {
+      if (other != peer && other.isBlockRequested(piece, offset, length)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Piece rejection handler.
+   * <p/>
+   * <p>
+   * The piece is marked as not requested and it's requested at once from
+   * another peer which has it and is ready to serve it, the least busy peer
+   * is preferred. Otherwise the piece is chosen again by the next ready peer.
+   * </p>
+   *
+   * @param peer  The peer that rejected the piece.
+   * @param piece The rejected piece.
+   */
+  @Override
+  public void handlePieceRejected(SharingPeer peer, Piece piece) {
+    SharingPeer candidate = null;
+    synchronized (this) {
+      this.requestedPieces.set(piece.getIndex(), false);
+      if (this.completedPieces.get(piece.getIndex())) return;
+      for (SharingPeer other : myDownloaders) {
+        if (other == peer || !other.isConnected() ||
+                !other.getAvailablePieces().get(piece.getIndex()) ||
+                !other.canRequest(piece.getIndex()) ||
+                other.getDownloadingPiecesCount() >= getMaxRequestingPieces(other)) {
+          continue;
+        }
+        if (candidate == null || other.getDownloadingPiecesCount() < candidate.getDownloadingPiecesCount()) {
+          candidate = other;
+        }
+      }
+      if (candidate != null) {
+        this.requestedPieces.set(piece.getIndex());
+      }
+    }
+    logger.trace("Peer {} rejected {}, requesting it from {}", new Object[]{peer, piece, candidate});
+    if (candidate != null) {
+      candidate.downloadPiece(piece);
+    }
+  }
+
   @NotNull
   private synchronized RequestsCollection getRequestsCollection(final SharingPeer peer) {
     if (myValidationFutures.size() > MAX_VALIDATION_TASK_COUNT) return RequestsCollection.Empty.INSTANCE;
@@ -485,6 +592,7 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
     boolean turnOnEndGame = completedAndValidated > getPiecesCount() * ENG_GAME_COMPLETION_RATIO ||
             completedAndValidated > getPiecesCount() - END_GAME_STATIC_PIECES_COUNT;
     if (turnOnEndGame) {
+      isEndGame = true;
       long now = System.currentTimeMillis();
       if (now - END_GAME_INVOCATION_PERIOD_MS > endGameEnabledOn) {
         endGameEnabledOn = now;
@@ -499,8 +607,14 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
     final BitSet interesting = peer.getAvailablePieces();
     interesting.andNot(this.completedPieces);
     interesting.andNot(this.requestedPieces);
+    if (peer.isFastExtension() && peer.isChoked()) {
+      // only allowed fast pieces are served before the first unchoke
+      interesting.and(peer.getAllowedFastPieces());
+    }
+    final BitSet suggested = peer.getSuggestedPieces();
+    suggested.and(interesting);
 
-    int maxRequestingPieces = Math.min(10, interesting.cardinality());
+    int maxRequestingPieces = Math.min(getMaxRequestingPieces(peer), interesting.cardinality());
     int currentlyDownloading = peer.getDownloadingPiecesCount();
     Map<Piece, List<SharingPeer>> toRequest = new HashMap<Piece, List<SharingPeer>>();
     while (currentlyDownloading < maxRequestingPieces) {
@@ -512,7 +626,8 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
         return RequestsCollection.Empty.INSTANCE;
       }
 
-      Piece chosen = myRequestStrategy.choosePiece(interesting, pieces);
+      int suggestedIndex = suggested.nextSetBit(0);
+      Piece chosen = suggestedIndex >= 0 ? pieces[suggestedIndex] : myRequestStrategy.choosePiece(interesting, pieces);
       if (chosen == null) {
         logger.info("chosen piece is null");
         break;
@@ -521,11 +636,21 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
       currentlyDownloading++;
       toRequest.put(chosen, Collections.singletonList(peer));
       interesting.clear(chosen.getIndex());
+      suggested.clear(chosen.getIndex());
     }
 
     return new RequestsCollectionImpl(toRequest);
   }
 
+  /**
+   * @return count of pieces which must be requested from the peer to keep its request pipeline full
+   */
+  private int getMaxRequestingPieces(SharingPeer peer) {
+    long pipelineBytes = (long) peer.getRequestPipelineDepth() * PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE;
+    // one more piece to have blocks to request while the last blocks of other pieces are in flight
+    return (int) Math.min(MAX_REQUESTED_PIECES_PER_PEER, (pipelineBytes + pieceLength - 1) / pieceLength + 1);
+  }
+
   public synchronized void initIfNecessary(SharingPeer peer) {
     if (!isInitialized()) {
       try {
@@ -562,6 +687,7 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
     }
 
     piece.seenAt(peer);
+    myAvailabilityListener.pieceSeen(piece.getIndex());
 
     logger.trace("Peer {} contributes {} piece(s) [{}/{}/{}].",
             new Object[]{
@@ -572,7 +698,7 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
                     this.pieces.length
             });
 
-    if (!peer.isChoked() &&
+    if (peer.canRequest(piece.getIndex()) &&
             peer.isInteresting() &&
             !peer.isDownloading()) {
       this.handlePeerReady(peer);
@@ -590,13 +716,13 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
    * </p>
    *
    * @param peer            The peer we got the update from.
-   * @param availablePieces The pieces availability bit field of the peer.
+   * @param availablePieces The pieces which became available from the peer.
    */
   @Override
   public void handleBitfieldAvailability(SharingPeer peer,
                                          BitSet availablePieces) {
     // Determine if the peer is interesting for us or not, and notify it.
-    BitSet interesting = (BitSet) availablePieces.clone();
+    BitSet interesting = peer.getAvailablePieces();
     synchronized (this) {
       interesting.andNot(this.completedPieces);
       interesting.andNot(this.requestedPieces);
@@ -605,6 +731,7 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
     for (int i = availablePieces.nextSetBit(0); i >= 0;
          i = availablePieces.nextSetBit(i + 1)) {
       this.pieces[i].seenAt(peer);
+      myAvailabilityListener.pieceSeen(i);
     }
 
     if (interesting.cardinality() == 0) {
@@ -616,7 +743,7 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
     logger.debug("Peer {} contributes {} piece(s), total pieces count: {}.",
             new Object[]{
                     peer,
-                    availablePieces.cardinality(),
+                    peer.getAvailablePieces().cardinality(),
                     myTorrentMetadata.getPiecesCount()
             });
   }
@@ -693,6 +820,7 @@ public class SharedTorrent implements PeerActivityListener, TorrentMetadata, Tor
     for (int i = availablePieces.nextSetBit(0); i >= 0;
          i = availablePieces.nextSetBit(i + 1)) {
       this.pieces[i].noLongerAt(peer);
+      myAvailabilityListener.pieceLost(i);
     }
 
     Set<Piece> requested = peer.getRequestedPieces();
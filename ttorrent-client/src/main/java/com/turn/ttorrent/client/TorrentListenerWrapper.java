@@ -1,6 +1,6 @@
 package com.turn.ttorrent.client;
 
-public class TorrentListenerWrapper implements TorrentListener {
+public class TorrentListenerWrapper implements TorrentListener, ValidationProgressListener {
 
   @Override
   public void peerConnected(PeerInformation peerInformation) {
@@ -36,4 +36,9 @@ public class TorrentListenerWrapper implements TorrentListener {
   public void validationComplete(int validpieces, int totalpieces) {
 
   }
+
+  @Override
+  public void validationProgress(int checkedpieces, int validpieces, int totalpieces) {
+
+  }
 }
@@ -1,6 +1,6 @@
 package com.turn.ttorrent.client;
 
-import com.turn.ttorrent.client.strategy.RequestStrategyImplAnyInteresting;
+import com.turn.ttorrent.client.strategy.RequestStrategyImplRarestFirst;
 import com.turn.ttorrent.common.TorrentMetadata;
 import org.jetbrains.annotations.NotNull;
 
@@ -34,7 +34,7 @@ public class TorrentLoaderImpl implements TorrentLoader {
     }
 
     final SharedTorrent sharedTorrent = new SharedTorrent(torrentMetadata, loadedTorrent.getPieceStorage(),
-            new RequestStrategyImplAnyInteresting(),
+            new RequestStrategyImplRarestFirst(),
             loadedTorrent.getTorrentStatistic(), loadedTorrent.getEventDispatcher());
 
     old = myTorrentsStorage.putIfAbsentActiveTorrent(hexInfoHash, sharedTorrent);
@@ -0,0 +1,20 @@
+package com.turn.ttorrent.client;
+
+/**
+ * Optional listener of checking of existing data of torrent. {@link TorrentListener}s which
+ * implement this interface are notified about the progress too
+ */
+public interface ValidationProgressListener {
+
+  /**
+   * Invoked periodically while existing data of torrent is being validated.
+   * Can be invoked from threads of the validation executor
+   *
+   * @param checkedpieces count of already checked pieces
+   * @param validpieces   count of valid pieces among checked ones
+   * @param totalpieces   count of pieces which are checked, it's less than pieces count in torrent
+   *                      if state of some pieces is trusted (e.g. restored from the previous session)
+   */
+  void validationProgress(int checkedpieces, int validpieces, int totalpieces);
+
+}
@@ -15,6 +15,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.text.ParseException;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 
 public class HandshakeReceiver implements DataProcessor {
@@ -112,6 +113,7 @@ public class HandshakeReceiver implements DataProcessor {
                     socketChannel,
                     clientType,
                     clientVersion);
+    sharingPeer.setFastExtension(hs.isFastExtensionSupported());
     PeerUID peerUID = new PeerUID(sharingPeer.getAddress(), hs.getHexInfoHash());
 
     SharingPeer old = myContext.getPeersStorage().putIfAbsent(peerUID, sharingPeer);
@@ -135,7 +137,9 @@ public class HandshakeReceiver implements DataProcessor {
     logger.debug("setup new connection with {}", sharingPeer);
 
     try {
-      myContext.getExecutor().submit(new Runnable() {
+      //connection is established in the mailbox of the peer before its first message is handled
+      Executor mailbox = sharingPeer.getMailbox();
+      (mailbox == null ? myContext.getExecutor() : mailbox).execute(new Runnable() {
         @Override
         public void run() {
           try {
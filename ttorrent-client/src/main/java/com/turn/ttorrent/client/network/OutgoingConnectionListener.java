@@ -5,7 +5,7 @@ import com.turn.ttorrent.common.TorrentHash;
 import com.turn.ttorrent.network.ConnectionListener;
 
 import java.io.IOException;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ByteChannel;
 
 public class OutgoingConnectionListener implements ConnectionListener {
 
@@ -27,12 +27,12 @@ public class OutgoingConnectionListener implements ConnectionListener {
   }
 
   @Override
-  public void onNewDataAvailable(SocketChannel socketChannel) throws IOException {
+  public void onNewDataAvailable(ByteChannel socketChannel) throws IOException {
     this.myNext = this.myNext.processAndGetNext(socketChannel);
   }
 
   @Override
-  public void onConnectionEstablished(SocketChannel socketChannel) throws IOException {
+  public void onConnectionEstablished(ByteChannel socketChannel) throws IOException {
     HandshakeSender handshakeSender = new HandshakeSender(
             torrentHash,
             myRemotePeerIp,
@@ -42,7 +42,7 @@ public class OutgoingConnectionListener implements ConnectionListener {
   }
 
   @Override
-  public void onError(SocketChannel socketChannel, Throwable ex) throws IOException {
+  public void onError(ByteChannel socketChannel, Throwable ex) throws IOException {
     this.myNext.handleError(socketChannel, ex);
   }
 }
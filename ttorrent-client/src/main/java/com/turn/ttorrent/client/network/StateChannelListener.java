@@ -2,8 +2,11 @@ package com.turn.ttorrent.client.network;
 
 import com.turn.ttorrent.client.Context;
 import com.turn.ttorrent.network.ConnectionListener;
+import com.turn.ttorrent.network.utp.UtpConnection;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SocketChannel;
 
 public class StateChannelListener implements ConnectionListener {
@@ -17,21 +20,30 @@ public class StateChannelListener implements ConnectionListener {
   }
 
   @Override
-  public void onNewDataAvailable(SocketChannel socketChannel) throws IOException {
+  public void onNewDataAvailable(ByteChannel socketChannel) throws IOException {
     this.myNext = this.myNext.processAndGetNext(socketChannel);
   }
 
   @Override
-  public void onConnectionEstablished(SocketChannel socketChannel) throws IOException {
+  public void onConnectionEstablished(ByteChannel socketChannel) throws IOException {
+    InetSocketAddress remoteAddress = getRemoteAddress(socketChannel);
     this.myNext = new HandshakeReceiver(
             myContext,
-            socketChannel.socket().getInetAddress().getHostAddress(),
-            socketChannel.socket().getPort(),
+            remoteAddress.getAddress().getHostAddress(),
+            remoteAddress.getPort(),
             false);
   }
 
+  private static InetSocketAddress getRemoteAddress(ByteChannel channel) {
+    if (channel instanceof UtpConnection) {
+      return ((UtpConnection) channel).getRemoteAddress();
+    }
+    SocketChannel socketChannel = (SocketChannel) channel;
+    return new InetSocketAddress(socketChannel.socket().getInetAddress(), socketChannel.socket().getPort());
+  }
+
   @Override
-  public void onError(SocketChannel socketChannel, Throwable ex) throws IOException {
+  public void onError(ByteChannel socketChannel, Throwable ex) throws IOException {
     this.myNext = this.myNext.handleError(socketChannel, ex);
   }
 }
@@ -7,150 +7,304 @@ import com.turn.ttorrent.common.LoggerUtils;
 import com.turn.ttorrent.common.PeerUID;
 import com.turn.ttorrent.common.TorrentLoggerFactory;
 import com.turn.ttorrent.common.protocol.PeerMessage;
-import org.jetbrains.annotations.NotNull;
+import com.turn.ttorrent.common.protocol.PeerMessageView;
+import com.turn.ttorrent.network.TokenBucket;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.text.ParseException;
-import java.util.Arrays;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 
 public class WorkingReceiver implements DataProcessor {
 
   private static final Logger logger = TorrentLoggerFactory.getLogger(WorkingReceiver.class);
-  //16 bytes is sufficient for all torrents messages except bitfield and piece.
-  //So piece and bitfield have dynamic size because bytebuffer for this messages will be allocated after get message length
-  private static final int DEF_BUFFER_SIZE = 16;
+  //data is read from the channel by large chunks and all complete messages are framed in one pass,
+  //so storms of small messages (have, bitfield exchange) don't cost syscall per message
+  static final int READ_BUFFER_SIZE = 64 * 1024;
+  //messages up to this size are copied together to one heap buffer per read, larger messages (e.g. piece)
+  //are copied to own pooled buffers
+  private static final int SMALL_MESSAGE_SIZE = 256;
   private static final int MAX_MESSAGE_SIZE = 2 * 1024 * 1024;
 
   private final PeerUID myPeerUID;
   private final Context myContext;
-  @NotNull
-  private ByteBuffer messageBytes;
-  private int pstrLength;
+  //read data which isn't framed yet. It's acquired from the pool when reading starts and it's returned
+  //to the pool when it doesn't contain partial message, so idle connections don't hold buffers
+  @Nullable
+  private ByteBuffer myReadBuffer;
+  //message which is larger than the read buffer, rest of it is read directly into own buffer
+  @Nullable
+  private ByteBuffer myLargeMessage;
+  //validates messages in the selector thread, so invalid messages close the connection immediately
+  private final PeerMessageView myView = new PeerMessageView();
+  //read bytes are taken from the bucket, reading is suspended by the connection manager when it is exhausted
+  @Nullable
+  private final TokenBucket myDownloadBucket;
 
   WorkingReceiver(PeerUID peerId,
                          Context context) {
     myPeerUID = peerId;
     myContext = context;
-
-    this.messageBytes = ByteBuffer.allocate(DEF_BUFFER_SIZE);
-    this.pstrLength = -1;
+    SharingPeer peer = context.getPeersStorage().getSharingPeer(peerId);
+    myDownloadBucket = peer == null ? null : peer.getDownloadBucket();
   }
 
   @Override
   public DataProcessor processAndGetNext(ByteChannel socketChannel) throws IOException {
     logger.trace("received data from channel", socketChannel);
-    if (pstrLength == -1) {
-      messageBytes.limit(PeerMessage.MESSAGE_LENGTH_FIELD_SIZE);
-      final int read;
-      try {
-        read = socketChannel.read(messageBytes);
-      } catch (IOException e) {
-        //Some clients close connection so that java throws IOException "An existing connection was forcibly closed by the remote host"
-        logger.debug("unable to read data from channel " + socketChannel, e);
-        return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
-      }
-      if (read < 0) {
-        logger.debug("channel {} is closed by other peer", socketChannel);
-        return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
+    if (myLargeMessage != null) {
+      if (read(socketChannel, myLargeMessage) < 0) {
+        return shutdown(socketChannel);
       }
-      if (messageBytes.hasRemaining()) {
+      if (myLargeMessage.hasRemaining()) {
+        logger.trace("message is not read completely, continue reading...");
         return this;
       }
-      this.pstrLength = messageBytes.getInt(0);
-      logger.trace("read of message length finished, Message length is {}", this.pstrLength);
-
-      if (this.pstrLength > MAX_MESSAGE_SIZE) {
-        logger.warn("Proposed limit of {} is larger than max message size {}",
-                PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + this.pstrLength, MAX_MESSAGE_SIZE);
-        logger.warn("current bytes in buffer is {}", Arrays.toString(messageBytes.array()));
-        logger.warn("Close connection with peer {}", myPeerUID);
-        return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
+      final ByteBuffer message = myLargeMessage;
+      myLargeMessage = null;
+      message.flip();
+      final SharingPeer peer = myContext.getPeersStorage().getSharingPeer(myPeerUID);
+      final SharedTorrent torrent = getTorrent(peer);
+      if (torrent == null || !validate(message, peer, torrent) || !submit(message, true, peer, torrent)) {
+        return shutdown(socketChannel);
       }
+      return this;
     }
 
-    if (PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + this.pstrLength > messageBytes.capacity()) {
-      ByteBuffer old = messageBytes;
-      old.rewind();
-      messageBytes = ByteBuffer.allocate(PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + this.pstrLength);
-      messageBytes.put(old);
+    if (myReadBuffer == null) {
+      myReadBuffer = myContext.getBufferPool().acquire(READ_BUFFER_SIZE);
     }
-
-    messageBytes.limit(PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + this.pstrLength);
-
-    logger.trace("try read data from {}", socketChannel);
-    int readBytes;
-    try {
-      readBytes = socketChannel.read(messageBytes);
-    } catch (IOException e) {
-      return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
+    if (read(socketChannel, myReadBuffer) < 0) {
+      return shutdown(socketChannel);
     }
-    if (readBytes < 0) {
-      logger.debug("channel {} is closed by other peer", socketChannel);
-      return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
+    myReadBuffer.flip();
+    if (!processMessages(socketChannel)) {
+      return shutdown(socketChannel);
     }
-    if (messageBytes.hasRemaining()) {
-      logger.trace("buffer is not full, continue reading...");
-      return this;
+    if (myReadBuffer.hasRemaining()) {
+      myReadBuffer.compact();
+    } else {
+      myContext.getBufferPool().release(myReadBuffer);
+      myReadBuffer = null;
     }
-    logger.trace("finished read data from {}", socketChannel);
+    return this;
+  }
 
-    messageBytes.rewind();
-    this.pstrLength = -1;
+  /**
+   * Frames and handles all complete messages from the read buffer. Partial message is left in the buffer
+   * or it's moved to own buffer if it doesn't fit in the read buffer
+   *
+   * @return false if connection must be closed
+   */
+  private boolean processMessages(ByteChannel socketChannel) {
+    final ByteBuffer readBuffer = myReadBuffer;
+    SharingPeer peer = null;
+    SharedTorrent torrent = null;
+    //small messages are handled by one task, so the whole read costs one allocation and one task
+    ByteBuffer smallMessages = null;
+    while (readBuffer.remaining() >= PeerMessage.MESSAGE_LENGTH_FIELD_SIZE) {
+      final int length = readBuffer.getInt(readBuffer.position());
+      logger.trace("message length is {}", length);
+      if (length < 0 || length > MAX_MESSAGE_SIZE) {
+        logger.warn("Proposed limit of {} is larger than max message size {}",
+                PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + length, MAX_MESSAGE_SIZE);
+        logger.warn("Close connection with peer {}", myPeerUID);
+        return false;
+      }
+      final int messageSize = PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + length;
+      if (messageSize > readBuffer.capacity()) {
+        myLargeMessage = myContext.getBufferPool().acquire(messageSize);
+        myLargeMessage.put(readBuffer);
+        break;
+      }
+      if (readBuffer.remaining() < messageSize) {
+        logger.trace("message is not read completely, continue reading...");
+        break;
+      }
+
+      if (torrent == null) {
+        peer = myContext.getPeersStorage().getSharingPeer(myPeerUID);
+        torrent = getTorrent(peer);
+        if (torrent == null) return false;
+      }
+
+      if (messageSize <= SMALL_MESSAGE_SIZE && smallMessages == null) {
+        smallMessages = ByteBuffer.allocate(getSmallMessagesSize(readBuffer));
+      }
+      final int limit = readBuffer.limit();
+      readBuffer.limit(readBuffer.position() + messageSize);
+      if (!validate(readBuffer, peer, torrent)) return false;
+      if (messageSize <= SMALL_MESSAGE_SIZE) {
+        smallMessages.put(readBuffer);
+        readBuffer.limit(limit);
+        continue;
+      }
+      //order of messages is kept: small messages before the large one are submitted first
+      if (smallMessages != null) {
+        smallMessages.flip();
+        if (!submit(smallMessages, false, peer, torrent)) return false;
+        smallMessages = null;
+      }
+      final ByteBuffer message = myContext.getBufferPool().acquire(messageSize);
+      message.put(readBuffer);
+      readBuffer.limit(limit);
+      message.flip();
+      if (!submit(message, true, peer, torrent)) return false;
+    }
+    if (smallMessages != null) {
+      smallMessages.flip();
+      return submit(smallMessages, false, peer, torrent);
+    }
+    return true;
+  }
 
-    final SharingPeer peer = myContext.getPeersStorage().getSharingPeer(myPeerUID);
+  /**
+   * @return total size of complete small messages from current position of the buffer to its limit
+   */
+  private static int getSmallMessagesSize(ByteBuffer buffer) {
+    final int limit = buffer.limit();
+    int size = 0;
+    int position = buffer.position();
+    while (limit - position >= PeerMessage.MESSAGE_LENGTH_FIELD_SIZE) {
+      int messageSize = PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + buffer.getInt(position);
+      if (messageSize < PeerMessage.MESSAGE_LENGTH_FIELD_SIZE || limit - position < messageSize) break;
+      if (messageSize <= SMALL_MESSAGE_SIZE) {
+        size += messageSize;
+      }
+      position += messageSize;
+    }
+    return size;
+  }
 
+  @Nullable
+  private SharedTorrent getTorrent(SharingPeer peer) {
     final String hexInfoHash = peer.getHexInfoHash();
     SharedTorrent torrent = myContext.getTorrentsStorage().getTorrent(hexInfoHash);
     if (torrent == null || !myContext.getTorrentsStorage().hasTorrent(hexInfoHash)) {
       logger.debug("torrent with hash {} for peer {} doesn't found in storage. Maybe somebody deletes it manually", hexInfoHash, peer);
-      return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
+      return null;
     }
+    return torrent;
+  }
 
-    logger.trace("try parse message from {}. Torrent {}", peer, torrent);
-    ByteBuffer bufferCopy = ByteBuffer.wrap(Arrays.copyOf(messageBytes.array(), messageBytes.limit()));
-
-    this.messageBytes = ByteBuffer.allocate(DEF_BUFFER_SIZE);
-    final PeerMessage message;
-
+  /**
+   * Validates the message between position and limit of the buffer
+   *
+   * @return false if connection must be closed
+   */
+  private boolean validate(ByteBuffer message, SharingPeer peer, SharedTorrent torrent) {
     try {
-      message = PeerMessage.parse(bufferCopy, torrent);
+      myView.wrap(message, torrent);
+      logger.trace("get message {} from {}", myView, peer);
+      return true;
     } catch (ParseException e) {
       LoggerUtils.warnAndDebugDetails(logger, "incorrect message was received from peer {}", peer, e);
-      return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
+      return false;
     }
+  }
 
-    logger.trace("get message {} from {}", message, socketChannel);
-
+  /**
+   * Submits validated messages to the mailbox of the peer. The buffer is released when messages are handled
+   *
+   * @param messages buffer with one or more messages between its position and limit
+   * @return false if connection must be closed
+   */
+  private boolean submit(final ByteBuffer messages,
+                         final boolean isPooled,
+                         final SharingPeer peer,
+                         final SharedTorrent torrent) {
     try {
-      myContext.getExecutor().submit(new Runnable() {
+      //messages of the peer are handled in its mailbox, so they are handled in order and not concurrently
+      getMessageExecutor(peer).execute(new Runnable() {
         @Override
         public void run() {
-          final Thread currentThread = Thread.currentThread();
-          final String oldName = currentThread.getName();
           try {
-            currentThread.setName(oldName + " handle message for torrent " + myPeerUID.getTorrentHash() + " peer: " + peer.getHostIdentifier());
-            peer.handleMessage(message);
-          } catch (Throwable e) {
-            LoggerUtils.warnAndDebugDetails(logger, "unhandled exception {} in executor task (handleMessage)", e.toString(), e);
+            handleMessages(messages, peer, torrent);
           } finally {
-            currentThread.setName(oldName);
+            //messages (e.g. block of piece message) are not used after handling
+            releaseIfPooled(messages, isPooled);
           }
-
         }
       });
     } catch (RejectedExecutionException e) {
+      releaseIfPooled(messages, isPooled);
       LoggerUtils.warnAndDebugDetails(logger, "task submit is failed. Reason: {}", e.getMessage(), e);
-      return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
+      return false;
     }
-    return this;
+    return true;
+  }
+
+  private static void handleMessages(ByteBuffer messages, SharingPeer peer, SharedTorrent torrent) {
+    final PeerMessageView view = new PeerMessageView();
+    final int limit = messages.limit();
+    while (messages.position() < limit) {
+      final int end = messages.position() + PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + messages.getInt(messages.position());
+      messages.limit(end);
+      try {
+        peer.handleMessage(view.wrap(messages, torrent));
+      } catch (Throwable e) {
+        LoggerUtils.warnAndDebugDetails(logger, "unhandled exception {} in executor task (handleMessage)", e.toString(), e);
+      }
+      messages.limit(limit);
+      messages.position(end);
+    }
+  }
+
+  /**
+   * @return count of read bytes or -1 if the channel is closed
+   */
+  private int read(ByteChannel socketChannel, ByteBuffer buffer) {
+    final int read;
+    try {
+      read = socketChannel.read(buffer);
+    } catch (IOException e) {
+      //Some clients close connection so that java throws IOException "An existing connection was forcibly closed by the remote host"
+      logger.debug("unable to read data from channel " + socketChannel, e);
+      return -1;
+    }
+    if (read < 0) {
+      logger.debug("channel {} is closed by other peer", socketChannel);
+      return -1;
+    }
+    consumeBandwidth(read);
+    return read;
+  }
+
+  private Executor getMessageExecutor(SharingPeer peer) {
+    Executor mailbox = peer.getMailbox();
+    return mailbox == null ? myContext.getExecutor() : mailbox;
+  }
+
+  private void consumeBandwidth(int readBytes) {
+    if (myDownloadBucket != null) {
+      myDownloadBucket.consume(readBytes, System.currentTimeMillis());
+    }
+  }
+
+  private void releaseIfPooled(ByteBuffer buffer, boolean isPooled) {
+    if (isPooled) {
+      myContext.getBufferPool().release(buffer);
+    }
+  }
+
+  private DataProcessor shutdown(ByteChannel socketChannel) throws IOException {
+    if (myReadBuffer != null) {
+      myContext.getBufferPool().release(myReadBuffer);
+      myReadBuffer = null;
+    }
+    if (myLargeMessage != null) {
+      myContext.getBufferPool().release(myLargeMessage);
+      myLargeMessage = null;
+    }
+    return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
   }
 
   @Override
   public DataProcessor handleError(ByteChannel socketChannel, Throwable e) throws IOException {
-    return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
+    return shutdown(socketChannel);
   }
 }
@@ -60,7 +60,8 @@ public interface PeerActivityListener extends EventListener {
    *
    * <p>
    * This handler is fired when an update in piece availability is received
-   * from a peer's HAVE message.
+   * from a peer's HAVE message. It isn't fired again if the peer announces
+   * a piece it already has.
    * </p>
    *
    * @param peer  The peer we got the update from.
@@ -77,7 +78,9 @@ public interface PeerActivityListener extends EventListener {
    * </p>
    *
    * @param peer            The peer we got the update from.
-   * @param availablePieces The pieces availability bit field of the peer.
+   * @param availablePieces The pieces which became available from this peer
+   *                        with the message, all pieces of the peer are
+   *                        returned by {@link SharingPeer#getAvailablePieces()}.
    */
   void handleBitfieldAvailability(SharingPeer peer,
                                   BitSet availablePieces);
@@ -0,0 +1,24 @@
+package com.turn.ttorrent.client.peer;
+
+import java.util.EventListener;
+
+/**
+ * Optional listener of interest of peers in our pieces. {@link PeerActivityListener}s
+ * of a peer which implement this interface are notified too
+ */
+public interface PeerInterestListener extends EventListener {
+
+  /**
+   * Peer interested handler.
+   *
+   * <p>
+   * This handler is fired when a peer notified that it is interested in our
+   * pieces. It's up to the choking algorithm to decide whether the peer
+   * should be unchoked.
+   * </p>
+   *
+   * @param peer The peer that became interested.
+   */
+  void handlePeerInterested(SharingPeer peer);
+
+}
@@ -0,0 +1,28 @@
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.client.Piece;
+
+import java.util.EventListener;
+
+/**
+ * Optional listener of pieces which peers refused to send. {@link PeerActivityListener}s
+ * of a peer which implement this interface are notified too
+ */
+public interface PieceRejectionListener extends EventListener {
+
+  /**
+   * Piece rejection handler.
+   *
+   * <p>
+   * This handler is fired when a peer supporting the fast extension rejected
+   * our requests of the piece, or choked us while they were outstanding. The
+   * piece is no longer requested from this peer and should be requested from
+   * other peers.
+   * </p>
+   *
+   * @param peer  The peer that rejected the piece.
+   * @param piece The rejected piece.
+   */
+  void handlePieceRejected(SharingPeer peer, Piece piece);
+
+}
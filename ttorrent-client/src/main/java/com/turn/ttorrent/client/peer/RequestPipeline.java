@@ -0,0 +1,123 @@
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.common.protocol.PeerMessage;
+
+/**
+ * Estimates count of block requests which should be sent to a peer without waiting for answers.
+ *
+ * <p>
+ * To keep the link busy the count of outstanding requests must cover the bandwidth-delay
+ * product of the connection. The pipeline measures round-trip time of requests and download
+ * rate of the peer and keeps the depth a bit larger than the product, so the depth grows
+ * while the rate grows and stops when the rate is limited by the link or the peer.
+ * </p>
+ *
+ * <p>
+ * Round-trip time of a request includes time which it waits in the queue of the peer behind
+ * other outstanding requests, and it grows with the depth. So the product is calculated with
+ * base round-trip time: the minimum of measured times. An answer to a request which was sent
+ * when no other requests were outstanding isn't delayed by queueing, it replaces the base time,
+ * so the base follows changes of the path.
+ * </p>
+ */
+public class RequestPipeline {
+
+  public static final int DEFAULT_MIN_DEPTH = 4;
+  public static final int DEFAULT_MAX_DEPTH = 512;
+
+  private static final long RATE_WINDOW_MS = 500;
+  private static final float RATE_GAIN = 0.5f;
+  private static final float DEPTH_HEADROOM = 1.5f;
+
+  private int myMinDepth;
+  private int myMaxDepth;
+
+  private long myBaseRttMs = -1;
+  // bytes per millisecond
+  private float myRate = 0;
+  private long myWindowStart = -1;
+  private long myWindowBytes = 0;
+  private int myDepth;
+
+  public RequestPipeline() {
+    this(DEFAULT_MIN_DEPTH, DEFAULT_MAX_DEPTH);
+  }
+
+  public RequestPipeline(int minDepth, int maxDepth) {
+    setLimits(minDepth, maxDepth);
+  }
+
+  public synchronized void setLimits(int minDepth, int maxDepth) {
+    if (minDepth <= 0 || maxDepth < minDepth) {
+      throw new IllegalArgumentException("Invalid pipeline depth limits: " + minDepth + ".." + maxDepth);
+    }
+    myMinDepth = minDepth;
+    myMaxDepth = maxDepth;
+    myDepth = clamp(myDepth);
+  }
+
+  /**
+   * Records an answer to the request which was sent while other requests were outstanding
+   *
+   * @param rttMs time between sending of the request and receiving of the block
+   * @param bytes size of the block
+   * @param now   current time in milliseconds
+   */
+  public void blockReceived(long rttMs, int bytes, long now) {
+    blockReceived(rttMs, bytes, now, false);
+  }
+
+  /**
+   * Records an answer to the request
+   *
+   * @param rttMs         time between sending of the request and receiving of the block
+   * @param bytes         size of the block
+   * @param now           current time in milliseconds
+   * @param firstInFlight true if no other requests were outstanding when the request was sent
+   */
+  public synchronized void blockReceived(long rttMs, int bytes, long now, boolean firstInFlight) {
+    if (rttMs >= 0 && (firstInFlight || myBaseRttMs < 0 || rttMs < myBaseRttMs)) {
+      myBaseRttMs = rttMs;
+    }
+
+    if (myWindowStart < 0) {
+      myWindowStart = now;
+    }
+    myWindowBytes += bytes;
+    long elapsed = now - myWindowStart;
+    if (elapsed >= RATE_WINDOW_MS) {
+      float windowRate = (float) myWindowBytes / elapsed;
+      myRate = myRate == 0 ? windowRate : myRate + RATE_GAIN * (windowRate - myRate);
+      myWindowStart = now;
+      myWindowBytes = 0;
+      updateDepth();
+    } else if (myRate == 0 && myBaseRttMs > 0) {
+      // no rate estimation yet: grow like slow start, every answered request allows one more
+      myDepth = clamp(myDepth + 1);
+    }
+  }
+
+  /**
+   * @return count of requests which can be outstanding now
+   */
+  public synchronized int getDepth() {
+    return myDepth;
+  }
+
+  /**
+   * @return base round-trip time in milliseconds or -1 if it isn't measured yet
+   */
+  public synchronized long getRttMs() {
+    return myBaseRttMs;
+  }
+
+  private void updateDepth() {
+    if (myBaseRttMs < 0) return;
+    float bdpBlocks = myRate * myBaseRttMs / PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE;
+    myDepth = clamp((int) Math.ceil(bdpBlocks * DEPTH_HEADROOM) + 1);
+  }
+
+  private int clamp(int depth) {
+    return Math.max(myMinDepth, Math.min(myMaxDepth, depth));
+  }
+}
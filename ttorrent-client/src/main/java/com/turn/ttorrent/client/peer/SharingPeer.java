@@ -20,11 +20,19 @@ import com.turn.ttorrent.client.Piece;
 import com.turn.ttorrent.client.SharedTorrent;
 import com.turn.ttorrent.common.LoggerUtils;
 import com.turn.ttorrent.common.Peer;
+import com.turn.ttorrent.common.SerialExecutor;
+import com.turn.ttorrent.common.SystemTimeService;
+import com.turn.ttorrent.common.TimeService;
 import com.turn.ttorrent.common.TorrentLoggerFactory;
 import com.turn.ttorrent.common.TorrentUtils;
 import com.turn.ttorrent.common.protocol.PeerMessage;
+import com.turn.ttorrent.common.protocol.PeerMessageHandler;
+import com.turn.ttorrent.common.protocol.PeerMessageView;
 import com.turn.ttorrent.network.ConnectionClosedException;
 import com.turn.ttorrent.network.ConnectionManager;
+import com.turn.ttorrent.network.FileRegion;
+import com.turn.ttorrent.network.TimerWheel;
+import com.turn.ttorrent.network.TokenBucket;
 import com.turn.ttorrent.network.WriteListener;
 import com.turn.ttorrent.network.WriteTask;
 import org.jetbrains.annotations.Nullable;
@@ -32,9 +40,13 @@ import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -75,6 +87,13 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
 
   private static final Logger logger = TorrentLoggerFactory.getLogger(SharingPeer.class);
 
+  public static final long DEFAULT_MAX_QUEUED_UPLOAD_BYTES = 2 * 1024 * 1024;
+  public static final long REQUEST_TIMEOUT_MS = 60 * 1000;
+  /**
+   * Count of pieces which a peer supporting the fast extension can request while it is choked
+   */
+  public static final int ALLOWED_FAST_SET_SIZE = 10;
+
   private final Object availablePiecesLock;
   private volatile boolean choking;
   private volatile boolean interesting;
@@ -83,7 +102,41 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
   private final SharedTorrent torrent;
   private final BitSet availablePieces;
   private BitSet poorlyAvailablePieces;
+  // pieces which the peer allows us to request while we are choked, guarded by availablePiecesLock
+  private final BitSet myAllowedFastPieces;
+  // pieces which the peer suggested to download, guarded by availablePiecesLock
+  private final BitSet mySuggestedPieces;
+  // pieces which we allow the peer to request while it is choked
+  private volatile BitSet myGrantedFastPieces;
+  private volatile boolean myFastExtension;
   private final Map<Piece, Integer> myRequestedPieces;
+  // block requests which are waiting for free place in the pipeline
+  private final LinkedList<PeerMessage.RequestMessage> myPendingRequests;
+  // block requests which are sent and are not answered yet
+  private final Map<Long, PeerMessage.RequestMessage> mySentRequests;
+  // key of the request which was sent when no other requests were outstanding or -1, guarded by requestsLock
+  private long myFirstInFlightRequestKey = -1;
+  private final RequestPipeline myRequestPipeline;
+  // block requests of the peer which wait for reading from the storage
+  private final UploadQueue myUploadQueue;
+  // guarded by myUploadQueue
+  private boolean myUploadsScheduled;
+  private volatile long myMaxQueuedUploadBytes;
+  private volatile boolean myUploadReadAhead;
+  @Nullable
+  private volatile Executor myExecutor;
+  @Nullable
+  private volatile Executor myDiskReadExecutor;
+  // messages of the peer and request timeouts are handled one by one in order
+  @Nullable
+  private volatile SerialExecutor myMailbox;
+  @Nullable
+  private final TimerWheel myTimerWheel;
+  // clock of the timer wheel, send times of requests and round trip times are measured by it
+  private final TimeService myTimeService;
+  // timeout of the oldest sent request, guarded by requestsLock
+  @Nullable
+  private TimerWheel.Timeout myRequestTimeout;
 
   private volatile boolean downloading;
 
@@ -98,10 +151,16 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
 
   private final ConnectionManager connectionManager;
   private final ByteChannel socketChannel;
+  @Nullable
+  private final TokenBucket myDownloadBucket;
+  @Nullable
+  private final TokenBucket myUploadBucket;
 
   private final String clientIdentifier;
   private final int clientVersion;
 
+  private volatile boolean zeroCopyUpload;
+
   /**
    * Create a new sharing peer on a given torrent.
    *  @param ip      The peer's IP address.
@@ -128,13 +187,25 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
     this.listeners = Arrays.asList(client, torrent);
     this.availablePieces = new BitSet(torrent.getPieceCount());
     this.poorlyAvailablePieces = new BitSet(torrent.getPieceCount());
+    this.myAllowedFastPieces = new BitSet();
+    this.mySuggestedPieces = new BitSet();
+    this.myGrantedFastPieces = new BitSet();
 
     this.requestsLock = new Object();
     this.socketChannel = channel;
     this.isStopped = new AtomicBoolean(false);
     this.availablePiecesLock = new Object();
     this.myRequestedPieces = new HashMap<Piece, Integer>();
+    this.myPendingRequests = new LinkedList<PeerMessage.RequestMessage>();
+    this.mySentRequests = new HashMap<Long, PeerMessage.RequestMessage>();
+    this.myRequestPipeline = new RequestPipeline();
+    this.myUploadQueue = new UploadQueue();
+    this.myMaxQueuedUploadBytes = DEFAULT_MAX_QUEUED_UPLOAD_BYTES;
     this.connectionManager = connectionManager;
+    this.myDownloadBucket = connectionManager == null ? null : connectionManager.getReadBucket(channel);
+    this.myUploadBucket = connectionManager == null ? null : connectionManager.getWriteBucket(channel);
+    this.myTimerWheel = connectionManager == null ? null : connectionManager.getTimerWheel();
+    this.myTimeService = connectionManager == null ? new SystemTimeService() : connectionManager.getTimeService();
     this.download = new Rate();
     this.upload = new Rate();
     this.setTorrentHash(torrent.getHexInfoHash());
@@ -144,6 +215,125 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
     this.interested = false;
     this.downloading = false;
     this.downloadedPiecesCount = new AtomicInteger();
+    this.zeroCopyUpload = false;
+  }
+
+  /**
+   * Enable or disable sending of requested blocks directly from the storage.
+   * <p/>
+   * <p>
+   * In this mode only the PIECE message header is built in memory, block data
+   * is transferred from the torrent files to the socket when the connection
+   * is ready for writing.
+   * </p>
+   */
+  public void setZeroCopyUpload(boolean zeroCopyUpload) {
+    this.zeroCopyUpload = zeroCopyUpload;
+  }
+
+  public boolean isZeroCopyUpload() {
+    return this.zeroCopyUpload;
+  }
+
+  /**
+   * Enable the fast extension (BEP 6) if both sides advertised it in their handshakes.
+   * <p/>
+   * <p>
+   * With the extension availability of all or none pieces is sent in a single byte,
+   * requests which won't be served are explicitly rejected, and a few pieces are
+   * allowed to be requested while the peer is choked, so new peers can start
+   * downloading before their first unchoke.
+   * </p>
+   */
+  public void setFastExtension(boolean fastExtension) {
+    this.myFastExtension = fastExtension;
+  }
+
+  public boolean isFastExtension() {
+    return this.myFastExtension;
+  }
+
+  /**
+   * Set bounds of count of block requests which are sent to the peer without waiting for answers.
+   * Actual count is adapted to the download rate and round-trip time of the peer.
+   */
+  public void setRequestPipelineLimits(int minDepth, int maxDepth) {
+    myRequestPipeline.setLimits(minDepth, maxDepth);
+  }
+
+  /**
+   * @return current count of block requests which can be sent to the peer without waiting for answers
+   */
+  public int getRequestPipelineDepth() {
+    return myRequestPipeline.getDepth();
+  }
+
+  /**
+   * Set max count of bytes which can be queued for sending to the peer. Requests of the peer are
+   * deferred while outbound queue of the connection is larger, so the peer can't fill memory with
+   * blocks which the network can't send yet and other messages aren't delayed behind them.
+   */
+  public void setMaxQueuedUploadBytes(long maxQueuedUploadBytes) {
+    this.myMaxQueuedUploadBytes = maxQueuedUploadBytes;
+  }
+
+  /**
+   * Enable or disable reading of the whole piece on the first request of it. The piece is kept
+   * in memory until the peer requests another piece, so other blocks of the piece don't cost
+   * disk reads. Pieces larger than {@link UploadQueue#MAX_READ_AHEAD_SIZE} are never read ahead.
+   */
+  public void setUploadReadAhead(boolean uploadReadAhead) {
+    this.myUploadReadAhead = uploadReadAhead;
+  }
+
+  /**
+   * Set executor for reading of requested blocks from the storage, so slow disks don't block
+   * handling of messages. By default the executor of the peer is used
+   */
+  public void setDiskReadExecutor(@Nullable Executor diskReadExecutor) {
+    this.myDiskReadExecutor = diskReadExecutor;
+  }
+
+  /**
+   * Set executor for serving of requests and handling of request timeouts. By default
+   * they are handled in the thread which receives requests or fires the timeout.
+   * Messages of the peer are handled in the mailbox on top of this executor
+   */
+  public void setExecutor(@Nullable Executor executor) {
+    this.myExecutor = executor;
+    this.myMailbox = executor == null ? null : new SerialExecutor(executor, "handle messages for torrent " + getHexInfoHash() + " peer: " + getHostIdentifier());
+  }
+
+  /**
+   * @return executor which runs tasks of the peer one by one in order of submitting,
+   * or null if executor of the peer isn't set
+   */
+  @Nullable
+  public Executor getMailbox() {
+    return myMailbox;
+  }
+
+  /**
+   * @return count of bytes which are queued for sending to the peer and aren't written to the socket yet
+   */
+  public long getQueuedUploadBytes() {
+    return connectionManager.getQueuedWriteBytes(socketChannel);
+  }
+
+  /**
+   * @return bucket which limits download rate from the peer or null if the connection isn't throttled
+   */
+  @Nullable
+  public TokenBucket getDownloadBucket() {
+    return myDownloadBucket;
+  }
+
+  /**
+   * @return bucket which limits upload rate to the peer or null if the connection isn't throttled
+   */
+  @Nullable
+  public TokenBucket getUploadBucket() {
+    return myUploadBucket;
   }
 
   public Rate getDLRate() {
@@ -167,6 +357,14 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
       logger.trace("Choking {}", this);
       this.send(PeerMessage.ChokeMessage.craft());
       this.choking = true;
+      // requests are discarded by both sides when the peer is choked,
+      // with the fast extension they are rejected explicitly unless they are allowed fast
+      List<PeerMessage.RequestMessage> rejected = myUploadQueue.removeAllExcept(myFastExtension ? myGrantedFastPieces : null);
+      if (myFastExtension) {
+        for (PeerMessage.RequestMessage request : rejected) {
+          sendReject(request.getPiece(), request.getOffset(), request.getLength());
+        }
+      }
     }
   }
 
@@ -188,12 +386,72 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
   public void onConnectionEstablished() {
     firePeerConnected();
     BitSet pieces = this.torrent.getCompletedPieces();
-    if (pieces.cardinality() > 0) {
+    if (myFastExtension) {
+      int completed = pieces.cardinality();
+      if (completed == this.torrent.getPieceCount()) {
+        this.send(PeerMessage.HaveAllMessage.craft());
+      } else if (completed == 0) {
+        this.send(PeerMessage.HaveNoneMessage.craft());
+      } else {
+        this.send(PeerMessage.BitfieldMessage.craft(pieces));
+      }
+      grantAllowedFastPieces(pieces);
+    } else if (pieces.cardinality() > 0) {
       this.send(PeerMessage.BitfieldMessage.craft(pieces));
     }
     resetRates();
   }
 
+  /**
+   * Sends ALLOWED_FAST messages for pieces of the canonical allowed fast set of the peer which we have
+   */
+  private void grantAllowedFastPieces(BitSet completedPieces) {
+    BitSet granted = computeAllowedFastSet(getIp(), this.torrent.getInfoHash(),
+            this.torrent.getPieceCount(), ALLOWED_FAST_SET_SIZE);
+    granted.and(completedPieces);
+    myGrantedFastPieces = granted;
+    for (int i = granted.nextSetBit(0); i >= 0; i = granted.nextSetBit(i + 1)) {
+      this.send(PeerMessage.AllowedFastMessage.craft(i));
+    }
+  }
+
+  /**
+   * Computes the canonical allowed fast set of BEP 6, so a peer gets the same pieces from all
+   * peers of the torrent and it can complete them early. The set is generated from the /24
+   * network of the peer IPv4 address and the info hash of the torrent.
+   *
+   * @return allowed fast pieces or empty set if the address isn't IPv4 address
+   */
+  public static BitSet computeAllowedFastSet(String ip, byte[] infoHash, int pieceCount, int size) {
+    BitSet result = new BitSet(pieceCount);
+    byte[] address;
+    try {
+      address = InetAddress.getByName(ip).getAddress();
+    } catch (UnknownHostException e) {
+      return result;
+    }
+    if (address.length != 4) return result;
+    size = Math.min(size, pieceCount);
+    ByteBuffer seed = ByteBuffer.allocate(address.length + infoHash.length);
+    seed.put(address[0]).put(address[1]).put(address[2]).put((byte) 0);
+    seed.put(infoHash);
+    byte[] hash = seed.array();
+    while (result.cardinality() < size) {
+      hash = TorrentUtils.calculateSha1Hash(hash);
+      ByteBuffer words = ByteBuffer.wrap(hash);
+      for (int i = 0; i < 5 && result.cardinality() < size; i++) {
+        long word = words.getInt() & 0xFFFFFFFFL;
+        result.set((int) (word % pieceCount));
+      }
+    }
+    return result;
+  }
+
+  private void sendReject(int piece, int offset, int length) {
+    logger.trace("Rejecting request ({} {}@{}) of {}", new Object[]{piece, length, offset, this});
+    this.send(PeerMessage.RejectRequestMessage.craft(piece, offset, length));
+  }
+
   /**
    * Unchoke this peer.
    * <p/>
@@ -256,11 +514,39 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
   }
 
   /**
-   * Returns the currently requested piece, if any.
+   * @return true if pieces of this peer can be requested now: we are unchoked or the piece is allowed fast
+   */
+  public boolean canRequest(int pieceIndex) {
+    if (!this.choked) return true;
+    synchronized (this.availablePiecesLock) {
+      return myAllowedFastPieces.get(pieceIndex);
+    }
+  }
+
+  /**
+   * @return a clone of pieces which the peer allows us to request while we are choked
+   */
+  public BitSet getAllowedFastPieces() {
+    synchronized (this.availablePiecesLock) {
+      return (BitSet) myAllowedFastPieces.clone();
+    }
+  }
+
+  /**
+   * @return a clone of pieces which the peer suggested to download
+   */
+  public BitSet getSuggestedPieces() {
+    synchronized (this.availablePiecesLock) {
+      return (BitSet) mySuggestedPieces.clone();
+    }
+  }
+
+  /**
+   * Returns a copy of the currently requested pieces, if any.
    */
   public Set<Piece> getRequestedPieces() {
     synchronized (requestsLock) {
-      return myRequestedPieces.keySet();
+      return new HashSet<Piece>(myRequestedPieces.keySet());
     }
   }
 
@@ -310,7 +596,11 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
     synchronized (requestsLock) {
       this.downloading = myRequestedPieces.size() > 0;
       myRequestedPieces.clear();
+      myPendingRequests.clear();
+      mySentRequests.clear();
+      cancelRequestTimeout();
     }
+    myUploadQueue.clear();
 
     this.afterPeerDisconnected();
   }
@@ -327,10 +617,14 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
    */
   public void send(PeerMessage message) throws IllegalStateException {
     logger.trace("Sending msg {} to {}", message.getType(), this);
+    ByteBuffer data = message.getData();
+    data.rewind();
+    send(data, null, null);
+  }
+
+  private void send(ByteBuffer data, @Nullable FileRegion fileRegion, @Nullable final Runnable afterWrite) {
     if (this.isConnected()) {
-      ByteBuffer data = message.getData();
-      data.rewind();
-      connectionManager.offerWrite(new WriteTask(socketChannel, data, new WriteListener() {
+      connectionManager.offerWrite(new WriteTask(socketChannel, data, fileRegion, new WriteListener() {
         @Override
         public void onWriteFailed(String message, Throwable e) {
           if (e == null) {
@@ -346,6 +640,9 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
 
         @Override
         public void onWriteDone() {
+          if (afterWrite != null) {
+            afterWrite.run();
+          }
         }
       }), 1, TimeUnit.SECONDS);
     } else {
@@ -358,12 +655,14 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
    * Download the given piece from this peer.
    * <p/>
    * <p>
-   * Starts a block request queue and pre-fill it with MAX_PIPELINED_REQUESTS
-   * block requests.
+   * Adds requests of blocks of the piece which are not received yet to the
+   * request queue and sends as many of them as the request pipeline of the
+   * peer allows. In end-game mode the same blocks can be requested from
+   * several peers, requests of other peers are cancelled when a block comes.
    * </p>
    * <p/>
    * <p>
-   * Further requests will be added, one by one, every time a block is
+   * Further requests will be sent, one by one, every time a block is
    * returned.
    * </p>
    *
@@ -371,31 +670,112 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
    */
   public void downloadPiece(final Piece piece)
           throws IllegalStateException {
-    List<PeerMessage.RequestMessage> toSend = new ArrayList<PeerMessage.RequestMessage>();
     synchronized (this.requestsLock) {
       if (myRequestedPieces.containsKey(piece)) {
         //already requested
         return;
       }
-      int requestedBlocksCount = 0;
-      int lastRequestedOffset = 0;
-      while (lastRequestedOffset < piece.size()) {
-        PeerMessage.RequestMessage request = PeerMessage.RequestMessage
-                .craft(piece.getIndex(), lastRequestedOffset,
-                        Math.min((int) (piece.size() - lastRequestedOffset),
-                                PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE));
-        toSend.add(request);
-        requestedBlocksCount++;
-        lastRequestedOffset = request.getLength() + lastRequestedOffset;
+      BitSet missingBlocks = piece.getMissingBlocks();
+      if (missingBlocks.isEmpty()) {
+        //all blocks are received, the piece is being validated
+        return;
       }
-      myRequestedPieces.put(piece, requestedBlocksCount);
+      for (int block = missingBlocks.nextSetBit(0); block >= 0; block = missingBlocks.nextSetBit(block + 1)) {
+        int offset = block * Piece.BLOCK_SIZE;
+        myPendingRequests.add(PeerMessage.RequestMessage.craft(piece.getIndex(), offset,
+                (int) Math.min(piece.size() - offset, Piece.BLOCK_SIZE)));
+      }
+      myRequestedPieces.put(piece, missingBlocks.cardinality());
       this.downloading = myRequestedPieces.size() > 0;
     }
+    sendPendingRequests();
+  }
+
+  /**
+   * Sends queued block requests while count of outstanding requests is less than depth of the pipeline
+   */
+  private void sendPendingRequests() {
+    List<PeerMessage.RequestMessage> toSend = new ArrayList<PeerMessage.RequestMessage>();
+    synchronized (this.requestsLock) {
+      int depth = myRequestPipeline.getDepth();
+      while (mySentRequests.size() < depth && !myPendingRequests.isEmpty()) {
+        PeerMessage.RequestMessage request = myPendingRequests.poll();
+        request.renew(myTimeService.now());
+        long key = requestKey(request.getPiece(), request.getOffset());
+        if (mySentRequests.isEmpty()) {
+          myFirstInFlightRequestKey = key;
+        } else if (!mySentRequests.containsKey(myFirstInFlightRequestKey)) {
+          myFirstInFlightRequestKey = -1;
+        }
+        mySentRequests.put(key, request);
+        toSend.add(request);
+      }
+      if (myRequestTimeout == null && !mySentRequests.isEmpty()) {
+        scheduleRequestTimeout(REQUEST_TIMEOUT_MS);
+      }
+    }
     for (PeerMessage.RequestMessage requestMessage : toSend) {
       this.send(requestMessage);
     }
   }
 
+  private void scheduleRequestTimeout(long delayMillis) {
+    if (myTimerWheel == null) return;
+    myRequestTimeout = myTimerWheel.schedule(myRequestTimeoutTask, delayMillis);
+  }
+
+  private void cancelRequestTimeout() {
+    if (myRequestTimeout != null) {
+      myRequestTimeout.cancel();
+      myRequestTimeout = null;
+    }
+  }
+
+  // one timeout per peer covers all sent requests, it's moved to the oldest request on expiration
+  private final Runnable myRequestTimeoutTask = new Runnable() {
+    @Override
+    public void run() {
+      boolean submitted = execute(myMailbox, new Runnable() {
+        @Override
+        public void run() {
+          checkRequestTimeout();
+        }
+      });
+      if (!submitted) {
+        synchronized (requestsLock) {
+          myRequestTimeout = null;
+        }
+      }
+    }
+  };
+
+  /**
+   * Requests which aren't answered in time are cancelled and their pieces are released,
+   * so they can be requested from other peers
+   */
+  private void checkRequestTimeout() {
+    synchronized (this.requestsLock) {
+      myRequestTimeout = null;
+      if (isStopped.get() || mySentRequests.isEmpty()) return;
+      long oldestSendTime = Long.MAX_VALUE;
+      for (PeerMessage.RequestMessage request : mySentRequests.values()) {
+        oldestSendTime = Math.min(oldestSendTime, request.getSendTime());
+      }
+      long elapsed = myTimeService.now() - oldestSendTime;
+      if (elapsed < REQUEST_TIMEOUT_MS) {
+        scheduleRequestTimeout(REQUEST_TIMEOUT_MS - elapsed);
+        return;
+      }
+    }
+    logger.debug("Peer {} didn't answer block requests in {} ms, they are cancelled", this, REQUEST_TIMEOUT_MS);
+    this.firePeerChoked();
+    this.cancelPendingRequests();
+  }
+
+  private static long requestKey(int piece, int offset) {
+    return ((long) piece << 32) | (offset & 0xFFFFFFFFL);
+  }
+
   public boolean isDownloading() {
     return this.downloading;
   }
@@ -410,21 +790,82 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
    * requests.
    * </p>
    *
-   * @param piece The piece of PIECE message received.
+   * @param piece  The piece of PIECE message received.
+   * @param offset The block offset in the piece.
+   * @param length The block length.
+   * @return true if the request of exactly this block was outstanding
    */
-  private void removeBlockRequest(final Piece piece) {
+  private boolean removeBlockRequest(final Piece piece, int offset, int length) {
     synchronized (this.requestsLock) {
-      Integer requestedBlocksCount = myRequestedPieces.get(piece);
-      if (requestedBlocksCount == null) {
-        return;
+      long key = requestKey(piece.getIndex(), offset);
+      PeerMessage.RequestMessage request = mySentRequests.get(key);
+      if (request == null || request.getLength() != length) {
+        return false;
       }
-      if (requestedBlocksCount <= 1) {
-        //it's last block
-        myRequestedPieces.remove(piece);
-      } else {
-        myRequestedPieces.put(piece, requestedBlocksCount - 1);
+      mySentRequests.remove(key);
+      long now = myTimeService.now();
+      myRequestPipeline.blockReceived(now - request.getSendTime(), request.getLength(), now,
+              key == myFirstInFlightRequestKey);
+      decrementRequestedBlocks(piece);
+      return true;
+    }
+  }
+
+  /**
+   * @return true if the request of the block is sent to this peer and isn't answered yet
+   */
+  public boolean isBlockRequested(Piece piece, int offset, int length) {
+    synchronized (this.requestsLock) {
+      PeerMessage.RequestMessage request = mySentRequests.get(requestKey(piece.getIndex(), offset));
+      return request != null && request.getLength() == length;
+    }
+  }
+
+  // must be invoked under requestsLock
+  private void decrementRequestedBlocks(Piece piece) {
+    Integer requestedBlocksCount = myRequestedPieces.get(piece);
+    if (requestedBlocksCount == null) {
+      return;
+    }
+    if (requestedBlocksCount <= 1) {
+      //it's last block
+      myRequestedPieces.remove(piece);
+    } else {
+      myRequestedPieces.put(piece, requestedBlocksCount - 1);
+    }
+    this.downloading = myRequestedPieces.size() > 0;
+  }
+
+  /**
+   * Cancel the request of the block, if it is requested from this peer.
+   * <p/>
+   * <p>
+   * This is used in end-game mode when the block is received from another
+   * peer. If the request is already sent, a CANCEL message is sent to save
+   * the bandwidth the duplicate block would take.
+   * </p>
+   */
+  public void cancelBlockRequest(Piece piece, int offset) {
+    PeerMessage.RequestMessage sent;
+    synchronized (this.requestsLock) {
+      if (!myRequestedPieces.containsKey(piece)) return;
+      sent = mySentRequests.remove(requestKey(piece.getIndex(), offset));
+      boolean cancelled = sent != null;
+      Iterator<PeerMessage.RequestMessage> pending = myPendingRequests.iterator();
+      while (!cancelled && pending.hasNext()) {
+        PeerMessage.RequestMessage request = pending.next();
+        if (request.getPiece() == piece.getIndex() && request.getOffset() == offset) {
+          pending.remove();
+          cancelled = true;
+        }
       }
-      this.downloading = myRequestedPieces.size() > 0;
+      if (!cancelled) return;
+      decrementRequestedBlocks(piece);
+    }
+    if (sent != null) {
+      logger.trace("Cancelling request ({} {}@{}) of {}", new Object[]{piece.getIndex(), sent.getLength(), offset, this});
+      this.send(PeerMessage.CancelMessage.craft(piece.getIndex(), offset, sent.getLength()));
+      sendPendingRequests();
     }
   }
 
@@ -446,14 +887,44 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
   }
 
   public void cancelPendingRequests(@Nullable final Piece piece) {
+    cancelPendingRequests(piece, false);
+  }
+
+  /**
+   * @param sendCancel true if CANCEL messages must be sent for requests of the piece which are sent already,
+   *                   requests of all pieces are always dropped silently
+   */
+  private void cancelPendingRequests(@Nullable final Piece piece, boolean sendCancel) {
+    List<PeerMessage.RequestMessage> sent = new ArrayList<PeerMessage.RequestMessage>();
     synchronized (this.requestsLock) {
       if (piece != null) {
         myRequestedPieces.remove(piece);
+        removeRequestsOfPiece(myPendingRequests.iterator(), piece, null);
+        removeRequestsOfPiece(mySentRequests.values().iterator(), piece, sendCancel ? sent : null);
       } else {
         myRequestedPieces.clear();
+        myPendingRequests.clear();
+        mySentRequests.clear();
+        cancelRequestTimeout();
       }
       this.downloading = myRequestedPieces.size() > 0;
     }
+    for (PeerMessage.RequestMessage request : sent) {
+      this.send(PeerMessage.CancelMessage.craft(request.getPiece(), request.getOffset(), request.getLength()));
+    }
+  }
+
+  private static void removeRequestsOfPiece(Iterator<PeerMessage.RequestMessage> requests, Piece piece,
+                                            @Nullable List<PeerMessage.RequestMessage> removed) {
+    while (requests.hasNext()) {
+      PeerMessage.RequestMessage request = requests.next();
+      if (request.getPiece() == piece.getIndex()) {
+        requests.remove();
+        if (removed != null) {
+          removed.add(request);
+        }
+      }
+    }
   }
 
   public int getRemainingRequestedPieces(final Piece piece) {
@@ -472,182 +943,512 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
   @Override
   public void handleMessage(PeerMessage msg) {
 //    logger.trace("Received msg {} from {}", msg.getType(), this);
-    if (isStopped.get())
+    if (!prepareToHandleMessage())
       return;
-    if (!torrent.isInitialized()) {
-      torrent.initIfNecessary(this);
-    }
     switch (msg.getType()) {
       case KEEP_ALIVE:
-        // Nothing to do, we're keeping the connection open anyways.
+        myMessageHandler.onKeepAlive();
         break;
       case CHOKE:
-        this.choked = true;
-        this.firePeerChoked();
-        this.cancelPendingRequests();
+        myMessageHandler.onChoke();
         break;
       case UNCHOKE:
-        this.choked = false;
-        logger.trace("Peer {} is now accepting requests.", this);
-        this.firePeerReady();
+        myMessageHandler.onUnchoke();
         break;
       case INTERESTED:
-        this.interested = true;
-        if (this.choking) {
-          unchoke();
-        }
+        myMessageHandler.onInterested();
         break;
       case NOT_INTERESTED:
-        this.interested = false;
-        if (!interesting) {
-          unbind(true);
-        }
+        myMessageHandler.onNotInterested();
         break;
       case HAVE:
-        // Record this peer has the given piece
-        PeerMessage.HaveMessage have = (PeerMessage.HaveMessage) msg;
-        Piece havePiece = this.torrent.getPiece(have.getPieceIndex());
-
-        synchronized (this.availablePiecesLock) {
-          this.availablePieces.set(havePiece.getIndex());
-          logger.trace("Peer {} now has {} [{}/{}].",
-                  new Object[]{
-                          this,
-                          havePiece,
-                          this.availablePieces.cardinality(),
-                          this.torrent.getPieceCount()
-                  });
-        }
-
-        this.firePieceAvailabity(havePiece);
+        myMessageHandler.onHave(((PeerMessage.HaveMessage) msg).getPieceIndex());
         break;
       case BITFIELD:
-        // Augment the hasPiece bit field from this BITFIELD message
-        PeerMessage.BitfieldMessage bitfield =
-                (PeerMessage.BitfieldMessage) msg;
-
-        synchronized (this.availablePiecesLock) {
-          this.availablePieces.or(bitfield.getBitfield());
-          logger.trace("Recorded bitfield from {} with {} " +
-                          "pieces(s) [{}/{}].",
-                  new Object[]{
-                          this,
-                          bitfield.getBitfield().cardinality(),
-                          this.availablePieces.cardinality(),
-                          this.torrent.getPieceCount()
-                  });
-        }
-
-        this.fireBitfieldAvailabity();
+        handleBitfield(((PeerMessage.BitfieldMessage) msg).getBitfield());
         break;
       case REQUEST:
-        PeerMessage.RequestMessage request =
-                (PeerMessage.RequestMessage) msg;
-        logger.trace("Got request message for {} ({} {}@{}) from {}", new Object[]{
-                Arrays.toString(TorrentUtils.getTorrentFileNames(torrent).toArray()),
-                request.getPiece(),
-                request.getLength(),
-                request.getOffset(),
-                this
-        });
-        Piece rp = this.torrent.getPiece(request.getPiece());
-
-        // If we are choking from this peer and it still sends us
-        // requests, it is a violation of the BitTorrent protocol.
-        // Similarly, if the peer requests a piece we don't have, it
-        // is a violation of the BitTorrent protocol. In these
-        // situation, terminate the connection.
-        if (!rp.isValid()) {
-          logger.warn("Peer {} violated protocol, terminating exchange: " + this.isChoking() + " " + rp.isValid(), this);
-          this.unbind(true);
-          break;
-        }
+        handleRequest((PeerMessage.RequestMessage) msg);
+        break;
+      case PIECE:
+        PeerMessage.PieceMessage piece = (PeerMessage.PieceMessage) msg;
+        myMessageHandler.onPiece(piece.getPiece(), piece.getOffset(), piece.getBlock());
+        break;
+      case CANCEL:
+        PeerMessage.CancelMessage cancel = (PeerMessage.CancelMessage) msg;
+        myMessageHandler.onCancel(cancel.getPiece(), cancel.getOffset(), cancel.getLength());
+        break;
+      case SUGGEST_PIECE:
+        myMessageHandler.onSuggestPiece(((PeerMessage.SuggestPieceMessage) msg).getPieceIndex());
+        break;
+      case HAVE_ALL:
+        myMessageHandler.onHaveAll();
+        break;
+      case HAVE_NONE:
+        myMessageHandler.onHaveNone();
+        break;
+      case REJECT_REQUEST:
+        PeerMessage.RejectRequestMessage reject = (PeerMessage.RejectRequestMessage) msg;
+        myMessageHandler.onRejectRequest(reject.getPiece(), reject.getOffset(), reject.getLength());
+        break;
+      case ALLOWED_FAST:
+        myMessageHandler.onAllowedFast(((PeerMessage.AllowedFastMessage) msg).getPieceIndex());
+        break;
+    }
+  }
+
+  /**
+   * Handle an incoming message from this peer without creation of message object.
+   *
+   * @param view view of the incoming message, it's valid only during the call
+   */
+  public void handleMessage(PeerMessageView view) {
+    if (!prepareToHandleMessage())
+      return;
+    view.dispatch(myMessageHandler);
+  }
+
+  private boolean prepareToHandleMessage() {
+    if (isStopped.get())
+      return false;
+    if (!torrent.isInitialized()) {
+      torrent.initIfNecessary(this);
+    }
+    return true;
+  }
+
+  private final PeerMessageHandler myMessageHandler = new PeerMessageHandler() {
+    @Override
+    public void onKeepAlive() {
+      // Nothing to do, we're keeping the connection open anyways.
+    }
+
+    @Override
+    public void onChoke() {
+      choked = true;
+      if (myFastExtension) {
+        // requests aren't dropped implicitly, only pieces which aren't allowed fast are released
+        rejectRequestsOnChoke();
+        return;
+      }
+      firePeerChoked();
+      cancelPendingRequests();
+    }
+
+    @Override
+    public void onUnchoke() {
+      choked = false;
+      logger.trace("Peer {} is now accepting requests.", SharingPeer.this);
+      firePeerReady();
+    }
+
+    @Override
+    public void onInterested() {
+      interested = true;
+      firePeerInterested();
+    }
+
+    @Override
+    public void onNotInterested() {
+      interested = false;
+      if (!interesting) {
+        unbind(true);
+      }
+    }
+
+    @Override
+    public void onHave(int pieceIndex) {
+      handleHave(pieceIndex);
+    }
+
+    @Override
+    public void onBitfield(PeerMessageView bitfield) {
+      handleBitfield(PeerMessageView.toBitSet(bitfield.getBitfieldWords()));
+    }
+
+    @Override
+    public void onRequest(int piece, int offset, int length) {
+      handleRequest(PeerMessage.RequestMessage.craft(piece, offset, length));
+    }
+
+    @Override
+    public void onPiece(int piece, int offset, ByteBuffer block) {
+      handlePiece(piece, offset, block);
+    }
 
-        if (request.getLength() >
-                PeerMessage.RequestMessage.MAX_REQUEST_SIZE) {
-          logger.warn("Peer {} requested a block too big, terminating exchange.", this);
-          this.unbind(true);
-          break;
+    @Override
+    public void onCancel(int piece, int offset, int length) {
+      handleCancel(piece, offset, length);
+    }
+
+    @Override
+    public void onSuggestPiece(int piece) {
+      synchronized (availablePiecesLock) {
+        mySuggestedPieces.set(piece);
+      }
+    }
+
+    @Override
+    public void onHaveAll() {
+      BitSet all = new BitSet(torrent.getPieceCount());
+      all.set(0, torrent.getPieceCount());
+      handleBitfield(all);
+    }
+
+    @Override
+    public void onHaveNone() {
+      handleBitfield(new BitSet());
+    }
+
+    @Override
+    public void onRejectRequest(int piece, int offset, int length) {
+      handleReject(piece, offset);
+    }
+
+    @Override
+    public void onAllowedFast(int piece) {
+      handleAllowedFast(piece);
+    }
+  };
+
+  /**
+   * Releases pieces which are requested and aren't allowed fast after the fast peer choked us.
+   * Their outstanding requests will be rejected by the peer, so they are requested from other
+   * peers at once instead of waiting for the timeout.
+   */
+  private void rejectRequestsOnChoke() {
+    BitSet allowedFast = getAllowedFastPieces();
+    List<Piece> released = new ArrayList<Piece>();
+    synchronized (this.requestsLock) {
+      for (Piece piece : myRequestedPieces.keySet()) {
+        if (!allowedFast.get(piece.getIndex())) {
+          released.add(piece);
         }
+      }
+    }
+    for (Piece piece : released) {
+      cancelPendingRequests(piece);
+      firePieceRejected(piece);
+    }
+  }
 
-        // At this point we agree to send the requested piece block to
-        // the remote peer, so let's queue a message with that block
-        try {
+  private void handleReject(int pieceIndex, int offset) {
+    Piece piece = this.torrent.getPiece(pieceIndex);
+    logger.trace("Peer {} rejected request ({} @{})", new Object[]{this, pieceIndex, offset});
+    synchronized (this.requestsLock) {
+      if (mySentRequests.remove(requestKey(pieceIndex, offset)) == null ||
+              !myRequestedPieces.containsKey(piece)) {
+        // the request is already cancelled or the piece is released
+        return;
+      }
+    }
+    cancelPendingRequests(piece);
+    firePieceRejected(piece);
+    sendPendingRequests();
+  }
 
-          ByteBuffer bufferForMessage = PeerMessage.PieceMessage.createBufferWithHeaderForMessage(
-                  request.getPiece(), request.getOffset(), request.getLength());
+  private void handleAllowedFast(int pieceIndex) {
+    synchronized (this.availablePiecesLock) {
+      myAllowedFastPieces.set(pieceIndex);
+    }
+    if (this.choked && getAvailablePieces().get(pieceIndex)) {
+      firePeerReady();
+    }
+  }
+
+  private void handleCancel(int pieceIndex, int offset, int length) {
+    boolean removed = myUploadQueue.remove(pieceIndex, offset, length);
+    // a fast peer expects either the block or the reject for every request
+    if (removed && myFastExtension) {
+      sendReject(pieceIndex, offset, length);
+    }
+  }
+
+  private void handleHave(int pieceIndex) {
+    // Record this peer has the given piece
+    Piece havePiece = this.torrent.getPiece(pieceIndex);
+
+    boolean isNew;
+    synchronized (this.availablePiecesLock) {
+      isNew = !this.availablePieces.get(havePiece.getIndex());
+      this.availablePieces.set(havePiece.getIndex());
+      if (logger.isTraceEnabled()) {
+        logger.trace("Peer {} now has {} [{}/{}].",
+                new Object[]{
+                        this,
+                        havePiece,
+                        this.availablePieces.cardinality(),
+                        this.torrent.getPieceCount()
+                });
+      }
+    }
+
+    // a repeated HAVE doesn't change availability of the piece
+    if (isNew) {
+      this.firePieceAvailabity(havePiece);
+    }
+  }
+
+  private void handleBitfield(BitSet bitfield) {
+    // Augment the hasPiece bit field from this BITFIELD message,
+    // only pieces which weren't announced before are reported
+    BitSet newPieces = (BitSet) bitfield.clone();
+    synchronized (this.availablePiecesLock) {
+      newPieces.andNot(this.availablePieces);
+      this.availablePieces.or(bitfield);
+      if (logger.isTraceEnabled()) {
+        logger.trace("Recorded bitfield from {} with {} " +
+                        "pieces(s) [{}/{}].",
+                new Object[]{
+                        this,
+                        bitfield.cardinality(),
+                        this.availablePieces.cardinality(),
+                        this.torrent.getPieceCount()
+                });
+      }
+    }
+
+    this.fireBitfieldAvailabity(newPieces);
+  }
+
+  private void handleRequest(PeerMessage.RequestMessage request) {
+    logger.trace("Got request message for {} ({} {}@{}) from {}", new Object[]{
+            Arrays.toString(TorrentUtils.getTorrentFileNames(torrent).toArray()),
+            request.getPiece(),
+            request.getLength(),
+            request.getOffset(),
+            this
+    });
+    Piece rp = this.torrent.getPiece(request.getPiece());
+
+    // If we are choking from this peer and it still sends us
+    // requests, it is a violation of the BitTorrent protocol.
+    // Similarly, if the peer requests a piece we don't have, it
+    // is a violation of the BitTorrent protocol. In these
+    // situation, terminate the connection.
+    if (!rp.isValid()) {
+      logger.warn("Peer {} violated protocol, terminating exchange: " + this.isChoking() + " " + rp.isValid(), this);
+      this.unbind(true);
+      return;
+    }
+
+    if (request.getLength() >
+            PeerMessage.RequestMessage.MAX_REQUEST_SIZE) {
+      logger.warn("Peer {} requested a block too big, terminating exchange.", this);
+      this.unbind(true);
+      return;
+    }
+
+    // requests which were sent before our CHOKE arrived are not served,
+    // with the fast extension they are rejected explicitly unless they are allowed fast
+    if (this.choking && !(myFastExtension && myGrantedFastPieces.get(request.getPiece()))) {
+      if (myFastExtension) {
+        sendReject(request.getPiece(), request.getOffset(), request.getLength());
+      } else {
+        logger.trace("Discarding request of {} from choked peer {}", request.getPiece(), this);
+      }
+      return;
+    }
 
-          rp.read(request.getOffset(), request.getLength(), bufferForMessage);
+    myUploadQueue.add(request);
+    scheduleUploads();
+  }
+
+  private void handlePiece(int pieceIndex, int offset, ByteBuffer block) {
+    // Record the incoming piece block.
+    Piece p = this.torrent.getPiece(pieceIndex);
+
+    logger.trace("Got piece ({} {}@{}) from {}", new Object[]{
+            p.getIndex(),
+            p.size(),
+            offset,
+            this
+    });
 
-          this.send(PeerMessage.PieceMessage.craft(request.getPiece(),
-                  request.getOffset(), bufferForMessage));
-          this.upload.add(request.getLength());
+    this.download.add(block.capacity());
 
-          if (request.getOffset() + request.getLength() == rp.size()) {
-            this.firePieceSent(rp);
+    try {
+      boolean isPieceDownloaded = false;
+      synchronized (p) {
+        // Remove the corresponding request from the request queue to
+        //  make room for next block requests. Blocks which weren't requested
+        //  are dropped, in end-game mode they could be requested from other peers
+        if (!this.removeBlockRequest(p, offset, block.remaining()) &&
+                !this.torrent.isBlockRequestedInEndGame(this, p, offset, block.remaining())) {
+          logger.debug("Discarding block ({} {}@{}) from {} which wasn't requested",
+                  new Object[]{pieceIndex, block.remaining(), offset, this});
+          return;
+        }
+        if (p.isValid()) {
+          this.cancelPendingRequests(p, true);
+          this.sendPendingRequests();
+          this.firePeerReady();
+          logger.trace("Discarding block for already completed " + p);
+          return;
+        }
+        if (p.isBlockReceived(offset)) {
+          // duplicate block of end-game or of the piece which is being validated
+          logger.trace("Discarding already received block {}@{} of {}", new Object[]{block.remaining(), offset, p});
+        } else {
+          //TODO add proper catch for IOException
+          p.record(block, offset);
+          this.torrent.handleBlockReceived(this, p, offset);
+
+          // The piece is validated when all its blocks are received,
+          // some of them could come from other peers
+          if (p.isAllBlocksReceived()) {
+            this.firePieceCompleted(p);
+            isPieceDownloaded = true;
           }
-        } catch (IOException ioe) {
-          logger.debug("error", ioe);
-          this.fireIOException(new IOException(
-                  "Error while sending piece block request!", ioe));
         }
+      }
+      sendPendingRequests();
+      if (isPieceDownloaded) {
+        firePeerReady();
+      }
+    } catch (IOException ioe) {
+      logger.error(ioe.getMessage(), ioe);
+      this.fireIOException(new IOException(
+              "Error while storing received piece block!", ioe));
+    }
+  }
 
-        break;
-      case PIECE:
-        // Record the incoming piece block.
+  /**
+   * Serves queued requests in the disk read executor unless they are served already
+   */
+  private void scheduleUploads() {
+    synchronized (myUploadQueue) {
+      if (myUploadQueue.isEmpty() || myUploadsScheduled) {
+        return;
+      }
+      myUploadsScheduled = true;
+    }
+    Executor diskReadExecutor = myDiskReadExecutor;
+    boolean submitted = execute(diskReadExecutor == null ? myExecutor : diskReadExecutor, new Runnable() {
+      @Override
+      public void run() {
+        sendQueuedBlocks();
+      }
+    });
+    if (!submitted) {
+      logger.debug("unable to send requested blocks to {}", SharingPeer.this);
+      synchronized (myUploadQueue) {
+        myUploadsScheduled = false;
+      }
+    }
+  }
 
-        // Should we keep track of the requested pieces and act when we
-        // get a piece we didn't ask for, or should we just stay
-        // greedy?
-        PeerMessage.PieceMessage piece = (PeerMessage.PieceMessage) msg;
-        Piece p = this.torrent.getPiece(piece.getPiece());
-
-        logger.trace("Got piece ({} {}@{}) from {}", new Object[]{
-                p.getIndex(),
-                p.size(),
-                piece.getOffset(),
-                this
-        });
-
-        this.download.add(piece.getBlock().capacity());
-
-        try {
-          boolean isPieceDownloaded = false;
-          synchronized (p) {
-            // Remove the corresponding request from the request queue to
-            //  make room for next block requests.
-            this.removeBlockRequest(p);
-            if (p.isValid()) {
-              this.cancelPendingRequests(p);
-              this.firePeerReady();
-              logger.trace("Discarding block for already completed " + p);
-              break;
-            }
-            //TODO add proper catch for IOException
-            p.record(piece.getBlock(), piece.getOffset());
-
-            // If the block offset equals the piece size and the block
-            // length is 0, it means the piece has been entirely
-            // downloaded. In this case, we have nothing to save, but
-            // we should validate the piece.
-            if (getRemainingRequestedPieces(p) == 0) {
-              this.firePieceCompleted(p);
-              isPieceDownloaded = true;
-            }
-          }
-          if (isPieceDownloaded) {
-            firePeerReady();
-          }
-        } catch (IOException ioe) {
-          logger.error(ioe.getMessage(), ioe);
-          this.fireIOException(new IOException(
-                  "Error while storing received piece block!", ioe));
-          break;
+  /**
+   * Serves queued requests batch by batch while outbound queue of the connection isn't full
+   */
+  private void sendQueuedBlocks() {
+    while (true) {
+      List<UploadQueue.Read> reads;
+      synchronized (myUploadQueue) {
+        long queuedBytes = getQueuedUploadBytes();
+        if (myUploadQueue.isEmpty() || queuedBytes >= myMaxQueuedUploadBytes || isStopped.get()) {
+          myUploadsScheduled = false;
+          return;
         }
-        break;
-      case CANCEL:
-        // No need to support
-        break;
+        reads = myUploadQueue.poll(myMaxQueuedUploadBytes - queuedBytes);
+      }
+      for (UploadQueue.Read read : reads) {
+        sendBlocks(read, this.torrent.getPiece(read.getPiece()));
+      }
+    }
+  }
+
+  /**
+   * Queue messages with the requested blocks. At this point we agree to send
+   * the requested piece blocks to the remote peer. Adjacent blocks are read
+   * from the storage at once.
+   */
+  private void sendBlocks(UploadQueue.Read read, Piece rp) {
+    try {
+      ByteBuffer data = null;
+      if (!this.zeroCopyUpload) {
+        data = readBlocks(read, rp);
+      }
+      for (PeerMessage.RequestMessage request : read.getBlocks()) {
+        if (this.zeroCopyUpload) {
+          ByteBuffer header = PeerMessage.PieceMessage.createHeaderForMessage(
+                  request.getPiece(), request.getOffset(), request.getLength());
+          logger.trace("Sending piece block ({} {}@{}) to {} directly from storage", new Object[]{
+                  request.getPiece(),
+                  request.getLength(),
+                  request.getOffset(),
+                  this
+          });
+          this.send(header, rp.createRegion(request.getOffset(), request.getLength()), myBlockWrittenCallback);
+        } else {
+          ByteBuffer bufferForMessage = PeerMessage.PieceMessage.createBufferWithHeaderForMessage(
+                  request.getPiece(), request.getOffset(), request.getLength());
+          ByteBuffer block = data.duplicate();
+          block.position(request.getOffset() - read.getOffset());
+          block.limit(block.position() + request.getLength());
+          bufferForMessage.put(block);
+
+          PeerMessage pieceMessage = PeerMessage.PieceMessage.craft(request.getPiece(),
+                  request.getOffset(), bufferForMessage);
+          logger.trace("Sending msg {} to {}", pieceMessage.getType(), this);
+          ByteBuffer message = pieceMessage.getData();
+          message.rewind();
+          this.send(message, null, myBlockWrittenCallback);
+        }
+        this.upload.add(request.getLength());
+
+        if (request.getOffset() + request.getLength() == rp.size()) {
+          this.firePieceSent(rp);
+        }
+      }
+    } catch (IOException ioe) {
+      logger.debug("error", ioe);
+      this.fireIOException(new IOException(
+              "Error while sending piece block request!", ioe));
+    }
+  }
+
+  /**
+   * @return buffer with data of the range of the piece from position 0
+   */
+  private ByteBuffer readBlocks(UploadQueue.Read read, Piece rp) throws IOException {
+    ByteBuffer piece = myUploadQueue.getReadAhead(rp.getIndex());
+    if (piece == null && myUploadReadAhead && read.getLength() < rp.size() &&
+            rp.size() <= UploadQueue.MAX_READ_AHEAD_SIZE) {
+      piece = rp.read(0, (int) rp.size(), ByteBuffer.allocate((int) rp.size()));
+      myUploadQueue.setReadAhead(rp.getIndex(), piece);
+      piece = piece.duplicate();
+    }
+    if (piece != null) {
+      piece.position(read.getOffset());
+      piece.limit(read.getOffset() + read.getLength());
+      return piece.slice();
+    }
+    return rp.read(read.getOffset(), read.getLength(), ByteBuffer.allocate(read.getLength()));
+  }
+
+  private final Runnable myBlockWrittenCallback = new Runnable() {
+    @Override
+    public void run() {
+      scheduleUploads();
+    }
+  };
+
+  /**
+   * Runs the task in the executor or in current thread if there is no executor
+   *
+   * @return false if the executor rejected the task
+   */
+  private boolean execute(@Nullable Executor executor, Runnable task) {
+    if (executor == null) {
+      task.run();
+      return true;
+    }
+    try {
+      executor.execute(task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
     }
   }
 
@@ -677,6 +1478,37 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
     }
   }
 
+  /**
+   * Fire the peer interested event to all registered listeners.
+   * <p/>
+   * <p>
+   * The event contains the peer that became interested.
+   * </p>
+   */
+  private void firePeerInterested() {
+    for (PeerActivityListener listener : this.listeners) {
+      if (listener instanceof PeerInterestListener) {
+        ((PeerInterestListener) listener).handlePeerInterested(this);
+      }
+    }
+  }
+
+  /**
+   * Fire the piece rejected event to all registered listeners.
+   * <p/>
+   * <p>
+   * The event contains the peer (this), and the piece which is no longer
+   * requested from it.
+   * </p>
+   */
+  private void firePieceRejected(Piece piece) {
+    for (PeerActivityListener listener : this.listeners) {
+      if (listener instanceof PieceRejectionListener) {
+        ((PieceRejectionListener) listener).handlePieceRejected(this, piece);
+      }
+    }
+  }
+
   /**
    * Fire the piece availability event to all registered listeners.
    * <p/>
@@ -693,13 +1525,12 @@ public class SharingPeer extends Peer implements MessageListener, PeerInformatio
   /**
    * Fire the bit field availability event to all registered listeners.
    * <p/>
-   * The event contains the peer (this), and the bit field of available pieces
-   * from this peer.
+   * The event contains the peer (this), and the bit field of pieces which
+   * became available from this peer.
    */
-  private void fireBitfieldAvailabity() {
+  private void fireBitfieldAvailabity(BitSet newPieces) {
     for (PeerActivityListener listener : this.listeners) {
-      listener.handleBitfieldAvailability(this,
-              this.getAvailablePieces());
+      listener.handleBitfieldAvailability(this, newPieces);
     }
   }
 
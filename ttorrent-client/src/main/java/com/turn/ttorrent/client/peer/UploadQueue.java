@@ -0,0 +1,208 @@
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.common.protocol.PeerMessage;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Queue of block requests of a peer which wait for reading from the storage.
+ *
+ * <p>
+ * Requests are taken in batches. Requests of one batch are sorted by piece and offset, and
+ * adjacent blocks of the same piece are merged into one read, so a peer which requests
+ * blocks of a piece one after another costs one positional read instead of one per block.
+ * Optionally the whole piece is read ahead on the first request of it and kept until
+ * requests of another piece come, peers usually request all blocks of a piece.
+ * </p>
+ *
+ * <p>
+ * Instances are thread-safe.
+ * </p>
+ */
+public class UploadQueue {
+
+  /**
+   * Max count of bytes which are read from the storage at once
+   */
+  public static final int MAX_READ_SIZE = 1024 * 1024;
+
+  /**
+   * Max size of pieces which are read ahead
+   */
+  public static final int MAX_READ_AHEAD_SIZE = 4 * 1024 * 1024;
+
+  private final LinkedList<PeerMessage.RequestMessage> myRequests = new LinkedList<PeerMessage.RequestMessage>();
+  private long myQueuedBytes = 0;
+
+  // data of the piece which was read ahead, guarded by this
+  private int myReadAheadPiece = -1;
+  @Nullable
+  private ByteBuffer myReadAheadData;
+
+  public synchronized void add(PeerMessage.RequestMessage request) {
+    myRequests.add(request);
+    myQueuedBytes += request.getLength();
+  }
+
+  public synchronized boolean isEmpty() {
+    return myRequests.isEmpty();
+  }
+
+  /**
+   * @return count of requested bytes which are not taken yet
+   */
+  public synchronized long getQueuedBytes() {
+    return myQueuedBytes;
+  }
+
+  /**
+   * Removes the request of the block, e.g. when the peer cancelled it
+   *
+   * @return true if the request was in the queue
+   */
+  public synchronized boolean remove(int piece, int offset, int length) {
+    Iterator<PeerMessage.RequestMessage> iterator = myRequests.iterator();
+    while (iterator.hasNext()) {
+      PeerMessage.RequestMessage request = iterator.next();
+      if (request.getPiece() == piece && request.getOffset() == offset && request.getLength() == length) {
+        iterator.remove();
+        myQueuedBytes -= length;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Removes requests of pieces which are not in the given set
+   *
+   * @param keptPieces pieces which requests are kept or null to remove all requests
+   * @return removed requests
+   */
+  public synchronized List<PeerMessage.RequestMessage> removeAllExcept(@Nullable BitSet keptPieces) {
+    List<PeerMessage.RequestMessage> removed = new ArrayList<PeerMessage.RequestMessage>();
+    Iterator<PeerMessage.RequestMessage> iterator = myRequests.iterator();
+    while (iterator.hasNext()) {
+      PeerMessage.RequestMessage request = iterator.next();
+      if (keptPieces == null || !keptPieces.get(request.getPiece())) {
+        iterator.remove();
+        myQueuedBytes -= request.getLength();
+        removed.add(request);
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Takes requests from the head of the queue and merges them into reads
+   *
+   * @param maxBytes max count of requested bytes to take, at least one request is taken
+   * @return reads in order of pieces and offsets
+   */
+  public List<Read> poll(long maxBytes) {
+    List<PeerMessage.RequestMessage> batch = new ArrayList<PeerMessage.RequestMessage>();
+    synchronized (this) {
+      long taken = 0;
+      while (!myRequests.isEmpty() && (batch.isEmpty() || taken + myRequests.peek().getLength() <= maxBytes)) {
+        PeerMessage.RequestMessage request = myRequests.poll();
+        taken += request.getLength();
+        batch.add(request);
+      }
+      myQueuedBytes -= taken;
+    }
+    Collections.sort(batch, REQUEST_ORDER);
+    List<Read> result = new ArrayList<Read>();
+    Read current = null;
+    for (PeerMessage.RequestMessage request : batch) {
+      if (current == null || !current.append(request)) {
+        current = new Read(request);
+        result.add(current);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return data of the piece if it was read ahead, its position is 0 and its limit is size of the piece
+   */
+  @Nullable
+  public synchronized ByteBuffer getReadAhead(int piece) {
+    if (piece != myReadAheadPiece || myReadAheadData == null) return null;
+    return myReadAheadData.duplicate();
+  }
+
+  /**
+   * Keeps data of the piece instead of the previous read ahead piece
+   */
+  public synchronized void setReadAhead(int piece, ByteBuffer data) {
+    myReadAheadPiece = piece;
+    myReadAheadData = data;
+  }
+
+  public synchronized void clear() {
+    myRequests.clear();
+    myQueuedBytes = 0;
+    myReadAheadPiece = -1;
+    myReadAheadData = null;
+  }
+
+  private static final Comparator<PeerMessage.RequestMessage> REQUEST_ORDER = new Comparator<PeerMessage.RequestMessage>() {
+    @Override
+    public int compare(PeerMessage.RequestMessage o1, PeerMessage.RequestMessage o2) {
+      if (o1.getPiece() != o2.getPiece()) {
+        return o1.getPiece() < o2.getPiece() ? -1 : 1;
+      }
+      return o1.getOffset() < o2.getOffset() ? -1 : (o1.getOffset() == o2.getOffset() ? 0 : 1);
+    }
+  };
+
+  /**
+   * Contiguous range of a piece which covers one or more requested blocks
+   */
+  public static class Read {
+
+    private final int myPiece;
+    private final int myOffset;
+    private int myLength;
+    private final List<PeerMessage.RequestMessage> myBlocks = new ArrayList<PeerMessage.RequestMessage>();
+
+    Read(PeerMessage.RequestMessage first) {
+      myPiece = first.getPiece();
+      myOffset = first.getOffset();
+      myLength = first.getLength();
+      myBlocks.add(first);
+    }
+
+    // the request is merged if it starts where the range ends
+    private boolean append(PeerMessage.RequestMessage request) {
+      if (request.getPiece() != myPiece || request.getOffset() != myOffset + myLength ||
+              myLength + request.getLength() > MAX_READ_SIZE) {
+        return false;
+      }
+      myLength += request.getLength();
+      myBlocks.add(request);
+      return true;
+    }
+
+    public int getPiece() {
+      return myPiece;
+    }
+
+    public int getOffset() {
+      return myOffset;
+    }
+
+    public int getLength() {
+      return myLength;
+    }
+
+    /**
+     * @return requests covered by the range in order of offsets
+     */
+    public List<PeerMessage.RequestMessage> getBlocks() {
+      return myBlocks;
+    }
+  }
+}
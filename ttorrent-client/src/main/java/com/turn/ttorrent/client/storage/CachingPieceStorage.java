@@ -0,0 +1,145 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.common.TorrentFile;
+import com.turn.ttorrent.common.TorrentMetadata;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.BitSet;
+
+/**
+ * Piece storage which serves reads of available pieces from the {@link PieceCache} shared by all torrents.
+ * Cached pieces are invalidated on writes and on closing of the storage
+ */
+public class CachingPieceStorage implements DirectPieceStorage {
+
+  private final DirectPieceStorage myDelegate;
+  private final PieceCache myCache;
+  private final String myTorrentHash;
+  private final int myPieceLength;
+  private final long myTotalSize;
+  private volatile boolean myClosedFully = false;
+
+  public CachingPieceStorage(DirectPieceStorage delegate, PieceCache cache, TorrentMetadata metadata) {
+    myDelegate = delegate;
+    myCache = cache;
+    myTorrentHash = metadata.getHexInfoHash();
+    myPieceLength = metadata.getPieceLength();
+    long totalSize = 0;
+    for (TorrentFile file : metadata.getFiles()) {
+      totalSize += file.size;
+    }
+    myTotalSize = totalSize;
+  }
+
+  @Override
+  public void savePiece(int pieceIndex, byte[] pieceData) throws IOException {
+    savePiece(pieceIndex, ByteBuffer.wrap(pieceData));
+  }
+
+  @Override
+  public void savePiece(int pieceIndex, ByteBuffer pieceData) throws IOException {
+    myCache.invalidate(myTorrentHash, pieceIndex);
+    myDelegate.savePiece(pieceIndex, pieceData);
+  }
+
+  @Override
+  public void savePieces(int firstPieceIndex, int count, ByteBuffer piecesData) throws IOException {
+    for (int i = firstPieceIndex; i < firstPieceIndex + count; i++) {
+      myCache.invalidate(myTorrentHash, i);
+    }
+    myDelegate.savePieces(firstPieceIndex, count, piecesData);
+  }
+
+  @Override
+  public void saveBlock(int pieceIndex, int offset, ByteBuffer block) throws IOException {
+    myCache.invalidate(myTorrentHash, pieceIndex);
+    myDelegate.saveBlock(pieceIndex, offset, block);
+  }
+
+  @Override
+  public void digestPiecePart(int pieceIndex, int offset, int length, MessageDigest digest) throws IOException {
+    myDelegate.digestPiecePart(pieceIndex, offset, length, digest);
+  }
+
+  @Override
+  public void markPieceAvailable(int pieceIndex) throws IOException {
+    myCache.invalidate(myTorrentHash, pieceIndex);
+    myDelegate.markPieceAvailable(pieceIndex);
+  }
+
+  @Override
+  public byte[] readPiecePart(int pieceIndex, int offset, int length) throws IOException {
+    ByteBuffer piece = getPiece(pieceIndex, offset, length);
+    if (piece == null) {
+      return myDelegate.readPiecePart(pieceIndex, offset, length);
+    }
+    byte[] result = new byte[length];
+    piece.position(offset);
+    piece.get(result);
+    return result;
+  }
+
+  @Override
+  public long transferPiecePart(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+    ByteBuffer piece = getPiece(pieceIndex, offset, length);
+    if (piece == null) {
+      return myDelegate.transferPiecePart(pieceIndex, offset, length, target);
+    }
+    piece.position(offset);
+    piece.limit(offset + length);
+    return target.write(piece);
+  }
+
+  /**
+   * @return whole piece from the cache, or read from the delegate if it is admitted now,
+   * or null if the part must be read from the delegate
+   */
+  @Nullable
+  private ByteBuffer getPiece(int pieceIndex, int offset, int length) throws IOException {
+    if (!myCache.isEnabled() || myClosedFully) return null;
+    ByteBuffer piece = myCache.get(myTorrentHash, pieceIndex);
+    if (piece == null) {
+      int pieceSize = (int) Math.min(myPieceLength, myTotalSize - (long) pieceIndex * myPieceLength);
+      if (pieceSize <= 0 || !myCache.recordRead(myTorrentHash, pieceIndex, offset, length, pieceSize)) {
+        return null;
+      }
+      piece = myCache.put(myTorrentHash, pieceIndex, myDelegate.readPiecePart(pieceIndex, 0, pieceSize));
+    }
+    if (offset + length > piece.limit()) {
+      throw new IllegalArgumentException("Part " + offset + "+" + length + " is out of piece " + pieceIndex);
+    }
+    return piece;
+  }
+
+  @Override
+  public BitSet getAvailablePieces() {
+    return myDelegate.getAvailablePieces();
+  }
+
+  @Override
+  public boolean isFinished() {
+    return myDelegate.isFinished();
+  }
+
+  @Override
+  public void sync() throws IOException {
+    myDelegate.sync();
+  }
+
+  @Override
+  public void closeFully() throws IOException {
+    myClosedFully = true;
+    myCache.invalidateTorrent(myTorrentHash);
+    myDelegate.closeFully();
+  }
+
+  @Override
+  public void close() throws IOException {
+    myCache.invalidateTorrent(myTorrentHash);
+    myDelegate.close();
+  }
+}
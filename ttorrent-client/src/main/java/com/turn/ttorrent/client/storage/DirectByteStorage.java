@@ -0,0 +1,48 @@
+package com.turn.ttorrent.client.storage;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Byte storage which can transfer its bytes to channels without copying them through heap buffers
+ * and force written bytes to the device.
+ *
+ * <p>
+ * Implementing it is optional, bytes of storages which implement only {@link TorrentByteStorage}
+ * are read into a buffer and written to the channel, and they aren't synced
+ * </p>
+ */
+public interface DirectByteStorage extends TorrentByteStorage {
+
+  /**
+   * Transfer bytes from the byte storage directly to the given channel.
+   *
+   * <p>
+   * Implementations backed by files should avoid copying the data through
+   * heap buffers, e.g. with {@link java.nio.channels.FileChannel#transferTo}.
+   * Less than {@code count} bytes can be transferred if the target channel
+   * is in non-blocking mode and can't accept more data at the moment.
+   * </p>
+   *
+   * @param position The position, in bytes, to transfer from. This must be
+   *                 within the storage boundary.
+   * @param count    The maximum number of bytes to transfer.
+   * @param target   The channel to transfer the bytes to.
+   * @return The number of bytes actually transferred.
+   * @throws IOException If an I/O error occurs while reading from the byte
+   *                     storage or writing to the channel.
+   */
+  long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+  /**
+   * Force written bytes to the storage device.
+   *
+   * <p>
+   * Does nothing if the storage isn't open.
+   * </p>
+   *
+   * @throws IOException If an I/O error occurs while syncing the storage.
+   */
+  void sync() throws IOException;
+
+}
@@ -0,0 +1,65 @@
+package com.turn.ttorrent.client.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Piece storage which gives direct access to the underlying byte storage, so data isn't copied
+ * through intermediate buffers of the client.
+ *
+ * <p>
+ * Implementing it is optional, storages which implement only {@link PieceStorage} are wrapped
+ * by {@link WriteBackPieceStorage} which falls back to methods of {@link PieceStorage}
+ * </p>
+ */
+public interface DirectPieceStorage extends PieceStorage {
+
+  /**
+   * saves remaining bytes of the buffer as data of the piece. Buffer can be reused by caller after invocation
+   */
+  void savePiece(int pieceIndex, ByteBuffer pieceData) throws IOException;
+
+  /**
+   * saves remaining bytes of the buffer as data of consecutive pieces with one write.
+   * All pieces except the last one must be complete. Buffer can be reused by caller after invocation
+   *
+   * @param firstPieceIndex index of the first piece
+   * @param count           count of pieces in the buffer
+   */
+  void savePieces(int firstPieceIndex, int count, ByteBuffer piecesData) throws IOException;
+
+  /**
+   * saves remaining bytes of the buffer as part of the piece which is not available yet.
+   * Saved data isn't available for reading until {@link #markPieceAvailable(int)} is invoked.
+   * Blocks of already available pieces are ignored
+   *
+   * @param offset offset of the block in the piece
+   */
+  void saveBlock(int pieceIndex, int offset, ByteBuffer block) throws IOException;
+
+  /**
+   * updates digest with stored bytes of the piece. Piece can be not available yet,
+   * e.g. for validation of data saved by {@link #saveBlock(int, int, ByteBuffer)}
+   */
+  void digestPiecePart(int pieceIndex, int offset, int length, MessageDigest digest) throws IOException;
+
+  /**
+   * marks piece which was saved by blocks as available
+   */
+  void markPieceAvailable(int pieceIndex) throws IOException;
+
+  /**
+   * transfers part of available piece to the channel directly from the underlying storage
+   *
+   * @return count of transferred bytes. It can be less than length if channel can't accept more bytes now
+   */
+  long transferPiecePart(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException;
+
+  /**
+   * forces saved data to the storage device
+   */
+  void sync() throws IOException;
+
+}
@@ -0,0 +1,234 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.common.LoggerUtils;
+import com.turn.ttorrent.common.TorrentLoggerFactory;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dedicated thread which writes validated pieces of {@link WriteBackPieceStorage}s to the disk
+ * and syncs written data according to the {@link DurabilityMode}.
+ *
+ * <p>
+ * The writer also limits total size of pieces which are kept in memory by all storages.
+ * The thread is never interrupted, because interruption closes file channels of the storages.
+ * </p>
+ */
+public class DiskWriter {
+
+  private static final Logger logger =
+          TorrentLoggerFactory.getLogger(DiskWriter.class);
+
+  public static final long DEFAULT_SYNC_INTERVAL_MS = 5000;
+
+  private final Object myLock = new Object();
+
+  // guarded by myLock
+  private final Set<WriteBackPieceStorage> myDirtyStorages = new LinkedHashSet<WriteBackPieceStorage>();
+  private final Set<WriteBackPieceStorage> myUnsyncedStorages = new LinkedHashSet<WriteBackPieceStorage>();
+  @Nullable
+  private Thread myThread;
+  private boolean myStopped = false;
+
+  private final AtomicLong myBufferedBytes = new AtomicLong();
+  private volatile long myMaxBufferedBytes;
+  private volatile DurabilityMode myDurabilityMode = DurabilityMode.ON_COMPLETION;
+  private volatile long mySyncIntervalMs = DEFAULT_SYNC_INTERVAL_MS;
+
+  /**
+   * @param maxBufferedBytes max total size of pieces which are kept in memory, 0 disables write-back
+   */
+  public DiskWriter(long maxBufferedBytes) {
+    setMaxBufferedBytes(maxBufferedBytes);
+  }
+
+  /**
+   * @param maxBufferedBytes max total size of pieces which are kept in memory, 0 disables write-back.
+   *                         Pieces which are already in memory aren't affected
+   */
+  public void setMaxBufferedBytes(long maxBufferedBytes) {
+    if (maxBufferedBytes < 0) {
+      throw new IllegalArgumentException("Buffer size must not be negative");
+    }
+    myMaxBufferedBytes = maxBufferedBytes;
+  }
+
+  public long getMaxBufferedBytes() {
+    return myMaxBufferedBytes;
+  }
+
+  /**
+   * @return total size of pieces which are kept in memory
+   */
+  public long getBufferedBytes() {
+    return myBufferedBytes.get();
+  }
+
+  public void setDurabilityMode(DurabilityMode durabilityMode) {
+    myDurabilityMode = durabilityMode;
+  }
+
+  public DurabilityMode getDurabilityMode() {
+    return myDurabilityMode;
+  }
+
+  /**
+   * @param syncIntervalMs interval between syncs of written data in {@link DurabilityMode#PERIODIC} mode
+   */
+  public void setSyncInterval(long syncIntervalMs) {
+    if (syncIntervalMs <= 0) {
+      throw new IllegalArgumentException("Sync interval must be positive");
+    }
+    mySyncIntervalMs = syncIntervalMs;
+  }
+
+  public void start() {
+    synchronized (myLock) {
+      if (myThread != null) return;
+      myStopped = false;
+      myThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          writeLoop();
+        }
+      }, "ttorrent disk writer");
+      myThread.setDaemon(true);
+      myThread.start();
+    }
+  }
+
+  /**
+   * Stops the thread and writes pieces which were scheduled before in the calling thread
+   */
+  public void stop() {
+    Thread thread;
+    synchronized (myLock) {
+      thread = myThread;
+      myThread = null;
+      myStopped = true;
+      myLock.notifyAll();
+    }
+    if (thread != null) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    writeScheduled();
+    syncWritten();
+  }
+
+  /**
+   * Reserves memory for a piece
+   *
+   * @return false if the piece doesn't fit into the limit and must be written right away
+   */
+  boolean reserve(long bytes) {
+    while (true) {
+      long buffered = myBufferedBytes.get();
+      if (buffered + bytes > myMaxBufferedBytes) return false;
+      if (myBufferedBytes.compareAndSet(buffered, buffered + bytes)) return true;
+    }
+  }
+
+  /**
+   * Reserves memory for a piece which can't be written right away, the limit can be exceeded by it
+   */
+  void forceReserve(long bytes) {
+    myBufferedBytes.addAndGet(bytes);
+  }
+
+  void release(long bytes) {
+    myBufferedBytes.addAndGet(-bytes);
+  }
+
+  /**
+   * Schedules writing of validated pieces of the storage
+   */
+  void schedule(WriteBackPieceStorage storage) {
+    synchronized (myLock) {
+      myDirtyStorages.add(storage);
+      myLock.notifyAll();
+    }
+  }
+
+  /**
+   * Notifies that data was written to the storage, so it must be synced in {@link DurabilityMode#PERIODIC} mode
+   */
+  void written(WriteBackPieceStorage storage) {
+    if (myDurabilityMode != DurabilityMode.PERIODIC) return;
+    synchronized (myLock) {
+      myUnsyncedStorages.add(storage);
+      myLock.notifyAll();
+    }
+  }
+
+  void forget(WriteBackPieceStorage storage) {
+    synchronized (myLock) {
+      myDirtyStorages.remove(storage);
+      myUnsyncedStorages.remove(storage);
+    }
+  }
+
+  private void writeLoop() {
+    long nextSyncTime = System.currentTimeMillis() + mySyncIntervalMs;
+    while (true) {
+      synchronized (myLock) {
+        while (!myStopped && myDirtyStorages.isEmpty() &&
+                (myUnsyncedStorages.isEmpty() || System.currentTimeMillis() < nextSyncTime)) {
+          long timeout = myUnsyncedStorages.isEmpty() ? 0 : Math.max(1, nextSyncTime - System.currentTimeMillis());
+          try {
+            myLock.wait(timeout);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (myStopped) return;
+      }
+      writeScheduled();
+      if (System.currentTimeMillis() >= nextSyncTime) {
+        syncWritten();
+        nextSyncTime = System.currentTimeMillis() + mySyncIntervalMs;
+      }
+    }
+  }
+
+  private void writeScheduled() {
+    List<WriteBackPieceStorage> storages;
+    synchronized (myLock) {
+      storages = new ArrayList<WriteBackPieceStorage>(myDirtyStorages);
+      myDirtyStorages.clear();
+    }
+    for (WriteBackPieceStorage storage : storages) {
+      try {
+        storage.writeCompletedPieces();
+      } catch (IOException e) {
+        LoggerUtils.warnWithMessageAndDebugDetails(logger, "unable to write pieces of {}, they are kept in memory", storage, e);
+      }
+    }
+  }
+
+  private void syncWritten() {
+    List<WriteBackPieceStorage> storages;
+    synchronized (myLock) {
+      storages = new ArrayList<WriteBackPieceStorage>(myUnsyncedStorages);
+      myUnsyncedStorages.clear();
+    }
+    for (WriteBackPieceStorage storage : storages) {
+      try {
+        storage.sync();
+      } catch (IOException e) {
+        LoggerUtils.warnWithMessageAndDebugDetails(logger, "unable to sync {}", storage, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package com.turn.ttorrent.client.storage;
+
+/**
+ * Defines when downloaded data is forced to the storage device
+ *
+ * @see DiskWriter
+ */
+public enum DurabilityMode {
+
+  /**
+   * Data is never forced, the operating system writes it when it decides
+   */
+  NONE,
+
+  /**
+   * Written data is forced periodically and when the download is complete or the files are closed
+   */
+  PERIODIC,
+
+  /**
+   * Data is forced when the download is complete or the files are closed
+   */
+  ON_COMPLETION
+}
@@ -1,62 +1,245 @@
 package com.turn.ttorrent.client.storage;
 
 import com.turn.ttorrent.Constants;
+import com.turn.ttorrent.client.ValidationProgressListener;
 import com.turn.ttorrent.common.TorrentFile;
+import com.turn.ttorrent.common.TorrentLoggerFactory;
 import com.turn.ttorrent.common.TorrentMetadata;
 import com.turn.ttorrent.common.TorrentUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This implementation will read all pieces from storage and compare hashes of pieces with really hashed
  * from metadata
+ * <p>
+ * Pieces are checked by chunks of consecutive pieces, so every worker reads the files sequentially.
+ * {@link #INSTANCE} checks all chunks in the calling thread, instance created with an executor
+ * distributes chunks over the specified count of workers.
  */
-public class FairPieceStorageFactory implements PieceStorageFactory {
+public class FairPieceStorageFactory implements ValidatingPieceStorageFactory {
+
+  private static final Logger logger =
+          TorrentLoggerFactory.getLogger(FairPieceStorageFactory.class);
 
   public final static FairPieceStorageFactory INSTANCE = new FairPieceStorageFactory();
 
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  @Nullable
+  private final ExecutorService myExecutor;
+  private final int myParallelism;
+  private final int myChunkSize;
+
   private FairPieceStorageFactory() {
+    this(null, 1, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param executor    executor for checking of pieces
+   * @param parallelism count of pieces chunks which are checked concurrently
+   */
+  public FairPieceStorageFactory(ExecutorService executor, int parallelism) {
+    this(executor, parallelism, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param executor    executor for checking of pieces or null for checking in the calling thread
+   * @param parallelism count of pieces chunks which are checked concurrently
+   * @param chunkSize   approximate size in bytes of consecutive pieces which are checked by one worker
+   */
+  public FairPieceStorageFactory(@Nullable ExecutorService executor, int parallelism, int chunkSize) {
+    if (parallelism <= 0 || chunkSize <= 0) {
+      throw new IllegalArgumentException("Parallelism and chunk size must be positive");
+    }
+    myExecutor = executor;
+    myParallelism = executor == null ? 1 : parallelism;
+    myChunkSize = chunkSize;
   }
 
   @Override
   public PieceStorage createStorage(TorrentMetadata metadata, TorrentByteStorage byteStorage) throws IOException {
+    return createStorage(metadata, byteStorage, null);
+  }
+
+  @Override
+  public PieceStorage createStorage(TorrentMetadata metadata,
+                                    TorrentByteStorage byteStorage,
+                                    @Nullable ValidationProgressListener listener) throws IOException {
+    BitSet availablePieces = checkPieces(metadata, byteStorage, null, listener);
+
+    return new PieceStorageImpl(
+            byteStorage,
+            availablePieces,
+            metadata.getPiecesCount(),
+            metadata.getPieceLength()
+    );
+  }
+
+  /**
+   * reads pieces from the storage and checks their hashes
+   *
+   * @param piecesToCheck pieces which must be checked or null for checking of all pieces
+   * @return valid pieces
+   */
+  BitSet checkPieces(TorrentMetadata metadata,
+                     TorrentByteStorage byteStorage,
+                     @Nullable BitSet piecesToCheck,
+                     @Nullable ValidationProgressListener listener) throws IOException {
     long totalSize = 0;
     for (TorrentFile file : metadata.getFiles()) {
       totalSize += file.size;
     }
 
     byteStorage.open(false);
+    try {
+      return checkPieces(metadata, byteStorage, totalSize, piecesToCheck, listener);
+    } finally {
+      byteStorage.close();
+    }
+  }
+
+  private BitSet checkPieces(TorrentMetadata metadata,
+                             TorrentByteStorage byteStorage,
+                             long totalSize,
+                             @Nullable BitSet piecesToCheck,
+                             @Nullable ValidationProgressListener listener) throws IOException {
+    final Verification verification = new Verification(metadata, byteStorage, totalSize, piecesToCheck, listener,
+            Math.max(1, myChunkSize / metadata.getPieceLength()));
+
+    if (myExecutor == null || myParallelism == 1) {
+      return verification.call();
+    }
+
+    List<Future<BitSet>> futures = new ArrayList<Future<BitSet>>(myParallelism);
     BitSet availablePieces = new BitSet(metadata.getPiecesCount());
     try {
-      int pieceLength = metadata.getPieceLength();
-      for (int i = 0; i < metadata.getPiecesCount(); i++) {
-        long position = (long) i * pieceLength;
-        int len;
-        if (totalSize - position > pieceLength) {
-          len = pieceLength;
-        } else {
-          len = (int) (totalSize - position);
-        }
-        ByteBuffer buffer = ByteBuffer.allocate(len);
-        byteStorage.read(buffer, position);
-        byte[] expectedHash = Arrays.copyOfRange(metadata.getPiecesHashes(), i * Constants.PIECE_HASH_SIZE, (i + 1) * Constants.PIECE_HASH_SIZE);
-        byte[] actualHash = TorrentUtils.calculateSha1Hash(buffer.array());
-        if (Arrays.equals(expectedHash, actualHash)) {
-          availablePieces.set(i);
-        }
+      for (int i = 0; i < myParallelism; i++) {
+        futures.add(myExecutor.submit(verification));
+      }
+      for (Future<BitSet> future : futures) {
+        availablePieces.or(future.get());
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while checking pieces");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Unable to check pieces", cause);
     } finally {
-      byteStorage.close();
+      verification.stop();
+      for (Future<BitSet> future : futures) {
+        future.cancel(true);
+      }
     }
+    return availablePieces;
+  }
 
-    return new PieceStorageImpl(
-            byteStorage,
-            availablePieces,
-            metadata.getPiecesCount(),
-            metadata.getPieceLength()
-    );
+  /**
+   * Checks chunks of pieces until all of them are taken. Can be run by several workers concurrently,
+   * every one returns pieces which were checked by it.
+   */
+  private static class Verification implements Callable<BitSet> {
+
+    private final TorrentMetadata myMetadata;
+    private final TorrentByteStorage myByteStorage;
+    private final long myTotalSize;
+    @Nullable
+    private final BitSet myPiecesToCheck;
+    @Nullable
+    private final ValidationProgressListener myListener;
+    private final int myPiecesPerChunk;
+    private final AtomicInteger myNextChunk = new AtomicInteger();
+    private final AtomicInteger myCheckedPieces = new AtomicInteger();
+    private final AtomicInteger myValidPieces = new AtomicInteger();
+    private volatile boolean myStopped = false;
+
+    private Verification(TorrentMetadata metadata,
+                         TorrentByteStorage byteStorage,
+                         long totalSize,
+                         @Nullable BitSet piecesToCheck,
+                         @Nullable ValidationProgressListener listener,
+                         int piecesPerChunk) {
+      myMetadata = metadata;
+      myByteStorage = byteStorage;
+      myTotalSize = totalSize;
+      myPiecesToCheck = piecesToCheck;
+      myListener = listener;
+      myPiecesPerChunk = piecesPerChunk;
+    }
+
+    private void stop() {
+      myStopped = true;
+    }
+
+    @Override
+    public BitSet call() throws IOException {
+      int piecesCount = myMetadata.getPiecesCount();
+      int piecesToCheckCount = myPiecesToCheck == null ? piecesCount : myPiecesToCheck.cardinality();
+      int pieceLength = myMetadata.getPieceLength();
+      byte[] piecesHashes = myMetadata.getPiecesHashes();
+      BitSet availablePieces = new BitSet(piecesCount);
+      MessageDigest digest = TorrentUtils.createSha1Digest();
+      ByteBuffer buffer = null;
+
+      while (!myStopped) {
+        int start = myNextChunk.getAndIncrement() * myPiecesPerChunk;
+        if (start >= piecesCount || start < 0) break;
+        int end = Math.min(piecesCount, start + myPiecesPerChunk);
+
+        int checked = 0;
+        int valid = 0;
+        for (int i = start; i < end; i++) {
+          if (myPiecesToCheck != null && !myPiecesToCheck.get(i)) continue;
+          checked++;
+          long position = (long) i * pieceLength;
+          ByteBuffer pieceBuffer;
+          if (myTotalSize - position > pieceLength) {
+            if (buffer == null) {
+              buffer = ByteBuffer.allocate(pieceLength);
+            }
+            pieceBuffer = buffer;
+            pieceBuffer.clear();
+          } else {
+            // the last piece can be shorter than others
+            pieceBuffer = ByteBuffer.allocate((int) (myTotalSize - position));
+          }
+          myByteStorage.read(pieceBuffer, position);
+          digest.update(pieceBuffer.array(), 0, pieceBuffer.capacity());
+          byte[] actualHash = digest.digest();
+          if (Arrays.equals(actualHash, Arrays.copyOfRange(piecesHashes,
+                  i * Constants.PIECE_HASH_SIZE, (i + 1) * Constants.PIECE_HASH_SIZE))) {
+            availablePieces.set(i);
+            valid++;
+          }
+        }
+
+        if (checked == 0) continue;
+        int checkedPieces = myCheckedPieces.addAndGet(checked);
+        int validPieces = myValidPieces.addAndGet(valid);
+        logger.trace("checked {} of {} pieces", checkedPieces, piecesToCheckCount);
+        if (myListener != null) {
+          myListener.validationProgress(checkedPieces, validPieces, piecesToCheckCount);
+        }
+      }
+      return availablePieces;
+    }
   }
 }
@@ -0,0 +1,113 @@
+package com.turn.ttorrent.client.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.BitSet;
+
+/**
+ * Piece storage which records completed pieces and state of files in {@link FastResumeStore}
+ *
+ * @see FastResumePieceStorageFactory
+ */
+public class FastResumePieceStorage implements DirectPieceStorage {
+
+  private final DirectPieceStorage myDelegate;
+  private final FastResumeStore myResumeStore;
+
+  public FastResumePieceStorage(DirectPieceStorage delegate, FastResumeStore resumeStore) {
+    myDelegate = delegate;
+    myResumeStore = resumeStore;
+  }
+
+  @Override
+  public void savePiece(int pieceIndex, byte[] pieceData) throws IOException {
+    savePiece(pieceIndex, ByteBuffer.wrap(pieceData));
+  }
+
+  @Override
+  public void savePiece(int pieceIndex, ByteBuffer pieceData) throws IOException {
+    myResumeStore.beforeWrite(pieceIndex);
+    myDelegate.savePiece(pieceIndex, pieceData);
+    myResumeStore.pieceCompleted(pieceIndex);
+  }
+
+  @Override
+  public void savePieces(int firstPieceIndex, int count, ByteBuffer piecesData) throws IOException {
+    for (int i = firstPieceIndex; i < firstPieceIndex + count; i++) {
+      myResumeStore.beforeWrite(i);
+    }
+    myDelegate.savePieces(firstPieceIndex, count, piecesData);
+    for (int i = firstPieceIndex; i < firstPieceIndex + count; i++) {
+      myResumeStore.pieceCompleted(i);
+    }
+  }
+
+  @Override
+  public void saveBlock(int pieceIndex, int offset, ByteBuffer block) throws IOException {
+    myResumeStore.beforeWrite(pieceIndex);
+    myDelegate.saveBlock(pieceIndex, offset, block);
+  }
+
+  @Override
+  public void digestPiecePart(int pieceIndex, int offset, int length, MessageDigest digest) throws IOException {
+    myDelegate.digestPiecePart(pieceIndex, offset, length, digest);
+  }
+
+  @Override
+  public void markPieceAvailable(int pieceIndex) throws IOException {
+    myDelegate.markPieceAvailable(pieceIndex);
+    myResumeStore.pieceCompleted(pieceIndex);
+  }
+
+  @Override
+  public byte[] readPiecePart(int pieceIndex, int offset, int length) throws IOException {
+    return myDelegate.readPiecePart(pieceIndex, offset, length);
+  }
+
+  @Override
+  public long transferPiecePart(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+    return myDelegate.transferPiecePart(pieceIndex, offset, length, target);
+  }
+
+  @Override
+  public BitSet getAvailablePieces() {
+    return myDelegate.getAvailablePieces();
+  }
+
+  @Override
+  public boolean isFinished() {
+    return myDelegate.isFinished();
+  }
+
+  @Override
+  public void sync() throws IOException {
+    myDelegate.sync();
+  }
+
+  @Override
+  public void closeFully() throws IOException {
+    try {
+      myDelegate.sync();
+    } finally {
+      myDelegate.closeFully();
+    }
+    myResumeStore.markClean();
+  }
+
+  /**
+   * Closes the delegate and marks the resume state clean. Data is forced to the device
+   * before it even if files aren't synced on close, because pieces of the clean state
+   * aren't checked on the next start
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      myDelegate.sync();
+    } finally {
+      myDelegate.close();
+    }
+    myResumeStore.markClean();
+  }
+}
@@ -0,0 +1,77 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.client.ValidationProgressListener;
+import com.turn.ttorrent.common.TorrentLoggerFactory;
+import com.turn.ttorrent.common.TorrentMetadata;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * This implementation trusts the state which was stored in the resume file by the previous session
+ * (see {@link FastResumeStore}) and checks hashes only of pieces of files which were changed since then.
+ * If there is no resume file all pieces are checked. The resume file is placed in the download directory
+ */
+public class FastResumePieceStorageFactory implements ValidatingPieceStorageFactory {
+
+  private static final Logger logger =
+          TorrentLoggerFactory.getLogger(FastResumePieceStorageFactory.class);
+
+  private static final String RESUME_FILE_SUFFIX = ".resume";
+
+  private final File myDownloadDir;
+  private final FairPieceStorageFactory myPiecesChecker;
+
+  /**
+   * @param downloadDir directory where files of torrents are placed
+   */
+  public FastResumePieceStorageFactory(File downloadDir) {
+    this(downloadDir, FairPieceStorageFactory.INSTANCE);
+  }
+
+  /**
+   * @param downloadDir    directory where files of torrents are placed
+   * @param piecesChecker  factory which is used for checking of untrusted pieces
+   */
+  public FastResumePieceStorageFactory(File downloadDir, FairPieceStorageFactory piecesChecker) {
+    myDownloadDir = downloadDir;
+    myPiecesChecker = piecesChecker;
+  }
+
+  @Override
+  public PieceStorage createStorage(TorrentMetadata metadata, TorrentByteStorage byteStorage) throws IOException {
+    return createStorage(metadata, byteStorage, null);
+  }
+
+  @Override
+  public PieceStorage createStorage(TorrentMetadata metadata,
+                                    TorrentByteStorage byteStorage,
+                                    @Nullable ValidationProgressListener listener) throws IOException {
+    FastResumeStore resumeStore = new FastResumeStore(getResumeFile(metadata), metadata, myDownloadDir);
+
+    BitSet piecesToCheck = new BitSet(metadata.getPiecesCount());
+    BitSet availablePieces = resumeStore.loadTrustedPieces(piecesToCheck);
+    logger.debug("{} pieces of torrent {} are trusted, {} pieces will be checked", new Object[]{
+            availablePieces.cardinality(), metadata.getHexInfoHash(), piecesToCheck.cardinality()});
+    if (!piecesToCheck.isEmpty()) {
+      availablePieces.or(myPiecesChecker.checkPieces(metadata, byteStorage, piecesToCheck, listener));
+    }
+    resumeStore.reset(availablePieces);
+
+    return new FastResumePieceStorage(
+            new PieceStorageImpl(
+                    byteStorage,
+                    availablePieces,
+                    metadata.getPiecesCount(),
+                    metadata.getPieceLength()),
+            resumeStore
+    );
+  }
+
+  private File getResumeFile(TorrentMetadata metadata) {
+    return new File(myDownloadDir, "." + metadata.getHexInfoHash() + RESUME_FILE_SUFFIX);
+  }
+}
@@ -0,0 +1,321 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.common.LoggerUtils;
+import com.turn.ttorrent.common.TorrentFile;
+import com.turn.ttorrent.common.TorrentLoggerFactory;
+import com.turn.ttorrent.common.TorrentMetadata;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Persistent state of the torrent download which allows to skip hashing of
+ * existing data on restart.
+ *
+ * <p>
+ * The resume file contains the info hash of the torrent, a fingerprint (size and
+ * modification time) of every torrent file with a dirty marker and the bitfield
+ * of completed pieces. Completed pieces are written to the bitfield in place as
+ * they arrive, file system sync of these updates is batched. A file is marked as
+ * dirty (and synced immediately) before the first write to it, fingerprints are
+ * updated and dirty markers are cleared when the storage is closed.
+ * </p>
+ *
+ * <p>
+ * Pieces of a file can be trusted without hashing if the file isn't dirty and its
+ * current fingerprint is equal to the stored one.
+ * </p>
+ */
+public class FastResumeStore {
+
+  private static final Logger logger =
+          TorrentLoggerFactory.getLogger(FastResumeStore.class);
+
+  private static final int MAGIC = 0x74524553;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 4 + 4 + 20 + 4 + 4;
+  private static final int FILE_RECORD_SIZE = 8 + 8 + 1;
+
+  public static final int DEFAULT_SYNC_PIECES_COUNT = 64;
+  public static final long DEFAULT_SYNC_INTERVAL_MS = 5000;
+
+  private final File myResumeFile;
+  private final byte[] myInfoHash;
+  private final int myPiecesCount;
+  private final long myPieceLength;
+  private final File[] myFiles;
+  private final long[] myFileOffsets;
+  private final long[] myFileSizes;
+  private final long myTotalSize;
+  private final int mySyncPiecesCount;
+  private final long mySyncIntervalMs;
+
+  private final byte[] myBitfield;
+  private final boolean[] myDirtyFiles;
+  private boolean myHasDirtyFiles;
+  private boolean myStoredStateIsActual;
+  private FileChannel myChannel;
+  private RandomAccessFile myRaf;
+  private int myUnsyncedPieces;
+  private long myLastSyncTime;
+
+  public FastResumeStore(File resumeFile, TorrentMetadata metadata, File downloadDir) {
+    this(resumeFile, metadata, downloadDir, DEFAULT_SYNC_PIECES_COUNT, DEFAULT_SYNC_INTERVAL_MS);
+  }
+
+  /**
+   * @param syncPiecesCount max count of completed pieces which can be not synced with the file system
+   * @param syncIntervalMs  max time in milliseconds when completed pieces can be not synced with the file system
+   */
+  public FastResumeStore(File resumeFile, TorrentMetadata metadata, File downloadDir,
+                         int syncPiecesCount, long syncIntervalMs) {
+    myResumeFile = resumeFile;
+    myInfoHash = metadata.getInfoHash();
+    myPiecesCount = metadata.getPiecesCount();
+    myPieceLength = metadata.getPieceLength();
+    List<TorrentFile> files = metadata.getFiles();
+    myFiles = new File[files.size()];
+    myFileOffsets = new long[files.size()];
+    myFileSizes = new long[files.size()];
+    long offset = 0;
+    for (int i = 0; i < files.size(); i++) {
+      TorrentFile file = files.get(i);
+      myFiles[i] = new File(downloadDir, file.getRelativePathAsString());
+      myFileOffsets[i] = offset;
+      myFileSizes[i] = file.size;
+      offset += file.size;
+    }
+    myTotalSize = offset;
+    mySyncPiecesCount = syncPiecesCount;
+    mySyncIntervalMs = syncIntervalMs;
+    myBitfield = new byte[(myPiecesCount + 7) / 8];
+    myDirtyFiles = new boolean[myFiles.length];
+  }
+
+  /**
+   * Reads the stored state.
+   *
+   * @param piecesToCheck pieces which can't be trusted are set in this bitset.
+   *                      All pieces are set if there is no valid stored state
+   * @return completed pieces which can be trusted without hashing
+   */
+  public synchronized BitSet loadTrustedPieces(BitSet piecesToCheck) {
+    BitSet trusted = new BitSet(myPiecesCount);
+    ByteBuffer stored = readStoredState();
+    if (stored == null) {
+      piecesToCheck.set(0, myPiecesCount);
+      return trusted;
+    }
+
+    BitSet untrusted = new BitSet(myPiecesCount);
+    for (int i = 0; i < myFiles.length; i++) {
+      long size = stored.getLong();
+      long lastModified = stored.getLong();
+      boolean dirty = stored.get() != 0;
+      long[] fingerprint = fingerprint(i);
+      if (dirty || size != fingerprint[0] || lastModified != fingerprint[1]) {
+        logger.debug("File {} was changed since last session, its pieces will be checked", myFiles[i]);
+        setPiecesOfFile(untrusted, i);
+      }
+    }
+    stored.get(myBitfield);
+    for (int i = 0; i < myPiecesCount; i++) {
+      if ((myBitfield[i / 8] & (0x80 >> (i % 8))) != 0) {
+        trusted.set(i);
+      }
+    }
+    myStoredStateIsActual = untrusted.isEmpty();
+    trusted.andNot(untrusted);
+    piecesToCheck.or(untrusted);
+    return trusted;
+  }
+
+  /**
+   * Rewrites the stored state with current fingerprints of files and specified completed pieces
+   */
+  public synchronized void reset(BitSet availablePieces) throws IOException {
+    byte[] bitfield = new byte[myBitfield.length];
+    for (int i = availablePieces.nextSetBit(0); i >= 0 && i < myPiecesCount; i = availablePieces.nextSetBit(i + 1)) {
+      bitfield[i / 8] |= (byte) (0x80 >> (i % 8));
+    }
+    Arrays.fill(myDirtyFiles, false);
+    myHasDirtyFiles = false;
+    // skip rewriting of the same state, e.g. on startup of a seeder
+    if (myStoredStateIsActual && Arrays.equals(bitfield, myBitfield)) return;
+    System.arraycopy(bitfield, 0, myBitfield, 0, bitfield.length);
+    writeCleanState();
+  }
+
+  /**
+   * Must be invoked before any data of the piece is written. Marks files of the piece as dirty
+   */
+  public synchronized void beforeWrite(int pieceIndex) throws IOException {
+    long start = pieceIndex * myPieceLength;
+    long end = Math.min(myTotalSize, start + myPieceLength);
+    for (int i = fileIndexOf(start); i < myFiles.length && myFileOffsets[i] < end; i++) {
+      if (myDirtyFiles[i] || myFileSizes[i] == 0) continue;
+      myDirtyFiles[i] = true;
+      myHasDirtyFiles = true;
+      FileChannel channel = getChannel();
+      channel.write(ByteBuffer.wrap(new byte[]{1}), HEADER_SIZE + (long) i * FILE_RECORD_SIZE + 16);
+      // data can't be written before the marker is on the disk
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Marks piece as completed. The change is synced with the file system in batches
+   */
+  public synchronized void pieceCompleted(int pieceIndex) throws IOException {
+    int mask = 0x80 >> (pieceIndex % 8);
+    if ((myBitfield[pieceIndex / 8] & mask) != 0) return;
+    myBitfield[pieceIndex / 8] |= (byte) mask;
+
+    FileChannel channel = getChannel();
+    channel.write(ByteBuffer.wrap(myBitfield, pieceIndex / 8, 1), bitfieldOffset() + pieceIndex / 8);
+    myUnsyncedPieces++;
+    long now = System.currentTimeMillis();
+    if (myUnsyncedPieces >= mySyncPiecesCount || now - myLastSyncTime >= mySyncIntervalMs) {
+      channel.force(false);
+      myUnsyncedPieces = 0;
+      myLastSyncTime = now;
+    }
+  }
+
+  /**
+   * Stores current fingerprints of files and clears dirty markers. Must be invoked when
+   * all data is written to the files, e.g. after closing of the storage
+   */
+  public synchronized void markClean() throws IOException {
+    if (!myHasDirtyFiles && myChannel == null) return;
+    Arrays.fill(myDirtyFiles, false);
+    myHasDirtyFiles = false;
+    closeChannel();
+    writeCleanState();
+  }
+
+  private void writeCleanState() throws IOException {
+    ByteBuffer state = ByteBuffer.allocate(bitfieldOffset() + myBitfield.length);
+    state.putInt(MAGIC);
+    state.putInt(VERSION);
+    state.put(myInfoHash);
+    state.putInt(myPiecesCount);
+    state.putInt(myFiles.length);
+    for (int i = 0; i < myFiles.length; i++) {
+      long[] fingerprint = fingerprint(i);
+      state.putLong(fingerprint[0]);
+      state.putLong(fingerprint[1]);
+      state.put((byte) 0);
+    }
+    state.put(myBitfield);
+    state.flip();
+
+    RandomAccessFile raf = new RandomAccessFile(myResumeFile, "rw");
+    try {
+      raf.setLength(state.remaining());
+      raf.getChannel().write(state, 0);
+      raf.getChannel().force(false);
+    } finally {
+      raf.close();
+    }
+    myStoredStateIsActual = true;
+    myUnsyncedPieces = 0;
+    myLastSyncTime = System.currentTimeMillis();
+  }
+
+  private ByteBuffer readStoredState() {
+    if (!myResumeFile.isFile() || myResumeFile.length() != bitfieldOffset() + myBitfield.length) {
+      return null;
+    }
+    ByteBuffer stored = ByteBuffer.allocate((int) myResumeFile.length());
+    try {
+      FileInputStream in = new FileInputStream(myResumeFile);
+      try {
+        FileChannel channel = in.getChannel();
+        while (stored.hasRemaining() && channel.read(stored) >= 0) {
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LoggerUtils.warnAndDebugDetails(logger, "unable to read resume file {}", myResumeFile, e);
+      return null;
+    }
+    stored.flip();
+    if (stored.remaining() != bitfieldOffset() + myBitfield.length ||
+            stored.getInt() != MAGIC || stored.getInt() != VERSION) {
+      return null;
+    }
+    byte[] infoHash = new byte[myInfoHash.length];
+    stored.get(infoHash);
+    if (!Arrays.equals(infoHash, myInfoHash) ||
+            stored.getInt() != myPiecesCount || stored.getInt() != myFiles.length) {
+      return null;
+    }
+    return stored;
+  }
+
+  /**
+   * @return size and last modification time of the file which will be used for storing of data
+   */
+  private long[] fingerprint(int fileIndex) {
+    File file = new File(myFiles[fileIndex].getAbsolutePath() + FileStorage.PARTIAL_FILE_NAME_SUFFIX);
+    if (!file.exists()) {
+      file = myFiles[fileIndex];
+    }
+    if (!file.exists()) {
+      return new long[]{-1, 0};
+    }
+    return new long[]{file.length(), file.lastModified()};
+  }
+
+  private void setPiecesOfFile(BitSet pieces, int fileIndex) {
+    if (myFileSizes[fileIndex] == 0) return;
+    int first = (int) (myFileOffsets[fileIndex] / myPieceLength);
+    int last = (int) ((myFileOffsets[fileIndex] + myFileSizes[fileIndex] - 1) / myPieceLength);
+    pieces.set(first, Math.min(last + 1, myPiecesCount));
+  }
+
+  private int fileIndexOf(long position) {
+    int index = Arrays.binarySearch(myFileOffsets, position);
+    if (index < 0) {
+      return Math.max(0, -index - 2);
+    }
+    // skip empty files at the same offset, they never hold data
+    while (index > 0 && myFileOffsets[index - 1] == position) {
+      index--;
+    }
+    return index;
+  }
+
+  private int bitfieldOffset() {
+    return HEADER_SIZE + myFiles.length * FILE_RECORD_SIZE;
+  }
+
+  private FileChannel getChannel() throws IOException {
+    if (myChannel == null) {
+      myRaf = new RandomAccessFile(myResumeFile, "rw");
+      myChannel = myRaf.getChannel();
+    }
+    return myChannel;
+  }
+
+  private void closeChannel() throws IOException {
+    if (myRaf == null) return;
+    try {
+      myChannel.force(false);
+    } finally {
+      myRaf.close();
+      myRaf = null;
+      myChannel = null;
+    }
+  }
+}
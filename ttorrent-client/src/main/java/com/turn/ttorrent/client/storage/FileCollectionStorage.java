@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -41,7 +42,7 @@ import java.util.List;
  * @author mpetazzoni
  * @author dgiffin
  */
-public class FileCollectionStorage implements TorrentByteStorage {
+public class FileCollectionStorage implements DirectByteStorage {
 
   private static final Logger logger =
           TorrentLoggerFactory.getLogger(FileCollectionStorage.class);
@@ -67,6 +68,17 @@ public class FileCollectionStorage implements TorrentByteStorage {
   }
 
   public static FileCollectionStorage create(TorrentMetadata metadata, File parent) throws IOException {
+    return create(metadata, parent, false);
+  }
+
+  /**
+   * Create byte storage for all files of the torrent.
+   *
+   * @param memoryMapped if true, completed files will be read through memory
+   *                     mapped windows (see {@link MappedFileStorage}). It
+   *                     reduces the cost of reads for seeded torrents.
+   */
+  public static FileCollectionStorage create(TorrentMetadata metadata, File parent, boolean memoryMapped) throws IOException {
     if (!parent.isDirectory()) {
       throw new IllegalArgumentException("Invalid parent directory!");
     }
@@ -84,7 +96,9 @@ public class FileCollectionStorage implements TorrentByteStorage {
       if (!actual.getParentFile().exists() && !actual.getParentFile().mkdirs()) {
         throw new IOException("Unable to create directories " + actual.getParent() + " for storing torrent file " + actual.getName());
       }
-      files.add(new FileStorage(actual, offset, file.size));
+      files.add(memoryMapped ?
+              new MappedFileStorage(actual, offset, file.size) :
+              new FileStorage(actual, offset, file.size));
       offset += file.size;
       totalSize += file.size;
     }
@@ -125,7 +139,7 @@ public class FileCollectionStorage implements TorrentByteStorage {
     int bytes = 0;
 
     for (FileOffset fo : this.select(position, requested)) {
-      buffer.limit(bytes + (int) fo.length);
+      buffer.limit((int) (buffer.position() + fo.length));
       bytes += fo.file.write(buffer, fo.offset);
     }
 
@@ -136,6 +150,40 @@ public class FileCollectionStorage implements TorrentByteStorage {
     return bytes;
   }
 
+  @Override
+  public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+    long bytes = 0;
+
+    for (FileOffset fo : this.select(position, count)) {
+      long transferred = fo.file.transferTo(fo.offset, fo.length, target);
+      bytes += transferred;
+      if (transferred < fo.length) {
+        // target channel can't accept more bytes now, rest of data will be transferred later
+        break;
+      }
+    }
+
+    return bytes;
+  }
+
+  @Override
+  public void sync() throws IOException {
+    for (FileStorage file : this.files) {
+      file.sync();
+    }
+  }
+
+  /**
+   * Sets whether written bytes are forced to the device when files are closed or finished
+   *
+   * @see FileStorage#setSyncOnClose(boolean)
+   */
+  public void setSyncOnClose(boolean syncOnClose) {
+    for (FileStorage file : this.files) {
+      file.setSyncOnClose(syncOnClose);
+    }
+  }
+
   @Override
   public synchronized void close() throws IOException {
     for (FileStorage file : this.files) {
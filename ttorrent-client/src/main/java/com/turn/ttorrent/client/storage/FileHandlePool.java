@@ -0,0 +1,245 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.common.LoggerUtils;
+import com.turn.ttorrent.common.TorrentLoggerFactory;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Pool of open files of {@link FileStorage}s with a limit of count of open files.
+ *
+ * <p>
+ * A file is opened on the first I/O with it and stays open after it. A file which is used
+ * by I/O in progress is never closed by the pool. When count of open files exceeds the limit,
+ * files which aren't used are closed in least recently used order and reopened on the next I/O.
+ * The limit can be exceeded only while more files are used at the same moment.
+ * {@link #INSTANCE} is shared by all file storages which are created without a pool.
+ * </p>
+ *
+ * <p>
+ * Instances are thread-safe. The pool lock guards only the bookkeeping, files are opened and closed
+ * outside of it, so a slow file system call doesn't block I/O with other files. A slot of the file
+ * is reserved before the opening, other threads acquiring the same handle wait for its end.
+ * </p>
+ */
+public class FileHandlePool {
+
+  private static final Logger logger =
+          TorrentLoggerFactory.getLogger(FileHandlePool.class);
+
+  public static final int DEFAULT_MAX_OPEN_FILES = 512;
+
+  public final static FileHandlePool INSTANCE = new FileHandlePool(DEFAULT_MAX_OPEN_FILES);
+
+  private final Object myLock = new Object();
+
+  // guarded by myLock
+  private final LinkedHashSet<Handle> myIdleHandles = new LinkedHashSet<Handle>();
+  private int myOpenFilesCount = 0;
+  private int myMaxOpenFiles;
+
+  public FileHandlePool(int maxOpenFiles) {
+    if (maxOpenFiles <= 0) {
+      throw new IllegalArgumentException("Max count of open files must be positive");
+    }
+    myMaxOpenFiles = maxOpenFiles;
+  }
+
+  /**
+   * Changes the limit, files which aren't used are closed if they exceed the new one
+   */
+  public void setMaxOpenFiles(int maxOpenFiles) {
+    if (maxOpenFiles <= 0) {
+      throw new IllegalArgumentException("Max count of open files must be positive");
+    }
+    List<RandomAccessFile> toClose;
+    synchronized (myLock) {
+      myMaxOpenFiles = maxOpenFiles;
+      toClose = closeIdleFiles();
+    }
+    closeFiles(toClose);
+  }
+
+  public int getMaxOpenFiles() {
+    synchronized (myLock) {
+      return myMaxOpenFiles;
+    }
+  }
+
+  public int getOpenFilesCount() {
+    synchronized (myLock) {
+      return myOpenFilesCount;
+    }
+  }
+
+  /**
+   * Creates handle of the file, the file isn't opened until {@link #acquire}
+   *
+   * @param readOnly true if the file is opened only for reading
+   */
+  public Handle createHandle(File file, boolean readOnly) {
+    return new Handle(file, readOnly);
+  }
+
+  /**
+   * Opens the file if it isn't open now and marks it as used until {@link #release}
+   *
+   * @return channel of the file
+   * @throws IOException if the handle is closed or the file can't be opened
+   */
+  public FileChannel acquire(Handle handle) throws IOException {
+    List<RandomAccessFile> toClose = new ArrayList<RandomAccessFile>();
+    FileChannel channel = null;
+    synchronized (myLock) {
+      while (handle.myOpening) {
+        try {
+          myLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while file " + handle.myFile.getAbsolutePath() + " was opened");
+        }
+      }
+      if (handle.myClosed) {
+        throw new IOException("File " + handle.myFile.getAbsolutePath() + " is closed");
+      }
+      // channel is closed when a thread using it was interrupted
+      if (handle.myRaf != null && handle.myUsages == 0 && !handle.myRaf.getChannel().isOpen()) {
+        toClose.add(closeFile(handle));
+      }
+      handle.myUsages++;
+      if (handle.myRaf != null) {
+        myIdleHandles.remove(handle);
+        channel = handle.myRaf.getChannel();
+        toClose.addAll(closeIdleFiles());
+      } else {
+        // the slot is reserved, so the limit is checked correctly while the file is being opened
+        handle.myOpening = true;
+        myOpenFilesCount++;
+      }
+    }
+    closeFiles(toClose);
+    if (channel != null) return channel;
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(handle.myFile, handle.myReadOnly ? "r" : "rw");
+    } finally {
+      synchronized (myLock) {
+        handle.myOpening = false;
+        myLock.notifyAll();
+        if (raf == null) {
+          handle.myUsages--;
+          myOpenFilesCount--;
+          toClose = Collections.emptyList();
+        } else {
+          handle.myRaf = raf;
+          logger.trace("Opened file {}, open files: {}", handle.myFile.getName(), myOpenFilesCount);
+          toClose = closeIdleFiles();
+        }
+      }
+    }
+    closeFiles(toClose);
+    return raf.getChannel();
+  }
+
+  /**
+   * Marks the file as not used by the I/O which {@link #acquire acquired} it
+   */
+  public void release(Handle handle) {
+    List<RandomAccessFile> toClose;
+    synchronized (myLock) {
+      handle.myUsages--;
+      if (handle.myUsages > 0 || handle.myRaf == null) return;
+      if (handle.myClosed) {
+        toClose = Collections.singletonList(closeFile(handle));
+      } else {
+        myIdleHandles.add(handle);
+        toClose = closeIdleFiles();
+      }
+    }
+    closeFiles(toClose);
+  }
+
+  /**
+   * Closes the file and the handle, the file is closed after release if it's used now.
+   * The handle can't be acquired after it
+   */
+  public void close(Handle handle) {
+    RandomAccessFile toClose = null;
+    synchronized (myLock) {
+      handle.myClosed = true;
+      // a file which is being opened is used by the opening thread and it's closed on release
+      if (handle.myUsages == 0 && handle.myRaf != null) {
+        toClose = closeFile(handle);
+      }
+    }
+    if (toClose != null) {
+      closeFiles(Collections.singletonList(toClose));
+    }
+  }
+
+  // must be invoked under myLock, returned files must be closed outside of the lock
+  private List<RandomAccessFile> closeIdleFiles() {
+    if (myOpenFilesCount <= myMaxOpenFiles) return Collections.emptyList();
+    List<RandomAccessFile> result = new ArrayList<RandomAccessFile>();
+    Iterator<Handle> iterator = myIdleHandles.iterator();
+    while (myOpenFilesCount > myMaxOpenFiles && iterator.hasNext()) {
+      Handle handle = iterator.next();
+      iterator.remove();
+      result.add(closeFile(handle));
+    }
+    return result;
+  }
+
+  // must be invoked under myLock, detaches the file from the handle and frees its slot
+  private RandomAccessFile closeFile(Handle handle) {
+    myIdleHandles.remove(handle);
+    RandomAccessFile raf = handle.myRaf;
+    handle.myRaf = null;
+    myOpenFilesCount--;
+    return raf;
+  }
+
+  private void closeFiles(List<RandomAccessFile> files) {
+    for (RandomAccessFile raf : files) {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        LoggerUtils.warnAndDebugDetails(logger, "unable to close file", e);
+      }
+    }
+  }
+
+  /**
+   * File which is opened on demand by the pool
+   */
+  public static final class Handle {
+
+    private final File myFile;
+    private final boolean myReadOnly;
+
+    // guarded by lock of the pool
+    private RandomAccessFile myRaf;
+    private int myUsages = 0;
+    private boolean myClosed = false;
+    private boolean myOpening = false;
+
+    private Handle(File file, boolean readOnly) {
+      myFile = file;
+      myReadOnly = readOnly;
+    }
+
+    public File getFile() {
+      return myFile;
+    }
+  }
+}
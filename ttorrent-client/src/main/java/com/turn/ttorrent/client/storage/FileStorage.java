@@ -25,6 +25,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -35,14 +36,16 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * <p>
  * This implementation of TorrentByteStorageFile provides a torrent byte data
  * storage relying on a single underlying file and uses a RandomAccessFile
- * FileChannel to expose thread-safe read/write methods.
+ * FileChannel to expose thread-safe read/write methods. The file is opened
+ * by {@link FileHandlePool} on demand, so count of open files doesn't grow
+ * with count of torrents and files.
  * </p>
  *
  * @author mpetazzoni
  */
-public class FileStorage implements TorrentByteStorage {
+public class FileStorage implements DirectByteStorage {
 
-  private static final String PARTIAL_FILE_NAME_SUFFIX = ".part";
+  static final String PARTIAL_FILE_NAME_SUFFIX = ".part";
 
   private static final Logger logger =
           TorrentLoggerFactory.getLogger(FileStorage.class);
@@ -51,31 +54,48 @@ public class FileStorage implements TorrentByteStorage {
   private File partial;
   private final long offset;
   private final long size;
+  private final FileHandlePool myHandlePool;
 
-  private RandomAccessFile raf;
-  private FileChannel channel;
+  private FileHandlePool.Handle myHandle;
   private File current;
   private boolean myIsOpen = false;
+  // true if bytes were written after the last sync
+  private volatile boolean myUnsynced = false;
+  private volatile boolean mySyncOnClose = true;
 
   private final ReadWriteLock myLock = new ReentrantReadWriteLock();
 
   public FileStorage(File file, long offset, long size)
           throws IOException {
+    this(file, offset, size, FileHandlePool.INSTANCE);
+  }
+
+  /**
+   * @param handlePool pool which opens the file on demand
+   */
+  public FileStorage(File file, long offset, long size, FileHandlePool handlePool)
+          throws IOException {
     this.target = file;
     this.offset = offset;
     this.size = size;
-
+    this.myHandlePool = handlePool;
   }
 
+  /**
+   * Prepares the file for reading or writing. The file is opened by the pool on the first
+   * I/O and can be closed and reopened by it later
+   */
   public void open(final boolean seeder) throws IOException {
     try {
       myLock.writeLock().lock();
+      if (myIsOpen) {
+        myHandlePool.close(myHandle);
+      }
       if (seeder) {
         if (!target.exists()) {
           throw new IOException("Target file " + target.getAbsolutePath() + " doesn't exist.");
         }
         this.current = this.target;
-        this.raf = new RandomAccessFile(this.current, "r");
       } else {
         this.partial = new File(this.target.getAbsolutePath() + PARTIAL_FILE_NAME_SUFFIX);
 
@@ -92,14 +112,21 @@ public class FileStorage implements TorrentByteStorage {
                   this.target.getAbsolutePath());
           this.current = this.target;
         }
-        this.raf = new RandomAccessFile(this.current, "rw");
-        this.raf.setLength(this.size);
+
+        // Set the file length to the appropriate size, eventually truncating
+        // or extending the file if it already exists with a different size.
+        if (!this.current.exists() || this.current.length() != this.size) {
+          RandomAccessFile raf = new RandomAccessFile(this.current, "rw");
+          try {
+            raf.setLength(this.size);
+          } finally {
+            raf.close();
+          }
+        }
       }
 
-      // Set the file length to the appropriate size, eventually truncating
-      // or extending the file if it already exists with a different size.
+      myHandle = myHandlePool.createHandle(this.current, seeder);
       myIsOpen = true;
-      this.channel = raf.getChannel();
 
       logger.debug("Opened byte storage file at {} ({}+{} byte(s)).",
               new Object[]{
@@ -116,10 +143,21 @@ public class FileStorage implements TorrentByteStorage {
     return this.offset;
   }
 
+  protected File target() {
+    return this.target;
+  }
+
   public long size() {
     return this.size;
   }
 
+  private FileChannel acquireChannel() throws IOException {
+    if (!myIsOpen) {
+      throw new IOException("Storage " + this.target.getAbsolutePath() + " is not open");
+    }
+    return myHandlePool.acquire(myHandle);
+  }
+
   @Override
   public int read(ByteBuffer buffer, long position) throws IOException {
     try {
@@ -130,12 +168,17 @@ public class FileStorage implements TorrentByteStorage {
         throw new IllegalArgumentException("Invalid storage read request!");
       }
 
-      int bytes = this.channel.read(buffer, position);
-      if (bytes < requested) {
-        throw new IOException("Storage underrun!");
-      }
+      FileChannel channel = acquireChannel();
+      try {
+        int bytes = channel.read(buffer, position);
+        if (bytes < requested) {
+          throw new IOException("Storage underrun!");
+        }
 
-      return bytes;
+        return bytes;
+      } finally {
+        myHandlePool.release(myHandle);
+      }
     } finally {
       myLock.readLock().unlock();
     }
@@ -151,25 +194,84 @@ public class FileStorage implements TorrentByteStorage {
         throw new IllegalArgumentException("Invalid storage write request!");
       }
 
-      return this.channel.write(buffer, position);
+      FileChannel channel = acquireChannel();
+      try {
+        myUnsynced = true;
+        return channel.write(buffer, position);
+      } finally {
+        myHandlePool.release(myHandle);
+      }
     } finally {
       myLock.writeLock().unlock();
     }
   }
 
+  @Override
+  public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+    try {
+      myLock.readLock().lock();
+      if (position + count > this.size) {
+        throw new IllegalArgumentException("Invalid storage transfer request!");
+      }
+
+      FileChannel channel = acquireChannel();
+      try {
+        return channel.transferTo(position, count, target);
+      } finally {
+        myHandlePool.release(myHandle);
+      }
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void sync() throws IOException {
+    try {
+      myLock.readLock().lock();
+      if (!myIsOpen) return;
+      sync0();
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  // the file is reopened if it was closed by the pool after writing, fsync applies to all its data
+  private void sync0() throws IOException {
+    if (!myUnsynced) return;
+    FileChannel channel = acquireChannel();
+    try {
+      myUnsynced = false;
+      channel.force(true);
+    } catch (IOException e) {
+      myUnsynced = true;
+      throw e;
+    } finally {
+      myHandlePool.release(myHandle);
+    }
+  }
+
+  /**
+   * Sets whether written bytes are forced to the device when the file is closed or finished.
+   * It's enabled by default
+   */
+  public void setSyncOnClose(boolean syncOnClose) {
+    mySyncOnClose = syncOnClose;
+  }
+
   @Override
   public void close() throws IOException {
     try {
       myLock.writeLock().lock();
       if (!myIsOpen) return;
-      logger.debug("Closing file channel to {}. Channel open: {}", current.getName(), channel.isOpen());
-      if (this.channel.isOpen()) {
+      logger.debug("Closing file channel to {}", current.getName());
+      if (mySyncOnClose) {
         try {
-          this.channel.force(true);
+          sync0();
         } catch (ClosedByInterruptException ignored) {
         }
       }
-      this.raf.close();
+      myHandlePool.close(myHandle);
       myIsOpen = false;
     } finally {
       myLock.writeLock().unlock();
@@ -185,8 +287,8 @@ public class FileStorage implements TorrentByteStorage {
       myLock.writeLock().lock();
       logger.debug("Closing file channel to " + this.current.getName() +
               " (download complete).");
-      if (this.channel.isOpen()) {
-        this.channel.force(true);
+      if (mySyncOnClose && myIsOpen) {
+        sync0();
       }
 
       // Nothing more to do if we're already on the target file.
@@ -196,7 +298,9 @@ public class FileStorage implements TorrentByteStorage {
 
       try {
         FileUtils.deleteQuietly(this.target);
-        this.raf.close();
+        if (myIsOpen) {
+          myHandlePool.close(myHandle);
+        }
         FileUtils.moveFile(this.current, this.target);
       } catch (Exception ex) {
         logger.error("An error occurred while moving file to its final location", ex);
@@ -0,0 +1,239 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.common.TorrentLoggerFactory;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single-file torrent byte storage which serves reads of the completed file
+ * from memory mapped windows.
+ *
+ * <p>
+ * While the file is downloading all operations are delegated to {@link FileStorage}.
+ * When the storage is opened in seeder mode or the download is finished the file
+ * is mapped read-only in windows of fixed size (files larger than 2 GiB are
+ * served with several mappings), and reads are just copies from page cache
+ * without any locks and syscalls. Only the most recently used windows are kept
+ * mapped, other ones are released and unmapped by garbage collector.
+ * </p>
+ *
+ * <p>
+ * Lookup of a mapped window doesn't lock, so concurrent reads don't wait for each other.
+ * Only mapping of a new window and eviction of the least recently used one are serialized.
+ * </p>
+ */
+public class MappedFileStorage extends FileStorage {
+
+  private static final Logger logger =
+          TorrentLoggerFactory.getLogger(MappedFileStorage.class);
+
+  public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+  public static final int DEFAULT_MAX_MAPPED_WINDOWS = 16;
+
+  private final int myWindowSize;
+  private final int myMaxMappedWindows;
+  private final ConcurrentHashMap<Long, Window> myWindows;
+  // serializes mapping and eviction of windows
+  private final Object myMapLock = new Object();
+  private volatile boolean myMappingEnabled;
+
+  public MappedFileStorage(File file, long offset, long size) throws IOException {
+    this(file, offset, size, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_MAPPED_WINDOWS);
+  }
+
+  /**
+   * @param windowSize       size of one mapped window in bytes
+   * @param maxMappedWindows max count of windows which are kept mapped
+   */
+  public MappedFileStorage(File file, long offset, long size,
+                           int windowSize, int maxMappedWindows) throws IOException {
+    super(file, offset, size);
+    if (windowSize <= 0 || maxMappedWindows <= 0) {
+      throw new IllegalArgumentException("Window size and max count of windows must be positive");
+    }
+    myWindowSize = windowSize;
+    myMaxMappedWindows = maxMappedWindows;
+    myWindows = new ConcurrentHashMap<Long, Window>();
+    myMappingEnabled = false;
+  }
+
+  @Override
+  public void open(boolean seeder) throws IOException {
+    super.open(seeder);
+    myMappingEnabled = seeder;
+  }
+
+  @Override
+  public int read(ByteBuffer buffer, long position) throws IOException {
+    if (!myMappingEnabled) {
+      return super.read(buffer, position);
+    }
+
+    int requested = buffer.remaining();
+    if (position + requested > size()) {
+      throw new IllegalArgumentException("Invalid storage read request!");
+    }
+
+    int bytes = 0;
+    while (bytes < requested) {
+      ByteBuffer window = windowPart(position + bytes, requested - bytes);
+      bytes += window.remaining();
+      buffer.put(window);
+    }
+    return bytes;
+  }
+
+  @Override
+  public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+    if (!myMappingEnabled) {
+      return super.transferTo(position, count, target);
+    }
+
+    if (position + count > size()) {
+      throw new IllegalArgumentException("Invalid storage transfer request!");
+    }
+
+    long bytes = 0;
+    while (bytes < count) {
+      ByteBuffer window = windowPart(position + bytes, (int) Math.min(count - bytes, myWindowSize));
+      int expected = window.remaining();
+      int written = target.write(window);
+      bytes += written;
+      if (written < expected) {
+        break;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns read-only view of the stored bytes without copying them.
+   *
+   * @return slice of the mapped file or null if the file isn't mapped now or
+   * the requested bytes are placed in different windows. In the last case
+   * caller should use {@link #read(ByteBuffer, long)}
+   */
+  @Nullable
+  public ByteBuffer slice(long position, int length) throws IOException {
+    if (!myMappingEnabled) {
+      return null;
+    }
+    if (position + length > size()) {
+      throw new IllegalArgumentException("Invalid storage read request!");
+    }
+    ByteBuffer window = windowPart(position, length);
+    if (window.remaining() < length) {
+      return null;
+    }
+    return window.slice();
+  }
+
+  @Override
+  public void close() throws IOException {
+    myMappingEnabled = false;
+    releaseWindows();
+    super.close();
+  }
+
+  @Override
+  public void finish() throws IOException {
+    super.finish();
+    myMappingEnabled = true;
+  }
+
+  @Override
+  public void delete() throws IOException {
+    myMappingEnabled = false;
+    releaseWindows();
+    super.delete();
+  }
+
+  /**
+   * @return read-only buffer which contains bytes from position to the end of window or
+   * to position + maxLength, whichever comes first
+   */
+  private ByteBuffer windowPart(long position, int maxLength) throws IOException {
+    long windowIndex = position / myWindowSize;
+    int windowOffset = (int) (position % myWindowSize);
+    ByteBuffer window = getWindow(windowIndex).duplicate();
+    window.position(windowOffset);
+    window.limit(Math.min(window.capacity(), windowOffset + maxLength));
+    return window;
+  }
+
+  private MappedByteBuffer getWindow(long windowIndex) throws IOException {
+    Window window = myWindows.get(windowIndex);
+    if (window == null) {
+      window = mapWindow(windowIndex);
+    }
+    window.myLastAccess = System.nanoTime();
+    return window.myBuffer;
+  }
+
+  private Window mapWindow(long windowIndex) throws IOException {
+    synchronized (myMapLock) {
+      Window window = myWindows.get(windowIndex);
+      if (window != null) {
+        return window;
+      }
+      long start = windowIndex * myWindowSize;
+      long length = Math.min(myWindowSize, size() - start);
+      RandomAccessFile file = new RandomAccessFile(target(), "r");
+      try {
+        // mapping stays valid after closing of the channel
+        window = new Window(file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length));
+      } finally {
+        file.close();
+      }
+      logger.trace("Mapped {} bytes of file {} from position {}", new Object[]{length, target().getName(), start});
+      myWindows.put(windowIndex, window);
+      while (myWindows.size() > myMaxMappedWindows) {
+        evictLeastRecentlyUsed(windowIndex);
+      }
+      return window;
+    }
+  }
+
+  // must be invoked under myMapLock
+  private void evictLeastRecentlyUsed(long mappedWindowIndex) {
+    Long eldestIndex = null;
+    long eldestAccess = Long.MAX_VALUE;
+    for (Map.Entry<Long, Window> entry : myWindows.entrySet()) {
+      if (entry.getKey() == mappedWindowIndex) continue;
+      long lastAccess = entry.getValue().myLastAccess;
+      if (eldestIndex == null || lastAccess - eldestAccess < 0) {
+        eldestIndex = entry.getKey();
+        eldestAccess = lastAccess;
+      }
+    }
+    // readers which got the window before keep using it, it's unmapped when they release it
+    myWindows.remove(eldestIndex);
+  }
+
+  private void releaseWindows() {
+    synchronized (myMapLock) {
+      myWindows.clear();
+    }
+  }
+
+  private static final class Window {
+
+    private final MappedByteBuffer myBuffer;
+    private volatile long myLastAccess;
+
+    private Window(MappedByteBuffer buffer) {
+      myBuffer = buffer;
+      myLastAccess = System.nanoTime();
+    }
+  }
+}
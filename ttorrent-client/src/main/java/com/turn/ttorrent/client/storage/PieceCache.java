@@ -0,0 +1,271 @@
+package com.turn.ttorrent.client.storage;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of whole pieces in direct memory which is shared by storages of all torrents,
+ * see {@link CachingPieceStorage}.
+ *
+ * <p>
+ * Pieces are evicted in LRU order when total size of cached pieces exceeds the budget.
+ * A piece is admitted only when a block of it is read for the second time, i.e. when
+ * the piece is requested by more than one peer. Pieces which are uploaded to a single peer
+ * are read from the storage as before and don't evict hot pieces.
+ * Memory of evicted pieces is released by the garbage collector.
+ * </p>
+ *
+ * <p>
+ * Instances are thread-safe.
+ * </p>
+ */
+public class PieceCache {
+
+  /**
+   * Granularity of tracking of read parts of not cached pieces
+   */
+  public static final int TRACKED_BLOCK_SIZE = 16 * 1024;
+
+  /**
+   * Max count of not cached pieces which reads are tracked for admission
+   */
+  public static final int MAX_TRACKED_PIECES = 4096;
+
+  private final Object myLock = new Object();
+
+  // guarded by myLock
+  private final LinkedHashMap<Key, ByteBuffer> myPieces = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+  private final LinkedHashMap<Key, BitSet> myReadBlocks = new LinkedHashMap<Key, BitSet>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, BitSet> eldest) {
+      return size() > MAX_TRACKED_PIECES;
+    }
+  };
+  private long mySize = 0;
+
+  private volatile long myMaxSize;
+
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myEvictions = new AtomicLong();
+
+  /**
+   * @param maxSize max total size of cached pieces in bytes, 0 disables the cache
+   */
+  public PieceCache(long maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("Cache size must not be negative");
+    }
+    myMaxSize = maxSize;
+  }
+
+  /**
+   * Changes the budget, pieces are evicted if they don't fit into the new one
+   *
+   * @param maxSize max total size of cached pieces in bytes, 0 disables the cache
+   */
+  public void setMaxSize(long maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("Cache size must not be negative");
+    }
+    synchronized (myLock) {
+      myMaxSize = maxSize;
+      evict();
+      if (maxSize == 0) {
+        myReadBlocks.clear();
+      }
+    }
+  }
+
+  public long getMaxSize() {
+    return myMaxSize;
+  }
+
+  public boolean isEnabled() {
+    return myMaxSize > 0;
+  }
+
+  /**
+   * @return cached data of the piece, its position is 0 and its limit is size of the piece.
+   * Returned buffer must not be modified
+   */
+  @Nullable
+  public ByteBuffer get(String torrentHash, int pieceIndex) {
+    ByteBuffer data;
+    synchronized (myLock) {
+      data = myPieces.get(new Key(torrentHash, pieceIndex));
+    }
+    if (data == null) {
+      myMisses.incrementAndGet();
+      return null;
+    }
+    myHits.incrementAndGet();
+    return data.duplicate();
+  }
+
+  /**
+   * Records read of the part of not cached piece
+   *
+   * @return true if the part was already read and the piece fits into the cache,
+   * so the whole piece should be read and {@link #put put} into the cache
+   */
+  public boolean recordRead(String torrentHash, int pieceIndex, int offset, int length, int pieceSize) {
+    if (length <= 0 || pieceSize > myMaxSize) return false;
+    Key key = new Key(torrentHash, pieceIndex);
+    int first = offset / TRACKED_BLOCK_SIZE;
+    int last = (offset + length - 1) / TRACKED_BLOCK_SIZE;
+    synchronized (myLock) {
+      BitSet readBlocks = myReadBlocks.get(key);
+      if (readBlocks == null) {
+        readBlocks = new BitSet();
+        myReadBlocks.put(key, readBlocks);
+      }
+      int repeated = readBlocks.nextSetBit(first);
+      if (repeated >= 0 && repeated <= last) {
+        myReadBlocks.remove(key);
+        return true;
+      }
+      readBlocks.set(first, last + 1);
+      return false;
+    }
+  }
+
+  /**
+   * Copies data of the piece into direct memory and caches it, least recently used pieces
+   * are evicted if the budget is exceeded
+   *
+   * @param data whole piece from position 0 to its length
+   * @return cached data of the piece or the given data if it doesn't fit into the cache,
+   * its position is 0 and its limit is size of the piece
+   */
+  public ByteBuffer put(String torrentHash, int pieceIndex, byte[] data) {
+    if (data.length > myMaxSize) return ByteBuffer.wrap(data);
+    ByteBuffer piece = ByteBuffer.allocateDirect(data.length);
+    piece.put(data);
+    piece.flip();
+    Key key = new Key(torrentHash, pieceIndex);
+    synchronized (myLock) {
+      ByteBuffer previous = myPieces.put(key, piece);
+      if (previous != null) {
+        mySize -= previous.capacity();
+      }
+      mySize += piece.capacity();
+      myReadBlocks.remove(key);
+      evict();
+      if (!myPieces.containsKey(key)) return ByteBuffer.wrap(data);
+    }
+    return piece.duplicate();
+  }
+
+  /**
+   * Removes the piece from the cache, e.g. when its data is changed
+   */
+  public void invalidate(String torrentHash, int pieceIndex) {
+    Key key = new Key(torrentHash, pieceIndex);
+    synchronized (myLock) {
+      ByteBuffer data = myPieces.remove(key);
+      if (data != null) {
+        mySize -= data.capacity();
+      }
+      myReadBlocks.remove(key);
+    }
+  }
+
+  /**
+   * Removes all pieces of the torrent from the cache
+   */
+  public void invalidateTorrent(String torrentHash) {
+    synchronized (myLock) {
+      Iterator<Map.Entry<Key, ByteBuffer>> iterator = myPieces.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Key, ByteBuffer> entry = iterator.next();
+        if (entry.getKey().myTorrentHash.equals(torrentHash)) {
+          mySize -= entry.getValue().capacity();
+          iterator.remove();
+        }
+      }
+      Iterator<Key> tracked = myReadBlocks.keySet().iterator();
+      while (tracked.hasNext()) {
+        if (tracked.next().myTorrentHash.equals(torrentHash)) {
+          tracked.remove();
+        }
+      }
+    }
+  }
+
+  // must be invoked under myLock
+  private void evict() {
+    Iterator<ByteBuffer> iterator = myPieces.values().iterator();
+    while (mySize > myMaxSize && iterator.hasNext()) {
+      mySize -= iterator.next().capacity();
+      iterator.remove();
+      myEvictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return total size of cached pieces in bytes
+   */
+  public long getSize() {
+    synchronized (myLock) {
+      return mySize;
+    }
+  }
+
+  public int getPiecesCount() {
+    synchronized (myLock) {
+      return myPieces.size();
+    }
+  }
+
+  /**
+   * @return count of reads which were served from the cache
+   */
+  public long getHits() {
+    return myHits.get();
+  }
+
+  /**
+   * @return count of reads of not cached pieces
+   */
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+  /**
+   * @return count of pieces which were evicted for fitting into the budget
+   */
+  public long getEvictions() {
+    return myEvictions.get();
+  }
+
+  private static final class Key {
+
+    private final String myTorrentHash;
+    private final int myPieceIndex;
+
+    private Key(String torrentHash, int pieceIndex) {
+      myTorrentHash = torrentHash;
+      myPieceIndex = pieceIndex;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key key = (Key) o;
+      return myPieceIndex == key.myPieceIndex && myTorrentHash.equals(key.myTorrentHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myTorrentHash.hashCode() + myPieceIndex;
+    }
+  }
+}
@@ -4,11 +4,15 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
 import java.util.BitSet;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class PieceStorageImpl implements PieceStorage {
+public class PieceStorageImpl implements DirectPieceStorage {
+
+  private static final int DIGEST_CHUNK_SIZE = 64 * 1024;
 
   private final TorrentByteStorage fileCollectionStorage;
   private final ReadWriteLock readWriteLock;
@@ -46,6 +50,11 @@ public class PieceStorageImpl implements PieceStorage {
 
   @Override
   public void savePiece(int pieceIndex, byte[] pieceData) throws IOException {
+    savePiece(pieceIndex, ByteBuffer.wrap(pieceData));
+  }
+
+  @Override
+  public void savePiece(int pieceIndex, ByteBuffer pieceData) throws IOException {
     checkPieceIndex(pieceIndex);
     try {
       readWriteLock.writeLock().lock();
@@ -64,31 +73,44 @@ public class PieceStorageImpl implements PieceStorage {
 
       long pos = pieceIndex;
       pos = pos * pieceSize;
-      ByteBuffer buffer = ByteBuffer.wrap(pieceData);
-      fileCollectionStorage.write(buffer, pos);
-
-      availablePieces.set(pieceIndex);
-      boolean isFullyNow = availablePieces.cardinality() == piecesCount;
-      if (isFullyNow) {
-        this.availablePieces = null;
-        fileCollectionStorage.finish();
-        fileCollectionStorage.close();
-        fileCollectionStorage.open(true);
-      }
+      fileCollectionStorage.write(pieceData, pos);
+
+      markPieceAvailable0(pieceIndex, availablePieces);
     } finally {
       readWriteLock.writeLock().unlock();
     }
   }
 
-  private void openStorageIsNecessary(boolean onlyRead) throws IOException {
-    if (!isOpen) {
-      fileCollectionStorage.open(onlyRead);
-      isOpen = true;
+  @Override
+  public void savePieces(int firstPieceIndex, int count, ByteBuffer piecesData) throws IOException {
+    checkPieceIndex(firstPieceIndex);
+    checkPieceIndex(firstPieceIndex + count - 1);
+    try {
+      readWriteLock.writeLock().lock();
+
+      if (closedFully) throw new IOException("Storage is closed");
+
+      if (this.availablePieces == null) return;
+
+      openStorageIsNecessary(false);
+
+      long pos = firstPieceIndex;
+      pos = pos * pieceSize;
+      fileCollectionStorage.write(piecesData, pos);
+
+      for (int i = firstPieceIndex; i < firstPieceIndex + count; i++) {
+        BitSet availablePieces = this.availablePieces;
+        if (availablePieces == null) break;
+        if (availablePieces.get(i)) continue;
+        markPieceAvailable0(i, availablePieces);
+      }
+    } finally {
+      readWriteLock.writeLock().unlock();
     }
   }
 
   @Override
-  public byte[] readPiecePart(int pieceIndex, int offset, int length) throws IOException {
+  public void saveBlock(int pieceIndex, int offset, ByteBuffer block) throws IOException {
     checkPieceIndex(pieceIndex);
     try {
       readWriteLock.readLock().lock();
@@ -96,13 +118,91 @@ public class PieceStorageImpl implements PieceStorage {
       if (closedFully) throw new IOException("Storage is closed");
 
       BitSet availablePieces = this.availablePieces;
-      if (availablePieces != null && !availablePieces.get(pieceIndex)) {
-        throw new IllegalArgumentException("trying reading part of not available piece");
+      if (availablePieces == null || availablePieces.get(pieceIndex)) return;
+
+      synchronized (openStorageLock) {
+        openStorageIsNecessary(false);
       }
 
+      long pos = pieceIndex;
+      pos = pos * pieceSize + offset;
+      fileCollectionStorage.write(block, pos);
+    } finally {
+      readWriteLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void digestPiecePart(int pieceIndex, int offset, int length, MessageDigest digest) throws IOException {
+    checkPieceIndex(pieceIndex);
+    try {
+      readWriteLock.readLock().lock();
+
+      if (closedFully) throw new IOException("Storage is closed");
+
       synchronized (openStorageLock) {
-        openStorageIsNecessary(availablePieces == null);
+        openStorageIsNecessary(this.availablePieces == null);
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, DIGEST_CHUNK_SIZE));
+      long pos = pieceIndex;
+      pos = pos * pieceSize + offset;
+      long end = pos + length;
+      while (pos < end) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - pos));
+        fileCollectionStorage.read(buffer, pos);
+        buffer.flip();
+        pos += buffer.remaining();
+        digest.update(buffer);
       }
+    } finally {
+      readWriteLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void markPieceAvailable(int pieceIndex) throws IOException {
+    checkPieceIndex(pieceIndex);
+    try {
+      readWriteLock.writeLock().lock();
+
+      if (closedFully) throw new IOException("Storage is closed");
+
+      BitSet availablePieces = this.availablePieces;
+      if (availablePieces == null || availablePieces.get(pieceIndex)) return;
+
+      markPieceAvailable0(pieceIndex, availablePieces);
+    } finally {
+      readWriteLock.writeLock().unlock();
+    }
+  }
+
+  private void markPieceAvailable0(int pieceIndex, BitSet availablePieces) throws IOException {
+    availablePieces.set(pieceIndex);
+    boolean isFullyNow = availablePieces.cardinality() == piecesCount;
+    if (isFullyNow) {
+      this.availablePieces = null;
+      fileCollectionStorage.finish();
+      fileCollectionStorage.close();
+      fileCollectionStorage.open(true);
+    }
+  }
+
+  private void openStorageIsNecessary(boolean onlyRead) throws IOException {
+    if (!isOpen) {
+      fileCollectionStorage.open(onlyRead);
+      isOpen = true;
+    }
+  }
+
+  @Override
+  public byte[] readPiecePart(int pieceIndex, int offset, int length) throws IOException {
+    checkPieceIndex(pieceIndex);
+    try {
+      readWriteLock.readLock().lock();
+
+      prepareForReadingPiece(pieceIndex);
 
       ByteBuffer buffer = ByteBuffer.allocate(length);
       long pos = pieceIndex;
@@ -114,6 +214,41 @@ public class PieceStorageImpl implements PieceStorage {
     }
   }
 
+  @Override
+  public long transferPiecePart(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+    checkPieceIndex(pieceIndex);
+    try {
+      readWriteLock.readLock().lock();
+
+      prepareForReadingPiece(pieceIndex);
+
+      long pos = pieceIndex;
+      pos = pos * pieceSize + offset;
+      if (fileCollectionStorage instanceof DirectByteStorage) {
+        return ((DirectByteStorage) fileCollectionStorage).transferTo(pos, length, target);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      fileCollectionStorage.read(buffer, pos);
+      buffer.flip();
+      return target.write(buffer);
+    } finally {
+      readWriteLock.readLock().unlock();
+    }
+  }
+
+  private void prepareForReadingPiece(int pieceIndex) throws IOException {
+    if (closedFully) throw new IOException("Storage is closed");
+
+    BitSet availablePieces = this.availablePieces;
+    if (availablePieces != null && !availablePieces.get(pieceIndex)) {
+      throw new IllegalArgumentException("trying reading part of not available piece");
+    }
+
+    synchronized (openStorageLock) {
+      openStorageIsNecessary(availablePieces == null);
+    }
+  }
+
   @Override
   public boolean isFinished() {
     try {
@@ -124,6 +259,21 @@ public class PieceStorageImpl implements PieceStorage {
     }
   }
 
+  @Override
+  public void sync() throws IOException {
+    try {
+      readWriteLock.readLock().lock();
+      if (closedFully) return;
+      synchronized (openStorageLock) {
+        if (isOpen && fileCollectionStorage instanceof DirectByteStorage) {
+          ((DirectByteStorage) fileCollectionStorage).sync();
+        }
+      }
+    } finally {
+      readWriteLock.readLock().unlock();
+    }
+  }
+
   @Override
   public void closeFully() throws IOException {
     try {
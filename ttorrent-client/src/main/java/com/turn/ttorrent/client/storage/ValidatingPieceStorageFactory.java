@@ -0,0 +1,27 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.client.ValidationProgressListener;
+import com.turn.ttorrent.common.TorrentMetadata;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Factory which checks existing data of the torrent and can report progress of checking
+ */
+public interface ValidatingPieceStorageFactory extends PieceStorageFactory {
+
+  /**
+   * create new {@link PieceStorage} for specified torrent with specified byte storage
+   * and report progress of checking of existing data to the listener
+   *
+   * @param metadata    specified metadata
+   * @param byteStorage specified byte storage where will be stored pieces
+   * @param listener    listener for progress events or null
+   * @return new {@link PieceStorage}
+   */
+  PieceStorage createStorage(TorrentMetadata metadata,
+                             TorrentByteStorage byteStorage,
+                             @Nullable ValidationProgressListener listener) throws IOException;
+
+}
@@ -0,0 +1,343 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.common.TorrentFile;
+import com.turn.ttorrent.common.TorrentMetadata;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Piece storage which keeps blocks of downloaded pieces in memory and writes validated pieces
+ * to the delegate in the thread of {@link DiskWriter}.
+ *
+ * <p>
+ * Pieces which are waiting for writing are sorted and consecutive ones are written by one
+ * {@link DirectPieceStorage#savePieces} call, so the files are written sequentially by large chunks.
+ * Waiting pieces are already available for reading, they are read from memory.
+ * Pieces which don't fit into the memory limit of the writer are written to the delegate
+ * block by block right away. The piece which completes the download is written with all
+ * waiting pieces in the calling thread. If the delegate isn't a {@link DirectPieceStorage},
+ * it can't save blocks, so all pieces are kept in memory until they are validated.
+ * </p>
+ */
+public class WriteBackPieceStorage implements DirectPieceStorage {
+
+  /**
+   * Max count of bytes which are written to the delegate at once
+   */
+  public static final int MAX_WRITE_SIZE = 16 * 1024 * 1024;
+
+  private final PieceStorage myDelegate;
+  private final DiskWriter myWriter;
+  private final String myTorrentHash;
+  private final int myPieceLength;
+  private final int myPiecesCount;
+  private final long myTotalSize;
+
+  // blocks of pieces which are being downloaded
+  private final ConcurrentMap<Integer, ByteBuffer> myDownloadingPieces = new ConcurrentHashMap<Integer, ByteBuffer>();
+  // pieces which blocks are written to the delegate right away
+  private final Set<Integer> myWrittenThroughPieces =
+          Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+  // validated pieces which are waiting for writing, guarded by this
+  private final TreeMap<Integer, ByteBuffer> myCompletedPieces = new TreeMap<Integer, ByteBuffer>();
+  // serializes writing of completed pieces
+  private final Object myWriteLock = new Object();
+
+  public WriteBackPieceStorage(PieceStorage delegate, DiskWriter writer, TorrentMetadata metadata) {
+    myDelegate = delegate;
+    myWriter = writer;
+    myTorrentHash = metadata.getHexInfoHash();
+    myPieceLength = metadata.getPieceLength();
+    myPiecesCount = metadata.getPiecesCount();
+    long totalSize = 0;
+    for (TorrentFile file : metadata.getFiles()) {
+      totalSize += file.size;
+    }
+    myTotalSize = totalSize;
+  }
+
+  @Override
+  public void savePiece(int pieceIndex, byte[] pieceData) throws IOException {
+    savePiece(pieceIndex, ByteBuffer.wrap(pieceData));
+  }
+
+  @Override
+  public void savePiece(int pieceIndex, ByteBuffer pieceData) throws IOException {
+    discardDownloadingPiece(pieceIndex);
+    saveToDelegate(pieceIndex, pieceData);
+    myWriter.written(this);
+  }
+
+  @Override
+  public void savePieces(int firstPieceIndex, int count, ByteBuffer piecesData) throws IOException {
+    for (int i = firstPieceIndex; i < firstPieceIndex + count; i++) {
+      discardDownloadingPiece(i);
+    }
+    if (myDelegate instanceof DirectPieceStorage) {
+      ((DirectPieceStorage) myDelegate).savePieces(firstPieceIndex, count, piecesData);
+    } else {
+      ByteBuffer piece = piecesData.duplicate();
+      for (int i = firstPieceIndex; i < firstPieceIndex + count; i++) {
+        piece.limit(Math.min(piece.position() + getPieceSize(i), piecesData.limit()));
+        saveToDelegate(i, piece);
+        piece.position(piece.limit());
+      }
+    }
+    myWriter.written(this);
+  }
+
+  @Override
+  public void saveBlock(int pieceIndex, int offset, ByteBuffer block) throws IOException {
+    if (getCompletedPiece(pieceIndex) != null) return;
+
+    ByteBuffer piece = myDownloadingPieces.get(pieceIndex);
+    if (piece == null && !myWrittenThroughPieces.contains(pieceIndex)) {
+      int pieceSize = getPieceSize(pieceIndex);
+      boolean reserved = myWriter.reserve(pieceSize);
+      if (!reserved && !(myDelegate instanceof DirectPieceStorage)) {
+        myWriter.forceReserve(pieceSize);
+        reserved = true;
+      }
+      if (reserved) {
+        piece = ByteBuffer.allocate(pieceSize);
+        ByteBuffer previous = myDownloadingPieces.putIfAbsent(pieceIndex, piece);
+        if (previous != null) {
+          myWriter.release(pieceSize);
+          piece = previous;
+        }
+      } else {
+        myWrittenThroughPieces.add(pieceIndex);
+      }
+    }
+    if (piece == null) {
+      ((DirectPieceStorage) myDelegate).saveBlock(pieceIndex, offset, block);
+      return;
+    }
+    ByteBuffer target = piece.duplicate();
+    target.position(offset);
+    target.put(block.duplicate());
+  }
+
+  @Override
+  public void digestPiecePart(int pieceIndex, int offset, int length, MessageDigest digest) throws IOException {
+    ByteBuffer piece = myDownloadingPieces.get(pieceIndex);
+    if (piece == null) {
+      piece = getCompletedPiece(pieceIndex);
+    }
+    if (piece == null) {
+      if (myDelegate instanceof DirectPieceStorage) {
+        ((DirectPieceStorage) myDelegate).digestPiecePart(pieceIndex, offset, length, digest);
+      } else {
+        digest.update(myDelegate.readPiecePart(pieceIndex, offset, length));
+      }
+      return;
+    }
+    digest.update(slice(piece, offset, length));
+  }
+
+  @Override
+  public void markPieceAvailable(int pieceIndex) throws IOException {
+    myWrittenThroughPieces.remove(pieceIndex);
+    ByteBuffer piece = myDownloadingPieces.remove(pieceIndex);
+    if (piece == null) {
+      if (myDelegate instanceof DirectPieceStorage) {
+        ((DirectPieceStorage) myDelegate).markPieceAvailable(pieceIndex);
+        myWriter.written(this);
+      } else if (!myDelegate.getAvailablePieces().get(pieceIndex)) {
+        throw new IOException("Blocks of piece " + pieceIndex + " aren't saved");
+      }
+      return;
+    }
+    synchronized (this) {
+      myCompletedPieces.put(pieceIndex, piece);
+    }
+    if (getAvailablePieces().cardinality() == myPiecesCount) {
+      writeCompletedPieces();
+    } else {
+      myWriter.schedule(this);
+    }
+  }
+
+  @Override
+  public byte[] readPiecePart(int pieceIndex, int offset, int length) throws IOException {
+    ByteBuffer piece = getCompletedPiece(pieceIndex);
+    if (piece == null) {
+      return myDelegate.readPiecePart(pieceIndex, offset, length);
+    }
+    byte[] result = new byte[length];
+    slice(piece, offset, length).get(result);
+    return result;
+  }
+
+  @Override
+  public long transferPiecePart(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+    ByteBuffer piece = getCompletedPiece(pieceIndex);
+    if (piece != null) {
+      return target.write(slice(piece, offset, length));
+    }
+    if (myDelegate instanceof DirectPieceStorage) {
+      return ((DirectPieceStorage) myDelegate).transferPiecePart(pieceIndex, offset, length, target);
+    }
+    return target.write(ByteBuffer.wrap(myDelegate.readPiecePart(pieceIndex, offset, length)));
+  }
+
+  /**
+   * Writes validated pieces which are waiting in memory to the delegate
+   */
+  void writeCompletedPieces() throws IOException {
+    synchronized (myWriteLock) {
+      int[] indices;
+      ByteBuffer[] pieces;
+      synchronized (this) {
+        indices = new int[myCompletedPieces.size()];
+        pieces = new ByteBuffer[myCompletedPieces.size()];
+        int i = 0;
+        for (Map.Entry<Integer, ByteBuffer> entry : myCompletedPieces.entrySet()) {
+          indices[i] = entry.getKey();
+          pieces[i] = entry.getValue();
+          i++;
+        }
+      }
+      int start = 0;
+      while (start < indices.length) {
+        int end = start + 1;
+        long size = pieces[start].capacity();
+        while (end < indices.length && indices[end] == indices[end - 1] + 1 &&
+                size + pieces[end].capacity() <= MAX_WRITE_SIZE) {
+          size += pieces[end].capacity();
+          end++;
+        }
+        writePieces(indices, pieces, start, end, (int) size);
+        start = end;
+      }
+    }
+  }
+
+  private void writePieces(int[] indices, ByteBuffer[] pieces, int start, int end, int size) throws IOException {
+    if (end - start == 1 || !(myDelegate instanceof DirectPieceStorage)) {
+      for (int i = start; i < end; i++) {
+        saveToDelegate(indices[i], pieces[i].duplicate());
+      }
+    } else {
+      ByteBuffer data = ByteBuffer.allocate(size);
+      for (int i = start; i < end; i++) {
+        data.put(pieces[i].duplicate());
+      }
+      data.flip();
+      ((DirectPieceStorage) myDelegate).savePieces(indices[start], end - start, data);
+    }
+    synchronized (this) {
+      for (int i = start; i < end; i++) {
+        myCompletedPieces.remove(indices[i]);
+      }
+    }
+    myWriter.release(size);
+    myWriter.written(this);
+  }
+
+  private void saveToDelegate(int pieceIndex, ByteBuffer pieceData) throws IOException {
+    if (myDelegate instanceof DirectPieceStorage) {
+      ((DirectPieceStorage) myDelegate).savePiece(pieceIndex, pieceData);
+      return;
+    }
+    byte[] bytes = new byte[pieceData.remaining()];
+    pieceData.duplicate().get(bytes);
+    myDelegate.savePiece(pieceIndex, bytes);
+  }
+
+  @Nullable
+  private synchronized ByteBuffer getCompletedPiece(int pieceIndex) {
+    return myCompletedPieces.get(pieceIndex);
+  }
+
+  private void discardDownloadingPiece(int pieceIndex) {
+    myWrittenThroughPieces.remove(pieceIndex);
+    ByteBuffer piece = myDownloadingPieces.remove(pieceIndex);
+    if (piece != null) {
+      myWriter.release(piece.capacity());
+    }
+  }
+
+  private int getPieceSize(int pieceIndex) {
+    if (pieceIndex < 0 || pieceIndex >= myPiecesCount) {
+      throw new IllegalArgumentException("Incorrect piece index " + pieceIndex + ". Piece index must be positive less than" + myPiecesCount);
+    }
+    return (int) Math.min(myPieceLength, myTotalSize - (long) pieceIndex * myPieceLength);
+  }
+
+  private static ByteBuffer slice(ByteBuffer piece, int offset, int length) {
+    ByteBuffer result = piece.duplicate();
+    result.position(offset);
+    result.limit(offset + length);
+    return result;
+  }
+
+  @Override
+  public BitSet getAvailablePieces() {
+    BitSet result = myDelegate.getAvailablePieces();
+    synchronized (this) {
+      for (Integer pieceIndex : myCompletedPieces.keySet()) {
+        result.set(pieceIndex);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean isFinished() {
+    return myDelegate.isFinished() || getAvailablePieces().cardinality() == myPiecesCount;
+  }
+
+  @Override
+  public void sync() throws IOException {
+    if (myDelegate instanceof DirectPieceStorage) {
+      ((DirectPieceStorage) myDelegate).sync();
+    }
+  }
+
+  @Override
+  public void closeFully() throws IOException {
+    try {
+      writeCompletedPieces();
+    } finally {
+      myWriter.forget(this);
+      for (Integer pieceIndex : myDownloadingPieces.keySet()) {
+        discardDownloadingPiece(pieceIndex);
+      }
+      long lostBytes = 0;
+      synchronized (this) {
+        for (ByteBuffer piece : myCompletedPieces.values()) {
+          lostBytes += piece.capacity();
+        }
+        myCompletedPieces.clear();
+      }
+      myWriter.release(lostBytes);
+      myDelegate.closeFully();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      writeCompletedPieces();
+    } finally {
+      myDelegate.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "write-back storage of " + myTorrentHash;
+  }
+}
@@ -21,6 +21,16 @@ import com.turn.ttorrent.client.peer.SharingPeer;
 
 import java.util.*;
 
+/**
+ * End-game strategy which requests missing blocks of unfinished pieces from several peers.
+ *
+ * <p>
+ * Peers only get requests of blocks which are not received yet (see
+ * {@link SharingPeer#downloadPiece(Piece)}) and requests of other peers are
+ * cancelled as soon as a block is received, so the tail of the download
+ * doesn't transfer whole pieces several times.
+ * </p>
+ */
 public class EndGameStrategyImpl implements EndGameStrategy {
 
   private static final Random RANDOM = new Random();
@@ -41,26 +51,45 @@ public class EndGameStrategyImpl implements EndGameStrategy {
         return Integer.valueOf(o1.getDownloadedPiecesCount()).compareTo(o2.getDownloadedPiecesCount());
       }
     });
+    // pieces which can be requested from every peer are computed once instead of once per piece
+    List<BitSet> requestable = new ArrayList<BitSet>(sorted.size());
+    for (SharingPeer peer : sorted) {
+      requestable.add(getRequestablePieces(peer));
+    }
     for (Piece piece : allPieces) {
-      if (piece.isValid()) continue;
+      if (piece.isValid() || piece.isAllBlocksReceived()) continue;
 
-      //if we don't have piece, then request this piece from two random peers
+      //if we don't have piece, then request its missing blocks from two random peers
       //(peers are selected by peer rank, peer with better rank will be selected more often then peer with bad rank
-      List<SharingPeer> selectedPeers = selectGoodPeers(piece, peersPerPiece, sorted);
+      List<SharingPeer> selectedPeers = selectGoodPeers(piece, peersPerPiece, sorted, requestable);
+      if (selectedPeers.isEmpty()) continue;
       selectedPieces.put(piece, selectedPeers);
     }
     return new RequestsCollectionImpl(selectedPieces);
   }
 
-  private List<SharingPeer> selectGoodPeers(Piece piece, int count, List<SharingPeer> sortedPeers) {
-    List<SharingPeer> notSelected = new ArrayList<SharingPeer>(sortedPeers);
-    Iterator<SharingPeer> iterator = notSelected.iterator();
-    while (iterator.hasNext()) {
-      SharingPeer peer = iterator.next();
-      boolean peerHasCurrentPiece = peer.getAvailablePieces().get(piece.getIndex());
-      boolean alreadyRequested = peer.getRequestedPieces().contains(piece);
+  /**
+   * @return pieces which the peer has, which aren't requested from it yet and which it serves now
+   */
+  private static BitSet getRequestablePieces(SharingPeer peer) {
+    if (!peer.isConnected()) return new BitSet();
+    BitSet result = peer.getAvailablePieces();
+    if (peer.isChoked()) {
+      // choked peers drop requests, except requests of allowed fast pieces
+      result.and(peer.getAllowedFastPieces());
+    }
+    for (Piece requested : peer.getRequestedPieces()) {
+      result.clear(requested.getIndex());
+    }
+    return result;
+  }
 
-      if (!peerHasCurrentPiece || alreadyRequested) iterator.remove();
+  private List<SharingPeer> selectGoodPeers(Piece piece, int count, List<SharingPeer> sortedPeers, List<BitSet> requestable) {
+    List<SharingPeer> notSelected = new ArrayList<SharingPeer>();
+    for (int i = 0; i < sortedPeers.size(); i++) {
+      if (requestable.get(i).get(piece.getIndex())) {
+        notSelected.add(sortedPeers.get(i));
+      }
     }
     if (notSelected.size() <= count) return notSelected;
 
@@ -0,0 +1,27 @@
+package com.turn.ttorrent.client.strategy;
+
+/**
+ * Receives updates of availability of pieces in the swarm.
+ * Request strategies which implement this interface are notified by the torrent
+ * when peers announce pieces (BITFIELD and HAVE messages) and when peers go away.
+ */
+public interface PieceAvailabilityListener {
+
+  /**
+   * Invoked when one more peer has the piece
+   */
+  void pieceSeen(int pieceIndex);
+
+  /**
+   * Invoked when a peer which had the piece is disconnected
+   */
+  void pieceLost(int pieceIndex);
+
+  /**
+   * Invoked when the piece is downloaded by us or when downloaded piece turned out to be invalid
+   *
+   * @param completed true if we have the piece now
+   */
+  void pieceCompleted(int pieceIndex, boolean completed);
+
+}
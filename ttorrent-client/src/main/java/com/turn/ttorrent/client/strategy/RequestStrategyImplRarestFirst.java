@@ -0,0 +1,107 @@
+package com.turn.ttorrent.client.strategy;
+
+import com.turn.ttorrent.client.Piece;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A rarest-first request strategy implementation.
+ *
+ * <p>
+ * The strategy keeps an index of pieces by count of peers which have them:
+ * bucket with number N contains not completed pieces which are available at
+ * N connected peers. The index is updated incrementally by availability events,
+ * so choosing of a piece checks only pieces of the rarest buckets instead of
+ * all pieces of the torrent. A random piece is chosen among the rarest ones.
+ * </p>
+ *
+ * <p>
+ * The strategy has state of a single torrent, so every torrent must use its own instance.
+ * </p>
+ */
+public class RequestStrategyImplRarestFirst implements RequestStrategy, PieceAvailabilityListener {
+
+  private final Random myRandom = new Random();
+
+  private final List<BitSet> myBuckets = new ArrayList<BitSet>();
+  private final BitSet myCompleted = new BitSet();
+  private int[] myAvailability = new int[0];
+
+  @Override
+  public synchronized Piece choosePiece(BitSet interesting, Piece[] pieces) {
+    for (int count = 1; count < myBuckets.size(); count++) {
+      int chosen = chooseRandom(myBuckets.get(count), interesting);
+      if (chosen >= 0) return pieces[chosen];
+    }
+    // interesting pieces must be in the index, but don't fail if availability events were lost
+    int chosen = chooseRandom(interesting, interesting);
+    return chosen >= 0 ? pieces[chosen] : null;
+  }
+
+  @Override
+  public synchronized void pieceSeen(int pieceIndex) {
+    ensureCapacity(pieceIndex);
+    int count = myAvailability[pieceIndex]++;
+    if (myCompleted.get(pieceIndex)) return;
+    if (count > 0) {
+      myBuckets.get(count).clear(pieceIndex);
+    }
+    getBucket(count + 1).set(pieceIndex);
+  }
+
+  @Override
+  public synchronized void pieceLost(int pieceIndex) {
+    ensureCapacity(pieceIndex);
+    int count = myAvailability[pieceIndex];
+    if (count == 0) return;
+    myAvailability[pieceIndex] = count - 1;
+    if (myCompleted.get(pieceIndex)) return;
+    myBuckets.get(count).clear(pieceIndex);
+    if (count > 1) {
+      myBuckets.get(count - 1).set(pieceIndex);
+    }
+  }
+
+  @Override
+  public synchronized void pieceCompleted(int pieceIndex, boolean completed) {
+    ensureCapacity(pieceIndex);
+    if (myCompleted.get(pieceIndex) == completed) return;
+    myCompleted.set(pieceIndex, completed);
+    int count = myAvailability[pieceIndex];
+    if (count > 0) {
+      myBuckets.get(count).set(pieceIndex, !completed);
+    }
+  }
+
+  /**
+   * @return index of a random piece from the bucket which is interesting or -1
+   */
+  private int chooseRandom(BitSet bucket, BitSet interesting) {
+    if (bucket.isEmpty()) return -1;
+    int start = myRandom.nextInt(bucket.length());
+    for (int i = bucket.nextSetBit(start); i >= 0; i = bucket.nextSetBit(i + 1)) {
+      if (interesting.get(i)) return i;
+    }
+    for (int i = bucket.nextSetBit(0); i >= 0 && i < start; i = bucket.nextSetBit(i + 1)) {
+      if (interesting.get(i)) return i;
+    }
+    return -1;
+  }
+
+  private BitSet getBucket(int count) {
+    while (myBuckets.size() <= count) {
+      myBuckets.add(new BitSet());
+    }
+    return myBuckets.get(count);
+  }
+
+  private void ensureCapacity(int pieceIndex) {
+    if (pieceIndex >= myAvailability.length) {
+      myAvailability = Arrays.copyOf(myAvailability, Math.max(pieceIndex + 1, myAvailability.length * 2));
+    }
+  }
+}
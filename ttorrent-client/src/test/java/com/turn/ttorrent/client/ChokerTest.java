@@ -0,0 +1,139 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.peer.Rate;
+import com.turn.ttorrent.client.peer.SharingPeer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class ChokerTest {
+
+  private PeersStorage myPeersStorage;
+  private Choker myChoker;
+  private List<SharingPeer> myPeers;
+
+  @BeforeMethod
+  public void setUp() {
+    myPeersStorage = mock(PeersStorage.class);
+    myChoker = new Choker(myPeersStorage, 10000, 30000, new Random(42));
+    myPeers = new ArrayList<SharingPeer>();
+  }
+
+  public void testDownloadingTorrentPeersAreRankedByDownloadRate() {
+    SharedTorrent torrent = torrent(false);
+    SharingPeer slow = peer(torrent, 10, 1000, true);
+    SharingPeer fast = peer(torrent, 1000, 10, true);
+    SharingPeer middle = peer(torrent, 100, 100, true);
+    SharingPeer notInterested = peer(torrent, 5000, 5000, false);
+    myChoker.setUploadSlots(2, 10);
+
+    Set<SharingPeer> unchoked = myChoker.runRound(0);
+
+    // the slow peer is the only candidate for optimistic unchoke
+    assertEquals(unchoked, new HashSet<SharingPeer>(Arrays.asList(fast, middle, slow)));
+    verify(fast).unchoke();
+    verify(notInterested).choke();
+    verify(notInterested, never()).unchoke();
+  }
+
+  public void testSeedingTorrentPeersAreRankedByUploadRate() {
+    SharedTorrent torrent = torrent(true);
+    SharingPeer slow = peer(torrent, 10, 1000, true);
+    SharingPeer middle = peer(torrent, 100, 100, true);
+    peer(torrent, 1000, 10, true);
+    peer(torrent, 1000, 10, true);
+    myChoker.setUploadSlots(2, 10);
+
+    Set<SharingPeer> unchoked = myChoker.runRound(0);
+
+    assertEquals(unchoked.size(), 3);
+    assertTrue(unchoked.contains(slow));
+    assertTrue(unchoked.contains(middle));
+  }
+
+  public void testGlobalSlotsAreSharedBetweenTorrents() {
+    SharedTorrent first = torrent(false);
+    SharedTorrent second = torrent(false);
+    SharingPeer firstBest = peer(first, 1000, 0, true);
+    peer(first, 900, 0, true);
+    peer(first, 800, 0, true);
+    SharingPeer secondBest = peer(second, 10, 0, true);
+    peer(second, 5, 0, true);
+    myChoker.setUploadSlots(3, 2);
+
+    Set<SharingPeer> unchoked = myChoker.runRound(0);
+
+    // two slots by rank and one optimistic unchoke
+    assertEquals(unchoked.size(), 3);
+    assertTrue(unchoked.contains(firstBest));
+    assertTrue(unchoked.contains(secondBest));
+  }
+
+  public void testOptimisticPeerIsRotated() {
+    SharedTorrent torrent = torrent(false);
+    SharingPeer best = peer(torrent, 1000, 0, true);
+    peer(torrent, 0, 0, true);
+    peer(torrent, 0, 0, true);
+    peer(torrent, 0, 0, true);
+    myChoker.setUploadSlots(1, 1);
+
+    SharingPeer optimistic = null;
+    int rotations = 0;
+    for (int round = 0; round < 30; round++) {
+      Set<SharingPeer> unchoked = myChoker.runRound(round * 10000L);
+      assertEquals(unchoked.size(), 2);
+      assertTrue(unchoked.contains(best));
+      unchoked.remove(best);
+      SharingPeer current = unchoked.iterator().next();
+      if (current != optimistic) {
+        assertEquals(round % 3, 0, "optimistic peer must be kept for 30 seconds");
+        rotations++;
+        optimistic = current;
+      }
+    }
+    assertEquals(rotations, 10);
+  }
+
+  public void testInterestedPeerIsUnchokedWhenThereIsFreeSlot() {
+    SharedTorrent torrent = torrent(false);
+    SharingPeer first = peer(torrent, 0, 0, true);
+    SharingPeer second = peer(torrent, 0, 0, true);
+    myChoker.setUploadSlots(1, 10);
+
+    myChoker.peerInterested(first);
+    verify(first).unchoke();
+    when(first.isChoking()).thenReturn(false);
+
+    myChoker.peerInterested(second);
+    verify(second, never()).unchoke();
+  }
+
+  private SharedTorrent torrent(boolean finished) {
+    SharedTorrent torrent = mock(SharedTorrent.class);
+    when(torrent.isFinished()).thenReturn(finished);
+    return torrent;
+  }
+
+  private SharingPeer peer(SharedTorrent torrent, float downloadRate, float uploadRate, boolean interested) {
+    SharingPeer peer = mock(SharingPeer.class);
+    Rate download = mock(Rate.class);
+    when(download.get()).thenReturn(downloadRate);
+    Rate upload = mock(Rate.class);
+    when(upload.get()).thenReturn(uploadRate);
+    when(peer.getTorrent()).thenReturn(torrent);
+    when(peer.getDLRate()).thenReturn(download);
+    when(peer.getULRate()).thenReturn(upload);
+    when(peer.isConnected()).thenReturn(true);
+    when(peer.isInterested()).thenReturn(interested);
+    when(peer.isChoking()).thenReturn(true);
+    myPeers.add(peer);
+    when(myPeersStorage.getSharingPeers()).thenReturn(new ArrayList<SharingPeer>(myPeers));
+    return peer;
+  }
+}
@@ -0,0 +1,34 @@
+package com.turn.ttorrent.client;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+@Test
+public class HandshakeTest {
+
+  public void testFastExtensionIsAdvertised() throws Exception {
+    byte[] infoHash = new byte[20];
+    byte[] peerId = new byte[20];
+    Arrays.fill(peerId, (byte) 1);
+    ByteBuffer data = Handshake.craft(infoHash, peerId).getData();
+
+    Handshake parsed = Handshake.parse(data);
+    assertTrue(parsed.isFastExtensionSupported());
+    assertEquals(parsed.getPeerId(), peerId);
+  }
+
+  public void testFastExtensionIsNotSupportedWithoutReservedBit() throws Exception {
+    ByteBuffer data = Handshake.craft(new byte[20], new byte[20]).getData();
+    // clear reserved bytes after the protocol identifier
+    int reservedStart = 1 + Handshake.BITTORRENT_PROTOCOL_IDENTIFIER.length();
+    for (int i = 0; i < 8; i++) {
+      data.put(reservedStart + i, (byte) 0);
+    }
+
+    assertFalse(Handshake.parse(data).isFastExtensionSupported());
+  }
+}
@@ -0,0 +1,126 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.storage.PieceStorage;
+import com.turn.ttorrent.client.storage.PieceStorageImpl;
+import com.turn.ttorrent.common.TorrentUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class PieceTest {
+
+  private static final int PIECE_SIZE = 30;
+  private static final int BLOCK_SIZE = 10;
+
+  private PieceStorage myPieceStorage;
+  private byte[] myPieceData;
+
+  @BeforeMethod
+  public void setUp() {
+    myPieceStorage = new PieceStorageImpl(new ByteArrayStorage(PIECE_SIZE), new BitSet(), 1, PIECE_SIZE);
+    myPieceData = new byte[PIECE_SIZE];
+    for (int i = 0; i < myPieceData.length; i++) {
+      myPieceData[i] = (byte) (i * 7);
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    myPieceStorage.close();
+  }
+
+  public void testValidateInOrderBlocks() throws IOException {
+    Piece piece = createPiece(TorrentUtils.calculateSha1Hash(myPieceData));
+    recordBlocks(piece, 0, 1, 2);
+    assertTrue(piece.validate(null, piece));
+  }
+
+  public void testValidateOutOfOrderBlocks() throws IOException {
+    Piece piece = createPiece(TorrentUtils.calculateSha1Hash(myPieceData));
+    recordBlocks(piece, 0, 2, 1);
+    assertTrue(piece.validate(null, piece));
+  }
+
+  public void testValidateRepeatedBlocks() throws IOException {
+    Piece piece = createPiece(TorrentUtils.calculateSha1Hash(myPieceData));
+    recordBlocks(piece, 0, 1, 0, 1, 2, 2);
+    assertTrue(piece.validate(null, piece));
+  }
+
+  public void testInvalidPieceIsRedownloaded() throws IOException {
+    Piece piece = createPiece(TorrentUtils.calculateSha1Hash(myPieceData));
+    recordBlocks(piece, 0);
+    piece.record(ByteBuffer.allocate(BLOCK_SIZE), BLOCK_SIZE);
+    recordBlocks(piece, 2);
+    assertFalse(piece.validate(null, piece));
+
+    recordBlocks(piece, 0, 1, 2);
+    assertTrue(piece.validate(null, piece));
+  }
+
+  public void testOverwrittenHashedBytesAreValidated() throws IOException {
+    Piece piece = createPiece(TorrentUtils.calculateSha1Hash(myPieceData));
+    recordBlocks(piece, 0, 1, 2);
+    // unaligned block with other bytes replaces already hashed part of the piece
+    piece.record(ByteBuffer.allocate(BLOCK_SIZE), BLOCK_SIZE / 2);
+    assertFalse(piece.validate(null, piece));
+  }
+
+  public void testPieceIsAssembledInMemoryIfStorageCantSaveBlocks() throws IOException {
+    Piece piece = new Piece(mock(PieceStorage.class), 0, PIECE_SIZE, TorrentUtils.calculateSha1Hash(myPieceData));
+    recordBlocks(piece, 2, 0, 1);
+    assertTrue(piece.validate(null, piece));
+  }
+
+  public void testReceivedBlocksAreTracked() throws IOException {
+    int length = 2 * Piece.BLOCK_SIZE + 100;
+    PieceStorage storage = new PieceStorageImpl(new ByteArrayStorage(length), new BitSet(), 1, length);
+    try {
+      Piece piece = new Piece(storage, 0, length, new byte[20]);
+      assertEquals(piece.getBlockCount(), 3);
+      assertEquals(piece.getMissingBlocks().cardinality(), 3);
+
+      piece.record(ByteBuffer.allocate(100), 2 * Piece.BLOCK_SIZE);
+      piece.record(ByteBuffer.allocate(Piece.BLOCK_SIZE), 0);
+      // blocks of other sizes aren't tracked
+      piece.record(ByteBuffer.allocate(10), Piece.BLOCK_SIZE);
+      assertTrue(piece.isBlockReceived(0));
+      assertFalse(piece.isBlockReceived(Piece.BLOCK_SIZE));
+      assertFalse(piece.isAllBlocksReceived());
+      BitSet missing = new BitSet();
+      missing.set(1);
+      assertEquals(piece.getMissingBlocks(), missing);
+
+      piece.record(ByteBuffer.allocate(Piece.BLOCK_SIZE), Piece.BLOCK_SIZE);
+      assertTrue(piece.isAllBlocksReceived());
+      assertTrue(piece.getMissingBlocks().isEmpty());
+
+      // the hash doesn't match, so the piece must be downloaded again
+      assertFalse(piece.validate(null, piece));
+      assertFalse(piece.isBlockReceived(0));
+      assertEquals(piece.getMissingBlocks().cardinality(), 3);
+    } finally {
+      storage.close();
+    }
+  }
+
+  private Piece createPiece(byte[] hash) {
+    return new Piece(myPieceStorage, 0, PIECE_SIZE, hash);
+  }
+
+  private void recordBlocks(Piece piece, int... blocks) throws IOException {
+    for (int block : blocks) {
+      piece.record(ByteBuffer.wrap(myPieceData, block * BLOCK_SIZE, BLOCK_SIZE).slice(), block * BLOCK_SIZE);
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package com.turn.ttorrent.client.network;
+
+import com.turn.ttorrent.TempFiles;
+import com.turn.ttorrent.client.*;
+import com.turn.ttorrent.client.peer.PeerActivityListener;
+import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.client.storage.FairPieceStorageFactory;
+import com.turn.ttorrent.client.storage.FileCollectionStorage;
+import com.turn.ttorrent.common.ByteBufferPool;
+import com.turn.ttorrent.common.PeerUID;
+import com.turn.ttorrent.common.TorrentCreator;
+import com.turn.ttorrent.common.TorrentMetadata;
+import com.turn.ttorrent.common.TorrentSerializer;
+import com.turn.ttorrent.common.protocol.PeerMessage;
+import com.turn.ttorrent.common.protocol.PeerMessageView;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.*;
+
+@Test
+public class WorkingReceiverTest {
+
+  private TempFiles myTempFiles;
+  private Context myContext;
+  //handled messages as type, piece and length of block, views are valid only during handling
+  private List<String> myHandledMessages;
+  private ChunkedChannel myChannel;
+  private WorkingReceiver myReceiver;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myHandledMessages = new ArrayList<String>();
+    myChannel = new ChunkedChannel();
+
+    final File tempFile = myTempFiles.createTempFile(1024 * 1024);
+    TorrentMetadata torrent = TorrentCreator.create(tempFile, URI.create(""), "test");
+    File torrentFile = myTempFiles.createTempFile();
+    FileOutputStream fos = new FileOutputStream(torrentFile);
+    fos.write(new TorrentSerializer().serialize(torrent));
+    fos.close();
+
+    final LoadedTorrent loadedTorrent = mock(LoadedTorrent.class);
+    final SharedTorrent sharedTorrent =
+            SharedTorrent.fromFile(torrentFile,
+                    FairPieceStorageFactory.INSTANCE.createStorage(torrent, FileCollectionStorage.create(torrent, tempFile.getParentFile())),
+                    loadedTorrent.getTorrentStatistic());
+
+    myContext = mock(Context.class);
+    PeersStorage peersStorage = new PeersStorage();
+    TorrentsStorage torrentsStorage = new TorrentsStorage();
+    when(myContext.getPeersStorage()).thenReturn(peersStorage);
+    when(myContext.getTorrentsStorage()).thenReturn(torrentsStorage);
+    when(myContext.getBufferPool()).thenReturn(new ByteBufferPool());
+    torrentsStorage.addTorrent(sharedTorrent.getHexInfoHash(), loadedTorrent);
+    torrentsStorage.putIfAbsentActiveTorrent(sharedTorrent.getHexInfoHash(), sharedTorrent);
+
+    SharingPeer peer = new SharingPeer("127.0.0.1", 6881, ByteBuffer.wrap("peerIdpeerIdpeerId22".getBytes()), sharedTorrent, null,
+            mock(PeerActivityListener.class), myChannel, "TO", 1234) {
+      @Override
+      public void handleMessage(PeerMessageView view) {
+        String message = view.getType() + " " + view.getPiece();
+        if (view.getType() == PeerMessage.Type.PIECE) {
+          message += " " + view.getOffset() + " " + view.getBlock().remaining();
+        }
+        myHandledMessages.add(message);
+      }
+    };
+    peer.setExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+    PeerUID peerUID = new PeerUID(new InetSocketAddress("127.0.0.1", 6881), sharedTorrent.getHexInfoHash());
+    peersStorage.putIfAbsent(peerUID, peer);
+    myReceiver = new WorkingReceiver(peerUID, myContext);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myTempFiles.cleanup();
+  }
+
+  public void testAllMessagesAreFramedFromOneRead() throws Exception {
+    ByteBuffer data = ByteBuffer.allocate(100 * 9);
+    for (int i = 0; i < 100; i++) {
+      data.put(PeerMessage.HaveMessage.craft(1).getData());
+    }
+    myChannel.addChunk(data.array());
+
+    assertSame(myReceiver.processAndGetNext(myChannel), myReceiver);
+    assertEquals(myChannel.getReadsCount(), 1);
+    assertEquals(myHandledMessages.size(), 100);
+    for (String message : myHandledMessages) {
+      assertEquals(message, "HAVE 1");
+    }
+  }
+
+  public void testPartialMessageIsCompletedByNextRead() throws Exception {
+    ByteBuffer have = PeerMessage.HaveMessage.craft(0).getData();
+    byte[] bytes = new byte[have.remaining()];
+    have.get(bytes);
+    byte[] firstPart = new byte[3];
+    byte[] secondPart = new byte[bytes.length - 3];
+    System.arraycopy(bytes, 0, firstPart, 0, firstPart.length);
+    System.arraycopy(bytes, firstPart.length, secondPart, 0, secondPart.length);
+
+    myChannel.addChunk(firstPart);
+    myReceiver.processAndGetNext(myChannel);
+    assertTrue(myHandledMessages.isEmpty());
+
+    myChannel.addChunk(secondPart);
+    myReceiver.processAndGetNext(myChannel);
+    assertEquals(myHandledMessages.size(), 1);
+    assertEquals(myHandledMessages.get(0), "HAVE 0");
+  }
+
+  public void testMessageLargerThanReadBuffer() throws Exception {
+    int blockSize = WorkingReceiver.READ_BUFFER_SIZE * 2;
+    ByteBuffer piece = PeerMessage.PieceMessage.createBufferWithHeaderForMessage(0, 0, blockSize);
+    for (int i = 0; i < blockSize; i++) {
+      piece.put((byte) i);
+    }
+    byte[] tail = PeerMessage.HaveMessage.craft(1).getData().array();
+    byte[] bytes = new byte[piece.capacity() + tail.length];
+    System.arraycopy(piece.array(), 0, bytes, 0, piece.capacity());
+    System.arraycopy(tail, 0, bytes, piece.capacity(), tail.length);
+    myChannel.addChunk(bytes);
+
+    while (myHandledMessages.size() < 2) {
+      myReceiver.processAndGetNext(myChannel);
+    }
+    assertEquals(myHandledMessages.get(0), "PIECE 0 0 " + blockSize);
+    assertEquals(myHandledMessages.get(1), "HAVE 1");
+  }
+
+  public void testOrderOfSmallAndLargeMessagesIsKept() throws Exception {
+    int blockSize = 1024;
+    ByteBuffer piece = PeerMessage.PieceMessage.createBufferWithHeaderForMessage(1, 0, blockSize);
+    byte[] have0 = PeerMessage.HaveMessage.craft(0).getData().array();
+    byte[] have1 = PeerMessage.HaveMessage.craft(1).getData().array();
+    ByteBuffer data = ByteBuffer.allocate(have0.length + piece.capacity() + have1.length);
+    data.put(have0);
+    data.put(piece.array());
+    data.put(have1);
+    myChannel.addChunk(data.array());
+
+    myReceiver.processAndGetNext(myChannel);
+    assertEquals(myHandledMessages, Arrays.asList("HAVE 0", "PIECE 1 0 " + blockSize, "HAVE 1"));
+  }
+
+  private static class ChunkedChannel implements ByteChannel {
+
+    private final LinkedList<ByteBuffer> myChunks = new LinkedList<ByteBuffer>();
+    private int myReadsCount = 0;
+
+    void addChunk(byte[] bytes) {
+      myChunks.add(ByteBuffer.wrap(bytes));
+    }
+
+    int getReadsCount() {
+      return myReadsCount;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      myReadsCount++;
+      ByteBuffer chunk = myChunks.peek();
+      if (chunk == null) return 0;
+      int count = Math.min(chunk.remaining(), dst.remaining());
+      ByteBuffer part = chunk.duplicate();
+      part.limit(part.position() + count);
+      dst.put(part);
+      chunk.position(chunk.position() + count);
+      if (!chunk.hasRemaining()) {
+        myChunks.poll();
+      }
+      return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+}
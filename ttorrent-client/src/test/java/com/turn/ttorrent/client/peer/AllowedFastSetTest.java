@@ -0,0 +1,48 @@
+package com.turn.ttorrent.client.peer;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class AllowedFastSetTest {
+
+  private static byte[] infoHash() {
+    byte[] infoHash = new byte[20];
+    Arrays.fill(infoHash, (byte) 0xaa);
+    return infoHash;
+  }
+
+  public void testCanonicalSetOfSpecification() {
+    // example of BEP 6
+    BitSet set = SharingPeer.computeAllowedFastSet("80.4.4.200", infoHash(), 1313, 7);
+    BitSet expected = new BitSet();
+    for (int piece : new int[]{1059, 431, 808, 1217, 287, 376, 1188}) {
+      expected.set(piece);
+    }
+    assertEquals(set, expected);
+
+    set = SharingPeer.computeAllowedFastSet("80.4.4.200", infoHash(), 1313, 9);
+    expected.set(353);
+    expected.set(508);
+    assertEquals(set, expected);
+  }
+
+  public void testSameSetForOneNetwork() {
+    assertEquals(SharingPeer.computeAllowedFastSet("80.4.4.1", infoHash(), 1313, 10),
+            SharingPeer.computeAllowedFastSet("80.4.4.200", infoHash(), 1313, 10));
+  }
+
+  public void testSetIsLimitedByPieceCount() {
+    BitSet set = SharingPeer.computeAllowedFastSet("80.4.4.200", infoHash(), 3, 10);
+    assertEquals(set.cardinality(), 3);
+  }
+
+  public void testEmptyForIpv6() {
+    assertTrue(SharingPeer.computeAllowedFastSet("::1", infoHash(), 1313, 10).isEmpty());
+  }
+}
@@ -0,0 +1,100 @@
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.common.protocol.PeerMessage;
+import org.testng.annotations.Test;
+
+import java.util.LinkedList;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class RequestPipelineTest {
+
+  private static final int BLOCK_SIZE = PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE;
+
+  public void testStartsWithMinDepth() {
+    RequestPipeline pipeline = new RequestPipeline(5, 100);
+    assertEquals(pipeline.getDepth(), 5);
+  }
+
+  public void testDepthCoversBandwidthDelayProduct() {
+    RequestPipeline pipeline = new RequestPipeline(2, 1000);
+    // 100 ms round trip, 100 blocks per 100 ms
+    long now = 0;
+    for (int i = 0; i < 2000; i++) {
+      now += 1;
+      pipeline.blockReceived(100, BLOCK_SIZE, now);
+    }
+    int depth = pipeline.getDepth();
+    assertTrue(depth >= 100 && depth <= 200, "depth is " + depth);
+  }
+
+  public void testDepthIsLimited() {
+    RequestPipeline pipeline = new RequestPipeline(2, 10);
+    long now = 0;
+    for (int i = 0; i < 2000; i++) {
+      now += 1;
+      pipeline.blockReceived(100, BLOCK_SIZE, now);
+    }
+    assertEquals(pipeline.getDepth(), 10);
+
+    pipeline.setLimits(2, 8);
+    assertEquals(pipeline.getDepth(), 8);
+  }
+
+  public void testSlowPeerGetsMinDepth() {
+    RequestPipeline pipeline = new RequestPipeline(3, 1000);
+    // one block per second with 10 ms round trip
+    long now = 0;
+    for (int i = 0; i < 10; i++) {
+      now += 1000;
+      pipeline.blockReceived(10, BLOCK_SIZE, now);
+    }
+    assertEquals(pipeline.getDepth(), 3);
+  }
+
+  public void testQueueingDoesNotInflateDepth() {
+    int pathRttMs = 100;
+    int[] rates = {16 * 1024 * 1024, 1638 * 1024, 160 * 1024};
+    for (int rate : rates) {
+      RequestPipeline pipeline = new RequestPipeline(4, 512);
+      simulateFifoPeer(pipeline, rate, pathRttMs, 60000);
+
+      double bdpBlocks = (double) rate * pathRttMs / 1000 / BLOCK_SIZE;
+      int depth = pipeline.getDepth();
+      assertTrue(depth <= Math.max(4, 2 * bdpBlocks + 3), "depth for rate " + rate + " is " + depth);
+      assertTrue(depth >= Math.min(512, bdpBlocks), "depth for rate " + rate + " is " + depth);
+      // one block is sent by the peer after the request arrives
+      double blockTimeMs = 1000.0 * BLOCK_SIZE / rate;
+      assertTrue(pipeline.getRttMs() <= pathRttMs + blockTimeMs + 1, "rtt for rate " + rate + " is " + pipeline.getRttMs());
+    }
+  }
+
+  /**
+   * Keeps the pipeline full of requests to a peer which sends blocks one by one
+   * with the specified rate in order of requests
+   */
+  private void simulateFifoPeer(RequestPipeline pipeline, int bytesPerSecond, int pathRttMs, long durationMs) {
+    double blockTimeMs = 1000.0 * BLOCK_SIZE / bytesPerSecond;
+    // send time, receive time and 1 if no other requests were outstanding on sending
+    LinkedList<double[]> outstanding = new LinkedList<double[]>();
+    double busyUntil = 0;
+    double now = 0;
+    while (now < durationMs) {
+      while (outstanding.size() < pipeline.getDepth()) {
+        double start = Math.max(now + pathRttMs / 2.0, busyUntil);
+        busyUntil = start + blockTimeMs;
+        outstanding.add(new double[]{now, busyUntil + pathRttMs / 2.0, outstanding.isEmpty() ? 1 : 0});
+      }
+      double[] request = outstanding.poll();
+      now = request[1];
+      pipeline.blockReceived(Math.round(now - request[0]), BLOCK_SIZE, Math.round(now), request[2] == 1);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidLimits() {
+    new RequestPipeline(10, 5);
+  }
+}
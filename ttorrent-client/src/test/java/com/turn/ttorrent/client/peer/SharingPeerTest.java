@@ -0,0 +1,93 @@
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.Constants;
+import com.turn.ttorrent.client.ByteArrayStorage;
+import com.turn.ttorrent.client.EventDispatcher;
+import com.turn.ttorrent.client.Piece;
+import com.turn.ttorrent.client.SharedTorrent;
+import com.turn.ttorrent.client.storage.PieceStorageImpl;
+import com.turn.ttorrent.client.strategy.PieceAvailabilityListener;
+import com.turn.ttorrent.client.strategy.RequestStrategy;
+import com.turn.ttorrent.common.TorrentFile;
+import com.turn.ttorrent.common.TorrentMetadata;
+import com.turn.ttorrent.common.TorrentStatistic;
+import com.turn.ttorrent.common.protocol.PeerMessage;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.BitSet;
+import java.util.Collections;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class SharingPeerTest {
+
+  private static final int PIECE_LENGTH = 16;
+  private static final int PIECES_COUNT = 4;
+
+  public void testRepeatedAvailabilityIsCountedOnce() {
+    AvailabilityCounter counter = new AvailabilityCounter();
+    SharingPeer peer = createPeer(counter);
+
+    peer.handleMessage(PeerMessage.HaveMessage.craft(1));
+    peer.handleMessage(PeerMessage.HaveMessage.craft(1));
+    BitSet bitfield = new BitSet();
+    bitfield.set(1);
+    bitfield.set(2);
+    peer.handleMessage(PeerMessage.BitfieldMessage.craft(bitfield));
+    peer.handleMessage(PeerMessage.BitfieldMessage.craft(bitfield));
+    peer.handleMessage(PeerMessage.HaveMessage.craft(2));
+    peer.handleMessage(PeerMessage.HaveAllMessage.craft());
+    peer.handleMessage(PeerMessage.HaveAllMessage.craft());
+
+    for (int i = 0; i < PIECES_COUNT; i++) {
+      assertEquals(counter.mySeen[i], 1, "piece " + i);
+    }
+  }
+
+  private SharingPeer createPeer(AvailabilityCounter counter) {
+    TorrentMetadata metadata = mock(TorrentMetadata.class);
+    when(metadata.getHexInfoHash()).thenReturn("0123456789abcdef0123456789abcdef01234567");
+    when(metadata.getPieceLength()).thenReturn(PIECE_LENGTH);
+    when(metadata.getPiecesCount()).thenReturn(PIECES_COUNT);
+    when(metadata.getPiecesHashes()).thenReturn(new byte[PIECES_COUNT * Constants.PIECE_HASH_SIZE]);
+    when(metadata.getFiles()).thenReturn(Collections.singletonList(
+            new TorrentFile(Collections.singletonList("file"), (long) PIECE_LENGTH * PIECES_COUNT, "")));
+    // we have all pieces, so the peer isn't interesting and no messages are sent to it
+    BitSet availablePieces = new BitSet();
+    availablePieces.set(0, PIECES_COUNT);
+    SharedTorrent torrent = new SharedTorrent(metadata,
+            new PieceStorageImpl(new ByteArrayStorage(PIECE_LENGTH * PIECES_COUNT), availablePieces, PIECES_COUNT, PIECE_LENGTH),
+            counter, new TorrentStatistic(), new EventDispatcher());
+    return new SharingPeer("127.0.0.1", 6881, ByteBuffer.allocate(20), torrent, null,
+            mock(PeerActivityListener.class), mock(ByteChannel.class), "", 0);
+  }
+
+  private static class AvailabilityCounter implements RequestStrategy, PieceAvailabilityListener {
+
+    private final int[] mySeen = new int[PIECES_COUNT];
+
+    @Override
+    public Piece choosePiece(BitSet interesting, Piece[] pieces) {
+      return null;
+    }
+
+    @Override
+    public void pieceSeen(int pieceIndex) {
+      mySeen[pieceIndex]++;
+    }
+
+    @Override
+    public void pieceLost(int pieceIndex) {
+      mySeen[pieceIndex]--;
+    }
+
+    @Override
+    public void pieceCompleted(int pieceIndex, boolean completed) {
+    }
+  }
+}
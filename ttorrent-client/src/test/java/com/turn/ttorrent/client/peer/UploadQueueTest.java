@@ -0,0 +1,104 @@
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.common.protocol.PeerMessage;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+@Test
+public class UploadQueueTest {
+
+  private static final int BLOCK_SIZE = PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE;
+
+  private static PeerMessage.RequestMessage request(int piece, int block) {
+    return PeerMessage.RequestMessage.craft(piece, block * BLOCK_SIZE, BLOCK_SIZE);
+  }
+
+  public void testAdjacentBlocksAreMerged() {
+    UploadQueue queue = new UploadQueue();
+    queue.add(request(1, 2));
+    queue.add(request(0, 0));
+    queue.add(request(1, 0));
+    queue.add(request(1, 1));
+    queue.add(request(1, 4));
+
+    List<UploadQueue.Read> reads = queue.poll(Long.MAX_VALUE);
+    assertEquals(reads.size(), 3);
+    assertEquals(reads.get(0).getPiece(), 0);
+    assertEquals(reads.get(0).getLength(), BLOCK_SIZE);
+
+    UploadQueue.Read merged = reads.get(1);
+    assertEquals(merged.getPiece(), 1);
+    assertEquals(merged.getOffset(), 0);
+    assertEquals(merged.getLength(), 3 * BLOCK_SIZE);
+    assertEquals(merged.getBlocks().size(), 3);
+    assertEquals(merged.getBlocks().get(2).getOffset(), 2 * BLOCK_SIZE);
+
+    assertEquals(reads.get(2).getOffset(), 4 * BLOCK_SIZE);
+    assertTrue(queue.isEmpty());
+    assertEquals(queue.getQueuedBytes(), 0);
+  }
+
+  public void testReadSizeIsLimited() {
+    UploadQueue queue = new UploadQueue();
+    int blocks = UploadQueue.MAX_READ_SIZE / BLOCK_SIZE + 1;
+    for (int i = 0; i < blocks; i++) {
+      queue.add(request(0, i));
+    }
+    List<UploadQueue.Read> reads = queue.poll(Long.MAX_VALUE);
+    assertEquals(reads.size(), 2);
+    assertEquals(reads.get(0).getLength(), UploadQueue.MAX_READ_SIZE);
+    assertEquals(reads.get(1).getOffset(), UploadQueue.MAX_READ_SIZE);
+  }
+
+  public void testBatchIsLimitedByBytes() {
+    UploadQueue queue = new UploadQueue();
+    for (int i = 0; i < 4; i++) {
+      queue.add(request(0, i));
+    }
+    assertEquals(queue.poll(2 * BLOCK_SIZE + 1).get(0).getLength(), 2 * BLOCK_SIZE);
+    // at least one request is taken
+    assertEquals(queue.poll(1).get(0).getLength(), BLOCK_SIZE);
+    assertEquals(queue.getQueuedBytes(), BLOCK_SIZE);
+  }
+
+  public void testCancelledAndChokedRequestsAreRemoved() {
+    UploadQueue queue = new UploadQueue();
+    queue.add(request(0, 0));
+    queue.add(request(1, 0));
+    queue.add(request(2, 0));
+
+    assertTrue(queue.remove(1, 0, BLOCK_SIZE));
+    assertFalse(queue.remove(1, 0, BLOCK_SIZE));
+
+    BitSet allowed = new BitSet();
+    allowed.set(2);
+    List<PeerMessage.RequestMessage> removed = queue.removeAllExcept(allowed);
+    assertEquals(removed.size(), 1);
+    assertEquals(removed.get(0).getPiece(), 0);
+    assertEquals(queue.getQueuedBytes(), BLOCK_SIZE);
+
+    assertEquals(queue.removeAllExcept(null).size(), 1);
+    assertTrue(queue.isEmpty());
+  }
+
+  public void testReadAheadPieceIsKeptUntilNextOne() {
+    UploadQueue queue = new UploadQueue();
+    assertNull(queue.getReadAhead(0));
+    queue.setReadAhead(0, ByteBuffer.allocate(10));
+    ByteBuffer data = queue.getReadAhead(0);
+    assertNotNull(data);
+    data.position(5);
+    // every reader gets its own position
+    assertEquals(queue.getReadAhead(0).position(), 0);
+
+    queue.setReadAhead(1, ByteBuffer.allocate(10));
+    assertNull(queue.getReadAhead(0));
+    queue.clear();
+    assertNull(queue.getReadAhead(1));
+  }
+}
@@ -1,13 +1,22 @@
 package com.turn.ttorrent.client.storage;
 
+import com.turn.ttorrent.Constants;
+import com.turn.ttorrent.client.ByteArrayStorage;
+import com.turn.ttorrent.client.ValidationProgressListener;
 import com.turn.ttorrent.common.TorrentFile;
 import com.turn.ttorrent.common.TorrentMetadata;
+import com.turn.ttorrent.common.TorrentUtils;
 import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.Test;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -88,4 +97,54 @@ public class FairPieceStorageFactoryTest {
     assertFalse(pieceStorage.isFinished());
   }
 
+  public void testParallelChecking() throws Exception {
+    int pieceLength = 16;
+    int pieceCount = 50;
+    int totalSize = (pieceCount - 1) * pieceLength + 5;
+
+    byte[] content = new byte[totalSize];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    byte[] hashes = new byte[pieceCount * Constants.PIECE_HASH_SIZE];
+    for (int i = 0; i < pieceCount; i++) {
+      //every third piece is corrupted
+      if (i % 3 == 0) continue;
+      byte[] piece = Arrays.copyOfRange(content, i * pieceLength, Math.min(totalSize, (i + 1) * pieceLength));
+      System.arraycopy(TorrentUtils.calculateSha1Hash(piece), 0, hashes, i * Constants.PIECE_HASH_SIZE, Constants.PIECE_HASH_SIZE);
+    }
+
+    TorrentMetadata metadata = mock(TorrentMetadata.class);
+    when(metadata.getPieceLength()).thenReturn(pieceLength);
+    when(metadata.getPiecesCount()).thenReturn(pieceCount);
+    when(metadata.getFiles()).thenReturn(Collections.singletonList(new TorrentFile(Collections.singletonList("test.avi"), totalSize, "")));
+    when(metadata.getPiecesHashes()).thenReturn(hashes);
+
+    ByteArrayStorage storage = new ByteArrayStorage(totalSize);
+    storage.write(ByteBuffer.wrap(content), 0);
+
+    final AtomicInteger lastCheckedPieces = new AtomicInteger();
+    ValidationProgressListener listener = new ValidationProgressListener() {
+      @Override
+      public void validationProgress(int checkedpieces, int validpieces, int totalpieces) {
+        synchronized (lastCheckedPieces) {
+          lastCheckedPieces.set(Math.max(lastCheckedPieces.get(), checkedpieces));
+        }
+      }
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      PieceStorage pieceStorage = new FairPieceStorageFactory(executor, 4, pieceLength * 3)
+              .createStorage(metadata, storage, listener);
+
+      BitSet availablePieces = pieceStorage.getAvailablePieces();
+      for (int i = 0; i < pieceCount; i++) {
+        assertEquals(availablePieces.get(i), i % 3 != 0, "piece " + i);
+      }
+      assertEquals(lastCheckedPieces.get(), pieceCount);
+    } finally {
+      executor.shutdown();
+    }
+  }
 }
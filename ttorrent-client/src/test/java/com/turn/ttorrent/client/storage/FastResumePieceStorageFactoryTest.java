@@ -0,0 +1,198 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.Constants;
+import com.turn.ttorrent.TempFiles;
+import com.turn.ttorrent.client.ValidationProgressListener;
+import com.turn.ttorrent.common.TorrentFile;
+import com.turn.ttorrent.common.TorrentMetadata;
+import com.turn.ttorrent.common.TorrentUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class FastResumePieceStorageFactoryTest {
+
+  private static final int PIECE_LENGTH = 10;
+
+  private TempFiles myTempFiles;
+  private File myDownloadDir;
+  private TorrentMetadata myMetadata;
+  private byte[] myFirstFileContent;
+  private byte[] mySecondFileContent;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myDownloadDir = myTempFiles.createTempDir();
+
+    myFirstFileContent = content(35, 1);
+    mySecondFileContent = content(25, 2);
+    writeFile("first", myFirstFileContent);
+    writeFile("second", mySecondFileContent);
+
+    byte[] allContent = new byte[myFirstFileContent.length + mySecondFileContent.length];
+    System.arraycopy(myFirstFileContent, 0, allContent, 0, myFirstFileContent.length);
+    System.arraycopy(mySecondFileContent, 0, allContent, myFirstFileContent.length, mySecondFileContent.length);
+    int piecesCount = (allContent.length + PIECE_LENGTH - 1) / PIECE_LENGTH;
+    byte[] hashes = new byte[piecesCount * Constants.PIECE_HASH_SIZE];
+    for (int i = 0; i < piecesCount; i++) {
+      byte[] piece = Arrays.copyOfRange(allContent, i * PIECE_LENGTH, Math.min(allContent.length, (i + 1) * PIECE_LENGTH));
+      System.arraycopy(TorrentUtils.calculateSha1Hash(piece), 0, hashes, i * Constants.PIECE_HASH_SIZE, Constants.PIECE_HASH_SIZE);
+    }
+
+    myMetadata = mock(TorrentMetadata.class);
+    when(myMetadata.getPieceLength()).thenReturn(PIECE_LENGTH);
+    when(myMetadata.getPiecesCount()).thenReturn(piecesCount);
+    when(myMetadata.getPiecesHashes()).thenReturn(hashes);
+    when(myMetadata.getInfoHash()).thenReturn(new byte[20]);
+    when(myMetadata.getHexInfoHash()).thenReturn("0000000000000000000000000000000000000000");
+    when(myMetadata.getFiles()).thenReturn(Arrays.asList(
+            new TorrentFile(Arrays.asList("first"), myFirstFileContent.length, ""),
+            new TorrentFile(Arrays.asList("second"), mySecondFileContent.length, "")));
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void testStateIsTrustedAfterRestart() throws Exception {
+    AtomicInteger checkedPieces = new AtomicInteger();
+    PieceStorage pieceStorage = createStorage(checkedPieces);
+    assertEquals(checkedPieces.get(), 6);
+    assertTrue(pieceStorage.isFinished());
+    pieceStorage.close();
+
+    checkedPieces.set(0);
+    pieceStorage = createStorage(checkedPieces);
+    assertEquals(checkedPieces.get(), 0);
+    assertTrue(pieceStorage.isFinished());
+    pieceStorage.close();
+  }
+
+  public void testPiecesOfChangedFileAreChecked() throws Exception {
+    createStorage(new AtomicInteger()).close();
+
+    File second = new File(myDownloadDir, "second");
+    RandomAccessFile raf = new RandomAccessFile(second, "rw");
+    try {
+      raf.seek(20);
+      raf.write(new byte[5]);
+    } finally {
+      raf.close();
+    }
+    assertTrue(second.setLastModified(second.lastModified() - 10000));
+
+    AtomicInteger checkedPieces = new AtomicInteger();
+    PieceStorage pieceStorage = createStorage(checkedPieces);
+    // pieces 3..5 contain bytes of the second file
+    assertEquals(checkedPieces.get(), 3);
+    BitSet availablePieces = pieceStorage.getAvailablePieces();
+    assertEquals(availablePieces.cardinality(), 5);
+    assertFalse(availablePieces.get(5));
+    pieceStorage.close();
+  }
+
+  public void testPiecesOfFileWhichWasWrittenWithoutCloseAreChecked() throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(new File(myDownloadDir, "first"), "rw");
+    try {
+      raf.setLength(0);
+      raf.setLength(myFirstFileContent.length);
+    } finally {
+      raf.close();
+    }
+    PieceStorage pieceStorage = createStorage(new AtomicInteger());
+    assertEquals(pieceStorage.getAvailablePieces().cardinality(), 2);
+
+    pieceStorage.savePiece(0, Arrays.copyOfRange(myFirstFileContent, 0, PIECE_LENGTH));
+    ((DirectPieceStorage) pieceStorage).saveBlock(1, 0, ByteBuffer.wrap(myFirstFileContent, PIECE_LENGTH, 5));
+    assertTrue(pieceStorage.getAvailablePieces().get(0));
+
+    // previous session isn't closed, the first file must be checked again
+    AtomicInteger checkedPieces = new AtomicInteger();
+    PieceStorage restarted = createStorage(checkedPieces);
+    // pieces 0..3 contain bytes of the first file
+    assertEquals(checkedPieces.get(), 4);
+    BitSet availablePieces = restarted.getAvailablePieces();
+    assertTrue(availablePieces.get(0));
+    assertFalse(availablePieces.get(1));
+    restarted.close();
+    pieceStorage.close();
+  }
+
+  public void testDataIsForcedBeforeCleanStateIfFilesAreNotSyncedOnClose() throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(new File(myDownloadDir, "first"), "rw");
+    try {
+      raf.setLength(0);
+      raf.setLength(myFirstFileContent.length);
+    } finally {
+      raf.close();
+    }
+    final AtomicInteger syncs = new AtomicInteger();
+    List<FileStorage> files = new ArrayList<FileStorage>();
+    files.add(new FileStorage(new File(myDownloadDir, "first"), 0, myFirstFileContent.length) {
+      @Override
+      public void sync() throws IOException {
+        syncs.incrementAndGet();
+        super.sync();
+      }
+    });
+    files.add(new FileStorage(new File(myDownloadDir, "second"), myFirstFileContent.length, mySecondFileContent.length));
+    FileCollectionStorage byteStorage = new FileCollectionStorage(files, myFirstFileContent.length + mySecondFileContent.length);
+    // files aren't forced on close in DurabilityMode.NONE
+    byteStorage.setSyncOnClose(false);
+
+    PieceStorage pieceStorage = new FastResumePieceStorageFactory(myDownloadDir).createStorage(myMetadata, byteStorage, null);
+    pieceStorage.savePiece(0, Arrays.copyOfRange(myFirstFileContent, 0, PIECE_LENGTH));
+    assertEquals(syncs.get(), 0);
+    pieceStorage.close();
+
+    assertEquals(syncs.get(), 1);
+  }
+
+  private PieceStorage createStorage(final AtomicInteger checkedPieces) throws IOException {
+    return new FastResumePieceStorageFactory(myDownloadDir).createStorage(myMetadata,
+            FileCollectionStorage.create(myMetadata, myDownloadDir),
+            new ValidationProgressListener() {
+              @Override
+              public void validationProgress(int checkedpieces, int validpieces, int totalpieces) {
+                checkedPieces.set(checkedpieces);
+              }
+            });
+  }
+
+  private byte[] content(int size, int seed) {
+    byte[] result = new byte[size];
+    for (int i = 0; i < size; i++) {
+      result[i] = (byte) (i * seed + 1);
+    }
+    return result;
+  }
+
+  private void writeFile(String name, byte[] content) throws IOException {
+    FileOutputStream out = new FileOutputStream(new File(myDownloadDir, name));
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.TempFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.*;
+
+@Test
+public class FileHandlePoolTest {
+
+  private TempFiles myTempFiles;
+
+  @BeforeMethod
+  public void setUp() {
+    myTempFiles = new TempFiles();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  private static byte[] read(FileStorage storage) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) storage.size());
+    storage.read(buffer, 0);
+    return buffer.array();
+  }
+
+  public void testFilesAreOpenedOnDemandAndClosedInLruOrder() throws Exception {
+    FileHandlePool pool = new FileHandlePool(2);
+    FileStorage[] storages = new FileStorage[3];
+    for (int i = 0; i < storages.length; i++) {
+      File file = myTempFiles.createTempFile();
+      storages[i] = new FileStorage(file, 0, 4, pool);
+      storages[i].open(false);
+    }
+    assertEquals(pool.getOpenFilesCount(), 0);
+
+    for (int i = 0; i < storages.length; i++) {
+      storages[i].write(ByteBuffer.wrap(new byte[]{(byte) i, 1, 2, 3}), 0);
+      assertTrue(pool.getOpenFilesCount() <= 2);
+    }
+    assertEquals(pool.getOpenFilesCount(), 2);
+
+    // the first file was closed as the least recently used one and is reopened now
+    assertEquals(read(storages[0]), new byte[]{0, 1, 2, 3});
+    assertEquals(read(storages[1]), new byte[]{1, 1, 2, 3});
+    assertEquals(read(storages[2]), new byte[]{2, 1, 2, 3});
+    assertEquals(pool.getOpenFilesCount(), 2);
+
+    for (FileStorage storage : storages) {
+      storage.close();
+    }
+    assertEquals(pool.getOpenFilesCount(), 0);
+  }
+
+  public void testUsedFileIsNotClosed() throws Exception {
+    FileHandlePool pool = new FileHandlePool(1);
+    FileHandlePool.Handle first = pool.createHandle(myTempFiles.createTempFile(), true);
+    FileHandlePool.Handle second = pool.createHandle(myTempFiles.createTempFile(), true);
+
+    FileChannel firstChannel = pool.acquire(first);
+    FileChannel secondChannel = pool.acquire(second);
+    assertEquals(pool.getOpenFilesCount(), 2);
+    assertTrue(firstChannel.isOpen());
+
+    pool.release(second);
+    assertEquals(pool.getOpenFilesCount(), 1);
+    assertFalse(secondChannel.isOpen());
+    assertTrue(firstChannel.isOpen());
+
+    pool.close(first);
+    assertTrue(firstChannel.isOpen());
+    pool.release(first);
+    assertFalse(firstChannel.isOpen());
+    assertEquals(pool.getOpenFilesCount(), 0);
+  }
+
+  public void testConcurrentAcquirersShareOneOpening() throws Exception {
+    final FileHandlePool pool = new FileHandlePool(1);
+    final FileHandlePool.Handle handle = pool.createHandle(myTempFiles.createTempFile(), true);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<FileChannel>> channels = new ArrayList<Future<FileChannel>>();
+      for (int i = 0; i < 8; i++) {
+        channels.add(executor.submit(new Callable<FileChannel>() {
+          @Override
+          public FileChannel call() throws Exception {
+            start.await();
+            return pool.acquire(handle);
+          }
+        }));
+      }
+      start.countDown();
+      FileChannel channel = channels.get(0).get();
+      for (Future<FileChannel> future : channels) {
+        assertSame(future.get(), channel);
+      }
+      assertEquals(pool.getOpenFilesCount(), 1);
+      for (int i = 0; i < channels.size(); i++) {
+        pool.release(handle);
+      }
+      assertTrue(channel.isOpen());
+      pool.close(handle);
+      assertFalse(channel.isOpen());
+      assertEquals(pool.getOpenFilesCount(), 0);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testFailedOpeningFreesSlot() throws Exception {
+    FileHandlePool pool = new FileHandlePool(1);
+    File missing = new File(myTempFiles.createTempDir(), "missing");
+    FileHandlePool.Handle handle = pool.createHandle(missing, true);
+    try {
+      pool.acquire(handle);
+      fail("Missing file can't be opened for reading");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(pool.getOpenFilesCount(), 0);
+    pool.close(handle);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testClosedHandleCannotBeAcquired() throws Exception {
+    FileHandlePool pool = new FileHandlePool(1);
+    FileHandlePool.Handle handle = pool.createHandle(myTempFiles.createTempFile(), true);
+    pool.close(handle);
+    pool.acquire(handle);
+  }
+}
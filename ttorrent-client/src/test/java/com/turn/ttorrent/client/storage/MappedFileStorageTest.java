@@ -0,0 +1,139 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.TempFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.*;
+
+@Test
+public class MappedFileStorageTest {
+
+  private TempFiles myTempFiles;
+  private File myFile;
+  private byte[] myContent;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myFile = myTempFiles.createTempFile();
+    myContent = new byte[100];
+    for (int i = 0; i < myContent.length; i++) {
+      myContent[i] = (byte) i;
+    }
+    FileOutputStream out = new FileOutputStream(myFile);
+    try {
+      out.write(myContent);
+    } finally {
+      out.close();
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void testReadAcrossWindows() throws Exception {
+    MappedFileStorage storage = new MappedFileStorage(myFile, 0, myContent.length, 16, 2);
+    storage.open(true);
+    try {
+      checkRead(storage, 0, 10);
+      checkRead(storage, 10, 40);
+      checkRead(storage, 95, 5);
+      checkRead(storage, 0, 100);
+    } finally {
+      storage.close();
+    }
+  }
+
+  public void testSlice() throws Exception {
+    MappedFileStorage storage = new MappedFileStorage(myFile, 0, myContent.length, 16, 2);
+    storage.open(true);
+    try {
+      ByteBuffer slice = storage.slice(16, 16);
+      assertNotNull(slice);
+      assertTrue(slice.isReadOnly());
+      byte[] bytes = new byte[16];
+      slice.get(bytes);
+      assertEquals(bytes, Arrays.copyOfRange(myContent, 16, 32));
+
+      assertNull(storage.slice(10, 16));
+    } finally {
+      storage.close();
+    }
+  }
+
+  public void testTransferTo() throws Exception {
+    MappedFileStorage storage = new MappedFileStorage(myFile, 0, myContent.length, 16, 2);
+    storage.open(true);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(storage.transferTo(5, 50, Channels.newChannel(out)), 50);
+      assertEquals(out.toByteArray(), Arrays.copyOfRange(myContent, 5, 55));
+    } finally {
+      storage.close();
+    }
+  }
+
+  public void testSliceIsNotAvailableBeforeFinish() throws Exception {
+    MappedFileStorage storage = new MappedFileStorage(myFile, 0, myContent.length, 16, 2);
+    storage.open(false);
+    try {
+      assertNull(storage.slice(0, 10));
+      checkRead(storage, 0, 10);
+    } finally {
+      storage.close();
+    }
+  }
+
+  public void testConcurrentReadsWithEvictedWindows() throws Exception {
+    final MappedFileStorage storage = new MappedFileStorage(myFile, 0, myContent.length, 8, 2);
+    storage.open(true);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 0; i < 4; i++) {
+        final Random random = new Random(i);
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int j = 0; j < 1000; j++) {
+              int position = random.nextInt(myContent.length);
+              checkRead(storage, position, 1 + random.nextInt(myContent.length - position));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+      storage.close();
+    }
+  }
+
+  private void checkRead(MappedFileStorage storage, int position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    assertEquals(storage.read(buffer, position), length);
+    assertEquals(buffer.array(), Arrays.copyOfRange(myContent, position, position + length));
+  }
+}
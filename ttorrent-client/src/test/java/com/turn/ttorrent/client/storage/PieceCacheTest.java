@@ -0,0 +1,90 @@
+package com.turn.ttorrent.client.storage;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PieceCacheTest {
+
+  private static final String HASH = "0123456789abcdef0123456789abcdef01234567";
+  private static final String OTHER_HASH = "89abcdef0123456789abcdef0123456789abcdef";
+
+  public void testPieceIsAdmittedOnRepeatedRead() {
+    int block = PieceCache.TRACKED_BLOCK_SIZE;
+    PieceCache cache = new PieceCache(4 * block);
+
+    assertFalse(cache.recordRead(HASH, 0, 0, block, 2 * block));
+    assertFalse(cache.recordRead(HASH, 0, block, block, 2 * block));
+    assertTrue(cache.recordRead(HASH, 0, 0, block, 2 * block));
+    assertFalse(cache.recordRead(HASH, 1, 0, 2 * block, 2 * block));
+    assertTrue(cache.recordRead(HASH, 1, block, block, 2 * block));
+  }
+
+  public void testPieceLargerThanBudgetIsNotAdmitted() {
+    PieceCache cache = new PieceCache(10);
+    assertFalse(cache.recordRead(HASH, 0, 0, 4, 11));
+    assertFalse(cache.recordRead(HASH, 0, 0, 4, 11));
+
+    ByteBuffer data = cache.put(HASH, 0, new byte[11]);
+    assertFalse(data.isDirect());
+    assertEquals(cache.getPiecesCount(), 0);
+  }
+
+  public void testHitsAndMisses() {
+    PieceCache cache = new PieceCache(100);
+    assertNull(cache.get(HASH, 3));
+
+    ByteBuffer cached = cache.put(HASH, 3, new byte[]{1, 2, 3});
+    assertTrue(cached.isDirect());
+    assertEquals(cached.remaining(), 3);
+
+    ByteBuffer data = cache.get(HASH, 3);
+    assertNotNull(data);
+    assertEquals(data.get(2), 3);
+    assertNull(cache.get(OTHER_HASH, 3));
+
+    assertEquals(cache.getHits(), 1);
+    assertEquals(cache.getMisses(), 2);
+    assertEquals(cache.getSize(), 3);
+  }
+
+  public void testLeastRecentlyUsedPieceIsEvicted() {
+    PieceCache cache = new PieceCache(30);
+    cache.put(HASH, 0, new byte[10]);
+    cache.put(HASH, 1, new byte[10]);
+    cache.put(HASH, 2, new byte[10]);
+    assertNotNull(cache.get(HASH, 0));
+
+    cache.put(HASH, 3, new byte[10]);
+
+    assertNull(cache.get(HASH, 1));
+    assertNotNull(cache.get(HASH, 0));
+    assertNotNull(cache.get(HASH, 3));
+    assertEquals(cache.getEvictions(), 1);
+    assertEquals(cache.getSize(), 30);
+
+    cache.setMaxSize(10);
+    assertEquals(cache.getPiecesCount(), 1);
+    assertEquals(cache.getEvictions(), 3);
+  }
+
+  public void testInvalidation() {
+    PieceCache cache = new PieceCache(100);
+    cache.put(HASH, 0, new byte[10]);
+    cache.put(HASH, 1, new byte[10]);
+    cache.put(OTHER_HASH, 0, new byte[10]);
+
+    cache.invalidate(HASH, 0);
+    assertNull(cache.get(HASH, 0));
+    assertEquals(cache.getSize(), 20);
+
+    cache.invalidateTorrent(HASH);
+    assertNull(cache.get(HASH, 1));
+    assertNotNull(cache.get(OTHER_HASH, 0));
+    assertEquals(cache.getSize(), 10);
+    assertEquals(cache.getEvictions(), 0);
+  }
+}
@@ -1,21 +1,26 @@
 package com.turn.ttorrent.client.storage;
 
 import com.turn.ttorrent.client.ByteArrayStorage;
+import com.turn.ttorrent.common.TorrentUtils;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.BitSet;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 public class PieceStorageImplTest {
 
-  private PieceStorage pieceStorage;
+  private PieceStorageImpl pieceStorage;
   private int pieceSize;
   private int pieceCount;
   private byte[] allPieces;
@@ -72,6 +77,36 @@ public class PieceStorageImplTest {
     assertEquals(pieceStorage.getAvailablePieces().cardinality(), pieceCount);
   }
 
+  @Test
+  public void testSaveByBlocks() throws IOException {
+    int pieceIndex = 2;
+    byte[] pieceData = Arrays.copyOfRange(allPieces, pieceIndex * pieceSize, (pieceIndex + 1) * pieceSize);
+    int blockSize = pieceSize / 3;
+    pieceStorage.saveBlock(pieceIndex, 2 * blockSize, ByteBuffer.wrap(pieceData, 2 * blockSize, blockSize));
+    pieceStorage.saveBlock(pieceIndex, 0, ByteBuffer.wrap(pieceData, 0, blockSize));
+    pieceStorage.saveBlock(pieceIndex, blockSize, ByteBuffer.wrap(pieceData, blockSize, blockSize));
+    assertFalse(pieceStorage.getAvailablePieces().get(pieceIndex));
+
+    MessageDigest digest = TorrentUtils.createSha1Digest();
+    pieceStorage.digestPiecePart(pieceIndex, 0, pieceSize, digest);
+    assertEquals(digest.digest(), TorrentUtils.calculateSha1Hash(pieceData));
+
+    pieceStorage.markPieceAvailable(pieceIndex);
+    assertTrue(pieceStorage.getAvailablePieces().get(pieceIndex));
+    assertEquals(pieceStorage.readPiecePart(pieceIndex, 0, pieceSize), pieceData);
+  }
+
+  @Test
+  public void testTransferFromPlainByteStorage() throws IOException {
+    int pieceIndex = 3;
+    byte[] pieceData = Arrays.copyOfRange(allPieces, pieceIndex * pieceSize, (pieceIndex + 1) * pieceSize);
+    pieceStorage.savePiece(pieceIndex, pieceData);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(pieceStorage.transferPiecePart(pieceIndex, 2, 5, Channels.newChannel(out)), 5);
+    assertEquals(out.toByteArray(), Arrays.copyOfRange(pieceData, 2, 7));
+  }
+
   @Test(expectedExceptions = IllegalArgumentException.class)
   public void testReadUnavailablePiece() throws IOException {
     pieceStorage.readPiecePart(45, 0, pieceSize);
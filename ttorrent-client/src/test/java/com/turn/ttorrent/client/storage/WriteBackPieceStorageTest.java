@@ -0,0 +1,211 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.client.ByteArrayStorage;
+import com.turn.ttorrent.common.TorrentFile;
+import com.turn.ttorrent.common.TorrentMetadata;
+import com.turn.ttorrent.common.TorrentUtils;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.*;
+
+@Test
+public class WriteBackPieceStorageTest {
+
+  private static final int PIECE_SIZE = 32;
+  private static final int PIECES_COUNT = 4;
+
+  private TorrentMetadata myMetadata;
+  private AtomicInteger myWritesCount;
+  private ByteArrayStorage myByteStorage;
+  private PieceStorage myDelegate;
+  private byte[] myData;
+
+  @BeforeMethod
+  public void setUp() {
+    myMetadata = mock(TorrentMetadata.class);
+    when(myMetadata.getHexInfoHash()).thenReturn("0123456789abcdef0123456789abcdef01234567");
+    when(myMetadata.getPieceLength()).thenReturn(PIECE_SIZE);
+    when(myMetadata.getPiecesCount()).thenReturn(PIECES_COUNT);
+    when(myMetadata.getFiles()).thenReturn(Collections.singletonList(
+            new TorrentFile(Collections.singletonList("file"), (long) PIECE_SIZE * PIECES_COUNT, "")));
+
+    myWritesCount = new AtomicInteger();
+    myByteStorage = new ByteArrayStorage(PIECE_SIZE * PIECES_COUNT) {
+      @Override
+      public int write(ByteBuffer block, long position) {
+        myWritesCount.incrementAndGet();
+        return super.write(block, position);
+      }
+    };
+    myDelegate = new PieceStorageImpl(myByteStorage, new BitSet(), PIECES_COUNT, PIECE_SIZE);
+    myData = new byte[PIECE_SIZE * PIECES_COUNT];
+    for (int i = 0; i < myData.length; i++) {
+      myData[i] = (byte) i;
+    }
+  }
+
+  private void downloadPiece(DirectPieceStorage storage, int pieceIndex) throws IOException {
+    int half = PIECE_SIZE / 2;
+    storage.saveBlock(pieceIndex, half, ByteBuffer.wrap(myData, pieceIndex * PIECE_SIZE + half, half).slice());
+    storage.saveBlock(pieceIndex, 0, ByteBuffer.wrap(myData, pieceIndex * PIECE_SIZE, half).slice());
+  }
+
+  private byte[] piece(int pieceIndex) {
+    return Arrays.copyOfRange(myData, pieceIndex * PIECE_SIZE, (pieceIndex + 1) * PIECE_SIZE);
+  }
+
+  public void testValidatedPiecesAreWrittenTogether() throws Exception {
+    DiskWriter writer = new DiskWriter(PIECE_SIZE * PIECES_COUNT);
+    WriteBackPieceStorage storage = new WriteBackPieceStorage(myDelegate, writer, myMetadata);
+
+    downloadPiece(storage, 2);
+    downloadPiece(storage, 1);
+    assertEquals(myWritesCount.get(), 0);
+    assertEquals(writer.getBufferedBytes(), 2 * PIECE_SIZE);
+
+    MessageDigest digest = TorrentUtils.createSha1Digest();
+    storage.digestPiecePart(1, 0, PIECE_SIZE, digest);
+    assertEquals(digest.digest(), TorrentUtils.calculateSha1Hash(piece(1)));
+
+    storage.markPieceAvailable(2);
+    storage.markPieceAvailable(1);
+    assertTrue(storage.getAvailablePieces().get(1));
+    assertTrue(storage.getAvailablePieces().get(2));
+    assertEquals(myDelegate.getAvailablePieces().cardinality(), 0);
+    assertEquals(storage.readPiecePart(2, 4, 8), Arrays.copyOfRange(myData, 2 * PIECE_SIZE + 4, 2 * PIECE_SIZE + 12));
+
+    storage.writeCompletedPieces();
+
+    assertEquals(myWritesCount.get(), 1);
+    assertEquals(writer.getBufferedBytes(), 0);
+    assertTrue(myDelegate.getAvailablePieces().get(1));
+    assertTrue(myDelegate.getAvailablePieces().get(2));
+    assertEquals(myDelegate.readPiecePart(1, 0, PIECE_SIZE), piece(1));
+    assertEquals(myDelegate.readPiecePart(2, 0, PIECE_SIZE), piece(2));
+  }
+
+  public void testPiecesOverLimitAreWrittenRightAway() throws Exception {
+    DiskWriter writer = new DiskWriter(PIECE_SIZE);
+    WriteBackPieceStorage storage = new WriteBackPieceStorage(myDelegate, writer, myMetadata);
+
+    downloadPiece(storage, 0);
+    downloadPiece(storage, 3);
+    assertEquals(myWritesCount.get(), 2);
+
+    storage.markPieceAvailable(3);
+    assertTrue(myDelegate.getAvailablePieces().get(3));
+    assertEquals(myDelegate.readPiecePart(3, 0, PIECE_SIZE), piece(3));
+
+    storage.markPieceAvailable(0);
+    assertFalse(myDelegate.getAvailablePieces().get(0));
+    assertEquals(writer.getBufferedBytes(), PIECE_SIZE);
+  }
+
+  public void testLastPieceIsWrittenImmediately() throws Exception {
+    DiskWriter writer = new DiskWriter(PIECE_SIZE * PIECES_COUNT);
+    WriteBackPieceStorage storage = new WriteBackPieceStorage(myDelegate, writer, myMetadata);
+
+    for (int i = 0; i < PIECES_COUNT; i++) {
+      downloadPiece(storage, i);
+    }
+    for (int i = 0; i < PIECES_COUNT - 1; i++) {
+      storage.markPieceAvailable(i);
+    }
+    assertFalse(myDelegate.isFinished());
+
+    storage.markPieceAvailable(PIECES_COUNT - 1);
+
+    assertTrue(myDelegate.isFinished());
+    assertTrue(myByteStorage.isFinished());
+    assertEquals(myWritesCount.get(), 1);
+    assertEquals(writer.getBufferedBytes(), 0);
+  }
+
+  public void testPiecesAreSavedWholeIfDelegateCantSaveBlocks() throws Exception {
+    final AtomicInteger savedPieces = new AtomicInteger();
+    PieceStorage delegate = new PieceStorage() {
+      @Override
+      public void savePiece(int pieceIndex, byte[] pieceData) throws IOException {
+        savedPieces.incrementAndGet();
+        myDelegate.savePiece(pieceIndex, pieceData);
+      }
+
+      @Override
+      public byte[] readPiecePart(int pieceIndex, int offset, int length) throws IOException {
+        return myDelegate.readPiecePart(pieceIndex, offset, length);
+      }
+
+      @Override
+      public BitSet getAvailablePieces() {
+        return myDelegate.getAvailablePieces();
+      }
+
+      @Override
+      public boolean isFinished() {
+        return myDelegate.isFinished();
+      }
+
+      @Override
+      public void closeFully() throws IOException {
+        myDelegate.closeFully();
+      }
+
+      @Override
+      public void close() throws IOException {
+        myDelegate.close();
+      }
+    };
+    DiskWriter writer = new DiskWriter(PIECE_SIZE);
+    WriteBackPieceStorage storage = new WriteBackPieceStorage(delegate, writer, myMetadata);
+
+    // blocks can't be written through, so pieces are kept in memory over the limit
+    downloadPiece(storage, 1);
+    downloadPiece(storage, 2);
+    assertEquals(myWritesCount.get(), 0);
+    assertEquals(writer.getBufferedBytes(), 2 * PIECE_SIZE);
+
+    MessageDigest digest = TorrentUtils.createSha1Digest();
+    storage.digestPiecePart(2, 0, PIECE_SIZE, digest);
+    assertEquals(digest.digest(), TorrentUtils.calculateSha1Hash(piece(2)));
+
+    storage.markPieceAvailable(1);
+    storage.markPieceAvailable(2);
+    storage.writeCompletedPieces();
+    storage.sync();
+
+    assertEquals(savedPieces.get(), 2);
+    assertEquals(writer.getBufferedBytes(), 0);
+    assertEquals(myDelegate.readPiecePart(1, 0, PIECE_SIZE), piece(1));
+    assertEquals(myDelegate.readPiecePart(2, 0, PIECE_SIZE), piece(2));
+  }
+
+  public void testWriterThreadWritesScheduledPieces() throws Exception {
+    DiskWriter writer = new DiskWriter(PIECE_SIZE * PIECES_COUNT);
+    WriteBackPieceStorage storage = new WriteBackPieceStorage(myDelegate, writer, myMetadata);
+    writer.start();
+    try {
+      downloadPiece(storage, 0);
+      storage.markPieceAvailable(0);
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (!myDelegate.getAvailablePieces().get(0) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(myDelegate.getAvailablePieces().get(0));
+    } finally {
+      writer.stop();
+    }
+    assertEquals(writer.getBufferedBytes(), 0);
+  }
+}
@@ -0,0 +1,85 @@
+package com.turn.ttorrent.client.strategy;
+
+import com.turn.ttorrent.client.Piece;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.BitSet;
+
+public class RequestStrategyImplRarestFirstTest {
+
+  private final int myPiecesTotal = 10;
+  private final Piece[] myPieces = new Piece[myPiecesTotal];
+  private RequestStrategyImplRarestFirst myRequestStrategy;
+
+  @BeforeMethod
+  public void init() {
+    for (int i = 0; i < myPieces.length; i++) {
+      myPieces[i] = new Piece(null, i, 0, new byte[0]);
+    }
+    myRequestStrategy = new RequestStrategyImplRarestFirst();
+  }
+
+  @Test
+  public void choosePieceNoInterestingTest() {
+    myRequestStrategy.pieceSeen(1);
+    Piece actual = myRequestStrategy.choosePiece(new BitSet(), myPieces);
+    Assert.assertNull(actual);
+  }
+
+  @Test
+  public void chooseRarestPieceTest() {
+    BitSet interesting = new BitSet();
+    interesting.set(0, myPiecesTotal);
+    for (int i = 0; i < myPiecesTotal; i++) {
+      seen(i, 3);
+    }
+    seen(7, -2);
+    seen(4, -1);
+    Assert.assertEquals(myRequestStrategy.choosePiece(interesting, myPieces), myPieces[7]);
+
+    interesting.clear(7);
+    Assert.assertEquals(myRequestStrategy.choosePiece(interesting, myPieces), myPieces[4]);
+  }
+
+  @Test
+  public void completedPiecesAreNotChosenTest() {
+    BitSet interesting = new BitSet();
+    interesting.set(0, myPiecesTotal);
+    for (int i = 0; i < myPiecesTotal; i++) {
+      seen(i, 2);
+    }
+    seen(2, -1);
+    seen(5, -1);
+    myRequestStrategy.pieceCompleted(2, true);
+    Assert.assertEquals(myRequestStrategy.choosePiece(interesting, myPieces), myPieces[5]);
+
+    myRequestStrategy.pieceCompleted(5, true);
+    myRequestStrategy.pieceCompleted(2, false);
+    Assert.assertEquals(myRequestStrategy.choosePiece(interesting, myPieces), myPieces[2]);
+  }
+
+  @Test
+  public void choosePieceAmongRarestTest() {
+    BitSet interesting = new BitSet();
+    interesting.set(0, myPiecesTotal);
+    for (int i = 0; i < myPiecesTotal; i++) {
+      seen(i, i < 3 ? 1 : 2);
+    }
+    for (int i = 0; i < 20; i++) {
+      Piece actual = myRequestStrategy.choosePiece(interesting, myPieces);
+      Assert.assertTrue(actual.getIndex() < 3);
+    }
+  }
+
+  private void seen(int pieceIndex, int count) {
+    for (int i = 0; i < Math.abs(count); i++) {
+      if (count > 0) {
+        myRequestStrategy.pieceSeen(pieceIndex);
+      } else {
+        myRequestStrategy.pieceLost(pieceIndex);
+      }
+    }
+  }
+}